@@ -0,0 +1,22 @@
+/* Denormalize the run onto the big chrom info tables so that container filtering doesn't have to join up the document tree */
+ALTER TABLE targetedms.TransitionChromInfo ADD COLUMN RunId BIGINT;
+
+UPDATE targetedms.TransitionChromInfo tci SET RunId = rep.RunId
+    FROM targetedms.SampleFile sf
+    INNER JOIN targetedms.Replicate rep ON rep.Id = sf.ReplicateId
+    WHERE sf.Id = tci.SampleFileId;
+
+ALTER TABLE targetedms.TransitionChromInfo ALTER COLUMN RunId SET NOT NULL;
+ALTER TABLE targetedms.TransitionChromInfo ADD CONSTRAINT FK_TransitionChromInfo_Runs FOREIGN KEY (RunId) REFERENCES targetedms.Runs(Id);
+CREATE INDEX IX_TransitionChromInfo_RunId ON targetedms.TransitionChromInfo (RunId, Id);
+
+ALTER TABLE targetedms.GeneralMoleculeChromInfo ADD COLUMN RunId BIGINT;
+
+UPDATE targetedms.GeneralMoleculeChromInfo gmci SET RunId = rep.RunId
+    FROM targetedms.SampleFile sf
+    INNER JOIN targetedms.Replicate rep ON rep.Id = sf.ReplicateId
+    WHERE sf.Id = gmci.SampleFileId;
+
+ALTER TABLE targetedms.GeneralMoleculeChromInfo ALTER COLUMN RunId SET NOT NULL;
+ALTER TABLE targetedms.GeneralMoleculeChromInfo ADD CONSTRAINT FK_GeneralMoleculeChromInfo_Runs FOREIGN KEY (RunId) REFERENCES targetedms.Runs(Id);
+CREATE INDEX IX_GeneralMoleculeChromInfo_RunId ON targetedms.GeneralMoleculeChromInfo (RunId, Id);
@@ -0,0 +1,12 @@
+CREATE TABLE targetedms.AnnotationSummary
+(
+    Target VARCHAR(30) NOT NULL,
+    ParentId BIGINT NOT NULL,
+    RunId BIGINT NOT NULL,
+    Annotations TEXT NOT NULL,
+
+    CONSTRAINT PK_AnnotationSummary PRIMARY KEY (Target, ParentId),
+    CONSTRAINT FK_AnnotationSummary_Runs FOREIGN KEY (RunId) REFERENCES targetedms.Runs(Id)
+);
+
+CREATE INDEX IX_AnnotationSummary_RunId ON targetedms.AnnotationSummary (RunId);
@@ -0,0 +1,26 @@
+/* Denormalize the run onto the big chrom info tables so that container filtering doesn't have to join up the document tree */
+ALTER TABLE targetedms.TransitionChromInfo ADD RunId BIGINT;
+GO
+
+UPDATE tci SET RunId = rep.RunId
+    FROM targetedms.TransitionChromInfo tci
+    INNER JOIN targetedms.SampleFile sf ON sf.Id = tci.SampleFileId
+    INNER JOIN targetedms.Replicate rep ON rep.Id = sf.ReplicateId;
+
+ALTER TABLE targetedms.TransitionChromInfo ALTER COLUMN RunId BIGINT NOT NULL;
+ALTER TABLE targetedms.TransitionChromInfo ADD CONSTRAINT FK_TransitionChromInfo_Runs FOREIGN KEY (RunId) REFERENCES targetedms.Runs(Id);
+CREATE INDEX IX_TransitionChromInfo_RunId ON targetedms.TransitionChromInfo (RunId, Id);
+GO
+
+ALTER TABLE targetedms.GeneralMoleculeChromInfo ADD RunId BIGINT;
+GO
+
+UPDATE gmci SET RunId = rep.RunId
+    FROM targetedms.GeneralMoleculeChromInfo gmci
+    INNER JOIN targetedms.SampleFile sf ON sf.Id = gmci.SampleFileId
+    INNER JOIN targetedms.Replicate rep ON rep.Id = sf.ReplicateId;
+
+ALTER TABLE targetedms.GeneralMoleculeChromInfo ALTER COLUMN RunId BIGINT NOT NULL;
+ALTER TABLE targetedms.GeneralMoleculeChromInfo ADD CONSTRAINT FK_GeneralMoleculeChromInfo_Runs FOREIGN KEY (RunId) REFERENCES targetedms.Runs(Id);
+CREATE INDEX IX_GeneralMoleculeChromInfo_RunId ON targetedms.GeneralMoleculeChromInfo (RunId, Id);
+GO
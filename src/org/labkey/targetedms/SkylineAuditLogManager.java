@@ -21,17 +21,18 @@
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
-import org.labkey.api.data.BaseSelector;
 import org.labkey.api.data.CompareType;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerManager;
 import org.labkey.api.data.DbScope;
+import org.labkey.api.data.RuntimeSQLException;
 import org.labkey.api.data.SQLFragment;
 import org.labkey.api.data.SimpleFilter;
 import org.labkey.api.data.SqlExecutor;
 import org.labkey.api.data.SqlSelector;
 import org.labkey.api.data.Table;
 import org.labkey.api.data.TableInfo;
+import org.labkey.api.data.TableSelector;
 import org.labkey.api.module.ModuleProperty;
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.security.User;
@@ -41,6 +42,7 @@
 import org.labkey.api.view.ViewContext;
 import org.labkey.targetedms.parser.skyaudit.AuditLogEntry;
 import org.labkey.targetedms.parser.skyaudit.AuditLogException;
+import org.labkey.targetedms.parser.skyaudit.AuditLogMessage;
 import org.labkey.targetedms.parser.skyaudit.AuditLogMessageExpander;
 import org.labkey.targetedms.parser.skyaudit.AuditLogParsingException;
 import org.labkey.targetedms.parser.skyaudit.AuditLogTree;
@@ -56,12 +58,17 @@
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 import java.util.stream.Collectors;
 
@@ -75,7 +82,7 @@
     {
         File _logFile;
         GUID _documentGUID;
-        AuditLogTree _logTree;
+        boolean _hasExistingLog;
         Long _runId;
         MessageDigest _rootHash = null;
     }
@@ -162,10 +169,11 @@ private boolean verifyPreRequisites(AuditLogImportContext pContext) throws Audit
                     .append(docFilter.getSQLFragment(TargetedMSManager.getSqlDialect()));
 
         Integer docCount = new SqlSelector(TargetedMSManager.getSchema(), query).getObject(Integer.class);
-        pContext._logTree = buildLogTree(pContext._documentGUID);
+        pContext._hasExistingLog = new TableSelector(TargetedMSManager.getTableInfoSkylineAuditLogEntry(),
+                new SimpleFilter(FieldKey.fromParts("documentGUID"), pContext._documentGUID.toString()), null).exists();
 
-        //verify that the tree is not empty
-        if(docCount == 0 || pContext._logTree.getTreeSize() > 1)
+        //verify that the existing versions have a log
+        if(docCount == 0 || pContext._hasExistingLog)
         {
             //if document count >0 retrieve audit log tree for this GUID
             return true;
@@ -179,114 +187,262 @@ private boolean verifyPreRequisites(AuditLogImportContext pContext) throws Audit
     }
 
     /***
-     * Iterates through the log entries and persists them one by one
+     * Streams the log entries from the file into the database. Entries in the file are in reverse chronological
+     * order, so an entry's parent is the one read after it, and each entry is verified and handed to the writer
+     * as soon as the next one has been read. Only the entries that are not already in the log of another
+     * version of the document are written.
      * @return number of audit log entries read from the file.
      */
     private int persistAuditLog(AuditLogImportContext pContext, SkylineAuditLogParser parser) throws AuditLogException
     {
         AuditLogMessageExpander expander = new AuditLogMessageExpander(_logger);
-        //since entries in the log file are in reverse chronological order we have to
-        //read them in the list and then reverse it before the tree processing
-        List<AuditLogEntry> entries = new LinkedList<>();
-        int hashValidationFailures = 0;
-        AuditLogEntry previousEntry = null;
-        //while next entry is not null
-        while (parser.hasNextEntry())
+        HashVerifier hashVerifier = new HashVerifier();
+        AuditLogEntry lastEntry = null;         // chronologically last, i.e. the first one in the file
+        AuditLogEntry childEntry = null;        // the entry read before the current one
+        int entriesCount = 0;
+
+        try (DbScope.Transaction transaction = TargetedMSManager.getSchema().getScope().ensureTransaction())
         {
-            try
+            AuditLogWriter writer = new AuditLogWriter(pContext._documentGUID, pContext._hasExistingLog);
+            while (parser.hasNextEntry())
             {
-                AuditLogEntry ent = parser.parseLogEntry();
-                ent.expandEntry(expander);
-                ent.setDocumentGUID(pContext._documentGUID);
-                pContext._rootHash.update(ent.getEntryHash().getBytes(StandardCharsets.UTF_8));
-                // Insert at the beginning of the list so we can quickly iterate in reverse order for validation
-                entries.add(0, ent);
+                try
+                {
+                    AuditLogEntry ent = parser.parseLogEntry();
+                    ent.expandEntry(expander);
+                    ent.setDocumentGUID(pContext._documentGUID);
+                    pContext._rootHash.update(ent.getEntryHash().getBytes(StandardCharsets.UTF_8));
+                    if (childEntry != null)
+                    {
+                        childEntry.setParentEntryHash(ent.getEntryHash());
+                        hashVerifier.verify(childEntry);
+                        writer.add(childEntry);
+                    }
+                    else
+                    {
+                        //set the document version id on the chronologically last log entry.
+                        ent.setVersionId(pContext._runId);
+                        lastEntry = ent;
+                    }
+                    childEntry = ent;
+                    entriesCount++;
+                }
+                catch(AuditLogParsingException e)
+                {
+                    _securityMgr.reportErrorForIntegrityLevel(
+                            "Error when parsing audit log file.",
+                            SkylineAuditLogSecurityManager.INTEGRITY_LEVEL.ANY, e);
+                }
             }
-            catch (XMLStreamException e)
+            parser.finish();
+
+            // Issue 39455 - bail out if there were no audit log entries
+            if (childEntry == null)
             {
-                throw new AuditLogException("Error when parsing the audit log file.", e);
+                return 0;
             }
-            catch(AuditLogParsingException e)
+
+            //the chronologically first entry has no parent
+            hashVerifier.verify(childEntry);
+            childEntry.setParentEntryHash(AuditLogTree.NULL_STRING);
+            writer.add(childEntry);
+            int persistedEntriesCount = writer.finish();
+
+            if (!expander.areAllMessagesExpanded())
+            {
+                _logger.warn("At least one audit log expansion token failed to expand. This is expected for old Skyline documents, but not for newer ones");
+            }
+
+            if (hashVerifier._failures > 0)
             {
                 _securityMgr.reportErrorForIntegrityLevel(
-                        "Error when parsing audit log file.",
-                        SkylineAuditLogSecurityManager.INTEGRITY_LEVEL.ANY, e);
+                        "Hash value verification failed for " + hashVerifier._failures + " of " + entriesCount + " total entries",
+                        SkylineAuditLogSecurityManager.INTEGRITY_LEVEL.ANY);
             }
-        }
 
-        if (!expander.areAllMessagesExpanded())
+            if (persistedEntriesCount == 0)      //if no entries were actually saved into the database we are uploading an earlier document version
+                lastEntry.updateVersionId(pContext._runId);   //and still need to update the terminal entry with the versionId.
+
+            transaction.commit();
+        }
+        catch (XMLStreamException e)
         {
-            _logger.warn("At least one audit log expansion token failed to expand. This is expected for old Skyline documents, but not for newer ones");
+            throw new AuditLogException("Error when parsing the audit log file.", e);
         }
-
-        for (AuditLogEntry ent : entries)
+        catch (SQLException e)
         {
-            if (previousEntry != null)
-            {
-                ent.setParentEntryHash(previousEntry.getEntryHash());
-            }
+            throw new RuntimeSQLException(e);
+        }
+
+        return entriesCount;
+    }
+
+    /** Counts the entries whose hash doesn't match their content, and reports the first one */
+    private class HashVerifier
+    {
+        private int _failures;
 
+        private void verify(AuditLogEntry ent) throws AuditLogException
+        {
             //throw or log the results based on the integrity level setting
             if (!ent.verifyHash())
             {
-                if (hashValidationFailures == 0)
+                if (_failures == 0)
                 {
                     _securityMgr.reportErrorForIntegrityLevel(
                             String.format("Hash value verification failed for the log entry timestamped with %s. This is expected for older Skyline documents with audit logs that do not contain hashes. Suppressing warning for remainder of file", ent.getOffsetCreateTimestamp().toString()),
                             SkylineAuditLogSecurityManager.INTEGRITY_LEVEL.ANY);
                 }
-                hashValidationFailures++;
+                _failures++;
             }
-            previousEntry = ent;
         }
+    }
+
+    /**
+     * Writes new audit log entries and their messages with JDBC batches. Entries are added newest first, as they
+     * are read from the file. Each batch is checked against the entries already saved for the document with an
+     * indexed lookup on the document GUID and entry hash: the newest entries are new, and once an entry from an
+     * existing version's log is reached, all of the older ones must be there too.
+     */
+    private static class AuditLogWriter
+    {
+        private static final int BATCH_SIZE = 1000;
+
+        private final GUID _documentGUID;
+        private final boolean _hasExistingLog;
+        private final List<AuditLogEntry> _pending = new ArrayList<>(BATCH_SIZE);
+        private final Connection _connection;
+        private boolean _reachedExistingLog;
+        private int _persistedCount;
 
-        if (hashValidationFailures > 0)
+        private AuditLogWriter(GUID documentGUID, boolean hasExistingLog) throws SQLException
         {
-            _securityMgr.reportErrorForIntegrityLevel(
-                    "Hash value verification failed for " + hashValidationFailures + " of " + entries.size() + " total entries",
-                    SkylineAuditLogSecurityManager.INTEGRITY_LEVEL.ANY);
+            _documentGUID = documentGUID;
+            _hasExistingLog = hasExistingLog;
+            _connection = TargetedMSManager.getSchema().getScope().getConnection();
         }
 
-        // Issue 39455 - bail out if there were no audit log entries
-        if (entries.isEmpty())
+        private void add(AuditLogEntry entry) throws AuditLogException, SQLException
         {
-            return 0;
+            _pending.add(entry);
+            if (_pending.size() >= BATCH_SIZE)
+            {
+                flush();
+            }
         }
 
-        if (pContext._runId != null)       //set the document version id on the chronologically last log entry.
-            entries.get(entries.size() - 1).setVersionId(pContext._runId);
+        /** @return the number of entries that were written */
+        private int finish() throws AuditLogException, SQLException
+        {
+            flush();
+            return _persistedCount;
+        }
 
-        AuditLogTree treePointer = pContext._logTree;
-        int persistedEntriesCount = 0;
-        for (AuditLogEntry ent : entries)
+        private void flush() throws AuditLogException, SQLException
         {
-            //if log tree has the hash
-            if (treePointer.hasChild(ent.getEntryHash()))
+            if (_pending.isEmpty())
             {
-                //advance the tree and proceed to the next entry
-                treePointer = treePointer.getChild(ent.getEntryHash());
+                return;
             }
-            else
+
+            // Parent hash of each entry in this batch that is already saved for the document
+            Map<String, String> existingParentHashes = new HashMap<>();
+            if (_hasExistingLog)
             {
-                if (treePointer.getParentEntryHash() == null && treePointer.getTreeSize() > 1)
+                SimpleFilter filter = new SimpleFilter(FieldKey.fromParts("documentGUID"), _documentGUID.toString());
+                filter.addInClause(FieldKey.fromParts("entryHash"), _pending.stream().map(AuditLogEntry::getEntryHash).collect(Collectors.toList()));
+                new TableSelector(TargetedMSManager.getTableInfoSkylineAuditLogEntry(), Set.of("entryHash", "parentEntryHash"), filter, null)
+                        .forEach(rs -> existingParentHashes.put(rs.getString("entryHash"), rs.getString("parentEntryHash")));
+            }
+
+            List<AuditLogEntry> newEntries = new ArrayList<>();
+            for (AuditLogEntry entry : _pending)
+            {
+                if (existingParentHashes.containsKey(entry.getEntryHash()))
+                {
+                    if (!entry.getParentEntryHash().equals(existingParentHashes.get(entry.getEntryHash())))
+                    {
+                        throw new AuditLogException("Invalid audit log. Entry " + entry.getEntryHash() + " has a different parent entry in the log of another version of this document.");
+                    }
+                    _reachedExistingLog = true;
+                }
+                else if (_reachedExistingLog)
+                {
+                    throw new AuditLogException("Invalid audit log. Entry " + entry.getEntryHash() + " is missing from the log of another version of this document.");
+                }
+                else if (_hasExistingLog && AuditLogTree.NULL_STRING.equals(entry.getParentEntryHash()))
                 {
                     throw new AuditLogException("Invalid audit log. Documents with same GUID should have same first audit log entry.");
                 }
-                // persist the entry and add to the tree
-                ent.setParentEntryHash(treePointer.getEntryHash());
-                ent.persist();
-                persistedEntriesCount++;
-                AuditLogTree newTreeEntry = ent.getTreeEntry();
-                assert newTreeEntry != null;
-                treePointer.addChild(newTreeEntry);
-                //advance the tree
-                treePointer = newTreeEntry;
+                else
+                {
+                    newEntries.add(entry);
+                }
+            }
+            _pending.clear();
+
+            if (!newEntries.isEmpty())
+            {
+                insertEntries(newEntries);
+                _persistedCount += newEntries.size();
             }
         }
-        if (persistedEntriesCount == 0)      //if no entries were actually saved into the database we are uploading an earlier document version
-            entries.get(entries.size() - 1).updateVersionId(pContext._runId);   //and still need to update the terminal entry with the versionId.
 
-        return entries.size();
+        private void insertEntries(List<AuditLogEntry> entries) throws SQLException
+        {
+            try (PreparedStatement stmt = _connection.prepareStatement("INSERT INTO " + TargetedMSManager.getTableInfoSkylineAuditLogEntry() +
+                    " (documentGUID, entryHash, versionId, createTimestamp, timezoneOffset, userName, formatVersion, parentEntryHash, reason, extraInfo)" +
+                    " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"))
+            {
+                for (AuditLogEntry entry : entries)
+                {
+                    stmt.setString(1, _documentGUID.toString());
+                    stmt.setString(2, entry.getEntryHash());
+                    if (entry.getVersionId() == null)
+                        stmt.setNull(3, Types.INTEGER);
+                    else
+                        stmt.setLong(3, entry.getVersionId());
+                    // Same conversion that Table.insert() does for the Date
+                    stmt.setTimestamp(4, new Timestamp(entry.getCreateTimestamp().getTime()));
+                    stmt.setInt(5, entry.getTimezoneOffset());
+                    stmt.setString(6, entry.getUserName());
+                    stmt.setString(7, entry.getFormatVersion());
+                    stmt.setString(8, entry.getParentEntryHash());
+                    stmt.setString(9, entry.getReason());
+                    stmt.setString(10, entry.getExtraInfo());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+
+            // Generated keys aren't available from batches on every database, so get the new Ids by hash, which is unique within the document
+            Map<String, Integer> entryIds = new HashMap<>();
+            SimpleFilter filter = new SimpleFilter(FieldKey.fromParts("documentGUID"), _documentGUID.toString());
+            filter.addInClause(FieldKey.fromParts("entryHash"), entries.stream().map(AuditLogEntry::getEntryHash).collect(Collectors.toList()));
+            new TableSelector(TargetedMSManager.getTableInfoSkylineAuditLogEntry(), Set.of("entryHash", "entryId"), filter, null)
+                    .forEach(rs -> entryIds.put(rs.getString("entryHash"), rs.getInt("entryId")));
+
+            try (PreparedStatement stmt = _connection.prepareStatement("INSERT INTO " + TargetedMSManager.getTableInfoSkylineAuditLogMessage() +
+                    " (orderNumber, entryId, messageType, enText, expandedText, reason) VALUES (?, ?, ?, ?, ?, ?)"))
+            {
+                for (AuditLogEntry entry : entries)
+                {
+                    entry.setEntryId(entryIds.get(entry.getEntryHash()));
+                    for (AuditLogMessage msg : entry.getAllInfoMessage())
+                    {
+                        msg.setEntryId(entry.getEntryId());
+                        stmt.setInt(1, msg.getOrderNumber());
+                        stmt.setInt(2, msg.getEntryId());
+                        stmt.setString(3, msg.getMessageType());
+                        stmt.setString(4, msg.getEnText());
+                        stmt.setString(5, msg.getExpandedText());
+                        stmt.setString(6, msg.getReason());
+                        stmt.addBatch();
+                    }
+                }
+                stmt.executeBatch();
+            }
+        }
     }
 
     private void verifyPostRequisites(AuditLogImportContext pContext, SkylineAuditLogParser parser) throws AuditLogException
@@ -305,65 +461,41 @@ private void verifyPostRequisites(AuditLogImportContext pContext, SkylineAuditLo
     }
 
     /**
-     * Builds a tree of audit log entry tokens representing the document versioning tree
+     * Builds a tree of audit log entry tokens representing the document versioning tree. All of the document's
+     * entries are read with one query on the document GUID index, and linked by their parent hashes in memory.
      * @return the root node of the tree
      */
-    private AuditLogTree buildLogTree(@NotNull GUID pDocumentGUID) throws AuditLogException {
-
-        TableInfo entryTbl = TargetedMSManager.getTableInfoSkylineAuditLogEntry();
-
-        SQLFragment treeQuery = new SQLFragment("");
-        if(TargetedMSManager.getSqlDialect().isPostgreSQL()){
-            treeQuery.append("WITH RECURSIVE tree(id, hash, parenthash, versionId, treedepth) AS ");
-        }
-        else if(TargetedMSManager.getSqlDialect().isSqlServer()){
-            treeQuery.append("WITH tree(id, hash, parenthash, versionId, treedepth) AS ");
-        }
-        else
-            throw new AuditLogException("Database type not supported");
-
-        treeQuery.append("( ");
-
-        SimpleFilter entryFilter = new SimpleFilter(FieldKey.fromParts("documentGuid"), "'" + pDocumentGUID.toString() + "'");
-        treeQuery.append("SELECT entryid, entryhash, parententryhash, versionId, 1 \n")
-                .append("FROM " + entryTbl.getSchema().getName() + "." + entryTbl.getName() + " \n")
-                .append("WHERE " + entryFilter.getFilterText() + "\n")
-                .append("  AND parententryhash = '" + AuditLogTree.NULL_STRING + "' \n")
-             .append(" UNION ALL \n")
-                .append(" SELECT entryid, entryhash, parententryhash, e.versionId, treedepth + 1 \n")
-                .append("FROM " + entryTbl.getSchema().getName() + "." + entryTbl.getName() + " e \n")
-                .append(" JOIN tree ON tree.hash = e.parententryhash \n")
-                .append("WHERE " + entryFilter.getFilterText() + "\n")
-                 .append(" )\n")
-                 .append(" SELECT DISTINCT * FROM tree ORDER BY treedepth");
-
-        BaseSelector.ResultSetHandler<Map<String, AuditLogTree>> resultSetHandler = (rs, conn) -> {
-            Map<String, AuditLogTree> result = new HashMap<>(10);
-
-            while(rs.next()){
-                String parentHash = rs.getString("parenthash");
-                if(rs.wasNull()) parentHash = AuditLogTree.NULL_STRING;
-                Long versionId = rs.getLong("versionId");
-                if(rs.wasNull()) versionId = null;
-
-                AuditLogTree node = new AuditLogTree(
-                        rs.getInt("id"),
-                        pDocumentGUID,
-                        rs.getString("hash"),
-                        parentHash,
-                        versionId
-                );
-                result.put(node.getEntryHash(), node);
-            }
-            return  result;
-        };
+    private AuditLogTree buildLogTree(@NotNull GUID pDocumentGUID)
+    {
+        Map<String, AuditLogTree> nodes = new HashMap<>();
+        new TableSelector(TargetedMSManager.getTableInfoSkylineAuditLogEntry(), Set.of("entryId", "entryHash", "parentEntryHash", "versionId"),
+                new SimpleFilter(FieldKey.fromParts("documentGUID"), pDocumentGUID.toString()), null).forEach(rs -> {
+            String parentHash = rs.getString("parentEntryHash");
+            if(rs.wasNull()) parentHash = AuditLogTree.NULL_STRING;
+            Long versionId = rs.getLong("versionId");
+            if(rs.wasNull()) versionId = null;
+
+            AuditLogTree node = new AuditLogTree(
+                    rs.getInt("entryId"),
+                    pDocumentGUID,
+                    rs.getString("entryHash"),
+                    parentHash,
+                    versionId
+            );
+            nodes.put(node.getEntryHash(), node);
+        });
 
         AuditLogTree root = new AuditLogTree(0, null, AuditLogTree.NULL_STRING, null,null);
-        Map<String, AuditLogTree> nodes = new SqlExecutor(entryTbl.getSchema()).executeWithResults(treeQuery, resultSetHandler);
         nodes.put(AuditLogTree.NULL_STRING, root);
-        for(Map.Entry<String, AuditLogTree> e : nodes.entrySet()){
-            if(e.getValue().getParentEntryHash() != null)
-                nodes.get(e.getValue().getParentEntryHash()).addChild(e.getValue());
+        for(AuditLogTree node : nodes.values()){
+            if(node.getParentEntryHash() == null)
+                continue;
+            AuditLogTree parent = nodes.get(node.getParentEntryHash());
+            // Like the entries that a walk down from the root would find, skip any whose chain doesn't reach it
+            if(parent != null)
+                parent.addChild(node);
+            else
+                _logger.warn(String.format("Audit log entry with ID %d has no parent entry with hash %s.", node.getEntryId(), node.getParentEntryHash()));
         }
         return root;
     }
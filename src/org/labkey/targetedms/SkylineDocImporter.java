@@ -58,12 +58,14 @@
 import org.labkey.targetedms.SkylinePort.Irt.IrtRegressionCalculator;
 import org.labkey.targetedms.SkylinePort.Irt.RegressionLine;
 import org.labkey.targetedms.SkylinePort.Irt.RetentionTimeProviderImpl;
+import org.labkey.targetedms.calculations.ModifiedAreaProportions;
 import org.labkey.targetedms.calculations.RunQuantifier;
 import org.labkey.targetedms.calculations.quantification.RegressionFit;
 import org.labkey.targetedms.model.QCMetricConfiguration;
 import org.labkey.targetedms.parser.*;
 import org.labkey.targetedms.parser.list.ListData;
 import org.labkey.targetedms.parser.skyaudit.AuditLogException;
+import org.labkey.targetedms.query.AnnotationSummaryManager;
 import org.labkey.targetedms.query.ConflictResultsManager;
 import org.labkey.targetedms.query.ReplicateManager;
 import org.labkey.targetedms.query.RepresentativeStateManager;
@@ -89,6 +91,7 @@
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -157,6 +160,9 @@
     private transient PreparedStatement _transitionChromInfoStmt;
     private transient PreparedStatement _precursorChromInfoStmt;
     private transient PreparedStatement _precursorChromInfoIndicesStmt;
+    private transient ChromInfoBatcher _batcher;
+    // Precursor areas, summed as they're inserted, for the modified area proportions
+    private transient ModifiedAreaProportions _modifiedAreaProportions = new ModifiedAreaProportions();
     private File _auditLogFile;
 
     private final Set<String> _missingLibraries = new HashSet<>();
@@ -331,6 +337,7 @@ private void importSkylineDoc(TargetedMSRun run, File f) throws XMLStreamExcepti
                     "\tIndices " + TargetedMSManager.getSqlDialect().getBinaryDataType() +
                     ")");
             _precursorChromInfoIndicesStmt = ensureStatement(null,"INSERT INTO " + precursorChromInfoIndicesTempTableName + "(PrecursorChromInfoId, Indices) VALUES (?, ?)", false);
+            _batcher = createChromInfoBatcher();
 
             run.setFormatVersion(parser.getFormatVersion());
             run.setSoftwareVersion(parser.getSoftwareVersion());
@@ -401,7 +408,6 @@ private void importSkylineDoc(TargetedMSRun run, File f) throws XMLStreamExcepti
             int peptideGroupCount = 0;
             while (parser.hasNextPeptideGroup())
             {
-                // TODO: bulk insert of precursor, transition, chrom info etc.
                 PeptideGroup pepGroup = parser.nextPeptideGroup();
                 insertPeptideGroup(proteinService, replicateInfo.skylineIdSampleFileIdMap,
                         modInfo, libraryNameIdMap, pepGroup, parser, peptides, smallMolecules, parser.getTransitionSettings());
@@ -411,6 +417,13 @@ private void importSkylineDoc(TargetedMSRun run, File f) throws XMLStreamExcepti
                 }
             }
 
+            // Everything below reads from the chrom info tables, so make sure all pending rows have been written
+            flushChromInfoBatches();
+            if (_batcher != null)
+            {
+                _batcher.logThroughput(_log);
+            }
+
             if (!parser.shouldSaveTransitionChromInfos())
             {
                 _log.info("None of the " + parser.getTransitionChromInfoCount() + " TransitionChromInfos in the file " +
@@ -456,12 +469,15 @@ private void importSkylineDoc(TargetedMSRun run, File f) throws XMLStreamExcepti
 
             calculateSampleFileIRTStats(run, replicateInfo, parser);
 
+            int annotationSummaries = AnnotationSummaryManager.populate(_runId);
+            _log.debug("Stored the concatenated annotations of " + annotationSummaries + " entities");
+
             if (run.isRepresentative())
             {
                 // Persist the run so that the skydDataId is available when writing the updated chromatogram library.
                 // skydDataId is required to get to the skyd file for reading chromatograms when they are not saved in the db.
                 Table.update(_user, TargetedMSManager.getTableInfoRuns(), run, run.getId());
-                RepresentativeStateManager.setRepresentativeState(_user, _container, _localDirectory, run, run.getRepresentativeDataState());
+                RepresentativeStateManager.setRepresentativeState(_user, _container, run, run.getRepresentativeDataState());
             }
 
             int calCurvesCount = quantifyRun(run, pepSettings, groupComparisons);
@@ -534,7 +550,8 @@ else if (folderType == TargetedMSService.FolderType.Library)
 
             parser.logMissingChromatogramCounts();
 
-            TargetedMSManager.updateModifiedAreaProportions(_log, run);
+            _log.info("Calculating Proportion values for " + _modifiedAreaProportions.size() + " precursorchrominfo rows");
+            _modifiedAreaProportions.save(_log, false);
 
             if (_pipeRoot.isCloudRoot())
                 copyExtractedFilesToCloud(run);
@@ -557,6 +574,7 @@ else if (folderType == TargetedMSService.FolderType.Library)
             _precursorChromInfoStmt = null;
             if (_generalMoleculeAnnotationStmt != null) { try { _generalMoleculeAnnotationStmt.close(); } catch (SQLException ignored) {} }
             _generalMoleculeAnnotationStmt = null;
+            _batcher = null;
         }
     }
 
@@ -567,6 +585,14 @@ private void calculateSampleFileIRTStats(TargetedMSRun run, ReplicateInfo replic
             return;
         }
 
+        // See which entries matched up with data in the Skyline document
+        List<IrtPeptide> matchedIrts = parser.getiRTScaleSettings().stream().filter(irt -> irt.getGeneralMoleculeId() != null).collect(Collectors.toList());
+        if (matchedIrts.isEmpty())
+        {
+            _log.info("No iRT peptides matched molecules in the document, skipping iRT correlations");
+            return;
+        }
+
         _log.info("Calculating iRT correlations for " + replicateInfo.skylineIdSampleFileIdMap.size() + " sample(s)");
 
         // Get the iRT scale to which we are comparing each sample
@@ -577,45 +603,82 @@ private void calculateSampleFileIRTStats(TargetedMSRun run, ReplicateInfo replic
         Map<String, IrtPeptide> existingLibrary = new LinkedHashMap<>(existingScale.size());
         separateIrtScale(existingScale, existingStandards, existingLibrary);
 
-        // See which entries matched up with data in the Skyline document
-        List<IrtPeptide> matchedIrts = parser.getiRTScaleSettings().stream().filter(irt -> irt.getGeneralMoleculeId() != null).collect(Collectors.toList());
-
-        // Find the retention times for each tracked iRT entry in each sample file
+        // Load the retention times of the tracked iRT entries in all of the run's sample files with one query
+        Set<Long> matchedMoleculeIds = matchedIrts.stream().map(IrtPeptide::getGeneralMoleculeId).collect(Collectors.toSet());
+        Map<Long, Map<Long, Double>> retentionTimes = new HashMap<>();
+        SQLFragment sql = new SQLFragment("SELECT gmci.SampleFileId, gmci.GeneralMoleculeId, gmci.RetentionTime FROM ");
+        sql.append(TargetedMSManager.getTableInfoGeneralMoleculeChromInfo(), "gmci");
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoSampleFile(), "sf").append(" ON gmci.SampleFileId = sf.Id");
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoReplicate(), "r").append(" ON sf.ReplicateId = r.Id");
+        sql.append(" WHERE r.RunId = ? AND gmci.RetentionTime IS NOT NULL").add(run.getId());
+        sql.append(" AND gmci.GeneralMoleculeId ");
+        TargetedMSManager.getSqlDialect().appendInClauseSql(sql, matchedMoleculeIds);
+        new SqlSelector(TargetedMSManager.getSchema(), sql).forEach(rs ->
+                retentionTimes.computeIfAbsent(rs.getLong(1), id -> new HashMap<>()).putIfAbsent(rs.getLong(2), rs.getDouble(3)));
+
+        ArrayList<IrtPeptide> standards = new ArrayList<>(existingStandards.values());
+        ArrayList<IrtPeptide> library = new ArrayList<>(existingLibrary.values());
+        int fullStandardCount = 0;
+        List<SampleFile> updated = new ArrayList<>();
         for (SampleFile sampleFile : replicateInfo.skylineIdSampleFileIdMap.values())
         {
+            Map<Long, Double> sampleTimes = retentionTimes.getOrDefault(sampleFile.getId(), Collections.emptyMap());
             List<IrtPeptide> observed = new ArrayList<>();
             for (IrtPeptide irtPeptide : matchedIrts)
             {
-                SQLFragment sql = new SQLFragment("SELECT RetentionTime FROM ");
-                sql.append(TargetedMSManager.getTableInfoGeneralMoleculeChromInfo(), "gmci");
-                sql.append(" WHERE gmci.SampleFileId = ? AND gmci.GeneralMoleculeId = ? AND RetentionTime IS NOT NULL");
-                sql.add(sampleFile.getId());
-                sql.add(irtPeptide.getGeneralMoleculeId());
-
-                List<Double> retentionTimes = new SqlSelector(TargetedMSManager.getSchema(), sql).getArrayList(Double.class);
-                if (retentionTimes.size() > 0)
+                Double retentionTime = sampleTimes.get(irtPeptide.getGeneralMoleculeId());
+                if (retentionTime != null)
                 {
                     IrtPeptide p = new IrtPeptide();
                     p.setModifiedSequence(irtPeptide.getModifiedSequence());
                     p.setiRTStandard(irtPeptide.isiRTStandard());
-                    p.setiRTValue(retentionTimes.get(0));
+                    p.setiRTValue(retentionTime);
                     observed.add(p);
                 }
             }
 
-            // Calculate the regression and its correlation to the standard
-            RegressionLine regressionLine = IrtRegressionCalculator.calcRegressionLine(new RetentionTimeProviderImpl(observed), new ArrayList<>(existingStandards.values()), new ArrayList<>(existingLibrary.values()), _log);
-
+            // Calculate the regression and its correlation to the standard. Usually all of the standards fit well, and
+            // only the samples where they don't need the full calculation that leaves out standards or uses shared peptides.
+            RetentionTimeProviderImpl retentionTimeProvider = new RetentionTimeProviderImpl(observed);
+            RegressionLine regressionLine = IrtRegressionCalculator.calcStandardRegressionLine(retentionTimeProvider, standards);
             if (regressionLine != null)
             {
-                applyIrtRegressionLine(regressionLine, observed);
+                fullStandardCount++;
+            }
+            else
+            {
+                regressionLine = IrtRegressionCalculator.calcRegressionLine(retentionTimeProvider, standards, library, _log);
+            }
 
+            if (regressionLine != null)
+            {
                 sampleFile.setIrtSlope(regressionLine.getInvertedSlope());
                 sampleFile.setIrtIntercept(regressionLine.getInvertedIntercept());
                 sampleFile.setIrtCorrelation(regressionLine.getCorrelation());
+                updated.add(sampleFile);
+            }
+        }
+        _log.info("Calculated iRT regression lines from the full standard list for " + fullStandardCount + " sample(s)");
 
-                Table.update(_user, TargetedMSManager.getTableInfoSampleFile(), sampleFile, sampleFile.getId());
+        DbScope scope = TargetedMSManager.getSchema().getScope();
+        try (DbScope.Transaction transaction = scope.ensureTransaction();
+             PreparedStatement stmt = scope.getConnection().prepareStatement("UPDATE " + TargetedMSManager.getTableInfoSampleFile() +
+                     " SET IrtSlope = ?, IrtIntercept = ?, IrtCorrelation = ? WHERE Id = ?"))
+        {
+            for (SampleFile sampleFile : updated)
+            {
+                setDouble(stmt, 1, sampleFile.getIrtSlope());
+                setDouble(stmt, 2, sampleFile.getIrtIntercept());
+                setDouble(stmt, 3, sampleFile.getIrtCorrelation());
+                stmt.setLong(4, sampleFile.getId());
+                stmt.addBatch();
             }
+            stmt.executeBatch();
+            transaction.commit();
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeSQLException(e);
         }
         _log.info("Finished calculating iRT correlations for all samples");
 
@@ -1524,6 +1587,7 @@ else if (generalMolecule instanceof Molecule)
                         PeptideAreaRatio ratio = areaRatioCalculator.getPeptideAreaRatio(sampleFile.getId(), numLabelId, denomLabelId);
                         if (ratio != null)
                         {
+                            flushChromInfoBatches();
                             Table.insert(_user, TargetedMSManager.getTableInfoPeptideAreaRatio(), ratio);
                         }
 
@@ -1538,6 +1602,7 @@ else if (generalMolecule instanceof Molecule)
                                     denomLabelId);
                             if (pRatio != null)
                             {
+                                flushChromInfoBatches();
                                 Table.insert(_user, TargetedMSManager.getTableInfoPrecursorAreaRatio(), pRatio);
                             }
 
@@ -1550,6 +1615,7 @@ else if (generalMolecule instanceof Molecule)
                                         denomLabelId);
                                 if (tRatio != null)
                                 {
+                                    flushChromInfoBatches();
                                     Table.insert(_user, TargetedMSManager.getTableInfoTransitionAreaRatio(), tRatio);
                                 }
                             }
@@ -1592,7 +1658,7 @@ private void insertMoleculePrecursor(Molecule molecule,
         //small molecule precursor annotations
         insertPrecursorAnnotation(moleculePrecursor.getAnnotations(), gp, moleculePrecursor.getId()); //adding small molecule precursor annotation in PrecursorAnnotation table. We might need to change this if we decide to have a separate MoleculePrecursorAnnotation table in the future.
 
-        Map<SampleFileOptStepKey, Long> sampleFilePrecursorChromInfoIdMap = insertPrecursorChromInfos(gp.getId(),
+        Map<SampleFileOptStepKey, Long> sampleFilePrecursorChromInfoIdMap = insertPrecursorChromInfos(gp.getId(), molecule,
                 moleculePrecursor.getCustomIonName(), moleculePrecursor.getChromInfoList(), skylineIdSampleFileIdMap, sampleFileIdGeneralMolChromInfoIdMap);
 
         for(MoleculeTransition moleculeTransition: moleculePrecursor.getTransitionsList())
@@ -1699,7 +1765,7 @@ else if(!(peptide.isDecoyPeptide() || peptide.isStandardTypePeptide()))
         insertLibInfo(precursor.getSpectrastLibraryInfo(), precursor, gp, libraryNameIdMap, TargetedMSManager.getTableInfoSpectrastLib());
         insertLibInfo(precursor.getChromatogramLibraryInfo(), precursor, gp, libraryNameIdMap, TargetedMSManager.getTableInfoChromatogramLib());
 
-        Map<SampleFileOptStepKey, Long> sampleFilePrecursorChromInfoIdMap = insertPrecursorChromInfos(gp.getId(),
+        Map<SampleFileOptStepKey, Long> sampleFilePrecursorChromInfoIdMap = insertPrecursorChromInfos(gp.getId(), peptide,
                 precursor.getModifiedSequence(), precursor.getChromInfoList(), skylineIdSampleFileIdMap, sampleFileIdGeneralMolChromInfoIdMap);
 
         // 4. transition
@@ -1881,6 +1947,7 @@ private Map<Long, Long> insertGeneralMoleculeChromInfos(long gmId, List<GeneralM
             }
             generalMoleculeChromInfo.setGeneralMoleculeId(gmId);
             generalMoleculeChromInfo.setSampleFileId(sampleFile.getId());
+            generalMoleculeChromInfo.setRunId(_runId);
             generalMoleculeChromInfo = Table.insert(_user, TargetedMSManager.getTableInfoGeneralMoleculeChromInfo(),
                     generalMoleculeChromInfo);
 
@@ -1891,7 +1958,7 @@ private Map<Long, Long> insertGeneralMoleculeChromInfos(long gmId, List<GeneralM
         return sampleFileIdGeneralMolChromInfoIdMap;
     }
 
-    private Map<SampleFileOptStepKey, Long> insertPrecursorChromInfos(long gpId, String label,
+    private Map<SampleFileOptStepKey, Long> insertPrecursorChromInfos(long gpId, GeneralMolecule generalMolecule, String label,
                                                                          List<PrecursorChromInfo> precursorChromInfos,
                                                                          Map<SampleFileKey, SampleFile> skylineIdSampleFileIdMap,
                                                                          Map<Long, Long> sampleFileIdGeneralMolChromInfoIdMap)
@@ -1920,6 +1987,7 @@ private Map<SampleFileOptStepKey, Long> insertPrecursorChromInfos(long gpId, Str
             precursorChromInfo.setGeneralMoleculeChromInfoId(sampleFileIdGeneralMolChromInfoIdMap.get(sampleFile.getId()));
 
             insertPrecursorChromInfo(precursorChromInfo);
+            _modifiedAreaProportions.add(generalMolecule, precursorChromInfo);
 
             sampleFilePrecursorChromInfoIdMap.put(sampleFileKey, precursorChromInfo.getId());
 
@@ -1981,7 +2049,8 @@ private void insertTransitionChromInfoAnnotation(TransitionChromInfoAnnotation a
                     "INSERT INTO targetedms.transitionchrominfoannotation(transitionchrominfoid, name, value) VALUES (?, ?, ?)",
                     false);
 
-            insertAnnotation(_transitionChromInfoAnnotationStmt, annotation, annotation.getTransitionChromInfoId());
+            bindAnnotation(_transitionChromInfoAnnotationStmt, annotation, annotation.getTransitionChromInfoId());
+            executeOrBatch(ChromInfoTable.TransitionChromInfoAnnotation, _transitionChromInfoAnnotationStmt);
         }
         catch (SQLException e)
         {
@@ -2045,7 +2114,8 @@ private void insertPrecursorChromInfoAnnotation(PrecursorChromInfoAnnotation ann
                     "INSERT INTO targetedms.precursorchrominfoannotation(precursorchrominfoid, name, value) VALUES (?, ?, ?)",
                     false);
 
-            insertAnnotation(_precursorChromInfoAnnotationStmt, annotation, annotation.getPrecursorChromInfoId());
+            bindAnnotation(_precursorChromInfoAnnotationStmt, annotation, annotation.getPrecursorChromInfoId());
+            executeOrBatch(ChromInfoTable.PrecursorChromInfoAnnotation, _precursorChromInfoAnnotationStmt);
         }
         catch (SQLException e)
         {
@@ -2054,12 +2124,71 @@ private void insertPrecursorChromInfoAnnotation(PrecursorChromInfoAnnotation ann
     }
 
     private void insertAnnotation(PreparedStatement stmt, AbstractAnnotation annotation, long entityId) throws SQLException
+    {
+        bindAnnotation(stmt, annotation, entityId);
+        stmt.execute();
+    }
+
+    private void bindAnnotation(PreparedStatement stmt, AbstractAnnotation annotation, long entityId) throws SQLException
     {
         int index = 1;
         stmt.setLong(index++, entityId);
         stmt.setString(index++, annotation.getName());
         stmt.setString(index++, annotation.getValue());
-        stmt.execute();
+    }
+
+    /** Adds the bound row to the pending JDBC batch for the table if batching is enabled, or executes it right away */
+    private void executeOrBatch(ChromInfoTable table, PreparedStatement stmt) throws SQLException
+    {
+        if (_batcher != null)
+        {
+            _batcher.add(table, stmt);
+        }
+        else
+        {
+            stmt.execute();
+        }
+    }
+
+    /** Writes any pending batched chrom info rows so that they can be referenced or queried */
+    private void flushChromInfoBatches()
+    {
+        if (_batcher != null)
+        {
+            try
+            {
+                _batcher.flush();
+            }
+            catch (SQLException e)
+            {
+                throw new RuntimeSQLException(e);
+            }
+        }
+    }
+
+    /**
+     * @return a batcher for the chrom info tables, or null if rows should be inserted one at a time. We can only
+     * batch on PostgreSQL, where we can reserve blocks of ids from the tables' sequences ahead of the inserts. SQL Server
+     * uses IDENTITY columns so we need to read back each generated id individually.
+     */
+    @Nullable
+    private ChromInfoBatcher createChromInfoBatcher()
+    {
+        if (!TargetedMSManager.getSqlDialect().isPostgreSQL())
+        {
+            return null;
+        }
+        int batchSize;
+        try
+        {
+            batchSize = Integer.parseInt(TargetedMSModule.IMPORT_BATCH_SIZE_PROPERTY.getEffectiveValue(_container));
+        }
+        catch (NumberFormatException e)
+        {
+            batchSize = TargetedMSModule.DEFAULT_IMPORT_BATCH_SIZE;
+            _log.warn("Unable to parse IMPORT_BATCH_SIZE_PROPERTY value: " + TargetedMSModule.IMPORT_BATCH_SIZE_PROPERTY.getEffectiveValue(_container) + ", defaulting to " + batchSize);
+        }
+        return batchSize > 0 ? new ChromInfoBatcher(batchSize) : null;
     }
 
     /**
@@ -2096,11 +2225,17 @@ private void insertTransitionChromInfo(TransitionChromInfo transChromInfo)
     {
         try
         {
+            // When batching, we assign the id ourselves so there's nothing to reselect
             _transitionChromInfoStmt = ensureStatement(_transitionChromInfoStmt,
-                    "INSERT INTO targetedms.transitionchrominfo(transitionid, samplefileid, precursorchrominfoid, retentiontime, starttime, endtime, height, area, background, fwhm, fwhmdegenerate, truncated, peakrank, optimizationstep, note, chromatogramindex, masserrorppm, userset, identified, pointsacrosspeak, ccs, ionmobility, ionmobilitywindow, ionmobilitytype, rank, rankbylevel, forcedintegration) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
-                    true);
+                    "INSERT INTO targetedms.transitionchrominfo(" + (_batcher != null ? "id, " : "") + "transitionid, samplefileid, precursorchrominfoid, retentiontime, starttime, endtime, height, area, background, fwhm, fwhmdegenerate, truncated, peakrank, optimizationstep, note, chromatogramindex, masserrorppm, userset, identified, pointsacrosspeak, ccs, ionmobility, ionmobilitywindow, ionmobilitytype, rank, rankbylevel, forcedintegration, runid) VALUES (" + (_batcher != null ? "?, " : "") + "?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                    _batcher == null);
 
             int index = 1;
+            if (_batcher != null)
+            {
+                transChromInfo.setId(_batcher.nextTransitionChromInfoId());
+                _transitionChromInfoStmt.setLong(index++, transChromInfo.getId());
+            }
             _transitionChromInfoStmt.setLong(index++, transChromInfo.getTransitionId());
             _transitionChromInfoStmt.setLong(index++, transChromInfo.getSampleFileId());
             _transitionChromInfoStmt.setLong(index++, transChromInfo.getPrecursorChromInfoId());
@@ -2127,12 +2262,20 @@ private void insertTransitionChromInfo(TransitionChromInfo transChromInfo)
             _transitionChromInfoStmt.setString(index++, transChromInfo.getIonMobilityType());
             setInteger(_transitionChromInfoStmt, index++, transChromInfo.getRank());
             setInteger(_transitionChromInfoStmt, index++, transChromInfo.getRankByLevel());
-            setBoolean(_transitionChromInfoStmt, index, transChromInfo.getForcedIntegration());
+            setBoolean(_transitionChromInfoStmt, index++, transChromInfo.getForcedIntegration());
+            _transitionChromInfoStmt.setLong(index, _runId);
 
-            try (ResultSet rs = TargetedMSManager.getSqlDialect().executeWithResults(_transitionChromInfoStmt))
+            if (_batcher != null)
             {
-                rs.next();
-                transChromInfo.setId(rs.getLong(1));
+                _batcher.add(ChromInfoTable.TransitionChromInfo, _transitionChromInfoStmt);
+            }
+            else
+            {
+                try (ResultSet rs = TargetedMSManager.getSqlDialect().executeWithResults(_transitionChromInfoStmt))
+                {
+                    rs.next();
+                    transChromInfo.setId(rs.getLong(1));
+                }
             }
         }
         catch (SQLException e)
@@ -2143,13 +2286,21 @@ private void insertTransitionChromInfo(TransitionChromInfo transChromInfo)
 
     private void insertPrecursorChromInfo(PrecursorChromInfo preChromInfo)
     {
+        // Chromatograms are read from the SKYD in parallel with parsing, consume them in document order here
+        preChromInfo.awaitPendingChromatogram();
         try
         {
+            // When batching, we assign the id ourselves so there's nothing to reselect
             _precursorChromInfoStmt = ensureStatement(_precursorChromInfoStmt,
-                    "INSERT INTO targetedms.precursorchrominfo( precursorid, samplefileid, generalmoleculechrominfoid, bestretentiontime, minstarttime, maxendtime, totalarea, totalbackground, maxfwhm, peakcountratio, numtruncated, librarydotp, optimizationstep, note, chromatogram, numtransitions, numpoints, maxheight, isotopedotp, averagemasserrorppm, bestmasserrorppm, userset, uncompressedsize, identified, container, chromatogramformat, chromatogramoffset, chromatogramlength, qvalue, zscore, ccs, ionmobilityms1, ionmobilityfragment, ionmobilitywindow, ionmobilitytype, totalAreaMs1, totalAreaFragment) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
-                    true);
+                    "INSERT INTO targetedms.precursorchrominfo(" + (_batcher != null ? "id, " : "") + "precursorid, samplefileid, generalmoleculechrominfoid, bestretentiontime, minstarttime, maxendtime, totalarea, totalbackground, maxfwhm, peakcountratio, numtruncated, librarydotp, optimizationstep, note, chromatogram, numtransitions, numpoints, maxheight, isotopedotp, averagemasserrorppm, bestmasserrorppm, userset, uncompressedsize, identified, container, chromatogramformat, chromatogramoffset, chromatogramlength, qvalue, zscore, ccs, ionmobilityms1, ionmobilityfragment, ionmobilitywindow, ionmobilitytype, totalAreaMs1, totalAreaFragment) VALUES (" + (_batcher != null ? "?, " : "") + "?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                    _batcher == null);
 
             int index = 1;
+            if (_batcher != null)
+            {
+                preChromInfo.setId(_batcher.nextPrecursorChromInfoId());
+                _precursorChromInfoStmt.setLong(index++, preChromInfo.getId());
+            }
             _precursorChromInfoStmt.setLong(index++, preChromInfo.getPrecursorId());
             _precursorChromInfoStmt.setLong(index++, preChromInfo.getSampleFileId());
             _precursorChromInfoStmt.setLong(index++, preChromInfo.getGeneralMoleculeChromInfoId());
@@ -2188,10 +2339,17 @@ private void insertPrecursorChromInfo(PrecursorChromInfo preChromInfo)
             setDouble(_precursorChromInfoStmt, index++, preChromInfo.getTotalAreaMs1());
             setDouble(_precursorChromInfoStmt, index++, preChromInfo.getTotalAreaFragment());
 
-            try (ResultSet rs = TargetedMSManager.getSqlDialect().executeWithResults(_precursorChromInfoStmt))
+            if (_batcher != null)
+            {
+                _batcher.add(ChromInfoTable.PrecursorChromInfo, _precursorChromInfoStmt);
+            }
+            else
             {
-                rs.next();
-                preChromInfo.setId(rs.getLong(1));
+                try (ResultSet rs = TargetedMSManager.getSqlDialect().executeWithResults(_precursorChromInfoStmt))
+                {
+                    rs.next();
+                    preChromInfo.setId(rs.getLong(1));
+                }
             }
 
             // Persist all of the indices into the chromatograms from the SKYD file separately. We need to retain it
@@ -2202,7 +2360,7 @@ private void insertPrecursorChromInfo(PrecursorChromInfo preChromInfo)
             {
                 _precursorChromInfoIndicesStmt.setLong(1, preChromInfo.getId());
                 _precursorChromInfoIndicesStmt.setBinaryStream(2, new ByteArrayInputStream(indices), indices.length);
-                _precursorChromInfoIndicesStmt.execute();
+                executeOrBatch(ChromInfoTable.PrecursorChromInfoIndices, _precursorChromInfoIndicesStmt);
             }
         }
         catch (SQLException e)
@@ -2359,6 +2517,139 @@ private Path copyFileToCloud(Path sourcePath, Path targetParentPath) throws IOEx
     }
 
 
+    /**
+     * The high-volume tables whose inserts are batched. Declared in the order in which pending batches must be
+     * written so that rows are always inserted after the rows they reference.
+     */
+    private enum ChromInfoTable
+    {
+        PrecursorChromInfo,
+        PrecursorChromInfoIndices,
+        PrecursorChromInfoAnnotation,
+        TransitionChromInfo,
+        TransitionChromInfoAnnotation
+    }
+
+    /**
+     * Accumulates inserts into the chrom info tables as JDBC batches instead of doing a database round trip per row.
+     * Ids for PrecursorChromInfo and TransitionChromInfo are reserved from their sequences in blocks so that child rows
+     * can reference them before the parent rows have actually been written.
+     */
+    private static class ChromInfoBatcher
+    {
+        private final int _batchSize;
+        private final IdBlockAllocator _precursorChromInfoIds;
+        private final IdBlockAllocator _transitionChromInfoIds;
+        private final Map<ChromInfoTable, PendingBatch> _batches = new EnumMap<>(ChromInfoTable.class);
+        private int _pendingRows;
+
+        private ChromInfoBatcher(int batchSize)
+        {
+            _batchSize = batchSize;
+            _precursorChromInfoIds = new IdBlockAllocator(getTableInfoPrecursorChromInfo(), batchSize);
+            _transitionChromInfoIds = new IdBlockAllocator(getTableInfoTransitionChromInfo(), batchSize);
+        }
+
+        public long nextPrecursorChromInfoId()
+        {
+            return _precursorChromInfoIds.next();
+        }
+
+        public long nextTransitionChromInfoId()
+        {
+            return _transitionChromInfoIds.next();
+        }
+
+        public void add(ChromInfoTable table, PreparedStatement stmt) throws SQLException
+        {
+            PendingBatch batch = _batches.computeIfAbsent(table, t -> new PendingBatch());
+            batch.setStatement(stmt);
+            stmt.addBatch();
+            batch._pending++;
+            if (++_pendingRows >= _batchSize)
+            {
+                flush();
+            }
+        }
+
+        /** Writes all pending rows, parents first */
+        public void flush() throws SQLException
+        {
+            for (PendingBatch batch : _batches.values())
+            {
+                batch.execute();
+            }
+            _pendingRows = 0;
+        }
+
+        public void logThroughput(Logger log)
+        {
+            for (Map.Entry<ChromInfoTable, PendingBatch> entry : _batches.entrySet())
+            {
+                PendingBatch batch = entry.getValue();
+                long millis = Math.max(1, batch._nanos / 1_000_000);
+                log.info(String.format("Inserted %,d %s rows in %,d ms (%,d rows/sec)", batch._rows, entry.getKey(), millis, batch._rows * 1000 / millis));
+            }
+        }
+
+        private static class PendingBatch
+        {
+            private PreparedStatement _stmt;
+            private int _pending;
+            private long _rows;
+            private long _nanos;
+
+            /** Follows the importer's current statement for the table, executing any rows added to the previous one first */
+            private void setStatement(PreparedStatement stmt) throws SQLException
+            {
+                if (_stmt != stmt)
+                {
+                    execute();
+                    _stmt = stmt;
+                }
+            }
+
+            private void execute() throws SQLException
+            {
+                if (_pending > 0)
+                {
+                    long start = System.nanoTime();
+                    _stmt.executeBatch();
+                    _nanos += System.nanoTime() - start;
+                    _rows += _pending;
+                    _pending = 0;
+                }
+            }
+        }
+    }
+
+    /** Reserves ids from a table's PostgreSQL sequence a block at a time */
+    private static class IdBlockAllocator
+    {
+        private final TableInfo _table;
+        private final int _blockSize;
+        private long[] _ids = new long[0];
+        private int _next;
+
+        private IdBlockAllocator(TableInfo table, int blockSize)
+        {
+            _table = table;
+            _blockSize = blockSize;
+        }
+
+        public long next()
+        {
+            if (_next == _ids.length)
+            {
+                SQLFragment sql = new SQLFragment("SELECT nextval(pg_get_serial_sequence(?, 'id')) FROM generate_series(1, ?)",
+                        _table.getSelectName(), _blockSize);
+                _ids = new SqlSelector(TargetedMSManager.getSchema(), sql).getArrayList(Long.class).stream().mapToLong(Long::longValue).toArray();
+                _next = 0;
+            }
+            return _ids[_next++];
+        }
+    }
+
     public static class SampleFileKey
     {
         private final String _replicate;
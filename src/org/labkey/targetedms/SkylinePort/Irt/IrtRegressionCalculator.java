@@ -1,12 +1,17 @@
 package org.labkey.targetedms.SkylinePort.Irt;
 
+import org.apache.commons.math3.stat.regression.SimpleRegression;
+import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
 import org.labkey.targetedms.IrtPeptide;
 
 import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 
 /**
  * User: tgaluhn
@@ -129,6 +134,42 @@ public static RegressionLine calcRegressionLine(IRetentionTimeProvider retention
         return null;
     }
 
+    /**
+     * Fits the regression line from the full list of standards, which is the first thing that calcRegressionLine()
+     * tries. The sums are accumulated with SimpleRegression instead of building value lists for Statistics, so it's
+     * cheap to call for every sample file in a run.
+     * @return the same line as calcRegressionLine() when all of the standards correlate well enough, or null when
+     * calcRegressionLine() would go on to leave out a standard or to use shared peptides
+     */
+    @Nullable
+    public static RegressionLine calcStandardRegressionLine(IRetentionTimeProvider retentionTimes, List<IrtPeptide> standardPeptideList)
+    {
+        SimpleRegression irtOnTime = new SimpleRegression();
+        SimpleRegression timeOnIrt = new SimpleRegression();
+        for (IrtPeptide standardPeptide : standardPeptideList)
+        {
+            Double time = retentionTimes.GetRetentionTime(standardPeptide.getModifiedSequence());
+            if (time == null)
+            {
+                continue;
+            }
+            irtOnTime.addData(time, standardPeptide.getiRTValue());
+            timeOnIrt.addData(standardPeptide.getiRTValue(), time);
+        }
+
+        if (!CurrentCalculator.IsAcceptableStandardCount(standardPeptideList.size(), (int) irtOnTime.getN()))
+        {
+            return null;
+        }
+        double correlation = irtOnTime.getR();
+        // Also false for NaN, such as when all of the times are the same
+        if (!(correlation >= MIN_IRT_TO_TIME_CORRELATION))
+        {
+            return null;
+        }
+        return new RegressionLine(irtOnTime.getSlope(), irtOnTime.getIntercept(), timeOnIrt.getIntercept(), correlation);
+    }
+
     private static Statistics GetTrial(ArrayList<Double> listValues, int i, RefObject<Double> valueReplace)
     {
         if (valueReplace.get() != null)
@@ -239,4 +280,81 @@ public ArrayList<String> GetStandardPeptides(Iterable<String> peptides)
         }
     }
 
+    public static class TestCase extends Assert
+    {
+        private static final Logger LOG = LogManager.getLogger(IrtRegressionCalculator.TestCase.class);
+
+        // Biognosys iRT kit standards
+        private static final String[] SEQUENCES = {"LGGNEQVTR", "GAGSSEPVTGLDAK", "VEATFGVDESNAK", "YILAGVENSK", "TPVISGGPYEYR",
+                "TPVITGAPYEYR", "DGLDAASYYAPVR", "ADVTPADFSEWSK", "GTFIIDPGGVIR", "GTFIIDPAAVIR", "LFLQFGAQGSPFLK"};
+        private static final double[] IRTS = {-24.92, 0, 12.39, 19.79, 28.71, 33.38, 42.26, 54.62, 70.52, 87.23, 100};
+        private static final double[] NOISE = {0.05, -0.03, 0.02, -0.04, 0.01, 0.03, -0.02, 0.04, -0.01, 0.02, -0.05};
+
+        private ArrayList<IrtPeptide> getStandards()
+        {
+            ArrayList<IrtPeptide> standards = new ArrayList<>();
+            for (int i = 0; i < SEQUENCES.length; i++)
+            {
+                standards.add(createPeptide(SEQUENCES[i], IRTS[i]));
+            }
+            return standards;
+        }
+
+        /** Retention times of the standards in a sample, which elute at 20 + 0.3 * iRT minutes, plus some noise */
+        private List<IrtPeptide> getObserved(int count, int outlierIndex)
+        {
+            List<IrtPeptide> observed = new ArrayList<>();
+            for (int i = 0; i < count; i++)
+            {
+                double time = 20 + 0.3 * IRTS[i] + NOISE[i] + (i == outlierIndex ? 15 : 0);
+                observed.add(createPeptide(SEQUENCES[i], time));
+            }
+            return observed;
+        }
+
+        private IrtPeptide createPeptide(String sequence, double value)
+        {
+            IrtPeptide peptide = new IrtPeptide();
+            peptide.setModifiedSequence(sequence);
+            peptide.setiRTStandard(true);
+            peptide.setiRTValue(value);
+            return peptide;
+        }
+
+        @Test
+        public void testMatchesFullStandardList()
+        {
+            ArrayList<IrtPeptide> standards = getStandards();
+            // All of the standards, and the fewest that are still enough
+            for (int count : new int[] {SEQUENCES.length, 8})
+            {
+                RetentionTimeProviderImpl times = new RetentionTimeProviderImpl(getObserved(count, -1));
+                RegressionLine expected = calcRegressionLine(times, standards, new ArrayList<>(), LOG);
+                RegressionLine actual = calcStandardRegressionLine(times, standards);
+                assertNotNull(expected);
+                assertNotNull(actual);
+                assertEquals(expected.getSlope(), actual.getSlope(), 1e-9);
+                assertEquals(expected.getIntercept(), actual.getIntercept(), 1e-9);
+                assertEquals(expected.getInvertedIntercept(), actual.getInvertedIntercept(), 1e-9);
+                assertEquals(expected.getInvertedSlope(), actual.getInvertedSlope(), 1e-9);
+                assertEquals(expected.getCorrelation(), actual.getCorrelation(), 1e-9);
+            }
+        }
+
+        @Test
+        public void testDefersToFullCalculation()
+        {
+            ArrayList<IrtPeptide> standards = getStandards();
+
+            // An outlier has to be left out, which only calcRegressionLine() does
+            RetentionTimeProviderImpl times = new RetentionTimeProviderImpl(getObserved(SEQUENCES.length, 4));
+            assertNull(calcStandardRegressionLine(times, standards));
+            assertNotNull(calcRegressionLine(times, standards, new ArrayList<>(), LOG));
+
+            // Too few of the standards were measured
+            times = new RetentionTimeProviderImpl(getObserved(7, -1));
+            assertNull(calcStandardRegressionLine(times, standards));
+            assertNull(calcRegressionLine(times, standards, new ArrayList<>(), LOG));
+        }
+    }
 }
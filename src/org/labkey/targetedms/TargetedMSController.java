@@ -180,7 +180,9 @@
 import org.labkey.targetedms.model.RawMetricDataSet;
 import org.labkey.targetedms.model.passport.IKeyword;
 import org.labkey.targetedms.outliers.OutlierGenerator;
+import org.labkey.targetedms.outliers.QCOutlierCache;
 import org.labkey.targetedms.parser.CalibrationCurveEntity;
+import org.labkey.targetedms.parser.DecodedChromatogramCache;
 import org.labkey.targetedms.parser.GeneralMolecule;
 import org.labkey.targetedms.parser.GeneralMoleculeChromInfo;
 import org.labkey.targetedms.parser.Molecule;
@@ -198,7 +200,9 @@
 import org.labkey.targetedms.parser.SkylineDocumentParser;
 import org.labkey.targetedms.parser.TransitionChromInfo;
 import org.labkey.targetedms.parser.list.ListDefinition;
+import org.labkey.targetedms.parser.skyd.SkydChromatogramCache;
 import org.labkey.targetedms.parser.skyaudit.AuditLogEntry;
+import org.labkey.targetedms.parser.speclib.LibraryConnectionPool;
 import org.labkey.targetedms.parser.speclib.SpeclibReaderException;
 import org.labkey.targetedms.pipeline.ChromatogramCrawlerJob;
 import org.labkey.targetedms.query.ChromatogramDisplayColumnFactory;
@@ -539,6 +543,75 @@ public void addNavTrail(NavTree root)
         }
     }
 
+    @RequiresPermission(ApplicationAdminPermission.class)
+    public class SkydChromatogramCacheAction extends FormViewAction<Object>
+    {
+        @Override
+        public void validateCommand(Object form, Errors errors)
+        {
+        }
+
+        @Override
+        public ModelAndView getView(Object form, boolean reshow, BindException errors)
+        {
+            SkydChromatogramCache cache = SkydChromatogramCache.get();
+            DecodedChromatogramCache decoded = DecodedChromatogramCache.get();
+            List<LibraryConnectionPool.PoolStats> libraryStats = LibraryConnectionPool.get().getStats();
+            return new HtmlView("SKYD Chromatogram Cache", DIV(
+                    DOM.TABLE(cl("lk-fields-table"),
+                        TR(TD(cl("labkey-form-label"), "Capacity"), TD(FileUtils.byteCountToDisplaySize(cache.getCapacityBytes()))),
+                        TR(TD(cl("labkey-form-label"), "Bytes resident"), TD(FileUtils.byteCountToDisplaySize(cache.getBytesResident()))),
+                        TR(TD(cl("labkey-form-label"), "Cached chromatograms"), TD(String.valueOf(cache.getEntryCount()))),
+                        TR(TD(cl("labkey-form-label"), "Hits"), TD(String.valueOf(cache.getHitCount()))),
+                        TR(TD(cl("labkey-form-label"), "Misses"), TD(String.valueOf(cache.getMissCount()))),
+                        TR(TD(cl("labkey-form-label"), "Hit ratio"), TD(String.format("%.1f%%", cache.getHitRatio() * 100))),
+                        TR(TD(cl("labkey-form-label"), "Evictions"), TD(String.valueOf(cache.getEvictionCount()))),
+                        TR(TD(cl("labkey-form-label"), "Average load time"), TD(String.format("%.1f ms", cache.getAverageLoadMillis()))),
+                        TR(TD(cl("labkey-form-label"), "SKYD channels opened"), TD(String.valueOf(cache.getChannelsOpenedCount()))),
+                        TR(TD(cl("labkey-form-label"), "Idle SKYD channels"), TD(String.valueOf(cache.getIdleChannelCount())))),
+                    DOM.H4("Decoded chromatograms"),
+                    DOM.TABLE(cl("lk-fields-table"),
+                        TR(TD(cl("labkey-form-label"), "Capacity"), TD(FileUtils.byteCountToDisplaySize(DecodedChromatogramCache.getCapacityBytes()))),
+                        TR(TD(cl("labkey-form-label"), "Approximate bytes resident"), TD(FileUtils.byteCountToDisplaySize(decoded.getBytesResident()))),
+                        TR(TD(cl("labkey-form-label"), "Cached chromatograms"), TD(String.valueOf(decoded.getEntryCount()))),
+                        TR(TD(cl("labkey-form-label"), "Hit ratio"), TD(String.format("%.1f%%", decoded.getHitRatio() * 100))),
+                        TR(TD(cl("labkey-form-label"), "Evictions"), TD(String.valueOf(decoded.getEvictionCount())))),
+                    DOM.H4("Spectrum library connections"),
+                    libraryStats.isEmpty() ? DIV("No spectrum libraries are open") :
+                    DOM.TABLE(cl("labkey-data-region-legacy labkey-show-borders"),
+                        TR(DOM.TH("Library"), DOM.TH("Active"), DOM.TH("Idle"), DOM.TH("Opened"), DOM.TH("Borrowed"), DOM.TH("Cached capabilities")),
+                        libraryStats.stream().map(stats -> TR(
+                            TD(stats.getLibFilePath()),
+                            TD(String.valueOf(stats.getActiveConnections())),
+                            TD(String.valueOf(stats.getIdleConnections())),
+                            TD(String.valueOf(stats.getConnectionsOpened())),
+                            TD(String.valueOf(stats.getConnectionsBorrowed())),
+                            TD(String.valueOf(stats.getCachedCapabilities()))))),
+                    FORM(at(method, "POST"),
+                            new Button.ButtonBuilder("Clear Cache").submit(true).build())));
+        }
+
+        @Override
+        public boolean handlePost(Object form, BindException errors)
+        {
+            SkydChromatogramCache.get().clear();
+            DecodedChromatogramCache.get().clear();
+            return true;
+        }
+
+        @Override
+        public URLHelper getSuccessURL(Object form)
+        {
+            return new ActionURL(SkydChromatogramCacheAction.class, getContainer());
+        }
+
+        @Override
+        public void addNavTrail(NavTree root)
+        {
+            urlProvider(AdminUrls.class).addAdminNavTrail(root, "SKYD Chromatogram Cache", getClass(), getContainer());
+        }
+    }
+
     // ------------------------------------------------------------------------
     // Action to create a Raw Data tab
     // ------------------------------------------------------------------------
@@ -1103,16 +1176,10 @@ public Object execute(QCMetricOutliersForm form, BindException errors)
             }
 
             List<GuideSet> guideSets = TargetedMSManager.getGuideSets(getContainer(), getUser());
-            Map<Integer, QCMetricConfiguration> metricMap = enabledQCMetricConfigurations.stream().collect(Collectors.toMap(QCMetricConfiguration::getId, Function.identity()));
-
-            List<RawMetricDataSet> rawMetricDataSets = OutlierGenerator.get().getRawMetricDataSets(schema, enabledQCMetricConfigurations, null, null, Collections.emptyList(), true);
-
-            Map<GuideSetKey, GuideSetStats> stats = OutlierGenerator.get().getAllProcessedMetricGuideSets(rawMetricDataSets, guideSets.stream().collect(Collectors.toMap(GuideSet::getRowId, Function.identity())));
+            QCOutlierCache.OutlierSummary summary = QCOutlierCache.get().getOutlierSummary(schema, enabledQCMetricConfigurations, guideSets);
 
-            List<SampleFileInfo> sampleFiles = OutlierGenerator.get().getSampleFiles(rawMetricDataSets, stats, metricMap, schema, form.getSampleLimit());
-
-            response.put("sampleFiles", sampleFiles.stream().map(SampleFileInfo::toJSON).collect(Collectors.toList()));
-            response.put("guideSets", guideSets.stream().map(x -> x.toJSON(rawMetricDataSets, metricMap, stats)).collect(Collectors.toList()));
+            response.put("sampleFiles", summary.getSampleFiles(form.getSampleLimit()).stream().map(SampleFileInfo::toJSON).collect(Collectors.toList()));
+            response.put("guideSets", summary.getGuideSets());
 
             return response;
         }
@@ -1287,8 +1354,19 @@ public Object execute(QCPlotsDataForm form, BindException errors) throws Excepti
             Date qcFolderEndDate = (Date) qcFolderDateRange.get("endDate");
 
             // always query for the full range
-            List<RawMetricDataSet> rawMetricDataSets = generator.getRawMetricDataSets(schema, qcMetricConfigurations, qcFolderStartDate, qcFolderEndDate, form.getSelectedAnnotations(), form.isShowExcluded());
-            Map<GuideSetKey, GuideSetStats> stats = generator.getAllProcessedMetricGuideSets(rawMetricDataSets, guideSets.stream().collect(Collectors.toMap(GuideSet::getRowId, Function.identity())));
+            List<RawMetricDataSet> rawMetricDataSets;
+            Map<GuideSetKey, GuideSetStats> stats;
+            if (form.getSelectedAnnotations() == null || form.getSelectedAnnotations().isEmpty())
+            {
+                QCOutlierCache.MetricData metricData = QCOutlierCache.get().getMetricData(schema, qcMetricConfigurations, guideSets, form.isShowExcluded());
+                rawMetricDataSets = metricData.getRows();
+                stats = metricData.getStats();
+            }
+            else
+            {
+                rawMetricDataSets = generator.getRawMetricDataSets(schema, qcMetricConfigurations, qcFolderStartDate, qcFolderEndDate, form.getSelectedAnnotations(), form.isShowExcluded());
+                stats = generator.getAllProcessedMetricGuideSets(rawMetricDataSets, guideSets.stream().collect(Collectors.toMap(GuideSet::getRowId, Function.identity())));
+            }
             boolean zoomedRange = qcFolderStartDate != null &&
                     qcFolderEndDate != null &&
                     (DateUtil.getDateOnly(qcFolderStartDate).compareTo(rangeStartDate) != 0 ||
@@ -1305,9 +1383,12 @@ public Object execute(QCPlotsDataForm form, BindException errors) throws Excepti
                         (form.getEndDate() != null &&
                         (rawMetricDataSet.getSampleFile().getAcquiredTime().before(form.getEndDate())
                                 || DateUtil.getDateOnly(rawMetricDataSet.getSampleFile().getAcquiredTime()).compareTo(form.getEndDate()) == 0));
+                // Copy the rows so that calculating the stats for the targeted range doesn't overwrite the moving range
+                // and CUSUM values for the full range, which may be shared with other requests
                 rawMetricDataSets = rawMetricDataSets
                         .stream()
                         .filter(withInDateRange)
+                        .map(RawMetricDataSet::new)
                         .collect(Collectors.toList());
                 targetedStats = generator.getAllProcessedMetricGuideSets(rawMetricDataSets, guideSets.stream().collect(Collectors.toMap(GuideSet::getRowId, Function.identity())));
                 // attach mean and sd stats from full stats
@@ -5495,23 +5576,18 @@ public boolean handlePost(ResolveConflictForm resolveConflictForm, BindException
                 }
 
                 // Increment the chromatogram library revision number for this container.
-                PipeRoot root = PipelineService.get().getPipelineRootSetting(getContainer());
-                if (null != root)
+                if (null == PipelineService.get().getPipelineRootSetting(getContainer()))
                 {
-                    LocalDirectory localDirectory = LocalDirectory.create(root, MODULE_NAME);
-                    try
-                    {
-                        ChromatogramLibraryUtils.incrementLibraryRevision(getContainer(), getUser(), localDirectory);
-                    }
-                    finally
-                    {
-                        localDirectory.cleanUpLocalDirectory();
-                    }
+                    throw new ValidationException("Pipeline root not found.");      // TODO: set errors?
                 }
-                else
+                Set<String> changedPrecursorKeys = null;
+                if (!resolveProtein)
                 {
-                    throw new ValidationException("Pipeline root not found.");      // TODO: set errors?
+                    List<Long> changedIds = new ArrayList<>(selectedIds);
+                    changedIds.addAll(deselectIds);
+                    changedPrecursorKeys = ChromatogramLibraryUtils.getPrecursorKeys(changedIds);
                 }
+                ChromatogramLibraryUtils.incrementLibraryRevision(getContainer(), getUser(), changedPrecursorKeys);
 
                 // Add event to audit log.
                 TargetedMsRepresentativeStateAuditProvider.addAuditEntry(getContainer(), getUser(), "Conflict resolved.");
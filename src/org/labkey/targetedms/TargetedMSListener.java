@@ -44,6 +44,9 @@ public void containerDeleted(Container c, User user)
         // Delete any runs that might have failed to fully import and therefore won't have a wrapper experiment run.
         // See issue 34752
         TargetedMSManager.deleteIncludingExperimentWrapper(c, user);
+        // Purge the container's deleted runs now, instead of in the background, since they reference rows (such as
+        // iRT scales) that have to be deleted along with the container
+        TargetedMSManager.purgeDeletedRuns(c);
 
         // Clean up QC annotations
         new SqlExecutor(TargetedMSManager.getSchema()).execute("DELETE FROM " + TargetedMSManager.getTableInfoQCAnnotation() + " WHERE Container = ?", c);
@@ -23,6 +23,10 @@
 import org.fhcrc.cpas.exp.xml.ExperimentArchiveDocument;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
 import org.labkey.api.cache.Cache;
 import org.labkey.api.cache.CacheManager;
 import org.labkey.api.data.ColumnInfo;
@@ -57,7 +61,6 @@
 import org.labkey.api.exp.api.ExperimentService;
 import org.labkey.api.module.Module;
 import org.labkey.api.module.ModuleProperty;
-import org.labkey.api.pipeline.LocalDirectory;
 import org.labkey.api.pipeline.PipeRoot;
 import org.labkey.api.pipeline.PipelineService;
 import org.labkey.api.pipeline.PipelineValidationException;
@@ -77,11 +80,14 @@
 import org.labkey.api.targetedms.TargetedMSService;
 import org.labkey.api.targetedms.model.SampleFileInfo;
 import org.labkey.api.util.FileUtil;
-import org.labkey.api.util.StringUtilsLabKey;
+import org.labkey.api.util.GUID;
+import org.labkey.api.util.JunitUtil;
+import org.labkey.api.util.TestContext;
 import org.labkey.api.util.logging.LogHelper;
 import org.labkey.api.view.NotFoundException;
 import org.labkey.api.view.UnauthorizedException;
 import org.labkey.api.view.ViewBackgroundInfo;
+import org.labkey.targetedms.calculations.ModifiedAreaProportions;
 import org.labkey.targetedms.model.GuideSet;
 import org.labkey.targetedms.model.GuideSetKey;
 import org.labkey.targetedms.model.GuideSetStats;
@@ -90,14 +96,21 @@
 import org.labkey.targetedms.model.RawMetricDataSet;
 import org.labkey.targetedms.model.passport.IKeyword;
 import org.labkey.targetedms.outliers.OutlierGenerator;
+import org.labkey.targetedms.outliers.QCOutlierCache;
 import org.labkey.targetedms.parser.Chromatogram;
+import org.labkey.targetedms.parser.ChromatogramReader;
+import org.labkey.targetedms.parser.DecodedChromatogramCache;
 import org.labkey.targetedms.parser.GeneralMolecule;
+import org.labkey.targetedms.parser.PeptideGroup;
 import org.labkey.targetedms.parser.Replicate;
 import org.labkey.targetedms.parser.SampleFile;
 import org.labkey.targetedms.parser.SampleFileChromInfo;
 import org.labkey.targetedms.parser.TransitionSettings;
 import org.labkey.targetedms.parser.skyaudit.AuditLogException;
+import org.labkey.targetedms.parser.skyd.SkydChromatogramCache;
+import org.labkey.targetedms.pipeline.RunPurgeJob;
 import org.labkey.targetedms.pipeline.TargetedMSImportPipelineJob;
+import org.labkey.targetedms.query.AnnotationSummaryManager;
 import org.labkey.targetedms.query.GuideSetTable;
 import org.labkey.targetedms.query.ModificationManager;
 import org.labkey.targetedms.query.PeptideManager;
@@ -131,7 +144,6 @@
 import static org.labkey.api.targetedms.TargetedMSService.FOLDER_TYPE_PROP_NAME;
 import static org.labkey.api.targetedms.TargetedMSService.FolderType.Library;
 import static org.labkey.api.targetedms.TargetedMSService.FolderType.LibraryProtein;
-import static org.labkey.api.targetedms.TargetedMSService.MODULE_NAME;
 
 public class TargetedMSManager
 {
@@ -441,6 +453,11 @@ public static TableInfo getTableInfoAnnotationSettings()
         return getSchema().getTable(TargetedMSSchema.TABLE_ANNOTATION_SETTINGS);
     }
 
+    public static TableInfo getTableInfoAnnotationSummary()
+    {
+        return getSchema().getTable(TargetedMSSchema.TABLE_ANNOTATION_SUMMARY);
+    }
+
     public static TableInfo getTableInfoGroupComparisonSettings()
     {
         return getSchema().getTable(TargetedMSSchema.TABLE_GROUP_COMPARISON_SETTINGS);
@@ -856,7 +873,8 @@ public static List<Long> getRunIdsByInstrument(String serialNumber)
         sql.append(getTableInfoSampleFile(), "sf");
         sql.append(", ");
         sql.append(getTableInfoRuns(), "r");
-        sql.append(" WHERE rep.Id = sf.ReplicateId AND rep.RunId = r.Id AND sf.instrumentSerialNumber = ? ");
+        sql.append(" WHERE rep.Id = sf.ReplicateId AND rep.RunId = r.Id AND r.Deleted = ? AND sf.instrumentSerialNumber = ? ");
+        sql.add(false);
         sql.add(serialNumber);
         return new SqlSelector(getSchema(), sql).getArrayList(Long.class);
     }
@@ -1097,27 +1115,18 @@ public static void deleteRuns(List<Long> runIds, Container c, User user)
             // Revert the representative state if any of the runs are representative at the protein or peptide level.
             if(run.isRepresentative())
             {
-                PipeRoot root = PipelineService.get().getPipelineRootSetting(run.getContainer());
-                if (null != root)
-                {
-                    LocalDirectory localDirectory = LocalDirectory.create(root, MODULE_NAME);
-                    try
-                    {
-                        RepresentativeStateManager.setRepresentativeState(user, run.getContainer(), localDirectory, run, RunRepresentativeDataState.NotRepresentative);
-                    }
-                    finally
-                    {
-                        localDirectory.cleanUpLocalDirectory();
-                    }
-                }
-                else
-                {
-                    throw new RuntimeException("Pipeline root not found.");
-                }
+                RepresentativeStateManager.setRepresentativeState(user, run.getContainer(), run, RunRepresentativeDataState.NotRepresentative);
             }
 
             // We may have deleted the last set of data for a given metric
             TargetedMSManager.get().clearCachedEnabledQCMetrics(run.getContainer());
+
+            // Don't keep the SKYD open, or its chromatograms cached, once the run is gone
+            Path skydPath = ChromatogramReader.getSkydPath(run);
+            if (skydPath != null)
+            {
+                getSchema().getScope().addCommitTask(() -> SkydChromatogramCache.get().invalidate(skydPath), DbScope.CommitTaskOption.POSTCOMMIT);
+            }
         }
 
         // Mark all of the runs for deletion
@@ -1126,6 +1135,7 @@ public static void deleteRuns(List<Long> runIds, Container c, User user)
         where.addInClause(FieldKey.fromParts("Id"), runIds);
         markDeleted.append(where.getSQLFragment(getSqlDialect()));
         new SqlExecutor(getSchema()).execute(markDeleted);
+        DecodedChromatogramCache.get().invalidateRuns(runIds);
 
         try
         {   //deleting audit log data for these runs.
@@ -1139,8 +1149,8 @@ public static void deleteRuns(List<Long> runIds, Container c, User user)
         }
 
 
-        // and then delete them
-        purgeDeletedRuns();
+        // and then delete them in the background, once the runs have been committed as deleted
+        getSchema().getScope().addCommitTask(() -> RunPurgeJob.queue(c, user), DbScope.CommitTaskOption.POSTCOMMIT);
     }
 
     public static TargetedMSRun getRunForPrecursor(long precursorId)
@@ -1446,6 +1456,9 @@ public static String deleteSampleFileAndDependencies(long sampleFileId)
 
     public static void purgeDeletedSampleFiles(long sampleFileId)
     {
+        // Delete from AnnotationSummary (dependent of PrecursorChromInfo and TransitionChromInfo)
+        AnnotationSummaryManager.deleteForSampleFile(sampleFileId);
+
         // Delete from TransitionChromInfoAnnotation (dependent of TransitionChromInfo)
         execute(getDependentSampleFileDeleteSql(getTableInfoTransitionChromInfoAnnotation(), "TransitionChromInfoId", getTableInfoTransitionChromInfo()), sampleFileId);
 
@@ -1482,170 +1495,318 @@ private static String getDependentSampleFileDeleteSql(TableInfo fromTable, Strin
         return "DELETE FROM " + fromTable + " WHERE " + fromFk + " IN (SELECT Id FROM " + dependentTable + " WHERE SampleFileId = ?)";
     }
 
-    /** Actually delete runs that have been marked as deleted from the database */
-    private static void purgeDeletedRuns()
+    /** Number of Ids in the range that each DELETE statement covers when purging a deleted run from a large table */
+    private static final int PURGE_BATCH_SIZE = 50_000;
+
+    /** @return the runs that have been marked as deleted but not yet purged, optionally only those in one container */
+    public static List<Long> getDeletedRunIds(@Nullable Container container)
+    {
+        SQLFragment sql = new SQLFragment("SELECT Id FROM " + getTableInfoRuns() + " WHERE Deleted = ?", true);
+        if (container != null)
+        {
+            sql.append(" AND Container = ?").add(container);
+        }
+        sql.append(" ORDER BY Id");
+        return new SqlSelector(getSchema(), sql).getArrayList(Long.class);
+    }
+
+    /**
+     * Actually delete runs that have been marked as deleted from the database, on the current thread.
+     * @param container only purge the runs in this container, or null for all of the deleted runs
+     */
+    public static void purgeDeletedRuns(@Nullable Container container)
+    {
+        for (Long runId : getDeletedRunIds(container))
+        {
+            purgeDeletedRun(runId, _log);
+        }
+    }
+
+    /**
+     * Actually delete a run that has been marked as deleted, and everything that belongs to it, from the database.
+     * The large tables are deleted from in batches, by ranges of their Ids, so that no one statement holds its locks
+     * for long. Outside of a transaction each batch commits on its own, and a purge that doesn't finish is picked up
+     * again later, since the run stays marked as deleted until the very last step.
+     */
+    public static void purgeDeletedRun(long runId, Logger log)
+    {
+        purgeDeletedRun(runId, log, new RunPurger(log, PURGE_BATCH_SIZE, null));
+    }
+
+    /** @return false if the run wasn't marked as deleted, or had already been purged */
+    private static boolean purgeDeletedRun(long runId, Logger log, RunPurger purger)
     {
+        String containerId = new SqlSelector(getSchema(), new SQLFragment("SELECT Container FROM " + getTableInfoRuns() + " WHERE Id = ? AND Deleted = ?", runId, true)).getObject(String.class);
+        if (containerId == null)
+        {
+            // Not deleted, or already purged
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        log.info("Purging deleted run " + runId);
+
+        SQLFragment runIds = new SQLFragment("?", runId);
+        SQLFragment replicateIds = new SQLFragment("SELECT Id FROM " + getTableInfoReplicate() + " WHERE RunId = ?", runId);
+        SQLFragment sampleFileIds = new SQLFragment("SELECT sf.Id FROM " + getTableInfoSampleFile() + " sf " +
+                " INNER JOIN " + getTableInfoReplicate() + " rep ON rep.Id = sf.ReplicateId WHERE rep.RunId = ?", runId);
+        SQLFragment peptideGroupIds = new SQLFragment("SELECT Id FROM " + getTableInfoPeptideGroup() + " WHERE RunId = ?", runId);
+        SQLFragment generalMoleculeIds = new SQLFragment("SELECT gm.Id FROM " + getTableInfoGeneralMolecule() + " gm " +
+                " INNER JOIN " + getTableInfoPeptideGroup() + " pg ON gm.PeptideGroupId = pg.Id WHERE pg.RunId = ?", runId);
+        SQLFragment generalPrecursorIds = new SQLFragment("SELECT gp.Id FROM " + getTableInfoGeneralPrecursor() + " gp " +
+                " INNER JOIN " + getTableInfoGeneralMolecule() + " gm ON gp.GeneralMoleculeId = gm.Id " +
+                " INNER JOIN " + getTableInfoPeptideGroup() + " pg ON gm.PeptideGroupId = pg.Id WHERE pg.RunId = ?", runId);
+        SQLFragment generalTransitionIds = new SQLFragment("SELECT gt.Id FROM " + getTableInfoGeneralTransition() + " gt " +
+                " INNER JOIN " + getTableInfoGeneralPrecursor() + " gp ON gt.GeneralPrecursorId = gp.Id " +
+                " INNER JOIN " + getTableInfoGeneralMolecule() + " gm ON gp.GeneralMoleculeId = gm.Id " +
+                " INNER JOIN " + getTableInfoPeptideGroup() + " pg ON gm.PeptideGroupId = pg.Id WHERE pg.RunId = ?", runId);
+
+        // Remove any cached results for the run
+        List<Long> runIdList = Collections.singletonList(runId);
+        ModificationManager.removeRunCachedResults(runIdList);
+        PeptideManager.removeRunCachedResults(runIdList);
+        PrecursorManager.removeRunCachedResults(runIdList);
+
         // Delete from FoldChange
-        deleteRunDependent(getTableInfoFoldChange());
+        purger.delete(getTableInfoFoldChange(), "RunId", runIds);
         // Delete from CalibrationCurve
-        deleteRunDependent(getTableInfoCalibrationCurve());
-
-        SQLFragment whereClause = new SQLFragment("WHERE r.Deleted = ?", true);
+        purger.delete(getTableInfoCalibrationCurve(), "RunId", runIds);
 
         // Delete from TransitionChromInfoAnnotation
-        deleteTransitionChromInfoDependent(getTableInfoTransitionChromInfoAnnotation(), whereClause);
+        purger.delete(getTableInfoTransitionChromInfoAnnotation(), "TransitionChromInfoId", getChromInfoIdsSql(getTableInfoTransitionChromInfo(), runId));
+        // Delete from AnnotationSummary
+        purger.delete(getTableInfoAnnotationSummary(), "RunId", runIds);
         // Delete from TransitionAreaRatio
-        deleteTransitionChromInfoDependent(getTableInfoTransitionAreaRatio(), whereClause);
+        purger.delete(getTableInfoTransitionAreaRatio(), "TransitionChromInfoId", getChromInfoIdsSql(getTableInfoTransitionChromInfo(), runId));
 
         // Delete from PrecursorChromInfoAnnotation
-        deletePrecursorChromInfoDependent(getTableInfoPrecursorChromInfoAnnotation());
+        purger.delete(getTableInfoPrecursorChromInfoAnnotation(), "PrecursorChromInfoId", getChromInfoIdsSql(getTableInfoPrecursorChromInfo(), runId));
         // Delete from PrecursorAreaRatio
-        deletePrecursorChromInfoDependent(getTableInfoPrecursorAreaRatio());
+        purger.delete(getTableInfoPrecursorAreaRatio(), "PrecursorChromInfoId", getChromInfoIdsSql(getTableInfoPrecursorChromInfo(), runId));
 
         // Delete from PeptideAreaRatio
-        deleteGeneralMoleculeChromInfoDependent(getTableInfoPeptideAreaRatio());
+        purger.delete(getTableInfoPeptideAreaRatio(), "PeptideChromInfoId", getChromInfoIdsSql(getTableInfoGeneralMoleculeChromInfo(), runId));
 
         // Delete from TransitionChromInfo
-        deleteSampleFileDependent(getTableInfoTransitionChromInfo());
+        purger.delete(getTableInfoTransitionChromInfo(), "RunId", runIds);
         // Delete from TransitionAnnotation
-        deleteGeneralTransitionDependent(getTableInfoTransitionAnnotation(), "TransitionId", whereClause);
+        purger.delete(getTableInfoTransitionAnnotation(), "TransitionId", generalTransitionIds);
         // Delete from TransitionLoss
-        deleteGeneralTransitionDependent(getTableInfoTransitionLoss(), "TransitionId", whereClause);
+        purger.delete(getTableInfoTransitionLoss(), "TransitionId", generalTransitionIds);
         // Delete from TransitionOptimization
-        deleteGeneralTransitionDependent(getTableInfoTransitionOptimization(), "TransitionId", whereClause);
+        purger.delete(getTableInfoTransitionOptimization(), "TransitionId", generalTransitionIds);
         // Delete from MoleculeTransition
-        deleteGeneralTransitionDependent(getTableInfoMoleculeTransition(), "TransitionId", whereClause);
+        purger.delete(getTableInfoMoleculeTransition(), "TransitionId", generalTransitionIds);
         // Delete from Transition
-        deleteGeneralTransitionDependent(getTableInfoTransition(), "Id", whereClause);
+        purger.delete(getTableInfoTransition(), "Id", generalTransitionIds);
 
         //Delete GeneralTransition
-        deleteGeneralPrecursorDependent(getTableInfoGeneralTransition(), "GeneralPrecursorId");
+        purger.delete(getTableInfoGeneralTransition(), "GeneralPrecursorId", generalPrecursorIds);
         // Delete from PrecursorChromInfo
-        deleteSampleFileDependent(getTableInfoPrecursorChromInfo());
+        purger.delete(getTableInfoPrecursorChromInfo(), "SampleFileId", sampleFileIds);
         // Delete from PrecursorAnnotation
-        deleteGeneralPrecursorDependent(getTableInfoPrecursorAnnotation(), "PrecursorId");
+        purger.delete(getTableInfoPrecursorAnnotation(), "PrecursorId", generalPrecursorIds);
         // Delete from BiblioSpecLibInfo
-        deleteGeneralPrecursorDependent(getTableInfoBibliospec(), "PrecursorId");
+        purger.delete(getTableInfoBibliospec(), "PrecursorId", generalPrecursorIds);
         // Delete from HunterLibInfo
-        deleteGeneralPrecursorDependent(getTableInfoHunterLib(), "PrecursorId");
+        purger.delete(getTableInfoHunterLib(), "PrecursorId", generalPrecursorIds);
         // Delete from NistLibInfo
-        deleteGeneralPrecursorDependent(getTableInfoNistLib(), "PrecursorId");
+        purger.delete(getTableInfoNistLib(), "PrecursorId", generalPrecursorIds);
         // Delete from SpectrastLibInfo
-        deleteGeneralPrecursorDependent(getTableInfoSpectrastLib(), "PrecursorId");
+        purger.delete(getTableInfoSpectrastLib(), "PrecursorId", generalPrecursorIds);
         // Delete from ChromatogramLibInfo
-        deleteGeneralPrecursorDependent(getTableInfoChromatogramLib(), "PrecursorId");
+        purger.delete(getTableInfoChromatogramLib(), "PrecursorId", generalPrecursorIds);
         // Delete from Precursor
-        deleteGeneralPrecursorDependent(getTableInfoPrecursor(), "Id");
+        purger.delete(getTableInfoPrecursor(), "Id", generalPrecursorIds);
         //Delete from MoleculePrecursor
-        deleteGeneralPrecursorDependent(getTableInfoMoleculePrecursor(), "Id");
+        purger.delete(getTableInfoMoleculePrecursor(), "Id", generalPrecursorIds);
 
         //Delete GeneralPrecursor
-        deleteGeneralMoleculeDependent(getTableInfoGeneralPrecursor(), "GeneralMoleculeId");
+        purger.delete(getTableInfoGeneralPrecursor(), "GeneralMoleculeId", generalMoleculeIds);
         // Delete from GeneralMoleculeAnnotation
-        deleteGeneralMoleculeDependent(getTableInfoGeneralMoleculeAnnotation(), "GeneralMoleculeId");
+        purger.delete(getTableInfoGeneralMoleculeAnnotation(), "GeneralMoleculeId", generalMoleculeIds);
         // Delete from GeneralMoleculeChromInfo
-        deleteGeneralMoleculeDependent(getTableInfoGeneralMoleculeChromInfo(), "GeneralMoleculeId");
+        purger.delete(getTableInfoGeneralMoleculeChromInfo(), "RunId", runIds);
 
         // Delete from PeptideStructuralModification
-        deleteGeneralMoleculeDependent(getTableInfoPeptideStructuralModification(), "PeptideId");
+        purger.delete(getTableInfoPeptideStructuralModification(), "PeptideId", generalMoleculeIds);
         // Delete from PeptideIsotopeModification
-        deleteGeneralMoleculeDependent(getTableInfoPeptideIsotopeModification(), "PeptideId");
+        purger.delete(getTableInfoPeptideIsotopeModification(), "PeptideId", generalMoleculeIds);
         // Delete from Molecule
-        deleteGeneralMoleculeDependent(getTableInfoMolecule(), "Id");
+        purger.delete(getTableInfoMolecule(), "Id", generalMoleculeIds);
         // Delete from Peptide
-        deleteGeneralMoleculeDependent(getTableInfoPeptide(), "Id");
+        purger.delete(getTableInfoPeptide(), "Id", generalMoleculeIds);
 
         //Delete from GeneralMolecule
-        deletePeptideGroupDependent(getTableInfoGeneralMolecule());
+        purger.delete(getTableInfoGeneralMolecule(), "PeptideGroupId", peptideGroupIds);
         // Delete from Protein
-        deletePeptideGroupDependent(getTableInfoProtein());
+        purger.delete(getTableInfoProtein(), "PeptideGroupId", peptideGroupIds);
         // Delete from PeptideGroupAnnotation
-        deletePeptideGroupDependent(getTableInfoPeptideGroupAnnotation());
+        purger.delete(getTableInfoPeptideGroupAnnotation(), "PeptideGroupId", peptideGroupIds);
 
         // Delete from QCTraceMetricValues
-        deleteSampleFileDependent(getTableQCTraceMetricValues());
+        purger.delete(getTableQCTraceMetricValues(), "SampleFileId", sampleFileIds);
 
         // Delete from SampleFileChromInfo
-        deleteSampleFileDependent(getTableInfoSampleFileChromInfo());
+        purger.delete(getTableInfoSampleFileChromInfo(), "SampleFileId", sampleFileIds);
 
         // Delete from sampleFile
-        deleteReplicateDependent(getTableInfoSampleFile());
+        purger.delete(getTableInfoSampleFile(), "ReplicateId", replicateIds);
         // Delete from ReplicateAnnotation
-        deleteReplicateDependent(getTableInfoReplicateAnnotation());
+        purger.delete(getTableInfoReplicateAnnotation(), "ReplicateId", replicateIds);
         // Delete from QCMetricExclusion
-        deleteReplicateDependent(getTableInfoQCMetricExclusion());
+        purger.delete(getTableInfoQCMetricExclusion(), "ReplicateId", replicateIds);
 
         // Delete from IsolationWindow
-        deleteIsolationSchemeDependent(getTableInfoIsolationWindow());
+        purger.delete(getTableInfoIsolationWindow(), "IsolationSchemeId",
+                new SQLFragment("SELECT Id FROM " + getTableInfoIsolationScheme() + " WHERE RunId = ?", runId));
 
         // Delete from MeasuredDriftTime
-        deleteDriftTimePredictionSettingsDependent(getTableInfoMeasuredDriftTime());
+        purger.delete(getTableInfoMeasuredDriftTime(), "DriftTimePredictionSettingsId",
+                new SQLFragment("SELECT Id FROM " + getTableInfoDriftTimePredictionSettings() + " WHERE RunId = ?", runId));
 
         // Delete from PeptideGroup
-        deleteRunDependent(getTableInfoPeptideGroup());
+        purger.delete(getTableInfoPeptideGroup(), "RunId", runIds);
         // Delete from Replicate
-        deleteRunDependent(getTableInfoReplicate());
+        purger.delete(getTableInfoReplicate(), "RunId", runIds);
         // Delete from TransitionInstrumentSettings
-        deleteRunDependent(getTableInfoTransInstrumentSettings());
+        purger.delete(getTableInfoTransInstrumentSettings(), "RunId", runIds);
         // Delete from Instrument
-        deleteRunDependent(getTableInfoInstrument());
+        purger.delete(getTableInfoInstrument(), "RunId", runIds);
         // Delete from RetentionTimePredictionSettings
-        deleteRunDependent(getTableInfoRetentionTimePredictionSettings());
+        purger.delete(getTableInfoRetentionTimePredictionSettings(), "RunId", runIds);
         // Delete from DriftTimePredictionSettings
-        deleteRunDependent(getTableInfoDriftTimePredictionSettings());
+        purger.delete(getTableInfoDriftTimePredictionSettings(), "RunId", runIds);
 
         // Delete from PredictorSettings and Predictor
         // This has to be done BEFORE deleting from TransitionPredictionSettings and
         // AFTER deleting from Replicate (
-        deleteTransitionPredictionSettingsDependent();
+        deleteTransitionPredictionSettingsDependent(purger, runId);
 
         // Delete from TransitionFullScanSettings
-        deleteRunDependent(getTableInfoTransitionFullScanSettings());
+        purger.delete(getTableInfoTransitionFullScanSettings(), "RunId", runIds);
         // Delete from IsotopeEnrichment (part of Full Scan settings)
-        deleteRunDependent(getTableInfoIsotopeEnrichment());
+        purger.delete(getTableInfoIsotopeEnrichment(), "RunId", runIds);
         // Delete from ModificationSettings
-        deleteRunDependent(getTableInfoModificationSettings());
+        purger.delete(getTableInfoModificationSettings(), "RunId", runIds);
         // Delete from RunStructuralModification
-        deleteRunDependent(getTableInfoRunStructuralModification());
+        purger.delete(getTableInfoRunStructuralModification(), "RunId", runIds);
         // Delete from RunIsotopeModification
-        deleteRunDependent(getTableInfoRunIsotopeModification());
+        purger.delete(getTableInfoRunIsotopeModification(), "RunId", runIds);
         // Delete from IsotopeLabel
-        deleteRunDependent(getTableInfoIsotopeLabel());
+        purger.delete(getTableInfoIsotopeLabel(), "RunId", runIds);
         // Delete from LibrarySettings
-        deleteRunDependent(getTableInfoLibrarySettings());
+        purger.delete(getTableInfoLibrarySettings(), "RunId", runIds);
         // Delete from SpectrumLibrary
-        deleteRunDependent(getTableInfoSpectrumLibrary());
+        purger.delete(getTableInfoSpectrumLibrary(), "RunId", runIds);
         // Delete from RunEnzyme
-        deleteRunDependent(getTableInfoRunEnzyme());
+        purger.delete(getTableInfoRunEnzyme(), "RunId", runIds);
         // Delete from AnnotationSettings
-        deleteRunDependent(getTableInfoAnnotationSettings());
+        purger.delete(getTableInfoAnnotationSettings(), "RunId", runIds);
         // Delete from GroupComparisons
-        deleteRunDependent(getTableInfoGroupComparisonSettings());
+        purger.delete(getTableInfoGroupComparisonSettings(), "RunId", runIds);
         // Delete from CalibrationCurve
-        deleteRunDependent(getTableInfoQuantificationSettings());
+        purger.delete(getTableInfoQuantificationSettings(), "RunId", runIds);
         // Delete from IsolationScheme
-        deleteRunDependent(getTableInfoIsolationScheme());
+        purger.delete(getTableInfoIsolationScheme(), "RunId", runIds);
 
         // Delete from all list-related tables
-        deleteListDependent();
+        SQLFragment listDefinitionIds = new SQLFragment("SELECT Id FROM " + getTableInfoListDefinition() + " WHERE RunId = ?", runId);
+        purger.delete(getTableInfoListItemValue(), "ListItemId",
+                new SQLFragment("SELECT Id FROM " + getTableInfoListItem() + " WHERE ListDefinitionId IN (").append(listDefinitionIds).append(")"));
+        purger.delete(getTableInfoListItem(), "ListDefinitionId", listDefinitionIds);
+        purger.delete(getTableInfoListColumnDefinition(), "ListDefinitionId", listDefinitionIds);
+        purger.delete(getTableInfoListDefinition(), "RunId", runIds);
 
         // Delete from runs
-        execute("DELETE FROM " + getTableInfoRuns() + " WHERE Deleted = ?", true);
+        execute("DELETE FROM " + getTableInfoRuns() + " WHERE Id = ? AND Deleted = ?", runId, true);
 
-        // Remove any cached results for the deleted runs
-        removeCachedResults();
+        // The run may have been the last one that used an iRT scale
+        Container container = ContainerManager.getForId(containerId);
+        if (container != null)
+        {
+            deleteiRTscales(container);
+        }
+
+        log.info("Purged deleted run " + runId + ": deleted " + purger._totalRows + " rows in " + purger._statements +
+                " statements in " + (System.currentTimeMillis() - start) + " ms");
+        return true;
     }
 
-    private static void removeCachedResults()
+    /** @return SQL that selects the Ids of the run's rows in one of the chrom info tables, which all have a SampleFileId */
+    private static SQLFragment getChromInfoIdsSql(TableInfo chromInfoTable, long runId)
     {
-        // Get a list of deleted runs
-        SQLFragment sql = new SQLFragment("SELECT Id FROM " + getTableInfoRuns() + " WHERE Deleted =  ?", true);
-        List<Long> deletedRunIds = new SqlSelector(getSchema(), sql).getArrayList(Long.class);
-        if(deletedRunIds.size() > 0)
+        if (chromInfoTable.getColumn("RunId") != null)
+        {
+            return new SQLFragment("SELECT Id FROM " + chromInfoTable + " WHERE RunId = ?", runId);
+        }
+        return new SQLFragment("SELECT ci.Id FROM " + chromInfoTable + " ci " +
+                " INNER JOIN " + getTableInfoSampleFile() + " s ON ci.SampleFileId = s.Id " +
+                " INNER JOIN " + getTableInfoReplicate() + " rep ON s.ReplicateId = rep.Id " +
+                " WHERE rep.RunId = ?", runId);
+    }
+
+    /** Deletes the rows of one run from each table, in batches when the table has an Id column to batch on */
+    private static class RunPurger
+    {
+        private final Logger _log;
+        private final int _batchSize;
+        /** For tests, to simulate a purge that stops partway through. Fails instead of deleting from this table. */
+        @Nullable
+        private final TableInfo _stopBefore;
+        private long _totalRows;
+        private int _statements;
+
+        private RunPurger(Logger log, int batchSize, @Nullable TableInfo stopBefore)
+        {
+            _log = log;
+            _batchSize = batchSize;
+            _stopBefore = stopBefore;
+        }
+
+        /** Deletes the rows of the table whose fkColumn value is one of those selected by parentIds */
+        private void delete(TableInfo table, String fkColumn, SQLFragment parentIds)
+        {
+            if (_stopBefore != null && table.getName().equalsIgnoreCase(_stopBefore.getName()))
+            {
+                throw new IllegalStateException("Stopping the purge before deleting from " + table);
+            }
+            SQLFragment where = new SQLFragment(fkColumn + " IN (").append(parentIds).append(")");
+            if (table.getColumn("Id") == null)
+            {
+                add(table, new SqlExecutor(getSchema()).execute(new SQLFragment("DELETE FROM " + table + " WHERE ").append(where)));
+                return;
+            }
+
+            Map<String, Object> range = new SqlSelector(getSchema(), new SQLFragment("SELECT MIN(Id) AS MinId, MAX(Id) AS MaxId FROM " + table + " WHERE ").append(where)).getMap();
+            if (range == null || range.get("MinId") == null)
+            {
+                return;
+            }
+            long minId = ((Number) range.get("MinId")).longValue();
+            long maxId = ((Number) range.get("MaxId")).longValue();
+            long deleted = 0;
+            for (long batchStart = minId; batchStart <= maxId; batchStart += _batchSize)
+            {
+                SQLFragment sql = new SQLFragment("DELETE FROM " + table + " WHERE Id >= ? AND Id < ? AND ", batchStart, batchStart + _batchSize);
+                sql.append(where);
+                int rows = new SqlExecutor(getSchema()).execute(sql);
+                add(null, rows);
+                deleted += rows;
+            }
+            if (deleted > 0)
+            {
+                _log.debug("Deleted " + deleted + " rows from " + table + " in batches of Ids " + minId + " to " + maxId);
+            }
+        }
+
+        private void add(@Nullable TableInfo table, int rows)
         {
-            ModificationManager.removeRunCachedResults(deletedRunIds);
-            PeptideManager.removeRunCachedResults(deletedRunIds);
-            PrecursorManager.removeRunCachedResults(deletedRunIds);
+            _statements++;
+            _totalRows += rows;
+            if (table != null && rows > 0)
+            {
+                _log.debug("Deleted " + rows + " rows from " + table);
+            }
         }
     }
 
@@ -1690,68 +1851,17 @@ public static void deleteGeneralTransitionDependent(TableInfo tableInfo, String
                 " INNER JOIN " + getTableInfoRuns() + " r ON pg.RunId = r.Id ").append(whereClause).append(")"));
     }
 
-    private static void deleteGeneralPrecursorDependent(TableInfo tableInfo, String colName)
-    {
-        execute(" DELETE FROM " + tableInfo +
-                " WHERE " + colName + " IN (SELECT gp.Id FROM " + getTableInfoGeneralPrecursor() + " gp "+
-                " INNER JOIN " + getTableInfoGeneralMolecule() + " gm ON gp.GeneralMoleculeId = gm.Id " +
-                " INNER JOIN " + getTableInfoPeptideGroup() + " pg ON gm.PeptideGroupId = pg.Id " +
-                " INNER JOIN " + getTableInfoRuns() + " r ON pg.RunId = r.Id " +
-                " WHERE r.Deleted = ?)", true);
-    }
-
-    private static void deleteGeneralMoleculeDependent(TableInfo tableInfo, String colName)
+    private static void deleteTransitionPredictionSettingsDependent(RunPurger purger, long runId)
     {
-        execute(" DELETE FROM " + tableInfo +
-                " WHERE " + colName + " IN (SELECT gm.Id FROM " + getTableInfoGeneralMolecule() + " gm "+
-                " INNER JOIN " + getTableInfoPeptideGroup() + " pg ON gm.PeptideGroupId = pg.Id " +
-                " INNER JOIN " + getTableInfoRuns() + " r ON pg.RunId = r.Id " +
-                " WHERE r.Deleted = ?)", true);
-    }
+        SQLFragment predictorIds = new SQLFragment("SELECT Id FROM " + getTableInfoPredictor() + " WHERE " +
+                "Id IN (SELECT CePredictorId FROM " + getTableInfoTransitionPredictionSettings() + " WHERE RunId = ?)" +
+                " OR Id IN (SELECT DpPredictorId FROM " + getTableInfoTransitionPredictionSettings() + " WHERE RunId = ?)", runId, runId);
+        purger.delete(getTableInfoPredictorSettings(), "PredictorId", predictorIds);
 
-    private static void deletePeptideGroupDependent(TableInfo tableInfo)
-    {
-        execute(" DELETE FROM " + tableInfo +
-                " WHERE PeptideGroupId IN (SELECT pg.Id FROM " + getTableInfoPeptideGroup() + " pg "+
-                " INNER JOIN " + getTableInfoRuns() + " r ON pg.RunId = r.Id " +
-                " WHERE r.Deleted = ?)", true);
-    }
-
-    private static void deleteRunDependent(TableInfo tableInfo)
-    {
-        execute("DELETE FROM " + tableInfo + " WHERE RunId IN (SELECT Id FROM " +
-                getTableInfoRuns() + " WHERE Deleted = ?)", true);
-    }
-
-    private static void deleteReplicateDependent(TableInfo tableInfo)
-    {
-        execute(" DELETE FROM " + tableInfo +
-                " WHERE ReplicateId IN (SELECT rep.Id FROM " + getTableInfoReplicate() + " rep "+
-                " INNER JOIN " + getTableInfoRuns() + " r ON rep.RunId = r.Id " +
-                " WHERE r.Deleted = ?)", true);
-    }
-
-    private static void deleteSampleFileDependent(TableInfo tableInfo)
-    {
-        execute(" DELETE FROM " + tableInfo +
-                " WHERE SampleFileId IN (SELECT sf.Id FROM " + getTableInfoSampleFile() + " sf " +
-                " INNER JOIN " + getTableInfoReplicate() + " rep ON rep.Id = sf.ReplicateId "+
-                " INNER JOIN " + getTableInfoRuns() + " r ON rep.RunId = r.Id " +
-                " WHERE r.Deleted = ?)", true);
-    }
-
-    private static void deleteTransitionPredictionSettingsDependent()
-    {
-        execute("DELETE FROM " + getTableInfoPredictorSettings() + " WHERE PredictorId IN (SELECT Id FROM " +
-                getTableInfoPredictor() + " WHERE " +
-                "Id IN (SELECT CePredictorId FROM " + getTableInfoTransitionPredictionSettings() + " tps, " + getTableInfoRuns() + " r WHERE r.Id = tps.RunId AND r.Deleted = ?)" +
-                "OR Id IN (SELECT DpPredictorId FROM " + getTableInfoTransitionPredictionSettings() + " tps, " + getTableInfoRuns() + " r WHERE r.Id = tps.RunId AND r.Deleted = ?))"
-                , true, true);
-
-        List<Long> predictorsToDelete = getPredictorsToDelete();
+        List<Long> predictorsToDelete = new SqlSelector(getSchema(), predictorIds).getArrayList(Long.class);
 
         // Delete from TransitionPredictionSettings
-        deleteRunDependent(getTableInfoTransitionPredictionSettings());
+        purger.delete(getTableInfoTransitionPredictionSettings(), "RunId", new SQLFragment("?", runId));
 
         if (!predictorsToDelete.isEmpty())
         {
@@ -1762,34 +1872,6 @@ private static void deleteTransitionPredictionSettingsDependent()
         }
     }
 
-    private static void deleteIsolationSchemeDependent(TableInfo tableInfo)
-    {
-        execute("DELETE FROM " + tableInfo + " WHERE IsolationSchemeId IN (SELECT Id FROM " +
-                getTableInfoIsolationScheme() + " WHERE RunId IN (SELECT Id FROM " + getTableInfoRuns() + " WHERE Deleted = ?))", true);
-    }
-
-    private static void deleteDriftTimePredictionSettingsDependent(TableInfo tableInfo)
-    {
-        execute("DELETE FROM " + tableInfo + " WHERE DriftTimePredictionSettingsId IN (SELECT Id FROM " +
-                getTableInfoDriftTimePredictionSettings() + " WHERE RunId IN (SELECT Id FROM " + getTableInfoRuns() + " WHERE Deleted = ?))", true);
-    }
-
-    private static void deleteListDefinitionIdDependent(TableInfo tableInfo)
-    {
-        execute("DELETE FROM " + tableInfo + " WHERE ListDefinitionId IN (SELECT Id FROM " + getTableInfoListDefinition() + " WHERE RunId IN (SELECT Id FROM " + getTableInfoRuns() + " WHERE Deleted = ?))", true);
-    }
-
-    private static void deleteListDependent()
-    {
-        execute("DELETE FROM " + getTableInfoListItemValue() + " WHERE ListItemId IN" +
-                " (SELECT Id FROM " + getTableInfoListItem() + " WHERE ListDefinitionId IN" +
-                " (SELECT Id FROM " + getTableInfoListDefinition() + " WHERE RunId IN" +
-                " (SELECT Id FROM " + getTableInfoRuns() + " WHERE Deleted = ?)))", true);
-        deleteListDefinitionIdDependent(getTableInfoListItem());
-        deleteListDefinitionIdDependent(getTableInfoListColumnDefinition());
-        deleteRunDependent(getTableInfoListDefinition());
-    }
-
     private static void execute(String sql, @NotNull Object... parameters)
     {
         new SqlExecutor(getSchema()).execute(sql, parameters);
@@ -1884,9 +1966,10 @@ public static Replicate getReplicate(long replicateId, Container container)
         sql.append(getTableInfoReplicate(), "rep");
         sql.append(", ");
         sql.append(getTableInfoRuns(), "r");
-        sql.append( " WHERE r.Id = rep.RunId AND rep.Id = ? AND r.Container = ? ");
+        sql.append( " WHERE r.Id = rep.RunId AND rep.Id = ? AND r.Container = ? AND r.Deleted = ? ");
         sql.add(replicateId);
         sql.add(container);
+        sql.add(false);
         return new SqlSelector(getSchema(), sql).getObject(Replicate.class);
     }
 
@@ -1918,8 +2001,10 @@ public static List<SampleFile> getSampleFiles(Container container, @Nullable SQL
         sql.append(getTableInfoReplicate(), "rep");
         sql.append("\n ON sf.ReplicateId = rep.Id INNER JOIN ");
         sql.append(getTableInfoRuns(), "r");
-        sql.append("\n ON rep.RunId = r.Id AND r.Container = ? LEFT JOIN ");
+        // Skip runs that are marked as deleted but haven't been purged yet
+        sql.append("\n ON rep.RunId = r.Id AND r.Container = ? AND r.Deleted = ? LEFT JOIN ");
         sql.add(container);
+        sql.add(false);
         sql.append(getTableInfoQCMetricExclusion(), "x");
         sql.append("\n ON x.MetricId IS NULL AND x.ReplicateId = rep.Id LEFT JOIN (SELECT g.*, ");
         sql.append(GuideSetTable.getReferenceEndSql("g"));
@@ -2371,96 +2456,12 @@ public static boolean containerHasDocVersions(Container container)
 
     public static void updateModifiedAreaProportions(@Nullable Logger log, @NotNull TargetedMSRun run)
     {
-        final String suffix = StringUtilsLabKey.getPaddedUniquifier(9);
-        final String precursorGroupingsTableName = getSqlDialect().getTempTablePrefix() + "PrecursorGroupings" + suffix;
-        final String moleculeGroupingsTableName = getSqlDialect().getTempTablePrefix() + "MoleculeGroupings" + suffix;
-        final String areasTableName = getSqlDialect().getTempTablePrefix() +  "Areas" + suffix;
-
+        ModifiedAreaProportions proportions = ModifiedAreaProportions.load(run);
         if (log != null)
         {
-            log.info("Creating and populating temp tables for Proportion values");
-        }
-
-        // Create temp tables to help make the rollups efficient
-        SqlExecutor executor = new SqlExecutor(getSchema());
-        executor.execute("CREATE " + getSqlDialect().getTempTableKeyword() + " TABLE " +
-                precursorGroupingsTableName + "(Grouping " + (getSqlDialect().isSqlServer() ? "NVARCHAR" : "VARCHAR") + "(300), PrecursorId BIGINT, PeptideGroupId BIGINT)");
-        executor.execute("CREATE " + getSqlDialect().getTempTableKeyword() + " TABLE " +
-                moleculeGroupingsTableName + "(Grouping " + (getSqlDialect().isSqlServer() ? "NVARCHAR" : "VARCHAR") + "(300), GeneralMoleculeId BIGINT, PeptideGroupId BIGINT)");
-        executor.execute("CREATE " + getSqlDialect().getTempTableKeyword() + " TABLE " +
-                areasTableName + "(Grouping " + (getSqlDialect().isSqlServer() ? "NVARCHAR" : "VARCHAR") + "(300), PeptideGroupId BIGINT, SampleFileId BIGINT, Area REAL);");
-
-        // Populate the temp tables
-        SQLFragment precursorGroupingsSQL = new SQLFragment("INSERT INTO ").append(precursorGroupingsTableName).append("(Grouping, PrecursorId, PeptideGroupId)\n")
-                .append("SELECT DISTINCT COALESCE(gm.AttributeGroupId, p.Sequence, m.CustomIonName, m.IonFormula) AS Grouping, pci.PrecursorId, gm.PeptideGroupId \n")
-                .append(" FROM ").append(getTableInfoPrecursorChromInfo(), "pci").append(" INNER JOIN \n")
-                .append(getTableInfoGeneralPrecursor(), "gp").append(" ON gp.Id = pci.PrecursorId INNER JOIN \n")
-                .append(getTableInfoGeneralMolecule(), "gm").append(" ON gp.GeneralMoleculeId = gm.Id LEFT OUTER JOIN \n")
-                .append(getTableInfoMolecule(), "m").append(" ON gm.Id = m.Id LEFT OUTER JOIN \n").append(getTableInfoPeptide(), "p")
-                .append(" ON p.id = gp.generalmoleculeid");
-        precursorGroupingsSQL.append(" INNER JOIN \n")
-                .append(getTableInfoSampleFile(), "sf").append(" ON sf.Id = pci.SampleFileId INNER JOIN \n")
-                .append(getTableInfoReplicate(), "r").append(" ON sf.ReplicateId = r.Id AND r.RunId = ?");
-        precursorGroupingsSQL.add(run.getId());
-        executor.execute(precursorGroupingsSQL);
-
-        executor.execute(new SQLFragment("INSERT INTO ").append(moleculeGroupingsTableName).append("(Grouping, GeneralMoleculeId, PeptideGroupId)\n")
-                .append("SELECT DISTINCT g.grouping, gp.GeneralMoleculeId, g.PeptideGroupId FROM \n")
-                .append(precursorGroupingsTableName).append(" g INNER JOIN \n")
-                .append(getTableInfoGeneralPrecursor(), "gp").append(" ON gp.Id = g.PrecursorId"));
-
-        executor.execute(new SQLFragment("INSERT INTO ").append(areasTableName).append("(Grouping, SampleFileId, PeptideGroupId, Area)\n")
-                .append("SELECT g.Grouping, pci.SampleFileId, g.PeptideGroupId, SUM(pci.TotalArea) AS Area FROM \n")
-                .append(getTableInfoPrecursorChromInfo(), "pci").append(" INNER JOIN \n")
-                .append(precursorGroupingsTableName).append(" g ON pci.PrecursorId = g.PrecursorId \n")
-                .append("GROUP BY g.grouping, g.PeptideGroupId, pci.SampleFileId"));
-
-        // Add indices to temp tables to make them faster to use
-        executor.execute("CREATE INDEX IDX_PrecursorGroupings  ON " + precursorGroupingsTableName + "(PrecursorId, PeptideGroupId, Grouping)");
-        executor.execute("CREATE INDEX IDX_MoleculeGroupings ON " + moleculeGroupingsTableName + "(GeneralMoleculeId, PeptideGroupId, Grouping)");
-        executor.execute("CREATE INDEX IDX_Areas ON " + areasTableName + "(Grouping, PeptideGroupId, SampleFileId)");
-
-        // Populate the permanent tables
-        SQLFragment updatePrecursorSQL = new SQLFragment("UPDATE targetedms.precursorchrominfo SET PrecursorModifiedAreaProportion = \n")
-                .append("(SELECT CASE WHEN X.PrecursorAreaInReplicate = 0 THEN NULL ELSE TotalArea / X.PrecursorAreaInReplicate END \n")
-                .append("FROM (SELECT Area AS PrecursorAreaInReplicate FROM ").append(areasTableName).append(" a INNER JOIN \n")
-                .append(precursorGroupingsTableName).append(" g ON a.grouping = g.grouping AND a.PeptideGroupId = g.PeptideGroupId \n")
-                .append("WHERE g.PrecursorId = targetedms.precursorchrominfo.PrecursorId AND \n")
-                .append("a.SampleFileId = targetedms.precursorchrominfo.SampleFileId) X) ");
-        updatePrecursorSQL.append(" WHERE PrecursorId IN \n")
-            .append("(SELECT PrecursorId FROM ").append(precursorGroupingsTableName).append(")");
-
-        if (log != null)
-        {
-            log.info("Setting PrecursorModifiedAreaProportion values on precursorchrominfo");
+            log.info("Calculating Proportion values for " + proportions.size() + " precursorchrominfo rows");
         }
-        executor.execute(updatePrecursorSQL);
-
-        SQLFragment updateMoleculeSQL = new SQLFragment("UPDATE targetedms.generalmoleculechrominfo SET ModifiedAreaProportion = \n")
-                .append("(SELECT CASE WHEN X.MoleculeAreaInReplicate = 0 THEN NULL ELSE \n")
-                .append("(SELECT SUM(TotalArea) FROM ").append(getTableInfoPrecursorChromInfo(), "pci")
-                .append(" WHERE pci.generalmoleculechrominfoid = targetedms.generalmoleculechrominfo.Id) / X.MoleculeAreaInReplicate END \n")
-                .append(" FROM (SELECT SUM(a.Area) AS MoleculeAreaInReplicate FROM ").append(areasTableName)
-                .append("\n a INNER JOIN ").append(moleculeGroupingsTableName).append(" g ON a.grouping = g.grouping AND a.PeptideGroupId = g.PeptideGroupId \n")
-                .append("WHERE g.GeneralMoleculeId = targetedms.generalmoleculechrominfo.GeneralMoleculeId AND \n")
-                .append("a.SampleFileId = targetedms.generalmoleculechrominfo.SampleFileId) X)");
-        updateMoleculeSQL.append(" WHERE GeneralMoleculeId IN \n")
-            .append("(SELECT GeneralMoleculeId FROM ").append(moleculeGroupingsTableName).append(")");
-
-        if (log != null)
-        {
-            log.info("Setting ModifiedAreaProportion values on generalmoleculechrominfo");
-        }
-        executor.execute(updateMoleculeSQL);
-
-        // Drop the temp tables
-        if (log != null)
-        {
-            log.info("Cleaning up temp tables");
-        }
-        executor.execute("DROP TABLE " + precursorGroupingsTableName);
-        executor.execute("DROP TABLE " + moleculeGroupingsTableName);
-        executor.execute("DROP TABLE " + areasTableName);
+        proportions.save(log, true);
     }
 
     /**
@@ -2500,15 +2501,6 @@ public static List<TransitionSettings.Predictor> getPredictors(long runId)
         return predictors;
     }
 
-    private static List<Long> getPredictorsToDelete()
-    {
-        SQLFragment sql = new SQLFragment("Select Id FROM " + getTableInfoPredictor() + " WHERE " +
-                "Id IN (SELECT tps.CePredictorId FROM " + getTableInfoTransitionPredictionSettings() + " tps, " + getTableInfoRuns() + " r WHERE r.Id = tps.RunId AND r.Deleted = ?) " +
-                " OR Id IN (SELECT tps.DpPredictorId FROM " + getTableInfoTransitionPredictionSettings() + " tps, " + getTableInfoRuns() + " r WHERE r.Id = tps.RunId AND r.Deleted = ?)").add(true).add(true);
-
-        return new SqlSelector(getSchema(), sql).getArrayList(Long.class);
-    }
-
     private static List<SampleFileChromInfo> getSampleFileChromInfosByName(String traceName, long runId)
     {
         var sql = new SQLFragment(" SELECT sfi.Id, sfi.SampleFileId, sfi.StartTime, sfi.EndTime, sfi.NumPoints," +
@@ -2532,34 +2524,34 @@ public static List<QCTraceMetricValues> calculateTraceMetricValues(List<QCMetric
                 List<SampleFileChromInfo> sampleFileChromInfos = getSampleFileChromInfosByName(qcMetricConfiguration.getTraceName(), run.getRunId());
                 Map<SampleFileChromInfo, Float> valuesToStore = new HashMap<>();
 
-                for (SampleFileChromInfo sampleFileChromInfo : sampleFileChromInfos)
+                // Sample file chromatograms are always read from the SKYD
+                Map<SampleFileChromInfo, Chromatogram> chromatograms = ChromatogramReader.readChromatograms(run, sampleFileChromInfos, true);
+                for (Map.Entry<SampleFileChromInfo, Chromatogram> entry : chromatograms.entrySet())
                 {
-                    Chromatogram chromatogram = sampleFileChromInfo.createChromatogram(run);
-                    if (null != chromatogram)
+                    SampleFileChromInfo sampleFileChromInfo = entry.getKey();
+                    Chromatogram chromatogram = entry.getValue();
+                    float[] times = chromatogram.getTimes();
+                    float[] values = chromatogram.getIntensities(0);
+
+                    if (times.length != values.length)
                     {
-                        float[] times = chromatogram.getTimes();
-                        float[] values = chromatogram.getIntensities(0);
+                        throw new IllegalStateException("Incorrect values in skyd file for time and intensities for trace - " + sampleFileChromInfo.getTextId());
+                    }
 
-                        if (times.length != values.length)
+                    for (int i = 0; i < times.length; i++)
+                    {
+                        Double timeValue = qcMetricConfiguration.getTimeValue();
+                        Double traceValue = qcMetricConfiguration.getTraceValue();
+
+                        if (timeValue != null && times[i] >= timeValue)
                         {
-                            throw new IllegalStateException("Incorrect values in skyd file for time and intensities for trace - " + sampleFileChromInfo.getTextId());
+                            valuesToStore.put(sampleFileChromInfo, values[i]);
+                            break;
                         }
-
-                        for (int i = 0; i < times.length; i++)
+                        else if (traceValue != null && values[i] >= traceValue)
                         {
-                            Double timeValue = qcMetricConfiguration.getTimeValue();
-                            Double traceValue = qcMetricConfiguration.getTraceValue();
-
-                            if (timeValue != null && times[i] >= timeValue)
-                            {
-                                valuesToStore.put(sampleFileChromInfo, values[i]);
-                                break;
-                            }
-                            else if (traceValue != null && values[i] >= traceValue)
-                            {
-                                valuesToStore.put(sampleFileChromInfo, times[i]);
-                                break;
-                            }
+                            valuesToStore.put(sampleFileChromInfo, times[i]);
+                            break;
                         }
                     }
                 }
@@ -2612,6 +2604,7 @@ public static Map<String,Object> getQCFolderDateRange(Container container)
         sql.append(" INNER JOIN ").append(getTableInfoReplicate(), "rep").append(" ON sf.ReplicateId = rep.Id ");
         sql.append(" INNER JOIN ").append(getTableInfoRuns(), "r").append(" ON rep.RunId = r.Id ");
         sql.append(" WHERE r.Container = ").append(container);
+        sql.append(" AND r.Deleted = ?").add(false);
 
         return new SqlSelector(getSchema(), sql).getMap();
     }
@@ -2619,5 +2612,87 @@ public static Map<String,Object> getQCFolderDateRange(Container container)
     public void clearCachedEnabledQCMetrics(Container container)
     {
         getSchema().getScope().addCommitTask(() -> _metricCache.remove(container), DbScope.CommitTaskOption.IMMEDIATE, DbScope.CommitTaskOption.POSTCOMMIT, DbScope.CommitTaskOption.POSTROLLBACK);
+        // Runs being imported or deleted and metrics being enabled or disabled all change the outlier results too
+        QCOutlierCache.get().invalidate(container);
+    }
+
+    public static class TestCase extends Assert
+    {
+        private static final String FOLDER_NAME = "TargetedMSRunPurgeFolder";
+        private static final int PROTEIN_COUNT = 50;
+        // Smaller than the number of rows, so that each table is purged in several batches
+        private static final int BATCH_SIZE = 7;
+
+        private User _user;
+        private Container _container;
+        private TargetedMSRun _run;
+
+        @Before
+        public void initTest()
+        {
+            _user = TestContext.get().getUser();
+            _container = ContainerManager.ensureContainer(JunitUtil.getTestContainer(), FOLDER_NAME);
+
+            _run = new TargetedMSRun();
+            _run.setContainer(_container);
+            _run.setDocumentGUID(new GUID());
+            Table.insert(_user, getTableInfoRuns(), _run);
+
+            for (int i = 0; i < PROTEIN_COUNT; i++)
+            {
+                PeptideGroup group = new PeptideGroup();
+                group.setRunId(_run.getId());
+                group.setLabel("Protein" + i);
+                group = Table.insert(_user, getTableInfoPeptideGroup(), group);
+                new SqlExecutor(getSchema()).execute("INSERT INTO " + getTableInfoPeptideGroupAnnotation() +
+                        " (PeptideGroupId, Name, Value) VALUES (?, ?, ?)", group.getId(), "Cohort", "Cohort " + i);
+            }
+        }
+
+        @After
+        public void cleanup()
+        {
+            // In case the test failed before the run was purged
+            markDeleted();
+            purgeDeletedRun(_run.getId(), _log);
+        }
+
+        @Test
+        public void testResumePurge()
+        {
+            markDeleted();
+            assertEquals(List.of(_run.getId()), getDeletedRunIds(_container));
+
+            // Simulate a purge that stops partway through, after the annotations but before their peptide groups
+            try
+            {
+                purgeDeletedRun(_run.getId(), _log, new RunPurger(_log, BATCH_SIZE, getTableInfoPeptideGroup()));
+                fail("Expected the purge to stop before deleting the peptide groups");
+            }
+            catch (IllegalStateException expected)
+            {
+            }
+            assertEquals(0, new SqlSelector(getSchema(), new SQLFragment("SELECT COUNT(*) FROM " + getTableInfoPeptideGroupAnnotation() +
+                    " WHERE PeptideGroupId IN (SELECT Id FROM " + getTableInfoPeptideGroup() + " WHERE RunId = ?)", _run.getId())).getObject(Long.class).longValue());
+            assertEquals(PROTEIN_COUNT, new TableSelector(getTableInfoPeptideGroup(), new SimpleFilter(FieldKey.fromParts("RunId"), _run.getId()), null).getRowCount());
+            // Still marked as deleted, so it will be picked up again
+            assertEquals(List.of(_run.getId()), getDeletedRunIds(_container));
+
+            // Purging again finishes the job
+            RunPurger purger = new RunPurger(_log, BATCH_SIZE, null);
+            assertTrue(purgeDeletedRun(_run.getId(), _log, purger));
+            assertEquals(PROTEIN_COUNT, purger._totalRows);
+            assertTrue("Expected the peptide groups to be deleted in batches", purger._statements >= PROTEIN_COUNT / BATCH_SIZE);
+            assertEquals(0, new TableSelector(getTableInfoPeptideGroup(), new SimpleFilter(FieldKey.fromParts("RunId"), _run.getId()), null).getRowCount());
+            assertTrue(getDeletedRunIds(_container).isEmpty());
+
+            // Nothing left to do
+            assertFalse(purgeDeletedRun(_run.getId(), _log, new RunPurger(_log, BATCH_SIZE, null)));
+        }
+
+        private void markDeleted()
+        {
+            new SqlExecutor(getSchema()).execute("UPDATE " + getTableInfoRuns() + " SET Deleted = ? WHERE Id = ?", true, _run.getId());
+        }
     }
 }
@@ -47,6 +47,7 @@
 import org.labkey.api.targetedms.TargetedMSService;
 import org.labkey.api.usageMetrics.UsageMetricsService;
 import org.labkey.api.util.PageFlowUtil;
+import org.labkey.api.util.SystemMaintenance;
 import org.labkey.api.view.ActionURL;
 import org.labkey.api.view.BaseWebPartFactory;
 import org.labkey.api.view.JspView;
@@ -55,13 +56,20 @@
 import org.labkey.api.view.WebPartFactory;
 import org.labkey.api.view.WebPartView;
 import org.labkey.api.view.template.ClientDependency;
+import org.labkey.targetedms.SkylinePort.Irt.IrtRegressionCalculator;
 import org.labkey.targetedms.chart.ComparisonCategory;
 import org.labkey.targetedms.chart.ReplicateLabelMinimizer;
+import org.labkey.targetedms.chromlib.ChromatogramLibraryWriter;
 import org.labkey.targetedms.datasource.MsDataSourceUtil;
 import org.labkey.targetedms.parser.SampleFile;
+import org.labkey.targetedms.parser.WeightedLruCache;
+import org.labkey.targetedms.parser.ZlibDecompressor;
+import org.labkey.targetedms.parser.skyd.TransitionMzIndex;
 import org.labkey.targetedms.parser.skyaudit.SkylineAuditLogParser;
 import org.labkey.targetedms.passport.PassportController;
+import org.labkey.targetedms.pipeline.RunPurgeJob;
 import org.labkey.targetedms.pipeline.TargetedMSPipelineProvider;
+import org.labkey.targetedms.query.AnnotationSummaryManager;
 import org.labkey.targetedms.query.PrecursorManager;
 import org.labkey.targetedms.query.SkylineListSchema;
 import org.labkey.targetedms.search.ModificationSearchWebPart;
@@ -140,12 +148,24 @@ public class TargetedMSModule extends SpringModule implements ProteomicsModule
     public static ModuleProperty FOLDER_TYPE_PROPERTY;
     public static ModuleProperty SKIP_CHROMATOGRAM_IMPORT_PROPERTY;
     public static ModuleProperty PREFER_SKYD_FILE_CHROMATOGRAMS_PROPERTY;
+    public static ModuleProperty MEMORY_MAP_SKYD_FILES_PROPERTY;
     public static ModuleProperty SKYLINE_AUDIT_LEVEL_PROPERTY;
     public static ModuleProperty MAX_TRANSITION_CHROM_INFOS_PROPERTY;
     public static final int DEFAULT_MAX_TRANSITION_CHROM_INFOS = 100_000;
     public static ModuleProperty MAX_PRECURSORS_PROPERTY;
     public static final int DEFAULT_MAX_PRECURSORS = 1_000;
+    public static ModuleProperty IMPORT_BATCH_SIZE_PROPERTY;
+    public static final int DEFAULT_IMPORT_BATCH_SIZE = 1_000;
+    public static ModuleProperty CHROMATOGRAM_READ_THREADS_PROPERTY;
+    public static final int DEFAULT_CHROMATOGRAM_READ_THREADS = 4;
+    public static ModuleProperty QUANTIFICATION_THREADS_PROPERTY;
+    public static final int DEFAULT_QUANTIFICATION_THREADS = 4;
+    public static ModuleProperty SKYD_CHROMATOGRAM_CACHE_SIZE_PROPERTY;
+    public static final int DEFAULT_SKYD_CHROMATOGRAM_CACHE_SIZE_MB = 64;
+    public static ModuleProperty DECODED_CHROMATOGRAM_CACHE_SIZE_PROPERTY;
+    public static final int DEFAULT_DECODED_CHROMATOGRAM_CACHE_SIZE_MB = 128;
     public static ModuleProperty AUTO_QC_PING_TIMEOUT_PROPERTY;
+    public static ModuleProperty INDEX_SPECTRUM_LIBRARIES_PROPERTY;
 
     public TargetedMSModule()
     {
@@ -199,6 +219,15 @@ public TargetedMSModule()
         PREFER_SKYD_FILE_CHROMATOGRAMS_PROPERTY.setShowDescriptionInline(true);
         addModuleProperty(PREFER_SKYD_FILE_CHROMATOGRAMS_PROPERTY);
 
+        MEMORY_MAP_SKYD_FILES_PROPERTY = new ModuleProperty(this, "Memory-map SKYD files during import");
+        MEMORY_MAP_SKYD_FILES_PROPERTY.setInputType(ModuleProperty.InputType.combo);
+        MEMORY_MAP_SKYD_FILES_PROPERTY.setOptions(options);
+        MEMORY_MAP_SKYD_FILES_PROPERTY.setDefaultValue(Boolean.toString(false));
+        MEMORY_MAP_SKYD_FILES_PROPERTY.setCanSetPerContainer(true);
+        MEMORY_MAP_SKYD_FILES_PROPERTY.setDescription("When importing a Skyline document, read the chromatogram headers, transitions, and peaks from the SKYD file through a memory-mapped view instead of a stream. This is much faster for large files, but Java can't release the mapping until it has been garbage collected, so on Windows the file may stay locked, and can't be deleted or replaced, after the import finishes. Off by default");
+        MEMORY_MAP_SKYD_FILES_PROPERTY.setShowDescriptionInline(true);
+        addModuleProperty(MEMORY_MAP_SKYD_FILES_PROPERTY);
+
         // setup the QC Summary webpart AutoQCPing timeout
         AUTO_QC_PING_TIMEOUT_PROPERTY = new ModuleProperty(this, "TargetedMS AutoQCPing Timeout");
         AUTO_QC_PING_TIMEOUT_PROPERTY.setDescription("The number of minutes before the most recent AutoQCPing indicator is considered stale.");
@@ -223,6 +252,55 @@ public TargetedMSModule()
         MAX_PRECURSORS_PROPERTY.setShowDescriptionInline(true);
         addModuleProperty(MAX_PRECURSORS_PROPERTY);
 
+        IMPORT_BATCH_SIZE_PROPERTY = new ModuleProperty(this, "Chromatogram results import batch size");
+        IMPORT_BATCH_SIZE_PROPERTY.setInputType(ModuleProperty.InputType.text);
+        IMPORT_BATCH_SIZE_PROPERTY.setDefaultValue(Integer.toString(DEFAULT_IMPORT_BATCH_SIZE));
+        IMPORT_BATCH_SIZE_PROPERTY.setCanSetPerContainer(false);
+        IMPORT_BATCH_SIZE_PROPERTY.setDescription("Number of PrecursorChromInfo and TransitionChromInfo rows (and their annotations) to send to the database in a single batch when importing Skyline documents on PostgreSQL. Set to 0 to insert rows one at a time");
+        IMPORT_BATCH_SIZE_PROPERTY.setShowDescriptionInline(true);
+        addModuleProperty(IMPORT_BATCH_SIZE_PROPERTY);
+
+        CHROMATOGRAM_READ_THREADS_PROPERTY = new ModuleProperty(this, "Chromatogram import threads");
+        CHROMATOGRAM_READ_THREADS_PROPERTY.setInputType(ModuleProperty.InputType.text);
+        CHROMATOGRAM_READ_THREADS_PROPERTY.setDefaultValue(Integer.toString(DEFAULT_CHROMATOGRAM_READ_THREADS));
+        CHROMATOGRAM_READ_THREADS_PROPERTY.setCanSetPerContainer(false);
+        CHROMATOGRAM_READ_THREADS_PROPERTY.setDescription("Number of background threads used to read and validate chromatograms from the SKYD file while a Skyline document is being imported. Set to 1 or less to read them on the import thread");
+        CHROMATOGRAM_READ_THREADS_PROPERTY.setShowDescriptionInline(true);
+        addModuleProperty(CHROMATOGRAM_READ_THREADS_PROPERTY);
+
+        QUANTIFICATION_THREADS_PROPERTY = new ModuleProperty(this, "Quantification threads");
+        QUANTIFICATION_THREADS_PROPERTY.setInputType(ModuleProperty.InputType.text);
+        QUANTIFICATION_THREADS_PROPERTY.setDefaultValue(Integer.toString(DEFAULT_QUANTIFICATION_THREADS));
+        QUANTIFICATION_THREADS_PROPERTY.setCanSetPerContainer(false);
+        QUANTIFICATION_THREADS_PROPERTY.setDescription("Number of threads used to fit the calibration curves and calculate the group comparison fold changes for a Skyline document after it has been imported. Set to 1 or less to calculate them on the import thread");
+        QUANTIFICATION_THREADS_PROPERTY.setShowDescriptionInline(true);
+        addModuleProperty(QUANTIFICATION_THREADS_PROPERTY);
+
+        SKYD_CHROMATOGRAM_CACHE_SIZE_PROPERTY = new ModuleProperty(this, "SKYD chromatogram cache size (MB)");
+        SKYD_CHROMATOGRAM_CACHE_SIZE_PROPERTY.setInputType(ModuleProperty.InputType.text);
+        SKYD_CHROMATOGRAM_CACHE_SIZE_PROPERTY.setDefaultValue(Integer.toString(DEFAULT_SKYD_CHROMATOGRAM_CACHE_SIZE_MB));
+        SKYD_CHROMATOGRAM_CACHE_SIZE_PROPERTY.setCanSetPerContainer(false);
+        SKYD_CHROMATOGRAM_CACHE_SIZE_PROPERTY.setDescription("Maximum total size, in megabytes, of the compressed chromatograms kept in memory after being read from SKYD files. Set to 0 to disable caching");
+        SKYD_CHROMATOGRAM_CACHE_SIZE_PROPERTY.setShowDescriptionInline(true);
+        addModuleProperty(SKYD_CHROMATOGRAM_CACHE_SIZE_PROPERTY);
+
+        DECODED_CHROMATOGRAM_CACHE_SIZE_PROPERTY = new ModuleProperty(this, "Decoded chromatogram cache size (MB)");
+        DECODED_CHROMATOGRAM_CACHE_SIZE_PROPERTY.setInputType(ModuleProperty.InputType.text);
+        DECODED_CHROMATOGRAM_CACHE_SIZE_PROPERTY.setDefaultValue(Integer.toString(DEFAULT_DECODED_CHROMATOGRAM_CACHE_SIZE_MB));
+        DECODED_CHROMATOGRAM_CACHE_SIZE_PROPERTY.setCanSetPerContainer(false);
+        DECODED_CHROMATOGRAM_CACHE_SIZE_PROPERTY.setDescription("Maximum approximate size, in megabytes, of the uncompressed retention times and intensities kept in memory for chromatograms that have been recently rendered. Set to 0 to disable caching");
+        DECODED_CHROMATOGRAM_CACHE_SIZE_PROPERTY.setShowDescriptionInline(true);
+        addModuleProperty(DECODED_CHROMATOGRAM_CACHE_SIZE_PROPERTY);
+
+        INDEX_SPECTRUM_LIBRARIES_PROPERTY = new ModuleProperty(this, "Index local copies of spectrum libraries");
+        INDEX_SPECTRUM_LIBRARIES_PROPERTY.setInputType(ModuleProperty.InputType.combo);
+        INDEX_SPECTRUM_LIBRARIES_PROPERTY.setOptions(options);
+        INDEX_SPECTRUM_LIBRARIES_PROPERTY.setDefaultValue(Boolean.toString(true));
+        INDEX_SPECTRUM_LIBRARIES_PROPERTY.setCanSetPerContainer(true);
+        INDEX_SPECTRUM_LIBRARIES_PROPERTY.setDescription("When a spectrum library in cloud storage is copied to the server to be read, add indexes on the peptide sequence, modified sequence and charge columns if the library doesn't have them. This makes spectrum lookups in large libraries much faster, at the cost of a slower first lookup");
+        INDEX_SPECTRUM_LIBRARIES_PROPERTY.setShowDescriptionInline(true);
+        addModuleProperty(INDEX_SPECTRUM_LIBRARIES_PROPERTY);
+
     }
 
     @Override
@@ -234,7 +312,7 @@ public String getName()
     @Override
     public Double getSchemaVersion()
     {
-        return 22.000;
+        return 22.002;
     }
 
     @Override
@@ -578,8 +656,11 @@ protected void startupAfterSpringConfig(ModuleContext moduleContext)
         TargetedMSListener listener = new TargetedMSListener();
         ContainerManager.addContainerListener(listener);
 
+        SystemMaintenance.addTask(new RunPurgeJob.PurgeMaintenanceTask());
+
 		ActionURL chromatogramURL = new ActionURL(TargetedMSController.ChromatogramCrawlerAction.class, ContainerManager.getRoot());
         AdminConsole.addLink(AdminConsole.SettingsLinkType.Configuration, "Targeted MS Chromatogram Crawler", chromatogramURL, ApplicationAdminPermission.class);
+        AdminConsole.addLink(AdminConsole.SettingsLinkType.Diagnostics, "Targeted MS SKYD Chromatogram Cache", new ActionURL(TargetedMSController.SkydChromatogramCacheAction.class, ContainerManager.getRoot()), ApplicationAdminPermission.class);
 
         FileContentService fcs = FileContentService.get();
         if(null != fcs)
@@ -615,8 +696,10 @@ protected void startupAfterSpringConfig(ModuleContext moduleContext)
     public Set<Class> getIntegrationTests()
     {
         return Set.of(
+            AnnotationSummaryManager.TestCase.class,
             MsDataSourceUtil.TestCase.class,
-            SkylineAuditLogManager.TestCase.class
+            SkylineAuditLogManager.TestCase.class,
+            TargetedMSManager.TestCase.class
         );
     }
 
@@ -625,12 +708,17 @@ public Set<Class> getIntegrationTests()
     public Set<Class> getUnitTests()
     {
         return Set.of(
+            ChromatogramLibraryWriter.TestCase.class,
             ComparisonCategory.TestCase.class,
+            IrtRegressionCalculator.TestCase.class,
             ReplicateLabelMinimizer.TestCase.class,
             SampleFile.TestCase.class,
             SkylineAuditLogParser.TestCase.class,
             TargetedMSController.TestCase.class,
-            PrecursorManager.TestCase.class
+            PrecursorManager.TestCase.class,
+            TransitionMzIndex.TestCase.class,
+            ZlibDecompressor.TestCase.class,
+            WeightedLruCache.TestCase.class
         );
     }
 
@@ -146,6 +146,7 @@ public class TargetedMSSchema extends UserSchema
     public static final String TABLE_ENZYME = "Enzyme";
     public static final String TABLE_LIBRARY_SETTINGS = "LibrarySettings";
     public static final String TABLE_ANNOTATION_SETTINGS = "AnnotationSettings";
+    public static final String TABLE_ANNOTATION_SUMMARY = "AnnotationSummary";
     public static final String TABLE_GROUP_COMPARISON_SETTINGS = "GroupComparisonSettings";
     public static final String TABLE_FOLD_CHANGE = "FoldChange";
     public static final String TABLE_PEPTIDE_FOLD_CHANGE = "PeptideFoldChange";
@@ -248,10 +249,21 @@ public static DbSchema getSchema()
 
 
     private static SQLFragment getJoinToRunsTable(String tableAlias)
+    {
+        return getJoinToRunsTable(tableAlias, TargetedMSTable.CONTAINER_COL_TABLE_ALIAS);
+    }
+
+    /** Joins to the run, leaving out runs that are marked Deleted but haven't been purged yet */
+    private static SQLFragment getJoinToRunsTable(String tableAlias, String runsAlias)
     {
         tableAlias = tableAlias == null ? "" : tableAlias + ".";
-        return makeInnerJoin(TargetedMSManager.getTableInfoRuns(),
-                TargetedMSTable.CONTAINER_COL_TABLE_ALIAS, tableAlias + "RunId");
+        SQLFragment sql = new SQLFragment("INNER JOIN ");
+        sql.append(TargetedMSManager.getTableInfoRuns(), runsAlias);
+        sql.append(" ON ( ");
+        sql.append(runsAlias).append(".id = ").append(tableAlias).append("RunId");
+        sql.append(" AND ").append(runsAlias).append(".Deleted = ?").add(Boolean.FALSE);
+        sql.append(" ) ");
+        return sql;
     }
 
     private static SQLFragment makeInnerJoin(TableInfo table, String alias, String colRight)
@@ -297,15 +309,13 @@ public SQLFragment getSQL()
             {
                 SQLFragment sql = new SQLFragment();
                 sql.append(makeInnerJoin(TargetedMSManager.getTableInfoGeneralMoleculeChromInfo(), "gmci", "GeneralMoleculeChromInfoId"));
-                sql.append(makeInnerJoin(TargetedMSManager.getTableInfoGeneralMolecule(), "gmid", "gmci.GeneralMoleculeId"));
-                sql.append(makeInnerJoin(TargetedMSManager.getTableInfoPeptideGroup(), "pg", "gmid.PeptideGroupId"));
-                sql.append(getJoinToRunsTable("pg"));
+                sql.append(getJoinToRunsTable("gmci"));
                 return sql;
             }
             @Override
             public FieldKey getContainerFieldKey()
             {
-                return FieldKey.fromParts("GeneralMoleculeChromInfoId", "GeneralMoleculeId", "PeptideGroupId", "RunId", "Container");
+                return FieldKey.fromParts("GeneralMoleculeChromInfoId", "RunId", "Container");
             }
         },
         GeneralPrecursorFK
@@ -353,6 +363,10 @@ public SQLFragment getSQL()
             {
                 SQLFragment sql = new SQLFragment();
                 sql.append(makeInnerJoin(TargetedMSManager.getTableInfoPrecursorChromInfo(), TargetedMSTable.CONTAINER_COL_TABLE_ALIAS, "PrecursorChromInfoId"));
+                // The container comes from the chrom info itself, so join to the run only to leave out deleted ones
+                sql.append(makeInnerJoin(TargetedMSManager.getTableInfoSampleFile(), "sfile", TargetedMSTable.CONTAINER_COL_TABLE_ALIAS + ".SampleFileId"));
+                sql.append(makeInnerJoin(TargetedMSManager.getTableInfoReplicate(), "rep", "sfile.ReplicateId"));
+                sql.append(getJoinToRunsTable("rep", "runs"));
                 return sql;
             }
             @Override
@@ -451,15 +465,13 @@ public SQLFragment getSQL()
             {
                 SQLFragment sql = new SQLFragment();
                 sql.append(makeInnerJoin(TargetedMSManager.getTableInfoGeneralMoleculeChromInfo(), "gmci", "PeptideChromInfoId"));
-                sql.append(makeInnerJoin(TargetedMSManager.getTableInfoGeneralMolecule(), "gmid", "gmci.GeneralMoleculeId"));
-                sql.append(makeInnerJoin(TargetedMSManager.getTableInfoPeptideGroup(), "pg", "gmid.PeptideGroupId"));
-                sql.append(getJoinToRunsTable("pg"));
+                sql.append(getJoinToRunsTable("gmci"));
                 return sql;
             }
             @Override
             public FieldKey getContainerFieldKey()
             {
-                return FieldKey.fromParts("PeptideChromInfoId", "GeneralMoleculeId", "PeptideGroupId", "RunId", "Container");
+                return FieldKey.fromParts("PeptideChromInfoId", "RunId", "Container");
             }
         },
         ReplicateFK
@@ -504,15 +516,13 @@ public SQLFragment getSQL()
             {
                 SQLFragment sql = new SQLFragment();
                 sql.append(makeInnerJoin(TargetedMSManager.getTableInfoTransitionChromInfo(), "tci", "TransitionChromInfoId"));
-                sql.append(makeInnerJoin(TargetedMSManager.getTableInfoSampleFile(), "sfile", "tci.SampleFileId"));
-                sql.append(makeInnerJoin(TargetedMSManager.getTableInfoReplicate(), "rep", "sfile.ReplicateId"));
-                sql.append(getJoinToRunsTable("rep"));
+                sql.append(getJoinToRunsTable("tci"));
                 return sql;
             }
             @Override
             public FieldKey getContainerFieldKey()
             {
-                return FieldKey.fromParts("TransitionChromInfoId", "SampleFileId", "ReplicateId", "RunId", "Container");
+                return FieldKey.fromParts("TransitionChromInfoId", "RunId", "Container");
             }
         },
         SampleFileFK
@@ -1307,7 +1317,7 @@ public DisplayColumn createRenderer(ColumnInfo colInfo)
 
         if (TABLE_PEPTIDE_CHROM_INFO.equalsIgnoreCase(name) || TABLE_GENERAL_MOLECULE_CHROM_INFO.equalsIgnoreCase(name))
         {
-            return new GeneralMoleculeChromInfoTableInfo(getSchema().getTable(TABLE_GENERAL_MOLECULE_CHROM_INFO), this, cf, ContainerJoinType.GeneralMoleculeFK, name);
+            return new GeneralMoleculeChromInfoTableInfo(getSchema().getTable(TABLE_GENERAL_MOLECULE_CHROM_INFO), this, cf, ContainerJoinType.RunFK, name);
         }
 
         // Tables that have a FK to targetedms.peptidechrominfo
@@ -1377,7 +1387,7 @@ public DisplayColumn createRenderer(ColumnInfo colInfo)
         // Tables that have a FK to targetedms.transition
         if (TABLE_TRANSITION_CHROM_INFO.equalsIgnoreCase(name))
         {
-            TargetedMSTable result = new AnnotatedTargetedMSTable(getSchema().getTable(name), this, cf, ContainerJoinType.SampleFileFK,
+            TargetedMSTable result = new AnnotatedTargetedMSTable(getSchema().getTable(name), this, cf, ContainerJoinType.RunFK,
                     TargetedMSManager.getTableInfoTransitionChromInfoAnnotation(), "TransitionChromInfoId", "Transition Result Annotations", "transition_result", false);
             TargetedMSSchema targetedMSSchema = this;
 
@@ -1530,6 +1540,8 @@ public TableInfo getLookupTableInfo()
             result.wrapAllColumns(true);
             if (name.equalsIgnoreCase(TABLE_RUNS))
             {
+                // Deleted runs stay in the table until they're purged in the background
+                result.addCondition(new SQLFragment("Deleted = ?", Boolean.FALSE), FieldKey.fromParts("Deleted"));
                 result.getMutableColumn("DataId").setFk(QueryForeignKey.from(_expSchema, cf).to(ExpSchema.TableType.Data.name(), null, null));
                 result.getMutableColumn("Owner").setFk(new UserIdQueryForeignKey(this, true));
                 result.getMutableColumn("SkydDataId").setFk(QueryForeignKey.from(_expSchema, cf).to(ExpSchema.TableType.Data.name(), null, null));
@@ -63,6 +63,7 @@
     private Map<Long, List<ChromInfoRecord>> _chromInfoRecordsByReplicateId = new HashMap<>();
     private Set<Integer> _msLevels = new HashSet<>();
     private Set<String> _labels = new HashSet<>();
+    private Collection<GeneralMoleculeChromInfo> _generalMoleculeChromInfos;
 
     public GeneralMoleculeResultDataSet(User user, Container container, ReplicateDataSet replicateSet, GeneralMolecule peptide)
     {
@@ -78,6 +79,66 @@ public GeneralMoleculeResultDataSet(User user, Container container, ReplicateDat
         }
     }
 
+    /**
+     * Builds the results from data that has been loaded for the whole run, instead of querying for them
+     */
+    GeneralMoleculeResultDataSet(ReplicateDataSet replicateSet, GeneralMolecule generalMolecule, RunQuantificationData runData)
+    {
+        _generalMolecule = generalMolecule;
+        _replicateSet = replicateSet;
+        _generalMoleculeChromInfos = runData.getGeneralMoleculeChromInfos(generalMolecule.getId());
+        RunQuantificationData.MoleculeAreas areas = runData.getAreasForMolecule(generalMolecule.getId());
+        if (areas == null)
+        {
+            return;
+        }
+
+        // Transition or precursor ID -> the fields of the chrom info record that don't vary by sample file
+        Map<Long, ChromInfoRecord> templates = new HashMap<>();
+        for (GeneralPrecursor<?> precursor : runData.getPrecursors(generalMolecule.getId()))
+        {
+            String isotopeLabel = _replicateSet.getIsotopeLabelName(precursor.getIsotopeLabelId());
+            String precursorKey = generalMolecule.getPrecursorKey(generalMolecule, precursor);
+            if (runData.isUseTransitionChromInfos())
+            {
+                for (GeneralTransition transition : runData.getTransitions(precursor.getId()))
+                {
+                    String featureName = generalMolecule.getId() + precursorKey + PeakAreaRatioCalculator.getTransitionKey(transition, precursor);
+                    templates.put(transition.getId(), new ChromInfoRecord(featureName, null, isotopeLabel,
+                            transition.isPrecursorIon() ? 1 : 2, null, 0, false));
+                }
+            }
+            else
+            {
+                templates.put(precursor.getId(), new ChromInfoRecord(precursorKey, null, isotopeLabel, 0, null, 0, false));
+            }
+        }
+
+        for (int i = 0; i < areas.size(); i++)
+        {
+            ChromInfoRecord template = templates.get(areas.getId(i));
+            if (template == null)
+            {
+                continue;
+            }
+            Replicate replicate = _replicateSet.getReplicateFromSampleFileId(areas.getSampleFileId(i));
+            if (replicate == null)
+            {
+                continue;
+            }
+            if (runData.isUseTransitionChromInfos())
+            {
+                addChromInfoRecord(new ChromInfoRecord(template.getFeatureName(), replicate, template.getLabel(), template.getMsLevel(),
+                        areas.getArea(i), areas.getSampleFileId(i), areas.isTruncated(i)));
+            }
+            else
+            {
+                addChromInfoRecord(new ChromInfoRecord(template.getFeatureName(), replicate, template.getLabel(), areas.getMsLevel(i),
+                        areas.getArea(i), areas.getSampleFileId(i)));
+            }
+        }
+    }
+
     public GeneralMolecule getGeneralMolecule()
     {
         return _generalMolecule;
@@ -252,6 +313,10 @@ public void addFeatureData(Replicate replicate, ReplicateData replicateData, Int
 
     public Collection<GeneralMoleculeChromInfo> getGeneralMoleculeChromInfos()
     {
+        if (_generalMoleculeChromInfos != null)
+        {
+            return _generalMoleculeChromInfos;
+        }
         return new TableSelector(TargetedMSManager.getTableInfoGeneralMoleculeChromInfo(),
                 new SimpleFilter(FieldKey.fromParts("GeneralMoleculeId"), _generalMolecule.getId()), null)
                 .getCollection(GeneralMoleculeChromInfo.class);
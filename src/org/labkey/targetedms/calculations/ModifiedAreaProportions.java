@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2022 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.calculations;
+
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.data.RuntimeSQLException;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SqlSelector;
+import org.labkey.targetedms.TargetedMSManager;
+import org.labkey.targetedms.TargetedMSRun;
+import org.labkey.targetedms.parser.GeneralMolecule;
+import org.labkey.targetedms.parser.Molecule;
+import org.labkey.targetedms.parser.Peptide;
+import org.labkey.targetedms.parser.PrecursorChromInfo;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Calculates PrecursorChromInfo.PrecursorModifiedAreaProportion and GeneralMoleculeChromInfo.ModifiedAreaProportion,
+ * the share of a precursor's or molecule's area among all of the modified forms of the same peptide or molecule (the
+ * same "grouping") in the same protein and sample file.
+ *
+ * The precursor chrom infos are added as they're imported, or loaded for an existing run with {@link #load}, and their
+ * areas are summed in memory. {@link #save} then writes the proportions with a batched UPDATE for each table.
+ */
+public class ModifiedAreaProportions
+{
+    private static final int UPDATE_BATCH_SIZE = 1000;
+
+    // One entry per precursor chrom info
+    private int _size;
+    private long[] _precursorChromInfoIds = new long[1024];
+    private long[] _generalMoleculeChromInfoIds = new long[1024];
+    private double[] _totalAreas = new double[1024];
+    private boolean[] _hasTotalAreas = new boolean[1024];
+    /** Index into the area sums, or -1 if the molecule has no grouping */
+    private int[] _sumIndexes = new int[1024];
+
+    // Summed area for each grouping, peptide group and sample file
+    private final Map<AreaKey, Integer> _sumIndexByKey = new HashMap<>();
+    private double[] _areaSums = new double[1024];
+    private boolean[] _hasAreaSums = new boolean[1024];
+
+    /** Adds a precursor chrom info that has been inserted, and so has its Id */
+    public void add(GeneralMolecule generalMolecule, PrecursorChromInfo precursorChromInfo)
+    {
+        add(getGrouping(generalMolecule), generalMolecule.getPeptideGroupId(), precursorChromInfo.getSampleFileId(),
+                precursorChromInfo.getId(), precursorChromInfo.getGeneralMoleculeChromInfoId(), precursorChromInfo.getTotalArea());
+    }
+
+    private void add(@Nullable String grouping, long peptideGroupId, long sampleFileId, long precursorChromInfoId,
+                     long generalMoleculeChromInfoId, @Nullable Double totalArea)
+    {
+        int sumIndex = -1;
+        if (grouping != null)
+        {
+            sumIndex = _sumIndexByKey.computeIfAbsent(new AreaKey(grouping, peptideGroupId, sampleFileId), key -> _sumIndexByKey.size());
+            if (sumIndex == _areaSums.length)
+            {
+                _areaSums = Arrays.copyOf(_areaSums, sumIndex * 2);
+                _hasAreaSums = Arrays.copyOf(_hasAreaSums, sumIndex * 2);
+            }
+            if (totalArea != null)
+            {
+                _areaSums[sumIndex] += totalArea;
+                _hasAreaSums[sumIndex] = true;
+            }
+        }
+
+        if (_size == _precursorChromInfoIds.length)
+        {
+            int capacity = _size * 2;
+            _precursorChromInfoIds = Arrays.copyOf(_precursorChromInfoIds, capacity);
+            _generalMoleculeChromInfoIds = Arrays.copyOf(_generalMoleculeChromInfoIds, capacity);
+            _totalAreas = Arrays.copyOf(_totalAreas, capacity);
+            _hasTotalAreas = Arrays.copyOf(_hasTotalAreas, capacity);
+            _sumIndexes = Arrays.copyOf(_sumIndexes, capacity);
+        }
+        _precursorChromInfoIds[_size] = precursorChromInfoId;
+        _generalMoleculeChromInfoIds[_size] = generalMoleculeChromInfoId;
+        _totalAreas[_size] = totalArea == null ? 0 : totalArea;
+        _hasTotalAreas[_size] = totalArea != null;
+        _sumIndexes[_size] = sumIndex;
+        _size++;
+    }
+
+    /** The peptide sequence or molecule name that the modified forms have in common, unless the molecule is in an attribute group */
+    @Nullable
+    public static String getGrouping(GeneralMolecule generalMolecule)
+    {
+        if (generalMolecule.getAttributeGroupId() != null)
+        {
+            return generalMolecule.getAttributeGroupId();
+        }
+        if (generalMolecule instanceof Peptide)
+        {
+            return ((Peptide) generalMolecule).getSequence();
+        }
+        if (generalMolecule instanceof Molecule)
+        {
+            Molecule molecule = (Molecule) generalMolecule;
+            return molecule.getCustomIonName() != null ? molecule.getCustomIonName() : molecule.getIonFormula();
+        }
+        return null;
+    }
+
+    /** Loads the precursor chrom infos of a run that has already been imported, to recalculate its proportions */
+    public static ModifiedAreaProportions load(TargetedMSRun run)
+    {
+        ModifiedAreaProportions result = new ModifiedAreaProportions();
+        SQLFragment sql = new SQLFragment("SELECT COALESCE(gm.AttributeGroupId, p.Sequence, m.CustomIonName, m.IonFormula) AS Grouping, ");
+        sql.append("gm.PeptideGroupId, pci.SampleFileId, pci.Id, pci.GeneralMoleculeChromInfoId, pci.TotalArea FROM ");
+        sql.append(TargetedMSManager.getTableInfoPrecursorChromInfo(), "pci");
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoGeneralPrecursor(), "gp").append(" ON gp.Id = pci.PrecursorId");
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoGeneralMolecule(), "gm").append(" ON gp.GeneralMoleculeId = gm.Id");
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoPeptideGroup(), "pg").append(" ON gm.PeptideGroupId = pg.Id");
+        sql.append(" LEFT OUTER JOIN ").append(TargetedMSManager.getTableInfoMolecule(), "m").append(" ON gm.Id = m.Id");
+        sql.append(" LEFT OUTER JOIN ").append(TargetedMSManager.getTableInfoPeptide(), "p").append(" ON gm.Id = p.Id");
+        sql.append(" WHERE pg.RunId = ?").add(run.getId());
+
+        new SqlSelector(TargetedMSManager.getSchema(), sql).forEach(rs -> {
+            double totalArea = rs.getDouble(6);
+            result.add(rs.getString(1), rs.getLong(2), rs.getLong(3), rs.getLong(4), rs.getLong(5), rs.wasNull() ? null : totalArea);
+        });
+        return result;
+    }
+
+    public int size()
+    {
+        return _size;
+    }
+
+    /**
+     * Writes the proportions to the database.
+     * @param clearNulls whether to also write the proportions that are null. This isn't needed right after import,
+     *                   when the columns haven't been set yet, but is when recalculating them.
+     */
+    public void save(@Nullable Logger log, boolean clearNulls)
+    {
+        // A molecule chrom info's proportion is the sum of its precursors' areas over the sum for its grouping. All of
+        // its precursor chrom infos are for the same molecule and sample file, so they share one area sum.
+        Map<Long, MoleculeArea> moleculeAreas = new HashMap<>();
+        for (int i = 0; i < _size; i++)
+        {
+            MoleculeArea moleculeArea = moleculeAreas.computeIfAbsent(_generalMoleculeChromInfoIds[i], id -> new MoleculeArea());
+            moleculeArea._sumIndex = _sumIndexes[i];
+            if (_hasTotalAreas[i])
+            {
+                moleculeArea._area += _totalAreas[i];
+                moleculeArea._hasArea = true;
+            }
+        }
+
+        DbScope scope = TargetedMSManager.getSchema().getScope();
+        try (DbScope.Transaction transaction = scope.ensureTransaction())
+        {
+            Connection connection = scope.getConnection();
+
+            if (log != null)
+            {
+                log.info("Setting PrecursorModifiedAreaProportion values on precursorchrominfo");
+            }
+            int updated = 0;
+            try (PreparedStatement stmt = connection.prepareStatement("UPDATE " + TargetedMSManager.getTableInfoPrecursorChromInfo() +
+                    " SET PrecursorModifiedAreaProportion = ? WHERE Id = ?"))
+            {
+                int batchCount = 0;
+                for (int i = 0; i < _size; i++)
+                {
+                    Double proportion = getProportion(_hasTotalAreas[i], _totalAreas[i], _sumIndexes[i]);
+                    if (proportion != null || clearNulls)
+                    {
+                        setProportion(stmt, proportion, _precursorChromInfoIds[i]);
+                        batchCount = addBatch(stmt, batchCount);
+                        updated++;
+                    }
+                }
+                executeBatch(stmt, batchCount);
+            }
+
+            if (log != null)
+            {
+                log.info("Updated " + updated + " precursorchrominfo rows. Setting ModifiedAreaProportion values on generalmoleculechrominfo");
+            }
+            try (PreparedStatement stmt = connection.prepareStatement("UPDATE " + TargetedMSManager.getTableInfoGeneralMoleculeChromInfo() +
+                    " SET ModifiedAreaProportion = ? WHERE Id = ?"))
+            {
+                int batchCount = 0;
+                for (Map.Entry<Long, MoleculeArea> entry : moleculeAreas.entrySet())
+                {
+                    MoleculeArea moleculeArea = entry.getValue();
+                    Double proportion = getProportion(moleculeArea._hasArea, moleculeArea._area, moleculeArea._sumIndex);
+                    if (proportion != null || clearNulls)
+                    {
+                        setProportion(stmt, proportion, entry.getKey());
+                        batchCount = addBatch(stmt, batchCount);
+                    }
+                }
+                executeBatch(stmt, batchCount);
+            }
+            transaction.commit();
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeSQLException(e);
+        }
+    }
+
+    /** @return the area over the sum for the grouping, or null if either is missing or the sum is zero */
+    @Nullable
+    private Double getProportion(boolean hasArea, double area, int sumIndex)
+    {
+        if (!hasArea || sumIndex < 0 || !_hasAreaSums[sumIndex] || _areaSums[sumIndex] == 0)
+        {
+            return null;
+        }
+        return area / _areaSums[sumIndex];
+    }
+
+    private static void setProportion(PreparedStatement stmt, @Nullable Double proportion, long id) throws SQLException
+    {
+        if (proportion == null)
+        {
+            stmt.setNull(1, Types.DOUBLE);
+        }
+        else
+        {
+            stmt.setDouble(1, proportion);
+        }
+        stmt.setLong(2, id);
+    }
+
+    private static int addBatch(PreparedStatement stmt, int batchCount) throws SQLException
+    {
+        stmt.addBatch();
+        if (++batchCount == UPDATE_BATCH_SIZE)
+        {
+            stmt.executeBatch();
+            return 0;
+        }
+        return batchCount;
+    }
+
+    private static void executeBatch(PreparedStatement stmt, int batchCount) throws SQLException
+    {
+        if (batchCount > 0)
+        {
+            stmt.executeBatch();
+        }
+    }
+
+    private static class MoleculeArea
+    {
+        private double _area;
+        private boolean _hasArea;
+        private int _sumIndex;
+    }
+
+    private static class AreaKey
+    {
+        private final String _grouping;
+        private final long _peptideGroupId;
+        private final long _sampleFileId;
+
+        private AreaKey(@NotNull String grouping, long peptideGroupId, long sampleFileId)
+        {
+            _grouping = grouping;
+            _peptideGroupId = peptideGroupId;
+            _sampleFileId = sampleFileId;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            AreaKey that = (AreaKey) o;
+            return _peptideGroupId == that._peptideGroupId && _sampleFileId == that._sampleFileId && _grouping.equals(that._grouping);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(_grouping, _peptideGroupId, _sampleFileId);
+        }
+    }
+}
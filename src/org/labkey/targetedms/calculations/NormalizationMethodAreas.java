@@ -69,6 +69,31 @@ public double getNormalizationFactor(long sampleFileId)
         };
     }
 
+    /**
+     * Calculates the factors for all of the sample files up front. Unlike getNormalizationFactors(), the result
+     * doesn't load or recalculate anything when it's used, so it can be shared by several threads.
+     */
+    public NormalizationFactors getPrecomputedNormalizationFactors(NormalizationMethod normalizationMethod, Collection<Long> sampleFileIds)
+    {
+        Map<Long, Double> factors = new HashMap<>();
+        NormalizationFactors normalizationFactors = getNormalizationFactors(normalizationMethod);
+        for (Long sampleFileId : sampleFileIds)
+        {
+            factors.put(sampleFileId, normalizationFactors.getNormalizationFactor(sampleFileId));
+        }
+        return sampleFileId -> {
+            Double factor = factors.get(sampleFileId);
+            if (factor != null)
+            {
+                return factor;
+            }
+            synchronized (NormalizationMethodAreas.this)
+            {
+                return normalizationFactors.getNormalizationFactor(sampleFileId);
+            }
+        };
+    }
+
     public boolean hasNormalizationFactors(NormalizationMethod normalizationMethod)
     {
         return NormalizationMethod.GLOBAL_STANDARDS.equals(normalizationMethod)
@@ -66,6 +66,11 @@ public Collection<Replicate> listReplicates()
         return _replicates.values();
     }
 
+    public Set<Long> listSampleFileIds()
+    {
+        return Collections.unmodifiableSet(_fileIdToReplicateId.keySet());
+    }
+
     @Nullable
     public Replicate getReplicateFromSampleFileId(long sampleFileId)
     {
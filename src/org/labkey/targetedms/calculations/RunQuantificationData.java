@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2022 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.calculations;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SimpleFilter;
+import org.labkey.api.data.SqlSelector;
+import org.labkey.api.data.TableSelector;
+import org.labkey.api.query.FieldKey;
+import org.labkey.api.security.User;
+import org.labkey.targetedms.TargetedMSManager;
+import org.labkey.targetedms.TargetedMSRun;
+import org.labkey.targetedms.TargetedMSSchema;
+import org.labkey.targetedms.parser.GeneralMolecule;
+import org.labkey.targetedms.parser.GeneralMoleculeChromInfo;
+import org.labkey.targetedms.parser.GeneralPrecursor;
+import org.labkey.targetedms.parser.GeneralTransition;
+import org.labkey.targetedms.query.MoleculeManager;
+import org.labkey.targetedms.query.MoleculePrecursorManager;
+import org.labkey.targetedms.query.MoleculeTransitionManager;
+import org.labkey.targetedms.query.PeptideManager;
+import org.labkey.targetedms.query.PrecursorManager;
+import org.labkey.targetedms.query.TransitionManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything that the calibration curves for a run are calculated from, loaded with a handful of queries for the whole
+ * run instead of several queries for every molecule. The peak areas, which are by far the largest part, are streamed
+ * into primitive arrays for each molecule rather than materialized as chrom info beans.
+ *
+ * Once loaded, the data is only read, so the {@link GeneralMoleculeResultDataSet}s built from it can be used from
+ * several threads.
+ */
+public class RunQuantificationData
+{
+    private final List<GeneralMolecule> _molecules = new ArrayList<>();
+    private final Map<Long, List<GeneralPrecursor<?>>> _precursorsByMoleculeId = new HashMap<>();
+    private final Map<Long, List<GeneralTransition>> _transitionsByPrecursorId = new HashMap<>();
+    private final Map<Long, MoleculeAreas> _areasByMoleculeId = new HashMap<>();
+    private final Map<Long, List<GeneralMoleculeChromInfo>> _chromInfosByMoleculeId = new HashMap<>();
+    private final boolean _useTransitionChromInfos;
+    private long _areaCount;
+
+    private RunQuantificationData(boolean useTransitionChromInfos)
+    {
+        _useTransitionChromInfos = useTransitionChromInfos;
+    }
+
+    public static RunQuantificationData load(TargetedMSRun run, User user, Container container, ReplicateDataSet replicateDataSet)
+    {
+        long runId = run.getRunId();
+        TargetedMSSchema schema = new TargetedMSSchema(user, container);
+        RunQuantificationData data = new RunQuantificationData(replicateDataSet.getUseTransitionChromInfos());
+
+        data._molecules.addAll(MoleculeManager.getMoleculesForRun(runId));
+        data._molecules.addAll(PeptideManager.getPeptidesForRun(runId));
+
+        List<GeneralPrecursor<?>> precursors = new ArrayList<>();
+        precursors.addAll(PrecursorManager.getPrecursorsForRun(runId, schema));
+        precursors.addAll(MoleculePrecursorManager.getPrecursorsForRun(runId, schema));
+        for (GeneralPrecursor<?> precursor : precursors)
+        {
+            data._precursorsByMoleculeId.computeIfAbsent(precursor.getGeneralMoleculeId(), id -> new ArrayList<>()).add(precursor);
+        }
+
+        if (data._useTransitionChromInfos)
+        {
+            List<GeneralTransition> transitions = new ArrayList<>();
+            transitions.addAll(TransitionManager.getTransitionsForRun(runId, user, container));
+            transitions.addAll(MoleculeTransitionManager.getTransitionsForRun(runId, user, container));
+            for (GeneralTransition transition : transitions)
+            {
+                data._transitionsByPrecursorId.computeIfAbsent(transition.getGeneralPrecursorId(), id -> new ArrayList<>()).add(transition);
+            }
+            data.loadTransitionAreas(runId);
+        }
+        else
+        {
+            data.loadPrecursorAreas(runId);
+        }
+
+        SimpleFilter filter = new SimpleFilter(FieldKey.fromParts("RunId"), runId);
+        new TableSelector(TargetedMSManager.getTableInfoGeneralMoleculeChromInfo(), filter, null).forEach(GeneralMoleculeChromInfo.class,
+                chromInfo -> data._chromInfosByMoleculeId.computeIfAbsent(chromInfo.getGeneralMoleculeId(), id -> new ArrayList<>()).add(chromInfo));
+
+        return data;
+    }
+
+    private void loadTransitionAreas(long runId)
+    {
+        SQLFragment sql = new SQLFragment("SELECT gp.GeneralMoleculeId, tci.TransitionId, tci.SampleFileId, tci.Area, tci.Truncated FROM ");
+        sql.append(TargetedMSManager.getTableInfoTransitionChromInfo(), "tci");
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoGeneralTransition(), "gt").append(" ON tci.TransitionId = gt.Id");
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoGeneralPrecursor(), "gp").append(" ON gt.GeneralPrecursorId = gp.Id");
+        appendRunFilter(sql, runId);
+
+        new SqlSelector(TargetedMSManager.getSchema(), sql).forEach(rs -> {
+            double area = rs.getDouble(4);
+            boolean hasArea = !rs.wasNull();
+            getAreas(rs.getLong(1)).add(rs.getLong(2), rs.getLong(3), 0, hasArea, area, rs.getBoolean(5));
+        });
+    }
+
+    private void loadPrecursorAreas(long runId)
+    {
+        SQLFragment sql = new SQLFragment("SELECT gp.GeneralMoleculeId, pci.PrecursorId, pci.SampleFileId, pci.TotalAreaMs1, pci.TotalAreaFragment FROM ");
+        sql.append(TargetedMSManager.getTableInfoPrecursorChromInfo(), "pci");
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoGeneralPrecursor(), "gp").append(" ON pci.PrecursorId = gp.Id");
+        appendRunFilter(sql, runId);
+
+        new SqlSelector(TargetedMSManager.getSchema(), sql).forEach(rs -> {
+            MoleculeAreas areas = getAreas(rs.getLong(1));
+            long precursorId = rs.getLong(2);
+            long sampleFileId = rs.getLong(3);
+            double ms1Area = rs.getDouble(4);
+            areas.add(precursorId, sampleFileId, 1, !rs.wasNull(), ms1Area, false);
+            double fragmentArea = rs.getDouble(5);
+            areas.add(precursorId, sampleFileId, 2, !rs.wasNull(), fragmentArea, false);
+        });
+    }
+
+    private static void appendRunFilter(SQLFragment sql, long runId)
+    {
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoGeneralMolecule(), "gm").append(" ON gp.GeneralMoleculeId = gm.Id");
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoPeptideGroup(), "pg").append(" ON gm.PeptideGroupId = pg.Id");
+        sql.append(" WHERE pg.RunId = ?").add(runId);
+    }
+
+    private MoleculeAreas getAreas(long moleculeId)
+    {
+        _areaCount++;
+        return _areasByMoleculeId.computeIfAbsent(moleculeId, id -> new MoleculeAreas());
+    }
+
+    /** @return the run's small molecules and then its peptides */
+    public List<GeneralMolecule> getMolecules()
+    {
+        return Collections.unmodifiableList(_molecules);
+    }
+
+    /** @return the number of chrom info rows that the areas were loaded from */
+    public long getAreaCount()
+    {
+        return _areaCount;
+    }
+
+    public GeneralMoleculeResultDataSet getResultDataSet(ReplicateDataSet replicateDataSet, GeneralMolecule molecule)
+    {
+        return new GeneralMoleculeResultDataSet(replicateDataSet, molecule, this);
+    }
+
+    @NotNull
+    List<GeneralPrecursor<?>> getPrecursors(long moleculeId)
+    {
+        return _precursorsByMoleculeId.getOrDefault(moleculeId, Collections.emptyList());
+    }
+
+    @NotNull
+    List<GeneralTransition> getTransitions(long precursorId)
+    {
+        return _transitionsByPrecursorId.getOrDefault(precursorId, Collections.emptyList());
+    }
+
+    @Nullable
+    MoleculeAreas getAreasForMolecule(long moleculeId)
+    {
+        return _areasByMoleculeId.get(moleculeId);
+    }
+
+    @NotNull
+    List<GeneralMoleculeChromInfo> getGeneralMoleculeChromInfos(long moleculeId)
+    {
+        return _chromInfosByMoleculeId.getOrDefault(moleculeId, Collections.emptyList());
+    }
+
+    boolean isUseTransitionChromInfos()
+    {
+        return _useTransitionChromInfos;
+    }
+
+    /**
+     * The peak areas of one molecule, one entry per transition chrom info, or two (MS1 and fragment) per precursor
+     * chrom info.
+     */
+    static class MoleculeAreas
+    {
+        private int _size;
+        /** Transition or precursor IDs */
+        private long[] _ids = new long[16];
+        private long[] _sampleFileIds = new long[16];
+        /** 1 or 2 for precursor-level areas, 0 if it depends on the transition */
+        private byte[] _msLevels = new byte[16];
+        private boolean[] _hasAreas = new boolean[16];
+        private double[] _areas = new double[16];
+        private boolean[] _truncated = new boolean[16];
+
+        private void add(long id, long sampleFileId, int msLevel, boolean hasArea, double area, boolean truncated)
+        {
+            if (_size == _ids.length)
+            {
+                int capacity = _size * 2;
+                _ids = Arrays.copyOf(_ids, capacity);
+                _sampleFileIds = Arrays.copyOf(_sampleFileIds, capacity);
+                _msLevels = Arrays.copyOf(_msLevels, capacity);
+                _hasAreas = Arrays.copyOf(_hasAreas, capacity);
+                _areas = Arrays.copyOf(_areas, capacity);
+                _truncated = Arrays.copyOf(_truncated, capacity);
+            }
+            _ids[_size] = id;
+            _sampleFileIds[_size] = sampleFileId;
+            _msLevels[_size] = (byte) msLevel;
+            _hasAreas[_size] = hasArea;
+            _areas[_size] = area;
+            _truncated[_size] = truncated;
+            _size++;
+        }
+
+        int size()
+        {
+            return _size;
+        }
+
+        long getId(int index)
+        {
+            return _ids[index];
+        }
+
+        long getSampleFileId(int index)
+        {
+            return _sampleFileIds[index];
+        }
+
+        int getMsLevel(int index)
+        {
+            return _msLevels[index];
+        }
+
+        @Nullable
+        Double getArea(int index)
+        {
+            return _hasAreas[index] ? _areas[index] : null;
+        }
+
+        boolean isTruncated(int index)
+        {
+            return _truncated[index];
+        }
+    }
+}
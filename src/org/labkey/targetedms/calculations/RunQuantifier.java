@@ -14,19 +14,25 @@
  */
 package org.labkey.targetedms.calculations;
 
+import com.google.common.collect.Lists;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.SimpleFilter;
 import org.labkey.api.data.TableSelector;
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.security.User;
+import org.labkey.api.util.UnexpectedException;
 import org.labkey.api.util.Tuple3;
 import org.labkey.targetedms.SkylineDocImporter.IProgressStatus;
 import org.labkey.targetedms.TargetedMSManager;
+import org.labkey.targetedms.TargetedMSModule;
 import org.labkey.targetedms.TargetedMSRun;
 import org.labkey.targetedms.calculations.quantification.CalibrationCurve;
 import org.labkey.targetedms.calculations.quantification.CalibrationCurveDataSet;
 import org.labkey.targetedms.calculations.quantification.GroupComparisonDataSet;
+import org.labkey.targetedms.calculations.quantification.GroupComparisonEngine;
 import org.labkey.targetedms.calculations.quantification.LinearFitResult;
 import org.labkey.targetedms.calculations.quantification.NormalizationMethod;
 import org.labkey.targetedms.calculations.quantification.PValues;
@@ -44,8 +50,6 @@
 import org.labkey.targetedms.parser.QuantificationSettings;
 import org.labkey.targetedms.parser.Replicate;
 import org.labkey.targetedms.query.IsotopeLabelManager;
-import org.labkey.targetedms.query.MoleculeManager;
-import org.labkey.targetedms.query.PeptideManager;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -57,6 +61,8 @@
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 
 /**
@@ -64,6 +70,10 @@
  */
 public class RunQuantifier
 {
+    private static final Logger _log = LogManager.getLogger(RunQuantifier.class);
+    // Number of curves fit between progress updates
+    private static final int CALIBRATION_CURVE_BATCH_SIZE = 500;
+
     ReplicateDataSet _replicateDataSet;
     NormalizationMethodAreas _normalizationMethodAreas;
     TargetedMSRun _targetedMSRun;
@@ -81,13 +91,67 @@ public RunQuantifier(TargetedMSRun run, User user, Container container)
         _normalizationMethodAreas = new NormalizationMethodAreas(run, _user, _container, _replicateDataSet);
     }
 
+    /**
+     * Calculates the fold changes for all of the run's proteins or molecules. The data for the whole run is loaded up
+     * front, and all of the comparisons are handed to a {@link GroupComparisonEngine}, which solves the ones that share
+     * a design matrix together, on a pool of threads.
+     */
     public List<FoldChange> calculateFoldChanges(GroupComparisonSettings groupComparisonSettings)
     {
-        List<FoldChange> foldChanges = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        RunQuantificationData runData = RunQuantificationData.load(_targetedMSRun, _user, _container, _replicateDataSet);
+        Map<Long, List<GeneralMolecule>> moleculesByGroupId = runData.getMolecules().stream()
+                .collect(Collectors.groupingBy(GeneralMolecule::getPeptideGroupId));
+
+        GroupComparisonEngine engine = new GroupComparisonEngine();
+        List<FoldChange> pendingFoldChanges = new ArrayList<>();
         for (PeptideGroup peptideGroup : listPeptideGroups())
         {
-            foldChanges.addAll(calculateFoldChanges(groupComparisonSettings, peptideGroup));
+            addFoldChanges(groupComparisonSettings, peptideGroup, moleculesByGroupId.getOrDefault(peptideGroup.getId(), Collections.emptyList()),
+                    runData, engine, pendingFoldChanges);
+        }
+
+        List<LinearFitResult> results;
+        int threads = getQuantificationThreads();
+        ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        try
+        {
+            results = engine.calculate(pool);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw UnexpectedException.wrap(e);
+        }
+        catch (ExecutionException e)
+        {
+            throw UnexpectedException.wrap(e.getCause());
         }
+        finally
+        {
+            if (pool != null)
+            {
+                pool.shutdown();
+            }
+        }
+
+        List<FoldChange> foldChanges = new ArrayList<>();
+        for (int i = 0; i < pendingFoldChanges.size(); i++)
+        {
+            LinearFitResult linearFitResult = results.get(i);
+            if (linearFitResult == null)
+            {
+                continue;
+            }
+            FoldChange foldChange = pendingFoldChanges.get(i);
+            foldChange.setLog2FoldChange(linearFitResult.getEstimatedValue());
+            foldChange.setStandardError(linearFitResult.getStandardError());
+            foldChange.setDegreesOfFreedom(linearFitResult.getDegreesOfFreedom());
+            // P-values get adjusted below
+            foldChange.setAdjustedPValue(linearFitResult.getPValue());
+            foldChanges.add(foldChange);
+        }
+
         double[] rawPValues = foldChanges.stream().mapToDouble(FoldChange::getAdjustedPValue).toArray();
         double[] adjustedPValues = PValues.adjustPValues(rawPValues);
         for (int i = 0; i < foldChanges.size(); i++)
@@ -97,9 +161,15 @@ public List<FoldChange> calculateFoldChanges(GroupComparisonSettings groupCompar
             foldChange.setGroupComparisonSettingsId(groupComparisonSettings.getId());
             foldChange.setRunId(_targetedMSRun.getRunId());
         }
+        _log.info(String.format("Calculated %d fold changes from %d comparisons for group comparison %s in %d ms on %d thread(s)",
+                foldChanges.size(), engine.size(), groupComparisonSettings.getName(), System.currentTimeMillis() - start, Math.max(1, threads)));
         return foldChanges;
     }
 
+    /**
+     * Fits the calibration curves for all of the run's molecules. The data for the whole run is loaded up front, and
+     * the curves, which are independent of each other, are fit on a pool of threads.
+     */
     public List<CalibrationCurveEntity> calculateCalibrationCurves(QuantificationSettings quantificationSettings, List<GeneralMoleculeChromInfo> modifiedChromInfos,
                                                                    IProgressStatus progressStatus)
     {
@@ -109,41 +179,134 @@ public List<CalibrationCurveEntity> calculateCalibrationCurves(QuantificationSet
             return Collections.emptyList();
         }
 
+        long start = System.currentTimeMillis();
+        progressStatus.setStatus("Loading peak areas for calibration curves");
+        RunQuantificationData runData = RunQuantificationData.load(_targetedMSRun, _user, _container, _replicateDataSet);
+        List<GeneralMolecule> generalMolecules = runData.getMolecules();
+        _log.info(String.format("Loaded %d peak areas for %d molecules in %d ms", runData.getAreaCount(), generalMolecules.size(), System.currentTimeMillis() - start));
+
+        List<CalibrationCurveTask> tasks = new ArrayList<>();
+        Map<NormalizationMethod, NormalizationMethodAreas.NormalizationFactors> normalizationFactors = new HashMap<>();
+        for (GeneralMolecule molecule : generalMolecules)
+        {
+            NormalizationMethod normalizationMethod
+                    = getNormalizationMethod(molecule, quantificationSettings.getNormalizationMethod());
+            PeptideSettings.IsotopeLabel labelToQuantify
+                    = getLabelToQuantify(normalizationMethod);
+            if (labelToQuantify == null)
+            {
+                return Collections.emptyList();
+            }
+            NormalizationMethod curveNormalizationMethod = getCalibrationNormalizationMethod(quantificationSettings, molecule);
+            // Calculate the factors here, on this thread, since NormalizationMethodAreas loads and caches its data lazily
+            NormalizationMethodAreas.NormalizationFactors factors = normalizationFactors.computeIfAbsent(curveNormalizationMethod,
+                    method -> _normalizationMethodAreas.getPrecomputedNormalizationFactors(method, _replicateDataSet.listSampleFileIds()));
+            tasks.add(new CalibrationCurveTask(molecule, labelToQuantify, factors));
+        }
+
+        long fitStart = System.currentTimeMillis();
         List<CalibrationCurveEntity> calibrationCurves = new ArrayList<>();
-        Collection<PeptideGroup> peptideGroups = listPeptideGroups();
-        int done = 0;
-        for (PeptideGroup peptideGroup : peptideGroups)
-        {
-            progressStatus.setStatus(String.format("Calculating calibration curve for %s, %d of %d",(peptideGroup.getLabel() == null ? "peptide group" : peptideGroup.getLabel().trim()),
-                    ++done,
-                    peptideGroups.size()));
-
-            List<GeneralMolecule> generalMolecules = new ArrayList<>();
-            generalMolecules.addAll(MoleculeManager.getMoleculesForGroup(peptideGroup.getId()));
-            generalMolecules.addAll(PeptideManager.getPeptidesForGroup(peptideGroup.getId()));
-            for (GeneralMolecule molecule : generalMolecules)
+        int threads = getQuantificationThreads();
+        ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        try
+        {
+            int done = 0;
+            for (List<CalibrationCurveTask> batch : Lists.partition(tasks, CALIBRATION_CURVE_BATCH_SIZE))
             {
-                NormalizationMethod normalizationMethod
-                        = getNormalizationMethod(molecule, quantificationSettings.getNormalizationMethod());
-                PeptideSettings.IsotopeLabel labelToQuantify
-                        = getLabelToQuantify(normalizationMethod);
-                if (labelToQuantify == null)
+                List<CalibrationCurveTask> results;
+                if (pool != null)
                 {
-                    return Collections.emptyList();
+                    results = pool.submit(() -> batch.parallelStream()
+                            .map(task -> task.fit(this, quantificationSettings, runData))
+                            .collect(Collectors.toList())).get();
                 }
-
-                CalibrationCurveEntity calibrationCurve = calculateCalibrationCurveEntity(
-                        quantificationSettings, labelToQuantify, molecule, modifiedChromInfos);
-                if (calibrationCurve != null)
+                else
                 {
-                    calibrationCurves.add(calibrationCurve);
+                    results = batch.stream().map(task -> task.fit(this, quantificationSettings, runData)).collect(Collectors.toList());
                 }
+                for (CalibrationCurveTask result : results)
+                {
+                    if (result._entity != null)
+                    {
+                        calibrationCurves.add(result._entity);
+                    }
+                    if (modifiedChromInfos != null)
+                    {
+                        modifiedChromInfos.addAll(result._modifiedChromInfos);
+                    }
+                }
+                done += batch.size();
+                progressStatus.setStatus(String.format("Calculated calibration curves for %d of %d molecules", done, tasks.size()));
+                progressStatus.updateProgress(done, tasks.size());
             }
-            progressStatus.updateProgress(done, peptideGroups.size());
         }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw UnexpectedException.wrap(e);
+        }
+        catch (ExecutionException e)
+        {
+            throw UnexpectedException.wrap(e.getCause());
+        }
+        finally
+        {
+            if (pool != null)
+            {
+                pool.shutdown();
+            }
+        }
+
+        long fitMillis = Math.max(1, System.currentTimeMillis() - fitStart);
+        _log.info(String.format("Calculated %d calibration curves in %d ms on %d thread(s), %.1f curves/sec",
+                tasks.size(), fitMillis, Math.max(1, threads), tasks.size() * 1000.0 / fitMillis));
         return calibrationCurves;
     }
 
+    private int getQuantificationThreads()
+    {
+        try
+        {
+            return Integer.parseInt(TargetedMSModule.QUANTIFICATION_THREADS_PROPERTY.getEffectiveValue(_container));
+        }
+        catch (NumberFormatException e)
+        {
+            _log.warn("Unable to parse QUANTIFICATION_THREADS_PROPERTY value: " + TargetedMSModule.QUANTIFICATION_THREADS_PROPERTY.getEffectiveValue(_container) + ", defaulting to " + TargetedMSModule.DEFAULT_QUANTIFICATION_THREADS);
+            return TargetedMSModule.DEFAULT_QUANTIFICATION_THREADS;
+        }
+    }
+
+    /** The calibration curve for one molecule, and its results once it has been fit */
+    private static class CalibrationCurveTask
+    {
+        private final GeneralMolecule _molecule;
+        private final PeptideSettings.IsotopeLabel _labelToQuantify;
+        private final NormalizationMethodAreas.NormalizationFactors _normalizationFactors;
+        private CalibrationCurveEntity _entity;
+        private final List<GeneralMoleculeChromInfo> _modifiedChromInfos = new ArrayList<>();
+
+        private CalibrationCurveTask(GeneralMolecule molecule, PeptideSettings.IsotopeLabel labelToQuantify, NormalizationMethodAreas.NormalizationFactors normalizationFactors)
+        {
+            _molecule = molecule;
+            _labelToQuantify = labelToQuantify;
+            _normalizationFactors = normalizationFactors;
+        }
+
+        private CalibrationCurveTask fit(RunQuantifier quantifier, QuantificationSettings quantificationSettings, RunQuantificationData runData)
+        {
+            GeneralMoleculeResultDataSet resultDataSet = runData.getResultDataSet(quantifier._replicateDataSet, _molecule);
+            CalibrationCurve calibrationCurve = quantifier.calculateCalibrationCurve(quantificationSettings, _labelToQuantify, resultDataSet,
+                    _normalizationFactors, _modifiedChromInfos);
+            _entity = quantifier.toCalibrationCurveEntity(calibrationCurve);
+            if (_entity != null)
+            {
+                _entity.setGeneralMoleculeId(_molecule.getId());
+                _entity.setQuantificationSettingsId(quantificationSettings.getId());
+            }
+            return this;
+        }
+    }
+
     public CalibrationCurve calculateCalibrationCurve(QuantificationSettings quantificationSettings, GeneralMolecule generalMolecule, List<GeneralMoleculeChromInfo> modifiedChromInfos)
     {
         PeptideSettings.IsotopeLabel labelToQuantify
@@ -166,6 +329,14 @@ public CalibrationCurveEntity calculateCalibrationCurveEntity(QuantificationSett
     }
 
     public CalibrationCurve calculateCalibrationCurve(QuantificationSettings quantificationSettings, PeptideSettings.IsotopeLabel isotopeLabel, GeneralMolecule generalMolecule, List<GeneralMoleculeChromInfo> modifiedChromInfos)
+    {
+        NormalizationMethod normalizationMethod = getCalibrationNormalizationMethod(quantificationSettings, generalMolecule);
+        return calculateCalibrationCurve(quantificationSettings, isotopeLabel,
+                new GeneralMoleculeResultDataSet(_user, _container, _replicateDataSet, generalMolecule),
+                _normalizationMethodAreas.getNormalizationFactors(normalizationMethod), modifiedChromInfos);
+    }
+
+    private NormalizationMethod getCalibrationNormalizationMethod(QuantificationSettings quantificationSettings, GeneralMolecule generalMolecule)
     {
         NormalizationMethod normalizationMethod;
         if (null != generalMolecule.getNormalizationMethod())
@@ -180,14 +351,22 @@ public CalibrationCurve calculateCalibrationCurve(QuantificationSettings quantif
         {
             normalizationMethod = NormalizationMethod.NONE;
         }
+        return normalizationMethod;
+    }
+
+    private CalibrationCurve calculateCalibrationCurve(QuantificationSettings quantificationSettings, PeptideSettings.IsotopeLabel isotopeLabel,
+                                                       GeneralMoleculeResultDataSet generalMoleculeResultDataSet,
+                                                       NormalizationMethodAreas.NormalizationFactors normalizationFactors,
+                                                       List<GeneralMoleculeChromInfo> modifiedChromInfos)
+    {
+        GeneralMolecule generalMolecule = generalMoleculeResultDataSet.getGeneralMolecule();
+        NormalizationMethod normalizationMethod = getCalibrationNormalizationMethod(quantificationSettings, generalMolecule);
 
         CalibrationCurveDataSet calibrationCurveDataSet = new CalibrationCurveDataSet();
         calibrationCurveDataSet.setNormalizationMethod(normalizationMethod);
         calibrationCurveDataSet.setRegressionFit(RegressionFit.parse(quantificationSettings.getRegressionFit()));
         calibrationCurveDataSet.setRegressionWeighting(
                 RegressionWeighting.parse(quantificationSettings.getRegressionWeighting()));
-        GeneralMoleculeResultDataSet generalMoleculeResultDataSet
-                = new GeneralMoleculeResultDataSet(_user, _container, _replicateDataSet, generalMolecule);
         Collection<GeneralMoleculeChromInfo> moleculeChromInfos
                 = generalMoleculeResultDataSet.getGeneralMoleculeChromInfos();
         Set<Long> excludedReplicateIds = getExcludedReplicateIds(moleculeChromInfos);
@@ -205,7 +384,7 @@ public CalibrationCurve calculateCalibrationCurve(QuantificationSettings quantif
                     excludedReplicateIds.contains(replicate.getId()));
             calibrationCurveReplicates.put(replicate.getId(), replicateData);
             generalMoleculeResultDataSet.addFeatureData(replicate, replicateData, quantificationSettings.getMsLevel(),
-                    _normalizationMethodAreas.getNormalizationFactors(normalizationMethod), normalizationMethod.isAllowTruncatedTransitions());
+                    normalizationFactors, normalizationMethod.isAllowTruncatedTransitions());
         }
 
         CalibrationCurve calibrationCurve
@@ -271,24 +450,28 @@ public CalibrationCurveEntity toCalibrationCurveEntity(CalibrationCurve calibrat
         return calibrationCurveRow;
     }
 
-    private List<FoldChange> calculateFoldChanges(GroupComparisonSettings settings, PeptideGroup peptideGroup)
+    /**
+     * Adds the comparisons for one protein, or for each of its molecules, to the engine, along with the fold changes
+     * that their results go into, in the same order.
+     */
+    private void addFoldChanges(GroupComparisonSettings settings, PeptideGroup peptideGroup, List<GeneralMolecule> generalMolecules,
+                                RunQuantificationData runData, GroupComparisonEngine engine, List<FoldChange> pendingFoldChanges)
     {
         List<FoldChange> foldChanges = new ArrayList<>();
-        Collection<GeneralMolecule> generalMolecules = getGeneralMoleculesForGroup(peptideGroup);
         if (settings.isPerProtein())
         {
             Collection<GeneralMoleculeResultDataSet> resultDataSets = generalMolecules.stream()
                     .filter(peptide-> null == peptide.getStandardType())
                     .filter(peptide-> !(peptide instanceof Peptide && Boolean.TRUE.equals(((Peptide) peptide).getDecoy())))
-                    .map(peptide -> new GeneralMoleculeResultDataSet(_user, _container, _replicateDataSet, peptide))
+                    .map(peptide -> runData.getResultDataSet(_replicateDataSet, peptide))
                     .collect(Collectors.toList());
-            foldChanges.addAll(calculateFoldChanges(settings, resultDataSets));
+            foldChanges.addAll(addFoldChanges(settings, resultDataSets, engine));
         }
         else
         {
             for (GeneralMolecule generalMolecule : generalMolecules)
             {
-                for (FoldChange foldChange : calculateFoldChanges(settings, Collections.singleton(new GeneralMoleculeResultDataSet(_user, _container, _replicateDataSet, generalMolecule))))
+                for (FoldChange foldChange : addFoldChanges(settings, Collections.singleton(runData.getResultDataSet(_replicateDataSet, generalMolecule)), engine))
                 {
                     foldChange.setGeneralMoleculeId(generalMolecule.getId());
                     foldChanges.add(foldChange);
@@ -299,18 +482,11 @@ private List<FoldChange> calculateFoldChanges(GroupComparisonSettings settings,
         {
             foldChange.setPeptideGroupId(peptideGroup.getId());
         }
-        return foldChanges;
+        pendingFoldChanges.addAll(foldChanges);
     }
 
-    private List<GeneralMolecule> getGeneralMoleculesForGroup(PeptideGroup peptideGroup)
-    {
-        List<GeneralMolecule> list = new ArrayList<>();
-        list.addAll(PeptideManager.getPeptidesForGroup(peptideGroup.getId()));
-        list.addAll(MoleculeManager.getMoleculesForGroup(peptideGroup.getId()));
-        return list;
-    }
-
-    private List<FoldChange> calculateFoldChanges(GroupComparisonSettings settings, Collection<GeneralMoleculeResultDataSet> peptideResults)
+    private List<FoldChange> addFoldChanges(GroupComparisonSettings settings, Collection<GeneralMoleculeResultDataSet> peptideResults,
+                                            GroupComparisonEngine engine)
     {
         Set<String> caseValues;
         if (null == settings.getCaseValue())
@@ -347,7 +523,7 @@ else if (Objects.equals(controlValue, caseValue))
             {
                 for (PeptideSettings.IsotopeLabel isotopeLabel : _labels)
                 {
-                    FoldChange foldChange = calculateFoldChange(settings, peptideResults, replicateTuples, isotopeLabel, msLevel);
+                    FoldChange foldChange = addFoldChange(settings, peptideResults, replicateTuples, isotopeLabel, msLevel, engine);
                     if (foldChange == null)
                     {
                         continue;
@@ -359,9 +535,14 @@ else if (Objects.equals(controlValue, caseValue))
         return foldChanges;
     }
 
+    /**
+     * Adds the comparison to the engine
+     * @return the fold change, without its results, or null if the label can't be compared
+     */
     @Nullable
-    private FoldChange calculateFoldChange(GroupComparisonSettings settings, Collection<GeneralMoleculeResultDataSet> peptideResults,
-                                           List<Tuple3<Boolean, String, Replicate>> replicates, PeptideSettings.IsotopeLabel isotopeLabel, Integer msLevel)
+    private FoldChange addFoldChange(GroupComparisonSettings settings, Collection<GeneralMoleculeResultDataSet> peptideResults,
+                                     List<Tuple3<Boolean, String, Replicate>> replicates, PeptideSettings.IsotopeLabel isotopeLabel, Integer msLevel,
+                                     GroupComparisonEngine engine)
     {
         GroupComparisonDataSet foldChangeCalculator = new GroupComparisonDataSet();
         foldChangeCalculator.setNormalizationMethod(NormalizationMethod.fromName(settings.getNormalizationMethod()));
@@ -383,19 +564,10 @@ private FoldChange calculateFoldChange(GroupComparisonSettings settings, Collect
                         normalizationMethod.isAllowTruncatedTransitions());
             }
         }
-        LinearFitResult linearFitResult = foldChangeCalculator.calculateFoldChange(isotopeLabel.getName());
-        if (linearFitResult == null)
-        {
-            return null;
-        }
+        engine.add(foldChangeCalculator, isotopeLabel.getName());
         FoldChange foldChange = new FoldChange();
-        foldChange.setLog2FoldChange(linearFitResult.getEstimatedValue());
-        foldChange.setStandardError(linearFitResult.getStandardError());
-        foldChange.setDegreesOfFreedom(linearFitResult.getDegreesOfFreedom());
         foldChange.setIsotopeLabelId(isotopeLabel.getId());
         foldChange.setMsLevel(msLevel);
-        // P-values get adjusted by caller
-        foldChange.setAdjustedPValue(linearFitResult.getPValue());
         return foldChange;
     }
 
@@ -110,9 +110,14 @@ private static RealMatrix matrixFromColumnVectors(double[][] columnVectors) {
         return realMatrix;
     }
 
-    public List<LinearFitResult> performLinearFit() {
-        LinearModel linearModel = new LinearModel(matrixFromColumnVectors(this.matrixColumns),
+    /** Factorizes the design matrix, so that the model can be fit to any number of sets of observations */
+    public LinearModel createLinearModel() {
+        return new LinearModel(matrixFromColumnVectors(this.matrixColumns),
                 matrixFromColumnVectors(contrastValues));
+    }
+
+    public List<LinearFitResult> performLinearFit() {
+        LinearModel linearModel = createLinearModel();
         double[] abundances = new double[dataSet.getRowCount()];
         for (int i = 0; i < abundances.length; i++) {
             abundances[i] = dataSet.getAbundance(i);
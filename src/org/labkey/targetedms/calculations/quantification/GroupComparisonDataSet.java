@@ -17,6 +17,7 @@
 import org.apache.commons.lang3.tuple.Pair;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -44,6 +45,30 @@ public void setNormalizationMethod(NormalizationMethod normalizationMethod) {
     }
 
     public LinearFitResult calculateFoldChange(String label) {
+        Observations observations = getObservations(label);
+        if (observations == null) {
+            return null;
+        }
+        try
+        {
+            return observations.getDesignMatrix().performLinearFit().get(0);
+        }
+        catch (Exception x)
+        {
+            // This usually means that the matrix could not be inverted.
+            // Skyline is always able to invert matrices because Skyline has code in the class
+            // "pwiz.Common.DataAnalysis.Matrices.QRFactorization" which is able to skip over linearly
+            // dependent columns
+            return null;
+        }
+    }
+
+    /**
+     * The log2 abundances that the fold change is fit to, after removing incomplete replicates and combining
+     * biological replicates.
+     * @return null if there are no replicates to compare
+     */
+    Observations getObservations(String label) {
         List<Replicate> replicates = removeIncompleteReplicates(label, this.replicates);
         if (replicates.size() == 0) {
             return null;
@@ -75,28 +100,17 @@ public LinearFitResult calculateFoldChange(String label) {
             summarizedRows = replicates;
         }
 
-        List<Double> abundances = summarizedRows.stream()
-                .map(replicateData->replicateData.getLog2Abundance(label))
-                .collect(Collectors.toList());
-        List<Integer> features = Collections.nCopies(summarizedRows.size(), 0);
-        List<Integer> runs = IntStream.range(0, summarizedRows.size()).boxed().collect(Collectors.toList());
-        List<Integer> subjects = IntStream.range(0, summarizedRows.size()).boxed().collect(Collectors.toList());
-        List<Boolean> subjectControls = summarizedRows.stream().map(Replicate::isControl).collect(Collectors.toList());
-        FoldChangeDataSet foldChangeDataSet = new FoldChangeDataSet(abundances, features, runs, subjects, subjectControls);
-        DesignMatrix designMatrix = DesignMatrix.getDesignMatrix(foldChangeDataSet, false);
-        try
-        {
-            LinearFitResult linearFitResult = designMatrix.performLinearFit().get(0);
-            return linearFitResult;
-        }
-        catch (Exception x)
-        {
-            // This usually means that the matrix could not be inverted.
-            // Skyline is always able to invert matrices because Skyline has code in the class
-            // "pwiz.Common.DataAnalysis.Matrices.QRFactorization" which is able to skip over linearly
-            // dependent columns
-            return null;
+        double[] abundances = new double[summarizedRows.size()];
+        boolean[] controls = new boolean[summarizedRows.size()];
+        for (int i = 0; i < abundances.length; i++) {
+            Double abundance = summarizedRows.get(i).getLog2Abundance(label);
+            if (abundance == null) {
+                return null;
+            }
+            abundances[i] = abundance;
+            controls[i] = summarizedRows.get(i).isControl();
         }
+        return new Observations(abundances, controls);
     }
 
     List<Replicate> removeIncompleteReplicates(String label, List<Replicate> replicates) {
@@ -178,6 +192,65 @@ public String toString() {
         }
     }
 
+    /**
+     * One log2 abundance per (summarized) replicate, and whether that replicate is a control. Since every row has its
+     * own run and subject and there is a single feature, the design matrix only depends on which rows are controls.
+     */
+    static class Observations {
+        private final double[] abundances;
+        private final boolean[] controls;
+
+        Observations(double[] abundances, boolean[] controls) {
+            this.abundances = abundances;
+            this.controls = controls;
+        }
+
+        double[] getAbundances() {
+            return abundances;
+        }
+
+        boolean[] getControls() {
+            return controls;
+        }
+
+        /** @return the abundances of the controls, and then of the cases, each in their original order */
+        double[] getAbundancesControlsFirst() {
+            double[] result = new double[abundances.length];
+            int index = 0;
+            for (boolean control : new boolean[] {true, false}) {
+                for (int i = 0; i < abundances.length; i++) {
+                    if (controls[i] == control) {
+                        result[index++] = abundances[i];
+                    }
+                }
+            }
+            return result;
+        }
+
+        int getControlCount() {
+            int count = 0;
+            for (boolean control : controls) {
+                if (control) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        DesignMatrix getDesignMatrix() {
+            List<Double> abundanceList = Arrays.stream(abundances).boxed().collect(Collectors.toList());
+            List<Integer> features = Collections.nCopies(abundances.length, 0);
+            List<Integer> runs = IntStream.range(0, abundances.length).boxed().collect(Collectors.toList());
+            List<Integer> subjects = IntStream.range(0, abundances.length).boxed().collect(Collectors.toList());
+            List<Boolean> subjectControls = new ArrayList<>();
+            for (boolean control : controls) {
+                subjectControls.add(control);
+            }
+            FoldChangeDataSet foldChangeDataSet = new FoldChangeDataSet(abundanceList, features, runs, subjects, subjectControls);
+            return DesignMatrix.getDesignMatrix(foldChangeDataSet, false);
+        }
+    }
+
     protected double log2(double value) {
         return Math.log(value) / Math.log(2.0);
     }
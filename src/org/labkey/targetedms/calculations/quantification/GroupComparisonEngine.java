@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2022 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.calculations.quantification;
+
+import com.google.common.collect.Lists;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Calculates the fold changes for many molecules or proteins of a group comparison together. The design matrix of a
+ * comparison only depends on how many of the (summarized) replicates are controls and how many are cases, and most
+ * molecules are measured in the same replicates, so the comparisons are grouped by that layout. Each layout's design
+ * matrix is factorized once, and all of the comparisons with that layout are solved with it as one matrix.
+ *
+ * Add each comparison with {@link #add(GroupComparisonDataSet, String)}, and then call {@link #calculate(ForkJoinPool)}
+ * to get all of the results.
+ */
+public class GroupComparisonEngine {
+    // Number of comparisons solved together in one task
+    private static final int CHUNK_SIZE = 1024;
+
+    private final List<GroupComparisonDataSet.Observations> _observations = new ArrayList<>();
+
+    /**
+     * @return the index of the comparison's result in the list returned by calculate()
+     */
+    public int add(GroupComparisonDataSet dataSet, String label) {
+        _observations.add(dataSet.getObservations(label));
+        return _observations.size() - 1;
+    }
+
+    public int size() {
+        return _observations.size();
+    }
+
+    /**
+     * @param pool for solving the layouts, and chunks of large layouts, in parallel, or null to solve them on this thread
+     * @return the fold change for each comparison, or null where it couldn't be calculated, in the order they were added
+     */
+    public List<LinearFitResult> calculate(@Nullable ForkJoinPool pool) throws InterruptedException, ExecutionException {
+        // Layout -> indexes of the comparisons with that layout
+        Map<Layout, List<Integer>> indexesByLayout = new HashMap<>();
+        for (int i = 0; i < _observations.size(); i++) {
+            GroupComparisonDataSet.Observations observations = _observations.get(i);
+            if (observations != null) {
+                indexesByLayout.computeIfAbsent(new Layout(observations), layout -> new ArrayList<>()).add(i);
+            }
+        }
+
+        LinearFitResult[] results = new LinearFitResult[_observations.size()];
+        List<Future<?>> futures = new ArrayList<>();
+        for (Map.Entry<Layout, List<Integer>> entry : indexesByLayout.entrySet()) {
+            LinearModel linearModel = entry.getKey().createLinearModel();
+            if (linearModel == null) {
+                continue;
+            }
+            for (List<Integer> chunk : Lists.partition(entry.getValue(), CHUNK_SIZE)) {
+                Runnable task = () -> solve(linearModel, chunk, results);
+                if (pool != null) {
+                    futures.add(pool.submit(task));
+                } else {
+                    task.run();
+                }
+            }
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        return Arrays.asList(results);
+    }
+
+    private void solve(LinearModel linearModel, List<Integer> indexes, LinearFitResult[] results) {
+        double[][] observationSets = new double[indexes.size()][];
+        for (int i = 0; i < indexes.size(); i++) {
+            observationSets[i] = _observations.get(indexes.get(i)).getAbundancesControlsFirst();
+        }
+        List<List<LinearFitResult>> fits;
+        try {
+            fits = linearModel.fitAll(observationSets);
+        } catch (Exception x) {
+            // Same as GroupComparisonDataSet.calculateFoldChange(), treat a failed fit as no result
+            return;
+        }
+        for (int i = 0; i < indexes.size(); i++) {
+            results[indexes.get(i)] = fits.get(i).get(0);
+        }
+    }
+
+    /** The number of control and case rows. The fit doesn't depend on the order of the rows, so controls go first. */
+    private static class Layout {
+        private final int _controlCount;
+        private final int _caseCount;
+
+        private Layout(GroupComparisonDataSet.Observations observations) {
+            _controlCount = observations.getControlCount();
+            _caseCount = observations.getAbundances().length - _controlCount;
+        }
+
+        /** @return null if the design matrix can't be factorized, such as when there are no controls or no cases */
+        @Nullable
+        private LinearModel createLinearModel() {
+            double[] abundances = new double[_controlCount + _caseCount];
+            boolean[] controls = new boolean[abundances.length];
+            Arrays.fill(controls, 0, _controlCount, true);
+            try {
+                return new GroupComparisonDataSet.Observations(abundances, controls).getDesignMatrix().createLinearModel();
+            } catch (Exception x) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Layout layout = (Layout) o;
+            return _controlCount == layout._controlCount && _caseCount == layout._caseCount;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * _controlCount + _caseCount;
+        }
+    }
+}
@@ -15,7 +15,6 @@
 package org.labkey.targetedms.calculations.quantification;
 
 import org.apache.commons.math3.distribution.TDistribution;
-import org.apache.commons.math3.linear.ArrayRealVector;
 import org.apache.commons.math3.linear.LUDecomposition;
 import org.apache.commons.math3.linear.MatrixUtils;
 import org.apache.commons.math3.linear.QRDecomposition;
@@ -43,19 +42,36 @@ public LinearModel(RealMatrix designMatrix, RealMatrix contrastValues) {
     }
 
     public List<LinearFitResult> fit(double[] observations) {
-        if (observations.length != designMatrix.getRowDimension()) {
-            throw new IllegalArgumentException("Wrong number of rows");
+        return fitAll(new double[][] {observations}).get(0);
+    }
+
+    /**
+     * Fits several sets of observations against the same design matrix, reusing its factorization and solving for
+     * all of them at once.
+     * @param observationSets each with one value for each row of the design matrix
+     * @return the results for each set of observations, in the same order
+     */
+    public List<List<LinearFitResult>> fitAll(double[][] observationSets) {
+        int rowCount = designMatrix.getRowDimension();
+        RealMatrix observationMatrix = MatrixUtils.createRealMatrix(rowCount, observationSets.length);
+        for (int iSet = 0; iSet < observationSets.length; iSet++) {
+            if (observationSets[iSet].length != rowCount) {
+                throw new IllegalArgumentException("Wrong number of rows");
+            }
+            observationMatrix.setColumn(iSet, observationSets[iSet]);
         }
-        RealVector coefficients = qrDecomposition.getSolver().solve(new ArrayRealVector(observations));
-        RealVector fittedValues = new ArrayRealVector(observations.length);
-        RealVector residuals = new ArrayRealVector(observations.length);
-        for (int iRow = 0; iRow < observations.length; iRow++) {
-            RealVector designRow = designMatrix.getRowVector(iRow);
-            fittedValues.setEntry(iRow, designRow.dotProduct(coefficients));
-            residuals.setEntry(iRow, observations[iRow] - fittedValues.getEntry(iRow));
+        RealMatrix coefficientMatrix = qrDecomposition.getSolver().solve(observationMatrix);
+        RealMatrix residualMatrix = observationMatrix.subtract(designMatrix.multiply(coefficientMatrix));
+        int degreesOfFreedom = rowCount - qrDecomposition.getR().getColumnDimension();
+        List<List<LinearFitResult>> results = new ArrayList<>(observationSets.length);
+        for (int iSet = 0; iSet < observationSets.length; iSet++) {
+            RealVector residuals = residualMatrix.getColumnVector(iSet);
+            results.add(getFitResults(coefficientMatrix.getColumnVector(iSet), residuals.dotProduct(residuals), degreesOfFreedom));
         }
-        double rss = residuals.dotProduct(residuals);
-        int degreesOfFreedom = observations.length - qrDecomposition.getR().getColumnDimension();
+        return results;
+    }
+
+    private List<LinearFitResult> getFitResults(RealVector coefficients, double rss, int degreesOfFreedom) {
         double resVar = rss / degreesOfFreedom;
         double sigma = Math.sqrt(resVar);
         RealMatrix covarianceUnscaled = matrixCrossproductInverse;
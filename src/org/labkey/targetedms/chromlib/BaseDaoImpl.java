@@ -37,25 +37,26 @@
 {
     private static final Logger _log = LogManager.getLogger(BaseDaoImpl.class);
 
-    public PreparedStatement getPreparedStatement(Connection connection, String sql) throws SQLException
-    {
-        return connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
-    }
+    // Insert statement for the table, prepared once per connection and reused for every row written with it
+    private PreparedStatement _insertStmt;
+    private Connection _insertConnection;
+    // Ids are assigned here rather than read back from the database after each insert
+    private int _lastId;
 
     @Override
     public void save(T t, Connection connection) throws SQLException
     {
         if(t != null)
         {
-            String sql = getInsertSql();
+            PreparedStatement stmt = getInsertStatement(connection);
+            int id = setValuesAndId(t, stmt);
 
-            try (PreparedStatement stmt = getPreparedStatement(connection, sql))
+            int rowCount = stmt.executeUpdate();
+            if (rowCount == 0)
             {
-                setValuesInStatement(t, stmt);
-
-                int id = insertAndReturnId(stmt);
-                t.setId(id);
+                throw new SQLException("Inserting in "+getTableName()+" failed. No rows were inserted.");
             }
+            t.setId(id);
         }
     }
 
@@ -65,54 +66,71 @@ public void saveAll(Collection<T> list, Connection connection) throws SQLExcepti
         _log.debug("Batch insert of " + list.size() + " objects");
         if(list.size() > 0)
         {
-            String sql = getInsertSql();
+            PreparedStatement stmt = getInsertStatement(connection);
 
-            try (PreparedStatement stmt = getPreparedStatement(connection, sql))
+            // When the caller already holds a transaction open, as ChromatogramLibraryWriter does for the whole
+            // library, the rows become part of it. Otherwise wrap the batch in a transaction of its own.
+            boolean autoCommit = connection.getAutoCommit();
+            if(autoCommit)
             {
                 connection.setAutoCommit(false);
-                for(T t: list)
-                {
-                    setValuesInStatement(t, stmt);
-                    stmt.addBatch();
-                }
+            }
+
+            int[] ids = new int[list.size()];
+            int index = 0;
+            for(T t: list)
+            {
+                ids[index++] = setValuesAndId(t, stmt);
+                stmt.addBatch();
+            }
+            checkBatchInsert(stmt.executeBatch(), list.size());
+
+            index = 0;
+            for(T t: list)
+            {
+                t.setId(ids[index++]);
+            }
 
-                int[] ids = insertAndReturnIds(stmt, list.size());
-                int index = 0;
-                for(T t: list)
-                {
-                    t.setId(ids[index++]);
-                }
+            if(autoCommit)
+            {
                 connection.commit();
                 connection.setAutoCommit(true);
             }
         }
     }
 
-    private int insertAndReturnId(PreparedStatement statement) throws SQLException
+    private PreparedStatement getInsertStatement(Connection connection) throws SQLException
     {
-        int rowCount = statement.executeUpdate();
-
-        if (rowCount == 0)
+        if(_insertStmt == null || _insertConnection != connection)
         {
-            throw new SQLException("Inserting in "+getTableName()+" failed. No rows were inserted.");
+            closeStatements();
+            _insertStmt = connection.prepareStatement(getInsertSql());
+            _insertConnection = connection;
+            _lastId = queryMaxId(connection);
         }
+        return _insertStmt;
+    }
 
-        try (ResultSet generatedKeys = statement.getGeneratedKeys())
+    private int queryMaxId(Connection connection) throws SQLException
+    {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MAX(Id) FROM " + getTableName()))
         {
-            if (generatedKeys.next())
-            {
-                return generatedKeys.getInt(1);
-            }
-            else
-            {
-                throw new SQLException("Inserting in " + getTableName() + " failed. No keys were generated.");
-            }
+            return rs.next() ? rs.getInt(1) : 0;
         }
     }
 
-    private int[] insertAndReturnIds(PreparedStatement statement, int numInserts) throws SQLException
+    /** Binds the entity's values and the next Id to the insert statement. @return the Id */
+    private int setValuesAndId(T t, PreparedStatement stmt) throws SQLException
+    {
+        setValuesInStatement(t, stmt);
+        int id = ++_lastId;
+        stmt.setInt(getColumns().length, id);
+        return id;
+    }
+
+    private void checkBatchInsert(int[] rowCounts, int numInserts) throws SQLException
     {
-        int[] rowCounts = statement.executeBatch();
         if (rowCounts.length != numInserts)
         {
             throw new SQLException("Incorrect number of rows inserted in table "+getTableName()
@@ -127,26 +145,22 @@ private int[] insertAndReturnIds(PreparedStatement statement, int numInserts) th
                                        +". Table "+getTableName());
             }
         }
+    }
 
-        try (ResultSet generatedKeys = statement.getGeneratedKeys())
+    @Override
+    public void closeStatements() throws SQLException
+    {
+        if(_insertStmt != null)
         {
-            int lastInsertId;
-
-            if (generatedKeys.next())
-            {
-                lastInsertId = generatedKeys.getInt(1);
-            }
-            else
+            try
             {
-                throw new SQLException("Batch insertions failed for table " + getTableName() + ". Could not get last inserted ID.");
+                _insertStmt.close();
             }
-
-            int[] ids = new int[numInserts];
-            for (int i = ids.length - 1; i >= 0; i--)
+            finally
             {
-                ids[i] = lastInsertId--;
+                _insertStmt = null;
+                _insertConnection = null;
             }
-            return ids;
         }
     }
 
@@ -239,37 +253,32 @@ public Character readCharacter(ResultSet rs, String columnName) throws SQLExcept
         }
     }
 
+    /** The Id column, which comes first in the table, is bound last so that setValuesInStatement() can start at 1 */
     private String getInsertSql()
     {
         StringBuilder sql = new StringBuilder();
         sql.append("INSERT INTO ");
         sql.append(getTableName());
         sql.append(" (");
-        int startIdx = hasAutoGeneratedIdColumn() ? 1 : 0;
         ColumnDef[] colnames = getColumns();
-        for(int i = startIdx; i < colnames.length; i++)
+        for(int i = 1; i < colnames.length; i++)
         {
-            if(i > startIdx)
-                sql.append(", ");
             sql.append(colnames[i].baseColumn().name());
+            sql.append(", ");
         }
+        sql.append(colnames[0].baseColumn().name());
 
         sql.append(")");
         sql.append(" VALUES (");
-        for(int i = startIdx; i < colnames.length; i++)
+        for(int i = 0; i < colnames.length; i++)
         {
-            if(i > startIdx) sql.append(", ");
+            if(i > 0) sql.append(", ");
             sql.append("?");
         }
         sql.append(")");
         return sql.toString();
     }
 
-    protected boolean hasAutoGeneratedIdColumn()
-    {
-        return true;
-    }
-
     protected abstract List<T> parseQueryResult(ResultSet rs) throws SQLException;
 
     protected abstract void setValuesInStatement(T t, PreparedStatement stmt) throws SQLException;
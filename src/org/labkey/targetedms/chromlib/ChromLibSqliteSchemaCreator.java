@@ -32,6 +32,7 @@ public void createSchema(Connection connection) throws SQLException
     {
         try {
             createTables(connection);
+            createIndexes(connection);
         }
         finally
         {
@@ -39,7 +40,11 @@ public void createSchema(Connection connection) throws SQLException
         }
     }
 
-    private void createTables(Connection conn) throws SQLException
+    /**
+     * Creates the tables without the indexes on their foreign key columns. When a library is bulk loaded it is much
+     * cheaper to build the indexes once, with createIndexes(), after all of the rows have been inserted.
+     */
+    public void createTables(Connection conn) throws SQLException
     {
         createLibInfoTable(conn);
         createPredictorTable(conn);
@@ -171,7 +176,33 @@ private void createTable(Connection conn, Table tableName, Constants.ColumnDef[]
         {
             stmt.execute(sql.toString());
         }
+    }
+
+    /** Creates the indexes on the foreign key columns of all of the tables */
+    public void createIndexes(Connection conn) throws SQLException
+    {
+        createIndexes(conn, Table.LibInfo, Constants.LibInfoColumn.values());
+        createIndexes(conn, Table.Predictor, Constants.PredictorColumn.values());
+        createIndexes(conn, Table.SampleFile, Constants.SampleFileColumn.values());
+
+        createIndexes(conn, Table.StructuralModification, Constants.StructuralModificationColumn.values());
+        createIndexes(conn, Table.StructuralModLoss, Constants.StructuralModLossColumn.values());
+        createIndexes(conn, Table.IsotopeModification, Constants.IsotopeModificationColumn.values());
 
+        createIndexes(conn, Table.Protein, Constants.ProteinColumn.values());
+        createIndexes(conn, Table.Peptide, Constants.PeptideColumn.values());
+        createIndexes(conn, Table.PeptideStructuralModification, Constants.PeptideStructuralModificationColumn.values());
+        createIndexes(conn, Table.Precursor, Constants.PrecursorColumn.values());
+        createIndexes(conn, Table.PrecursorIsotopeModification, Constants.PrecursorIsotopeModificationColumn.values());
+        createIndexes(conn, Table.PrecursorRetentionTime, Constants.PrecursorRetentionTimeColumn.values());
+        createIndexes(conn, Table.Transition, Constants.TransitionColumn.values());
+        createIndexes(conn, Table.TransitionOptimization, Constants.TransitionOptimizationColumn.values());
+
+        createIndexes(conn, Table.IrtLibrary, Constants.IrtLibraryColumn.values());
+    }
+
+    private void createIndexes(Connection conn, Table tableName, Constants.ColumnDef[] columns) throws SQLException
+    {
         for (Constants.ColumnDef column : columns)
         {
             if (column.baseColumn().getFkColumn() != null)
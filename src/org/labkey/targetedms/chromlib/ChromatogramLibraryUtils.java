@@ -16,21 +16,30 @@
 package org.labkey.targetedms.chromlib;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.labkey.api.data.Container;
+import org.labkey.api.data.DbScope;
 import org.labkey.api.data.PropertyManager;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SqlSelector;
 import org.labkey.api.pipeline.LocalDirectory;
 import org.labkey.api.pipeline.PipeRoot;
 import org.labkey.api.pipeline.PipelineService;
+import org.labkey.api.pipeline.PipelineValidationException;
 import org.labkey.api.security.User;
 import org.labkey.api.settings.AppProps;
+import org.labkey.api.targetedms.TargetedMSService;
 import org.labkey.api.util.ConfigurationException;
 import org.labkey.api.util.FileUtil;
+import org.labkey.api.util.UnexpectedException;
 import org.labkey.api.view.NotFoundException;
+import org.labkey.api.view.ViewBackgroundInfo;
 import org.labkey.targetedms.TargetedMSController;
 import org.labkey.targetedms.TargetedMSManager;
 import org.labkey.targetedms.TargetedMSRun;
+import org.labkey.targetedms.pipeline.ChromatogramLibraryJob;
 import org.labkey.targetedms.query.ConflictResultsManager;
 import org.sqlite.SQLiteConfig;
 
@@ -43,9 +52,12 @@
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -117,8 +129,21 @@ else if (run.getCreated().after(new Date(Files.getLastModifiedTime(clibFile).toM
         return NO_LIB_REVISION;
     }
 
-    public static int incrementLibraryRevision(Container container, User user, LocalDirectory localDirectory)
+    /**
+     * Bumps the folder's library revision and, once the current transaction commits, queues a job that writes the
+     * new revision's file.
+     * @param changedPrecursorKeys keys, from {@link #getPrecursorKey}, of the precursors whose representative state
+     *                             changed. The job updates a copy of the previous revision's file for just those
+     *                             precursors when it can. Null rebuilds the whole library.
+     */
+    public static int incrementLibraryRevision(Container container, User user, @Nullable Collection<String> changedPrecursorKeys)
     {
+        PipeRoot root = PipelineService.get().getPipelineRootSetting(container);
+        if (root == null)
+        {
+            throw new ConfigurationException("Unable to resolve a pipeline root for " + container.getPath());
+        }
+
         PropertyManager.PropertyMap propMap = PropertyManager.getWritableProperties(container, "TargetedMS", true);
         String revisionVal = propMap.get(PROP_CHROM_LIB_REVISION);
         int newRevision;
@@ -134,12 +159,81 @@ public static int incrementLibraryRevision(Container container, User user, Local
         propMap.put(PROP_CHROM_LIB_REVISION, Integer.toString(newRevision));
         propMap.save();
 
-        // write the library to a file every time there is an increment
-        writeLibrary(container, user, localDirectory, newRevision);
+        // write the library to a file every time there is an increment, after the new representative state is visible
+        Set<String> keys = changedPrecursorKeys == null ? null : new HashSet<>(changedPrecursorKeys);
+        TargetedMSManager.getSchema().getScope().addCommitTask(() -> {
+            try
+            {
+                PipelineService.get().queueJob(new ChromatogramLibraryJob(new ViewBackgroundInfo(container, user, null), root, newRevision, keys));
+            }
+            catch (PipelineValidationException e)
+            {
+                throw UnexpectedException.wrap(e);
+            }
+        }, DbScope.CommitTaskOption.POSTCOMMIT);
 
         return newRevision;
     }
 
+    /**
+     * Identifies a precursor across documents using the values that are written to a library's Precursor and Peptide
+     * tables, so that rows in an earlier revision of the file can be matched to the precursors that replace them.
+     */
+    public static String getPrecursorKey(@Nullable String modifiedSequence, @Nullable String ionFormula, @Nullable String customIonName,
+                                         double mz, int charge, String isotopeLabel)
+    {
+        if (modifiedSequence != null)
+        {
+            return "P|" + modifiedSequence + "|" + charge + "|" + isotopeLabel;
+        }
+        return "M|" + StringUtils.defaultString(ionFormula) + "|" + StringUtils.defaultString(customIonName) + "|" + mz + "|" + charge + "|" + isotopeLabel;
+    }
+
+    /** @return the keys of all of the precursors in the run */
+    public static Set<String> getPrecursorKeysForRun(long runId)
+    {
+        Set<String> result = new HashSet<>();
+        forEachPrecursorKey(new SQLFragment("pg.RunId = ?", runId), (key, rs) -> result.add(key));
+        return result;
+    }
+
+    /** @return the keys of the specified precursors */
+    public static Set<String> getPrecursorKeys(Collection<Long> precursorIds)
+    {
+        Set<String> result = new HashSet<>();
+        if (!precursorIds.isEmpty())
+        {
+            SQLFragment where = new SQLFragment("gp.Id ");
+            TargetedMSManager.getSqlDialect().appendInClauseSql(where, precursorIds);
+            forEachPrecursorKey(where, (key, rs) -> result.add(key));
+        }
+        return result;
+    }
+
+    /**
+     * Passes each matching precursor's key to the consumer, along with its row, which has the precursor's Id and its
+     * PeptideGroupId and RunId.
+     */
+    static void forEachPrecursorKey(SQLFragment where, PrecursorKeyConsumer consumer)
+    {
+        SQLFragment sql = new SQLFragment("SELECT gp.Id, gm.PeptideGroupId, pg.RunId, p.ModifiedSequence, m.IonFormula, m.CustomIonName, gp.Mz, gp.Charge, il.Name FROM ");
+        sql.append(TargetedMSManager.getTableInfoGeneralPrecursor(), "gp");
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoGeneralMolecule(), "gm").append(" ON gp.GeneralMoleculeId = gm.Id");
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoPeptideGroup(), "pg").append(" ON gm.PeptideGroupId = pg.Id");
+        sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoIsotopeLabel(), "il").append(" ON gp.IsotopeLabelId = il.Id");
+        sql.append(" LEFT OUTER JOIN ").append(TargetedMSManager.getTableInfoPrecursor(), "p").append(" ON p.Id = gp.Id");
+        sql.append(" LEFT OUTER JOIN ").append(TargetedMSManager.getTableInfoMolecule(), "m").append(" ON m.Id = gm.Id");
+        sql.append(" WHERE ").append(where);
+
+        new SqlSelector(TargetedMSManager.getSchema(), sql).forEach(rs -> consumer.accept(
+                getPrecursorKey(rs.getString(4), rs.getString(5), rs.getString(6), rs.getDouble(7), rs.getInt(8), rs.getString(9)), rs));
+    }
+
+    interface PrecursorKeyConsumer
+    {
+        void accept(String key, ResultSet rs) throws SQLException;
+    }
+
     /** @return the name of the file that downloaders will see */
     public static String getDownloadFileName(Container container, int revision)
     {
@@ -242,6 +336,60 @@ public static void writeLibrary(Container container, User user, LocalDirectory l
         }
     }
 
+    /**
+     * Writes the revision's file, unless it already exists because it was written on demand. When the changed
+     * precursors are known, updates a copy of the previous revision's file and only falls back to rebuilding the
+     * library from scratch if that isn't possible or the result doesn't match the folder's representative data.
+     */
+    public static void writeLibrary(Container container, User user, LocalDirectory localDirectory, int targetRevision,
+                                    @Nullable Set<String> changedPrecursorKeys, Logger log)
+    {
+        try
+        {
+            if (Files.exists(getChromLibFile(container, targetRevision)))
+            {
+                log.info("Chromatogram library revision " + targetRevision + " has already been written");
+                return;
+            }
+
+            if (changedPrecursorKeys != null && TargetedMSManager.getFolderType(container) == TargetedMSService.FolderType.Library)
+            {
+                Path previousFile = getChromLibFile(container, targetRevision - 1);
+                if (Files.exists(previousFile))
+                {
+                    ContainerChromatogramLibraryWriter writer = new ContainerChromatogramLibraryWriter(
+                            AppProps.getInstance().getBaseServerUrl(),
+                            container,
+                            TargetedMSManager.getCurrentRepresentativeRunIds(container),
+                            user);
+                    try
+                    {
+                        if (writer.updateLibrary(localDirectory, previousFile, targetRevision, changedPrecursorKeys, log))
+                        {
+                            return;
+                        }
+                    }
+                    catch (IOException | SQLException | RuntimeException e)
+                    {
+                        // The full rebuild below doesn't depend on the previous file, so it may still succeed
+                        log.error("Failed to update revision " + (targetRevision - 1) + " of the chromatogram library", e);
+                    }
+                }
+                else
+                {
+                    log.info("Revision " + (targetRevision - 1) + " of the chromatogram library was not found");
+                }
+            }
+
+            log.info("Writing all of the representative data to revision " + targetRevision + " of the chromatogram library");
+            writeLibrary(container, user, localDirectory, targetRevision);
+        }
+        catch (IOException | SQLException e)
+        {
+            throw new RuntimeException("There was an error writing a TargetedMS Library archive file.", e);
+        }
+    }
+
     @Nullable
     public static TargetedMSController.ChromLibAnalyteCounts getLibraryAnalyteCounts(Container container, int libRevision) throws IOException, SQLException
     {
@@ -17,28 +17,51 @@
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
 import org.labkey.api.util.FileUtil;
 import org.labkey.targetedms.parser.Molecule;
 import org.labkey.targetedms.parser.Peptide;
 import org.labkey.targetedms.query.PeptideGroupManager;
 
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * User: vsharma
  * Date: 12/18/12
  * Time: 1:31 PM
+ *
+ * All of the writes for a library go through a single connection in a single transaction, which is committed when
+ * the library is closed. The file is only a temporary copy until it's moved into place, so the rollback journal is
+ * kept in memory and SQLite doesn't sync to disk. New libraries get their indexes after all the rows are inserted.
  */
 public class ChromatogramLibraryWriter
 {
+    private static final int PAGE_SIZE = 8192;
+    // Negative values are in KiB, so 64MB
+    private static final int CACHE_SIZE = -65536;
+
     private ConnectionSource _connectionSource;
+    private Connection _connection;
+    private boolean _newLibrary;
+    private final List<Dao<?>> _daos = new ArrayList<>();
 
     private Dao<LibInfo> _libInfoDao;
     private Dao<LibSampleFile> _sampleFileDao;
@@ -73,54 +96,277 @@ public void openLibrary(Path libFile) throws SQLException
 
         // Setup a connection source
        _connectionSource = new ConnectionSource(_libFile.toAbsolutePath().toString());
+        _newLibrary = true;
+        openConnection();
 
-        // Create an empty schema
+        // Create an empty schema. The indexes are created when the library is closed.
         ChromLibSqliteSchemaCreator schemaCreator = new ChromLibSqliteSchemaCreator();
-        schemaCreator.createSchema(getConnection());
+        schemaCreator.createTables(_connection);
+
+        initializeDaos();
+    }
+
+    /**
+     * Opens an existing library file, typically a copy of an earlier revision, so that it can be updated in place
+     * instead of being written from scratch.
+     */
+    public void openExistingLibrary(Path libFile) throws SQLException
+    {
+        _log.info("Updating chromatogram library " + FileUtil.getFileName(libFile));
+        if(!Files.exists(libFile))
+        {
+            throw new IllegalStateException("Chromatogram library file "+ FileUtil.pathToString(libFile) +" does not exist.");
+        }
+
+        _libFile = libFile;
+        _connectionSource = new ConnectionSource(_libFile.toAbsolutePath().toString());
+        _newLibrary = false;
+        openConnection();
 
         initializeDaos();
     }
 
+    private void openConnection() throws SQLException
+    {
+        _connection = _connectionSource.getConnection();
+        try (Statement stmt = _connection.createStatement())
+        {
+            if(_newLibrary)
+            {
+                // Only takes effect before the first table is created
+                stmt.execute("PRAGMA page_size = " + PAGE_SIZE);
+            }
+            stmt.execute("PRAGMA journal_mode = MEMORY");
+            stmt.execute("PRAGMA synchronous = OFF");
+            stmt.execute("PRAGMA cache_size = " + CACHE_SIZE);
+        }
+        _connection.setAutoCommit(false);
+    }
+
     private void initializeDaos()
     {
-        _libInfoDao = new LibInfoDao();
-        _sampleFileDao = new LibSampleFileDao();
-        _structuralModificationDao = new LibStructuralModificationDao(new LibStructuralModLossDao());
-        _isotopeModificationDao = new LibIsotopeModificationDao();
+        _libInfoDao = addDao(new LibInfoDao());
+        _sampleFileDao = addDao(new LibSampleFileDao());
+        _structuralModificationDao = addDao(new LibStructuralModificationDao(addDao(new LibStructuralModLossDao())));
+        _isotopeModificationDao = addDao(new LibIsotopeModificationDao());
 
-        Dao<LibPrecursor> precursorDao = new LibPrecursorDao(new LibPrecursorIsotopeModificationDao(),
-                new LibPrecursorRetentionTimeDao(Constants.Table.PrecursorRetentionTime, Constants.Column.PrecursorId, Constants.PrecursorRetentionTimeColumn.values()),
-                new LibTransitionDao(new LibTransitionOptimizationDao()));
-        _peptideDao = new LibPeptideDao(new LibPeptideStructuralModDao(), precursorDao);
-        _proteinDao = new LibProteinDao(_peptideDao);
+        Dao<LibPrecursor> precursorDao = addDao(new LibPrecursorDao(addDao(new LibPrecursorIsotopeModificationDao()),
+                addDao(new LibPrecursorRetentionTimeDao(Constants.Table.PrecursorRetentionTime, Constants.Column.PrecursorId, Constants.PrecursorRetentionTimeColumn.values())),
+                addDao(new LibTransitionDao(addDao(new LibTransitionOptimizationDao())))));
+        _peptideDao = addDao(new LibPeptideDao(addDao(new LibPeptideStructuralModDao()), precursorDao));
+        _proteinDao = addDao(new LibProteinDao(_peptideDao));
 
-        _irtLibraryDao = new LibIrtLibraryDao();
+        _irtLibraryDao = addDao(new LibIrtLibraryDao());
 
-        _predictorDao = new LibPredictorDao();
+        _predictorDao = addDao(new LibPredictorDao());
     }
 
-    private Connection getConnection() throws SQLException
+    private <T extends Dao<?>> T addDao(T dao)
     {
-        return _connectionSource.getConnection();
+        _daos.add(dao);
+        return dao;
     }
 
+    /** Writes any cached data, commits everything written to the library, and compacts the file */
     public void closeLibrary() throws SQLException
     {
-        // Clear any cached data
-        flushCache();
+        try
+        {
+            // Clear any cached data
+            flushCache();
+
+            if(_newLibrary)
+            {
+                new ChromLibSqliteSchemaCreator().createIndexes(_connection);
+            }
+            closeStatements();
+            _connection.commit();
+
+            // VACUUM can't run inside a transaction
+            _connection.setAutoCommit(true);
+            try (Statement stmt = _connection.createStatement())
+            {
+                stmt.executeUpdate("VACUUM");
+            }
+        }
+        catch(SQLException e)
+        {
+            _log.error("Error closing chromatogram library " + FileUtil.pathToString(_libFile), e);
+            throw e;
+        }
+        finally
+        {
+            closeConnection();
+        }
+        _log.info("Done writing chromatogram library " + FileUtil.pathToString(_libFile));
+    }
+
+    /**
+     * Discards anything written since the library was opened, unless it has already been closed. Safe to call
+     * after closeLibrary(), so callers can use it in a finally block.
+     */
+    public void abortLibrary()
+    {
+        try
+        {
+            if(_connection != null)
+            {
+                closeStatements();
+                _connection.rollback();
+            }
+        }
+        catch(SQLException e)
+        {
+            _log.warn("Error rolling back changes to chromatogram library " + FileUtil.pathToString(_libFile), e);
+        }
+        finally
+        {
+            closeConnection();
+        }
+    }
+
+    private void closeStatements() throws SQLException
+    {
+        for(Dao<?> dao: _daos)
+        {
+            dao.closeStatements();
+        }
+    }
 
+    private void closeConnection()
+    {
+        if(_connection != null)
+        {
+            try {_connection.close();} catch(SQLException ignored) {}
+            _connection = null;
+        }
         if(_connectionSource != null)
         {
             _connectionSource.close();
+            _connectionSource = null;
         }
-        _log.info("Done writing chromatogram library " + FileUtil.pathToString(_libFile));
     }
 
-    private void flushCache() throws SQLException
+    /** Writes the proteins, along with their peptides, precursors, and transitions, that are held in memory */
+    public void flushCache() throws SQLException
     {
         if (null != _proteinDao)
         {
             flush(_proteinDao, _libProteinCache.values());
+            _libProteinCache.clear();
+        }
+    }
+
+    /** @return the SchemaVersion recorded in an existing library, or null if it has none */
+    public String readSchemaVersion() throws SQLException
+    {
+        List<LibInfo> libInfos = _libInfoDao.queryAll(_connection);
+        return libInfos.isEmpty() ? null : libInfos.get(0).getSchemaVersion();
+    }
+
+    /** @return Protein Id(SQLite Library) -> keys, from ChromatogramLibraryUtils.getPrecursorKey(), of its precursors */
+    public Map<Integer, Set<String>> readPrecursorKeysByProtein() throws SQLException
+    {
+        Map<Integer, Set<String>> result = new HashMap<>();
+        try (Statement stmt = _connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT pep.ProteinId, p.ModifiedSequence, pep.ChemicalFormula, pep.MoleculeName, p.Mz, p.Charge, p.IsotopeLabel" +
+                     " FROM " + Constants.Table.Precursor + " p INNER JOIN " + Constants.Table.Peptide + " pep ON p.PeptideId = pep.Id"))
+        {
+            while (rs.next())
+            {
+                String key = ChromatogramLibraryUtils.getPrecursorKey(rs.getString(2), rs.getString(3), rs.getString(4), rs.getDouble(5), rs.getInt(6), rs.getString(7));
+                result.computeIfAbsent(rs.getInt(1), id -> new HashSet<>()).add(key);
+            }
+        }
+        return result;
+    }
+
+    public List<LibStructuralModification> readStructuralModifications() throws SQLException
+    {
+        return _structuralModificationDao.queryAll(_connection);
+    }
+
+    public List<LibIsotopeModification> readIsotopeModifications() throws SQLException
+    {
+        return _isotopeModificationDao.queryAll(_connection);
+    }
+
+    public List<LibSampleFile> readSampleFiles() throws SQLException
+    {
+        return _sampleFileDao.queryAll(_connection);
+    }
+
+    public List<LibPredictor> readPredictors() throws SQLException
+    {
+        return _predictorDao.queryAll(_connection);
+    }
+
+    /** Deletes the proteins along with their peptides, precursors, and transitions */
+    public void deleteProteins(Collection<Integer> proteinIds) throws SQLException
+    {
+        if (proteinIds.isEmpty())
+        {
+            return;
+        }
+        try (Statement stmt = _connection.createStatement())
+        {
+            stmt.executeUpdate("CREATE TEMP TABLE DeletedProtein (Id INTEGER PRIMARY KEY)");
+            try (PreparedStatement insert = _connection.prepareStatement("INSERT INTO DeletedProtein (Id) VALUES (?)"))
+            {
+                for (Integer proteinId : proteinIds)
+                {
+                    insert.setInt(1, proteinId);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+
+            String peptides = "SELECT Id FROM " + Constants.Table.Peptide + " WHERE ProteinId IN (SELECT Id FROM DeletedProtein)";
+            String precursors = "SELECT Id FROM " + Constants.Table.Precursor + " WHERE PeptideId IN (" + peptides + ")";
+            String transitions = "SELECT Id FROM " + Constants.Table.Transition + " WHERE PrecursorId IN (" + precursors + ")";
+
+            stmt.executeUpdate("DELETE FROM " + Constants.Table.TransitionOptimization + " WHERE TransitionId IN (" + transitions + ")");
+            stmt.executeUpdate("DELETE FROM " + Constants.Table.Transition + " WHERE PrecursorId IN (" + precursors + ")");
+            stmt.executeUpdate("DELETE FROM " + Constants.Table.PrecursorRetentionTime + " WHERE PrecursorId IN (" + precursors + ")");
+            stmt.executeUpdate("DELETE FROM " + Constants.Table.PrecursorIsotopeModification + " WHERE PrecursorId IN (" + precursors + ")");
+            stmt.executeUpdate("DELETE FROM " + Constants.Table.Precursor + " WHERE PeptideId IN (" + peptides + ")");
+            stmt.executeUpdate("DELETE FROM " + Constants.Table.PeptideStructuralModification + " WHERE PeptideId IN (" + peptides + ")");
+            stmt.executeUpdate("DELETE FROM " + Constants.Table.Peptide + " WHERE ProteinId IN (SELECT Id FROM DeletedProtein)");
+            stmt.executeUpdate("DELETE FROM " + Constants.Table.Protein + " WHERE Id IN (SELECT Id FROM DeletedProtein)");
+            stmt.executeUpdate("DROP TABLE DeletedProtein");
+        }
+        catch(SQLException e)
+        {
+            _log.error("Error deleting proteins from " + FileUtil.pathToString(_libFile), e);
+            throw e;
+        }
+    }
+
+    /**
+     * Deletes the sample files and predictors that no precursor refers to any more, along with the rows that describe
+     * the library as a whole, before they're rewritten for a new revision.
+     */
+    public void deleteUnreferencedAndSummaryRows() throws SQLException
+    {
+        try (Statement stmt = _connection.createStatement())
+        {
+            stmt.executeUpdate("DELETE FROM " + Constants.Table.SampleFile + " WHERE" +
+                    " Id NOT IN (SELECT SampleFileId FROM " + Constants.Table.Precursor + " WHERE SampleFileId IS NOT NULL)" +
+                    " AND Id NOT IN (SELECT SampleFileId FROM " + Constants.Table.PrecursorRetentionTime + " WHERE SampleFileId IS NOT NULL)");
+            stmt.executeUpdate("DELETE FROM " + Constants.Table.Predictor + " WHERE" +
+                    " Id NOT IN (SELECT CePredictorId FROM " + Constants.Table.SampleFile + " WHERE CePredictorId IS NOT NULL)" +
+                    " AND Id NOT IN (SELECT DpPredictorId FROM " + Constants.Table.SampleFile + " WHERE DpPredictorId IS NOT NULL)");
+            stmt.executeUpdate("DELETE FROM " + Constants.Table.IrtLibrary);
+            stmt.executeUpdate("DELETE FROM " + Constants.Table.LibInfo);
+        }
+    }
+
+    public int count(Constants.Table table) throws SQLException
+    {
+        try (Statement stmt = _connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + table))
+        {
+            return rs.next() ? rs.getInt(1) : 0;
         }
     }
 
@@ -190,9 +436,9 @@ public int getPeptideCount()
 
     private <T> void saveEntry(Dao<T> dao, T object) throws SQLException
     {
-        try (Connection connection = getConnection())
+        try
         {
-            dao.save(object, connection);
+            dao.save(object, _connection);
         }
         catch(SQLException e)
         {
@@ -203,9 +449,9 @@ private <T> void saveEntry(Dao<T> dao, T object) throws SQLException
 
     private <T> void flush(Dao<T> dao, Collection<T> list) throws SQLException
     {
-        try (Connection connection = getConnection())
+        try
         {
-            dao.saveAll(list, connection);
+            dao.saveAll(list, _connection);
         }
         catch(SQLException e)
         {
@@ -213,4 +459,277 @@ private <T> void flush(Dao<T> dao, Collection<T> list) throws SQLException
             throw e;
         }
     }
+
+    public static class TestCase extends Assert
+    {
+        private Path _dir;
+
+        @Before
+        public void setUp() throws IOException
+        {
+            _dir = Files.createTempDirectory("chromlib");
+        }
+
+        @After
+        public void tearDown()
+        {
+            FileUtil.deleteDir(_dir.toFile());
+        }
+
+        @Test
+        public void testIdsContinueFromExistingRows() throws SQLException
+        {
+            Path libFile = _dir.resolve("ids.clib");
+            ChromatogramLibraryWriter writer = new ChromatogramLibraryWriter();
+            writer.openLibrary(libFile);
+            try
+            {
+                LibSampleFile sampleFile = createSampleFile("first");
+                writer.writeSampleFile(sampleFile);
+                assertEquals(1, sampleFile.getId());
+
+                List<LibProtein> proteins = new ArrayList<>();
+                for (int i = 0; i < 3; i++)
+                {
+                    LibProtein protein = createProtein("Protein" + i, 1, 1, 1, sampleFile.getId());
+                    proteins.add(protein);
+                    writer.writeProtein(i, protein);
+                }
+                writer.flushCache();
+                // The cached insert statement hands out consecutive Ids without reading them back
+                for (int i = 0; i < proteins.size(); i++)
+                {
+                    assertEquals(i + 1, proteins.get(i).getId());
+                }
+                writer.closeLibrary();
+            }
+            finally
+            {
+                writer.abortLibrary();
+            }
+
+            // A new connection picks up where the rows in the file left off
+            writer = new ChromatogramLibraryWriter();
+            writer.openExistingLibrary(libFile);
+            try
+            {
+                LibSampleFile sampleFile = createSampleFile("second");
+                writer.writeSampleFile(sampleFile);
+                assertEquals(2, sampleFile.getId());
+
+                LibProtein protein = createProtein("Protein3", 1, 1, 1, sampleFile.getId());
+                writer.writeProtein(3, protein);
+                writer.flushCache();
+                assertEquals(4, protein.getId());
+                writer.closeLibrary();
+            }
+            finally
+            {
+                writer.abortLibrary();
+            }
+        }
+
+        @Test
+        public void testSaveAllJoinsOpenTransaction() throws SQLException
+        {
+            ChromatogramLibraryWriter writer = new ChromatogramLibraryWriter();
+            writer.openLibrary(_dir.resolve("transaction.clib"));
+            try
+            {
+                writer.writeProtein(0, createProtein("Protein0", 2, 1, 2, writeSampleFile(writer)));
+                writer.flushCache();
+
+                // saveAll mustn't commit, or turn autocommit back on, when the writer already has a transaction open
+                assertFalse(writer._connection.getAutoCommit());
+                assertEquals(1, writer.count(Constants.Table.Protein));
+                assertEquals(2, writer.count(Constants.Table.Peptide));
+                assertEquals(4, writer.count(Constants.Table.Transition));
+            }
+            finally
+            {
+                writer.abortLibrary();
+            }
+        }
+
+        @Test
+        public void testAbortRollsBack() throws SQLException
+        {
+            Path libFile = _dir.resolve("abort.clib");
+            ChromatogramLibraryWriter writer = new ChromatogramLibraryWriter();
+            writer.openLibrary(libFile);
+            try
+            {
+                writer.writeProtein(0, createProtein("Protein0", 1, 1, 1, writeSampleFile(writer)));
+                writer.closeLibrary();
+            }
+            finally
+            {
+                writer.abortLibrary();
+            }
+
+            writer = new ChromatogramLibraryWriter();
+            writer.openExistingLibrary(libFile);
+            writer.writeProtein(1, createProtein("Protein1", 1, 1, 1, writeSampleFile(writer)));
+            writer.flushCache();
+            assertEquals(2, writer.count(Constants.Table.Protein));
+            writer.abortLibrary();
+
+            writer = new ChromatogramLibraryWriter();
+            writer.openExistingLibrary(libFile);
+            try
+            {
+                assertEquals(1, writer.count(Constants.Table.Protein));
+                assertEquals(1, writer.count(Constants.Table.Precursor));
+            }
+            finally
+            {
+                writer.abortLibrary();
+            }
+        }
+
+        @Test
+        public void testIndexesCreatedOnClose() throws SQLException
+        {
+            Path libFile = _dir.resolve("indexes.clib");
+            ChromatogramLibraryWriter writer = new ChromatogramLibraryWriter();
+            writer.openLibrary(libFile);
+            try
+            {
+                writer.writeProtein(0, createProtein("Protein0", 1, 1, 1, writeSampleFile(writer)));
+                writer.flushCache();
+                assertEquals(0, countIndexes(writer._connection));
+                writer.closeLibrary();
+            }
+            finally
+            {
+                writer.abortLibrary();
+            }
+
+            writer = new ChromatogramLibraryWriter();
+            writer.openExistingLibrary(libFile);
+            try
+            {
+                assertTrue("Expected indexes to be created when the library was closed", countIndexes(writer._connection) > 0);
+            }
+            finally
+            {
+                writer.abortLibrary();
+            }
+        }
+
+        @Test
+        public void testReadSampleFilesAndPredictors() throws SQLException
+        {
+            Path libFile = _dir.resolve("samplefiles.clib");
+            ChromatogramLibraryWriter writer = new ChromatogramLibraryWriter();
+            writer.openLibrary(libFile);
+            LibPredictor predictor = new LibPredictor();
+            predictor.setName("Thermo");
+            predictor.setStepSize(1.0);
+            predictor.setStepCount(5);
+            LibSampleFile withPredictor = createSampleFile("withPredictor");
+            LibSampleFile withoutPredictor = createSampleFile("withoutPredictor");
+            try
+            {
+                writer.writePredictor(predictor);
+                withPredictor.setCePredictorId(predictor.getId());
+                writer.writeSampleFile(withPredictor);
+                writer.writeSampleFile(withoutPredictor);
+                writer.closeLibrary();
+            }
+            finally
+            {
+                writer.abortLibrary();
+            }
+
+            // An incremental update matches the library's rows against the folder's by what's read back here
+            writer = new ChromatogramLibraryWriter();
+            writer.openExistingLibrary(libFile);
+            try
+            {
+                List<LibPredictor> predictors = writer.readPredictors();
+                assertEquals(1, predictors.size());
+                assertEquals(predictor.getId(), predictors.get(0).getId());
+                assertEquals(predictor, predictors.get(0));
+
+                List<LibSampleFile> sampleFiles = writer.readSampleFiles();
+                assertEquals(2, sampleFiles.size());
+                assertEquals(withPredictor.getId(), sampleFiles.get(0).getId());
+                assertEquals(predictor.getId(), sampleFiles.get(0).getCePredictorId().intValue());
+                assertNull(sampleFiles.get(1).getCePredictorId());
+                assertNull(sampleFiles.get(1).getDpPredictorId());
+            }
+            finally
+            {
+                writer.abortLibrary();
+            }
+        }
+
+        private static int writeSampleFile(ChromatogramLibraryWriter writer) throws SQLException
+        {
+            LibSampleFile sampleFile = createSampleFile("sample");
+            writer.writeSampleFile(sampleFile);
+            return sampleFile.getId();
+        }
+
+        private static int countIndexes(Connection connection) throws SQLException
+        {
+            // Only count the ones we create, not the automatic ones for primary keys
+            try (Statement stmt = connection.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM sqlite_master WHERE type = 'index' AND sql IS NOT NULL"))
+            {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        }
+    }
+
+    private static LibSampleFile createSampleFile(String name)
+    {
+        LibSampleFile sampleFile = new LibSampleFile();
+        sampleFile.setFilePath(name + ".raw");
+        sampleFile.setSampleName(name);
+        return sampleFile;
+    }
+
+    /** Builds a synthetic protein for the tests, with a small chromatogram for each precursor */
+    private static LibProtein createProtein(String name, int peptideCount, int precursorsPerPeptide, int transitionsPerPrecursor, int sampleFileId)
+    {
+        byte[] chromatogram = new byte[1024];
+        LibProtein protein = new LibProtein();
+        protein.setName(name);
+        for (int peptideIndex = 0; peptideIndex < peptideCount; peptideIndex++)
+        {
+            String sequence = "PEPTIDE" + name + "K" + peptideIndex + "R";
+            LibPeptide peptide = new LibPeptide();
+            peptide.setSequence(sequence);
+            peptide.setCalcNeutralMass(1000.0 + peptideIndex);
+            peptide.setNumMissedCleavages(0);
+            for (int charge = 2; charge < 2 + precursorsPerPeptide; charge++)
+            {
+                LibPrecursor precursor = new LibPrecursor();
+                precursor.setIsotopeLabel("light");
+                precursor.setModifiedSequence(sequence);
+                precursor.setCharge(charge);
+                precursor.setMz((1000.0 + peptideIndex + charge) / charge);
+                precursor.setSampleFileId(sampleFileId);
+                precursor.setChromatogram(chromatogram);
+                precursor.setUncompressedSize(chromatogram.length);
+                precursor.setTotalArea(1.0e6);
+                for (int ordinal = 1; ordinal <= transitionsPerPrecursor; ordinal++)
+                {
+                    LibTransition transition = new LibTransition();
+                    transition.setFragmentType("y");
+                    transition.setFragmentOrdinal(ordinal);
+                    transition.setCharge(1);
+                    transition.setMz(100.0 * ordinal);
+                    transition.setArea(1.0e5);
+                    transition.setChromatogramIndex(ordinal);
+                    precursor.addTransition(transition);
+                }
+                peptide.addPrecursor(precursor);
+            }
+            protein.addChild(peptide);
+        }
+        return protein;
+    }
 }
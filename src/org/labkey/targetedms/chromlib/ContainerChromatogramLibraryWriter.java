@@ -15,13 +15,17 @@
  */
 package org.labkey.targetedms.chromlib;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.labkey.api.collections.CaseInsensitiveHashSet;
 import org.labkey.api.data.Container;
+import org.labkey.api.data.SQLFragment;
 import org.labkey.api.data.SimpleFilter;
 import org.labkey.api.data.TableSelector;
 import org.labkey.api.pipeline.LocalDirectory;
 import org.labkey.api.query.FieldKey;
 import org.labkey.api.security.User;
+import org.labkey.api.targetedms.RepresentativeDataState;
 import org.labkey.api.targetedms.RunRepresentativeDataState;
 import org.labkey.api.util.FileUtil;
 import org.labkey.targetedms.TargetedMSManager;
@@ -32,7 +36,6 @@
 import org.labkey.targetedms.parser.Instrument;
 import org.labkey.targetedms.parser.Molecule;
 import org.labkey.targetedms.parser.MoleculePrecursor;
-import org.labkey.targetedms.parser.MoleculeTransition;
 import org.labkey.targetedms.parser.Peptide;
 import org.labkey.targetedms.parser.PeptideGroup;
 import org.labkey.targetedms.parser.PeptideSettings;
@@ -40,34 +43,37 @@
 import org.labkey.targetedms.parser.PrecursorChromInfo;
 import org.labkey.targetedms.parser.Replicate;
 import org.labkey.targetedms.parser.SampleFile;
-import org.labkey.targetedms.parser.Transition;
 import org.labkey.targetedms.parser.TransitionChromInfo;
 import org.labkey.targetedms.parser.TransitionSettings;
 import org.labkey.targetedms.query.InstrumentManager;
 import org.labkey.targetedms.query.IsotopeLabelManager;
 import org.labkey.targetedms.query.ModificationManager;
-import org.labkey.targetedms.query.MoleculeManager;
 import org.labkey.targetedms.query.MoleculePrecursorManager;
-import org.labkey.targetedms.query.MoleculeTransitionManager;
 import org.labkey.targetedms.query.PeptideGroupManager;
 import org.labkey.targetedms.query.PeptideManager;
 import org.labkey.targetedms.query.PrecursorManager;
 import org.labkey.targetedms.query.ReplicateManager;
-import org.labkey.targetedms.query.TransitionManager;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
+import java.util.stream.Collectors;
 
 /**
  * User: vsharma
@@ -76,6 +82,11 @@
  */
 public class ContainerChromatogramLibraryWriter
 {
+    private static final Logger LOG = LogManager.getLogger(ContainerChromatogramLibraryWriter.class);
+
+    // Approximate number of precursors whose data is fetched from Panorama and held in memory at once
+    private static final int BATCH_SIZE = 1000;
+
     private final String _panoramaServer;
     private final Container _container;
     private final List<Long> _representativeRunIds;
@@ -97,9 +108,22 @@
     // PredictorId(Panorama) -> PredictorId(SQLite Library)
     private Map<Long, Integer> _predictorIdMap;
 
+    // Modifications already in the library file being updated, by getModificationKey() -> ModificationId(SQLite Library)
+    private final Map<String, Integer> _existingStructuralModifications = new HashMap<>();
+    private final Map<String, Integer> _existingIsotopeModifications = new HashMap<>();
+    // Sample files and predictors already in the library file being updated, by their keys -> Id(SQLite Library)
+    private final Map<String, Integer> _existingSampleFiles = new HashMap<>();
+    private final Map<String, Integer> _existingPredictors = new HashMap<>();
+    // When updating an existing library file, the representative precursors that are rewritten. Null writes all of them.
+    private Set<Long> _precursorIdFilter;
+
     private RunRepresentativeDataState _libraryType = null;
     private Long _bestReplicateIdForCurrentPeptideGroup;
 
+    // Nanoseconds spent querying Panorama and assembling the library entities, for the log
+    private long _loadNanos;
+    private long _assembleNanos;
+
     private final User _user;
 
     public ContainerChromatogramLibraryWriter(String panoramaServer, Container container, List<Long> representativeRunIds, User user)
@@ -119,12 +143,7 @@ public String writeLibrary(LocalDirectory localDirectory, int libraryRevision) t
             _libWriter = new ChromatogramLibraryWriter();
             _libWriter.openLibrary(tempChromLibFile);
 
-            _sampleFileIdMap = new HashMap<>();
-            _isotopeLabelMap = new HashMap<>();
-            _isotopeModificationMap = new HashMap<>();
-            _isotopeModificationAndLabelMap = new HashMap<>();
-            _structuralModificationMap = new HashMap<>();
-            _predictorIdMap = new HashMap<>();
+            initializeIdMaps();
 
             for(Long runId: _representativeRunIds)
             {
@@ -133,14 +152,191 @@ public String writeLibrary(LocalDirectory localDirectory, int libraryRevision) t
 
             writeIrtLibrary();
 
-            writeLibInfo(libraryRevision);
+            int proteinCount = _libWriter.getProteinCount();
+            int peptideCount = _libWriter.getPeptideCount();
+            long start = System.nanoTime();
+            _libWriter.flushCache();
+            logTimings(libraryRevision, System.nanoTime() - start);
+
+            writeLibInfo(libraryRevision, proteinCount, peptideCount);
 
+            close();
         }
         finally
         {
+            // Discards the partially written library if anything above failed
+            _libWriter.abortLibrary();
+        }
+
+        return moveToFinalFile(tempChromLibFile, libraryRevision);
+    }
+
+    /**
+     * Writes a revision of a peptide library by updating a copy of the previous revision's file. The proteins in the
+     * file that contain any of the changed precursors are deleted, and the folder's peptide groups that now provide
+     * the representative data for those precursors are written in their place. The rest of the file is left as is.
+     * @param changedPrecursorKeys keys, from ChromatogramLibraryUtils.getPrecursorKey(), of the precursors whose
+     *                             representative state changed since the previous revision
+     * @return false if the previous file can't be updated or the result doesn't match the folder's representative data,
+     * in which case the caller should write the library from scratch
+     */
+    public boolean updateLibrary(LocalDirectory localDirectory, Path previousChromLibFile, int libraryRevision,
+                                 Set<String> changedPrecursorKeys, Logger log) throws SQLException, IOException
+    {
+        Path tempChromLibFile = ChromatogramLibraryUtils.getChromLibTempFile(_container, localDirectory, libraryRevision);
+        Files.copy(previousChromLibFile, tempChromLibFile);
+
+        boolean updated = false;
+        try
+        {
+            _libWriter = new ChromatogramLibraryWriter();
+            _libWriter.openExistingLibrary(tempChromLibFile);
+
+            if(!Constants.SCHEMA_VERSION.equals(_libWriter.readSchemaVersion()))
+            {
+                log.info("Chromatogram library " + FileUtil.getFileName(previousChromLibFile) + " was written with a different schema version");
+                return false;
+            }
+
+            initializeIdMaps();
+            for(LibStructuralModification mod: _libWriter.readStructuralModifications())
+            {
+                _existingStructuralModifications.put(getModificationKey(mod), mod.getId());
+            }
+            for(LibIsotopeModification mod: _libWriter.readIsotopeModifications())
+            {
+                _existingIsotopeModifications.put(getModificationKey(mod), mod.getId());
+            }
+            for(LibPredictor predictor: _libWriter.readPredictors())
+            {
+                _existingPredictors.put(getPredictorKey(predictor), predictor.getId());
+            }
+            for(LibSampleFile sampleFile: _libWriter.readSampleFiles())
+            {
+                _existingSampleFiles.put(getSampleFileKey(sampleFile), sampleFile.getId());
+            }
+
+            // Current representative precursors in the folder, grouped by the peptide group that they belong to
+            Map<Long, Set<String>> groupKeys = new HashMap<>();
+            Map<String, Set<Long>> keyGroups = new HashMap<>();
+            Map<Long, Set<Long>> groupPrecursorIds = new HashMap<>();
+            Map<Long, Long> groupRunIds = new HashMap<>();
+            int representativePrecursorCount = 0;
+            if(!_representativeRunIds.isEmpty())
+            {
+                SQLFragment where = new SQLFragment("pg.RunId ");
+                TargetedMSManager.getSqlDialect().appendInClauseSql(where, _representativeRunIds);
+                where.append(" AND gp.RepresentativeDataState = ?").add(RepresentativeDataState.Representative.ordinal());
+                ChromatogramLibraryUtils.forEachPrecursorKey(where, (key, rs) -> {
+                    long groupId = rs.getLong(2);
+                    groupKeys.computeIfAbsent(groupId, id -> new HashSet<>()).add(key);
+                    keyGroups.computeIfAbsent(key, k -> new HashSet<>()).add(groupId);
+                    groupPrecursorIds.computeIfAbsent(groupId, id -> new HashSet<>()).add(rs.getLong(1));
+                    groupRunIds.put(groupId, rs.getLong(3));
+                });
+                representativePrecursorCount = groupPrecursorIds.values().stream().mapToInt(Set::size).sum();
+            }
+
+            Map<Integer, Set<String>> proteinKeys = _libWriter.readPrecursorKeysByProtein();
+            Map<String, Set<Integer>> keyProteins = new HashMap<>();
+            proteinKeys.forEach((proteinId, keys) -> keys.forEach(key -> keyProteins.computeIfAbsent(key, k -> new HashSet<>()).add(proteinId)));
+
+            // A protein in the file has to be replaced as a whole, and so does a peptide group in the folder. Follow
+            // the precursors they share until the proteins being deleted and the peptide groups being written cover
+            // the same set of precursors.
+            Set<String> keys = new HashSet<>(changedPrecursorKeys);
+            Deque<String> pending = new ArrayDeque<>(keys);
+            Set<Integer> proteinIds = new HashSet<>();
+            Set<Long> groupIds = new HashSet<>();
+            while(!pending.isEmpty())
+            {
+                String key = pending.pop();
+                for(Integer proteinId: keyProteins.getOrDefault(key, Collections.emptySet()))
+                {
+                    if(proteinIds.add(proteinId))
+                    {
+                        proteinKeys.get(proteinId).stream().filter(keys::add).forEach(pending::push);
+                    }
+                }
+                for(Long groupId: keyGroups.getOrDefault(key, Collections.emptySet()))
+                {
+                    if(groupIds.add(groupId))
+                    {
+                        groupKeys.get(groupId).stream().filter(keys::add).forEach(pending::push);
+                    }
+                }
+            }
+            log.info("Replacing " + proteinIds.size() + " of the " + proteinKeys.size() + " proteins in " + FileUtil.getFileName(previousChromLibFile)
+                    + " with " + groupIds.size() + " protein(s) from the folder");
+
+            _libWriter.deleteProteins(proteinIds);
+
+            _precursorIdFilter = new HashSet<>();
+            Set<Long> runIds = new HashSet<>();
+            for(Long groupId: groupIds)
+            {
+                _precursorIdFilter.addAll(groupPrecursorIds.get(groupId));
+                runIds.add(groupRunIds.get(groupId));
+            }
+            for(Long runId: _representativeRunIds)
+            {
+                if(runIds.contains(runId))
+                {
+                    writeRepresentativeDataInRun(runId);
+                }
+            }
+            long start = System.nanoTime();
+            _libWriter.flushCache();
+            logTimings(libraryRevision, System.nanoTime() - start);
+
+            _libWriter.deleteUnreferencedAndSummaryRows();
+            writeIrtLibrary();
+
+            _precursorCount = _libWriter.count(Constants.Table.Precursor);
+            _transitionCount = _libWriter.count(Constants.Table.Transition);
+            if(_precursorCount != representativePrecursorCount)
+            {
+                log.warn("Updated chromatogram library has " + _precursorCount + " precursors but the folder has "
+                        + representativePrecursorCount + " representative precursors");
+                return false;
+            }
+            writeLibInfo(libraryRevision, _libWriter.count(Constants.Table.Protein), _libWriter.count(Constants.Table.Peptide));
+
             close();
+            updated = true;
         }
+        finally
+        {
+            _libWriter.abortLibrary();
+            if(!updated)
+            {
+                Files.deleteIfExists(tempChromLibFile);
+            }
+        }
+
+        moveToFinalFile(tempChromLibFile, libraryRevision);
+        return true;
+    }
+
+    private void logTimings(int libraryRevision, long writeNanos)
+    {
+        LOG.info("Chromatogram library revision " + libraryRevision + " for " + _container.getPath() + ": wrote " + _precursorCount + " precursors and "
+                + _transitionCount + " transitions. Querying took " + TimeUnit.NANOSECONDS.toMillis(_loadNanos) + " ms, building the library entries took "
+                + TimeUnit.NANOSECONDS.toMillis(_assembleNanos) + " ms, and writing them to the file took " + TimeUnit.NANOSECONDS.toMillis(writeNanos) + " ms");
+    }
+
+    private void initializeIdMaps()
+    {
+        _sampleFileIdMap = new HashMap<>();
+        _isotopeLabelMap = new HashMap<>();
+        _isotopeModificationMap = new HashMap<>();
+        _isotopeModificationAndLabelMap = new HashMap<>();
+        _structuralModificationMap = new HashMap<>();
+        _predictorIdMap = new HashMap<>();
+    }
 
+    private String moveToFinalFile(Path tempChromLibFile, int libraryRevision) throws IOException
+    {
         Path finalChromLibFile = ChromatogramLibraryUtils.getChromLibFile(_container, libraryRevision,
                 true /*Create the lib directory if it does not already exist */);
 
@@ -157,12 +353,37 @@ public String writeLibrary(LocalDirectory localDirectory, int libraryRevision) t
         return FileUtil.getAbsolutePath(_container, finalChromLibFile);
     }
 
+    private static String getModificationKey(LibStructuralModification mod)
+    {
+        return mod.getName() + "|" + mod.getAminoAcid() + "|" + mod.getTerminus() + "|" + mod.getMassDiffMono();
+    }
+
+    private static String getModificationKey(LibIsotopeModification mod)
+    {
+        return mod.getName() + "|" + mod.getIsotopeLabel() + "|" + mod.getAminoAcid() + "|" + mod.getTerminus() + "|" + mod.getMassDiffMono();
+    }
+
+    private static String getPredictorKey(LibPredictor predictor)
+    {
+        return predictor.getName() + "|" + predictor.getStepSize() + "|" + predictor.getStepCount();
+    }
+
+    /** Dates are compared as they're stored in the library, so a round trip through the file still matches */
+    private static String getSampleFileKey(LibSampleFile sampleFile)
+    {
+        return sampleFile.getFilePath() + "|" + sampleFile.getSampleName()
+                + "|" + (sampleFile.getAcquiredTime() == null ? null : Constants.DATE_FORMAT.format(sampleFile.getAcquiredTime()))
+                + "|" + (sampleFile.getModifiedTime() == null ? null : Constants.DATE_FORMAT.format(sampleFile.getModifiedTime()))
+                + "|" + sampleFile.getInstrumentIonizationType() + "|" + sampleFile.getInstrumentAnalyzer() + "|" + sampleFile.getInstrumentDetector()
+                + "|" + sampleFile.getCePredictorId() + "|" + sampleFile.getDpPredictorId();
+    }
+
     public void close() throws SQLException
     {
         _libWriter.closeLibrary();
     }
 
-    private void writeLibInfo(int libraryRevision) throws SQLException
+    private void writeLibInfo(int libraryRevision, int proteinCount, int peptideCount) throws SQLException
     {
         LibInfo libInfo = new LibInfo();
         libInfo.setPanoramaServer(_panoramaServer);
@@ -170,8 +391,8 @@ private void writeLibInfo(int libraryRevision) throws SQLException
         libInfo.setCreated(new Date());
         libInfo.setSchemaVersion(Constants.SCHEMA_VERSION);
         libInfo.setLibraryRevision(libraryRevision);
-        libInfo.setProteins(_libWriter.getProteinCount());
-        libInfo.setPeptides(_libWriter.getPeptideCount());
+        libInfo.setProteins(proteinCount);
+        libInfo.setPeptides(peptideCount);
         libInfo.setPrecursors(_precursorCount);
         libInfo.setTransitions(_transitionCount);
         _libWriter.writeLibInfo(libInfo);
@@ -267,7 +488,16 @@ private void saveRunIsotopeModifications(Long runId) throws SQLException
             libIsotopeMod.setLabel18O(mod.getLabel18O());
             libIsotopeMod.setLabel2H(mod.getLabel2H());
 
-            _libWriter.writeIsotopeModification(libIsotopeMod);
+            // Reuse the matching modification if we're updating an existing library
+            Integer existingId = _existingIsotopeModifications.get(getModificationKey(libIsotopeMod));
+            if(existingId != null)
+            {
+                libIsotopeMod.setId(existingId);
+            }
+            else
+            {
+                _libWriter.writeIsotopeModification(libIsotopeMod);
+            }
 
             _isotopeModificationMap.put(mod.getId(), libIsotopeMod.getId());
             _isotopeModificationAndLabelMap.put(mod.getId(), mod.getIsotopeLabelId());
@@ -294,6 +524,14 @@ private void saveRunStructuralModifications(Long runId) throws SQLException
             libStrMod.setVariable(mod.isVariable());
             libStrMod.setExplicitMod(mod.getExplicitMod());
 
+            // Reuse the matching modification if we're updating an existing library
+            Integer existingId = _existingStructuralModifications.get(getModificationKey(libStrMod));
+            if(existingId != null)
+            {
+                _structuralModificationMap.put(mod.getId(), existingId);
+                continue;
+            }
+
             // Look up any mod losses
             List<PeptideSettings.PotentialLoss> losses = ModificationManager.getPotentialLossesForStructuralMod(mod.getId());
             for(PeptideSettings.PotentialLoss loss: losses)
@@ -331,7 +569,16 @@ private void saveSampleFiles(Long runId) throws SQLException
 
             savePredictor(sampleFile, libSampleFile);
 
-            _libWriter.writeSampleFile(libSampleFile);
+            // Reuse the matching sample file if we're updating an existing library
+            Integer existingId = _existingSampleFiles.get(getSampleFileKey(libSampleFile));
+            if(existingId != null)
+            {
+                libSampleFile.setId(existingId);
+            }
+            else
+            {
+                _libWriter.writeSampleFile(libSampleFile);
+            }
 
             _sampleFileIdMap.put(sampleFile.getId(), libSampleFile.getId());
         }
@@ -354,7 +601,7 @@ private void savePredictor(SampleFile sampleFile, LibSampleFile libSampleFile) t
             libPredictor.setStepCount(cePredictor.getStepCount());
             libPredictor.setStepSize(cePredictor.getStepSize());
 
-            _libWriter.writePredictor(libPredictor);
+            savePredictor(libPredictor);
             _predictorIdMap.put(replicate.getCePredictorId(), libPredictor.getId());
             libSampleFile.setCePredictorId(libPredictor.getId());
         }
@@ -373,13 +620,27 @@ private void savePredictor(SampleFile sampleFile, LibSampleFile libSampleFile) t
             libPredictor.setStepCount(dpPredictor.getStepCount());
             libPredictor.setStepSize(dpPredictor.getStepSize());
 
-            _libWriter.writePredictor(libPredictor);
+            savePredictor(libPredictor);
             _predictorIdMap.put(replicate.getDpPredictorId(), libPredictor.getId());
             libSampleFile.setDpPredictorId(libPredictor.getId());
         }
     }
 
-    private void saveRepresentativePrecursors(TargetedMSRun run)
+    private void savePredictor(LibPredictor libPredictor) throws SQLException
+    {
+        // Reuse the matching predictor if we're updating an existing library
+        Integer existingId = _existingPredictors.get(getPredictorKey(libPredictor));
+        if(existingId != null)
+        {
+            libPredictor.setId(existingId);
+        }
+        else
+        {
+            _libWriter.writePredictor(libPredictor);
+        }
+    }
+
+        private void saveRepresentativePrecursors(TargetedMSRun run)
     {
         saveProteomicsPrecursors(run);
         saveMoleculePrecursors(run);
@@ -388,67 +649,90 @@ private void saveRepresentativePrecursors(TargetedMSRun run)
     private void saveProteomicsPrecursors(TargetedMSRun run)
     {
         List<Precursor> precursors = PrecursorManager.getRepresentativePrecursors(run.getId());
-        // Sort by peptideId.
-        precursors.sort(Comparator.comparingLong(Precursor::getGeneralMoleculeId));
+        if(_precursorIdFilter != null)
+        {
+            precursors.removeIf(p -> !_precursorIdFilter.contains(p.getId()));
+        }
 
-        long lastPeptideId = 0;
-        List<Precursor> peptidePrecursors = new ArrayList<>();
-        for(Precursor precursor: precursors)
+        for(List<Precursor> batchPrecursors: splitIntoBatches(precursors))
         {
-            if(precursor.getGeneralMoleculeId() != lastPeptideId)
+            LibraryDataBatch batch = loadBatch(run, batchPrecursors, false, Collections.emptySet());
+            long start = System.nanoTime();
+            for(List<Precursor> peptidePrecursors: groupByMolecule(batchPrecursors))
             {
-                if(peptidePrecursors.size() > 0)
-                {
-                    Peptide peptide = PeptideManager.getPeptide(_container, lastPeptideId);
-                    LibPeptide libPeptide = makeLibPeptide(peptide, peptidePrecursors, run);
-                    peptidePrecursors.clear();
-
-                    _libWriter.writePeptide(libPeptide, peptide);
-                }
-                lastPeptideId = precursor.getGeneralMoleculeId();
-                peptidePrecursors = new ArrayList<>();
+                Peptide peptide = batch.getPeptide(peptidePrecursors.get(0).getGeneralMoleculeId());
+                LibPeptide libPeptide = makeLibPeptide(peptide, peptidePrecursors, run, batch);
+                _libWriter.writePeptide(libPeptide, peptide);
             }
-            peptidePrecursors.add(precursor);
-        }
-        if(peptidePrecursors.size() > 0)
-        {
-            Peptide peptide = PeptideManager.getPeptide(_container, lastPeptideId);
-            LibPeptide libPeptide = makeLibPeptide(peptide, peptidePrecursors, run);
-            _libWriter.writePeptide(libPeptide, peptide);
+            _assembleNanos += System.nanoTime() - start;
         }
     }
 
     private void saveMoleculePrecursors(TargetedMSRun run)
     {
         List<MoleculePrecursor> precursors = MoleculePrecursorManager.getRepresentativeMoleculePrecursors(run.getId());
-        // Sort by id
-        precursors.sort(Comparator.comparingLong(MoleculePrecursor::getGeneralMoleculeId));
+        if(_precursorIdFilter != null)
+        {
+            precursors.removeIf(p -> !_precursorIdFilter.contains(p.getId()));
+        }
 
-        long lastMoleculeId = 0;
-        List<MoleculePrecursor> moleculePrecursors = new ArrayList<>();
-        for(MoleculePrecursor precursor: precursors)
+        for(List<MoleculePrecursor> batchPrecursors: splitIntoBatches(precursors))
         {
-            if(precursor.getGeneralMoleculeId() != lastMoleculeId)
+            LibraryDataBatch batch = loadBatch(run, batchPrecursors, true, Collections.emptySet());
+            long start = System.nanoTime();
+            for(List<MoleculePrecursor> moleculePrecursors: groupByMolecule(batchPrecursors))
             {
-                if(moleculePrecursors.size() > 0)
-                {
-                    Molecule molecule = MoleculeManager.getMolecule(_container, lastMoleculeId);
-                    LibPeptide libMolecule = makeLibMolecule(molecule, moleculePrecursors, run);
-                    moleculePrecursors.clear();
+                Molecule molecule = batch.getMolecule(moleculePrecursors.get(0).getGeneralMoleculeId());
+                LibPeptide libMolecule = makeLibMolecule(molecule, moleculePrecursors, run, batch);
+                _libWriter.writeMolecule(libMolecule, molecule);
+            }
+            _assembleNanos += System.nanoTime() - start;
+        }
+    }
 
-                    _libWriter.writeMolecule(libMolecule, molecule);
-                }
-                lastMoleculeId = precursor.getGeneralMoleculeId();
-                moleculePrecursors = new ArrayList<>();
+    /**
+     * Splits the precursors, sorted by molecule, into batches of roughly BATCH_SIZE that each hold all of the
+     * precursors for their molecules. This bounds the memory used by a batch's chrom infos and chromatograms.
+     */
+    private static <P extends GeneralPrecursor<?>> List<List<P>> splitIntoBatches(List<P> precursors)
+    {
+        precursors.sort(Comparator.comparingLong(GeneralPrecursor::getGeneralMoleculeId));
+
+        List<List<P>> result = new ArrayList<>();
+        List<P> batch = new ArrayList<>();
+        for(P precursor: precursors)
+        {
+            if(batch.size() >= BATCH_SIZE && batch.get(batch.size() - 1).getGeneralMoleculeId() != precursor.getGeneralMoleculeId())
+            {
+                result.add(batch);
+                batch = new ArrayList<>();
             }
-            moleculePrecursors.add(precursor);
+            batch.add(precursor);
         }
-        if(moleculePrecursors.size() > 0)
+        if(!batch.isEmpty())
         {
-            Molecule molecule = MoleculeManager.getMolecule(_container, lastMoleculeId);
-            LibPeptide libMolecule = makeLibMolecule(molecule, moleculePrecursors, run);
-            _libWriter.writeMolecule(libMolecule, molecule);
+            result.add(batch);
         }
+        return result;
+    }
+
+    /** @param precursors sorted by molecule */
+    private static <P extends GeneralPrecursor<?>> Collection<List<P>> groupByMolecule(List<P> precursors)
+    {
+        Map<Long, List<P>> result = new LinkedHashMap<>();
+        for(P precursor: precursors)
+        {
+            result.computeIfAbsent(precursor.getGeneralMoleculeId(), id -> new ArrayList<>()).add(precursor);
+        }
+        return result.values();
+    }
+
+    private LibraryDataBatch loadBatch(TargetedMSRun run, List<? extends GeneralPrecursor<?>> precursors, boolean molecules, Set<Long> bestSampleFileIds)
+    {
+        long start = System.nanoTime();
+        LibraryDataBatch result = new LibraryDataBatch(_container, _user, run, precursors, molecules, bestSampleFileIds);
+        _loadNanos += System.nanoTime() - start;
+        return result;
     }
 
     private void savePeptideGroup(PeptideGroup pepGroup, TargetedMSRun run)
@@ -456,45 +740,59 @@ private void savePeptideGroup(PeptideGroup pepGroup, TargetedMSRun run)
         // Create an entry in the Protein table.
         LibProtein libProtein = new LibProtein(pepGroup);
 
-        // Get the replicate that has the maximum overall peak area for this protein
-        getBestReplicateIdForPeptideGroup(pepGroup);
-
-        // Add peptides.
+        // Add peptides, using the chromatograms from the replicate that has the maximum overall peak area for this protein
         addPeptides(pepGroup, libProtein, run);
 
         // Save the protein.
         _libWriter.writeProtein(pepGroup.getId(), libProtein);
     }
 
-    private void getBestReplicateIdForPeptideGroup(PeptideGroup pepGroup)
-    {
-        _bestReplicateIdForCurrentPeptideGroup = PeptideGroupManager.getBestReplicateId(pepGroup);
-    }
-
     private void addPeptides(PeptideGroup pepGroup, LibProtein protein, TargetedMSRun run)
     {
         TargetedMSSchema schema = new TargetedMSSchema(_user, _container);
 
+        long start = System.nanoTime();
         Collection<Peptide> peptides = PeptideManager.getPeptidesForGroup(pepGroup.getId());
+        if(peptides.isEmpty())
+        {
+            return;
+        }
+        Map<Long, List<Precursor>> peptidePrecursors = new HashMap<>();
+        List<Precursor> precursors = PrecursorManager.getPrecursorsForPeptides(peptides.stream().map(Peptide::getId).collect(Collectors.toList()), schema);
+        for(Precursor precursor: precursors)
+        {
+            peptidePrecursors.computeIfAbsent(precursor.getGeneralMoleculeId(), id -> new ArrayList<>()).add(precursor);
+        }
+        _bestReplicateIdForCurrentPeptideGroup = PeptideGroupManager.getBestReplicateId(pepGroup);
+        Set<Long> bestSampleFileIds = _bestReplicateIdForCurrentPeptideGroup == null ? Collections.emptySet() : PrecursorManager.getSampleFileIdsForReplicate(_bestReplicateIdForCurrentPeptideGroup);
+        _loadNanos += System.nanoTime() - start;
+
         for(Peptide peptide: peptides)
         {
-            List<Precursor> precursors = PrecursorManager.getPrecursorsForPeptide(peptide.getId(), schema);
-            if(precursors.size() == 0)
+            if(!peptidePrecursors.containsKey(peptide.getId()))
             {
                 throw new IllegalStateException(String.format("No precursors found for peptide '%s'. Empty peptides are not allowed in library folders." +
                         " Empty peptides can be removed in Skyline by selecting Refine > Remove Empty Peptides.", peptide.getSequence()));
             }
-            LibPeptide libPeptide = makeLibPeptide(peptide, precursors, run);
+        }
+
+        LibraryDataBatch batch = loadBatch(run, precursors, false, bestSampleFileIds);
+
+        start = System.nanoTime();
+        for(Peptide peptide: peptides)
+        {
+            LibPeptide libPeptide = makeLibPeptide(peptide, peptidePrecursors.get(peptide.getId()), run, batch);
             protein.addChild(libPeptide);
         }
+        _assembleNanos += System.nanoTime() - start;
     }
 
-    private LibPeptide makeLibPeptide(Peptide peptide, List<Precursor> precursors, TargetedMSRun run)
+    private LibPeptide makeLibPeptide(Peptide peptide, List<Precursor> precursors, TargetedMSRun run, LibraryDataBatch batch)
     {
-        LibPeptide libPeptide = makeLibPeptide(peptide);
+        LibPeptide libPeptide = makeLibPeptide(peptide, batch);
 
         // Get the isotope modifications for the peptide.
-        List<Peptide.IsotopeModification> pepIsotopeMods = ModificationManager.getPeptideIsotopelModifications(peptide.getId());
+        List<Peptide.IsotopeModification> pepIsotopeMods = batch.getIsotopeModifications(peptide.getId());
         // IsotopeLabelId(Panorama) -> List<Peptide.IsotopeModification>
         Map<Long, List<Peptide.IsotopeModification>> precIsotopeModMap = new HashMap<>();
         for(Peptide.IsotopeModification isotopeMod: pepIsotopeMods)
@@ -513,25 +811,25 @@ private LibPeptide makeLibPeptide(Peptide peptide, List<Precursor> precursors, T
             List<Peptide.IsotopeModification> precIsotopeMods = precIsotopeModMap.get(precursor.getIsotopeLabelId());
             precIsotopeMods = (precIsotopeMods != null) ? precIsotopeMods : Collections.emptyList();
 
-            LibPrecursor libPrecursor = makeLibPrecursor(precursor, precIsotopeMods, run);
+            LibPrecursor libPrecursor = makeLibPrecursor(precursor, precIsotopeMods, run, batch);
             libPeptide.addPrecursor(libPrecursor);
         }
         return libPeptide;
     }
 
-    private LibPeptide makeLibMolecule(Molecule molecule, List<MoleculePrecursor> precursors, TargetedMSRun run)
+    private LibPeptide makeLibMolecule(Molecule molecule, List<MoleculePrecursor> precursors, TargetedMSRun run, LibraryDataBatch batch)
     {
         LibPeptide libMolecule = makeLibMolecule(molecule);
 
         for(MoleculePrecursor precursor: precursors)
         {
-            LibPrecursor libPrecursor = makeLibPrecursor(precursor, run);
+            LibPrecursor libPrecursor = makeLibPrecursor(precursor, run, batch);
             libMolecule.addPrecursor(libPrecursor);
         }
         return libMolecule;
     }
 
-    private LibPeptide makeLibPeptide(Peptide peptide)
+    private LibPeptide makeLibPeptide(Peptide peptide, LibraryDataBatch batch)
     {
         LibPeptide libPeptide = new LibPeptide();
         libPeptide.setSequence(peptide.getSequence());
@@ -551,7 +849,7 @@ private LibPeptide makeLibPeptide(Peptide peptide)
         libPeptide.setNumMissedCleavages(peptide.getNumMissedCleavages());
 
         // Get the structural modifications for the peptide
-        List<Peptide.StructuralModification> strMods = ModificationManager.getPeptideStructuralModifications(peptide.getId());
+        List<Peptide.StructuralModification> strMods = batch.getStructuralModifications(peptide.getId());
         for(Peptide.StructuralModification pepMod: strMods)
         {
             LibPeptideStructuralModification libPepMod = new LibPeptideStructuralModification();
@@ -580,61 +878,62 @@ private LibPeptide makeLibMolecule(Molecule molecule)
         return result;
     }
 
-    private PrecursorChromInfo getBestPrecursorChromInfo(GeneralPrecursor<?> precursor)
+    private PrecursorChromInfo getBestPrecursorChromInfo(GeneralPrecursor<?> precursor, LibraryDataBatch batch)
     {
         if(_libraryType == RunRepresentativeDataState.Representative_Peptide)
         {
-            // Get the precursor chrom info for this precursor that has the max total area across all replicates.
-            return PrecursorManager.getBestPrecursorChromInfoForPrecursor(precursor.getId());
+            // The precursor chrom info for this precursor that has the max total area across all replicates.
+            return batch.getBestChromInfo(precursor.getId());
         }
         else if(_libraryType == RunRepresentativeDataState.Representative_Protein)
         {
+            // The batch for a peptide group only considers chrom infos from its best replicate
             if(_bestReplicateIdForCurrentPeptideGroup != null)
             {
-                return PrecursorManager.getBestPrecursorChromInfoForPrecursorAndReplicate(precursor.getId(), _bestReplicateIdForCurrentPeptideGroup);
+                return batch.getBestChromInfo(precursor.getId());
             }
         }
         return null;
     }
 
     private LibPrecursor makeLibPrecursor(Precursor precursor,
-                                          List<Peptide.IsotopeModification> precursorIsotopeMods, TargetedMSRun run)
+                                          List<Peptide.IsotopeModification> precursorIsotopeMods, TargetedMSRun run, LibraryDataBatch batch)
     {
-        PrecursorChromInfo bestChromInfo = getBestPrecursorChromInfo(precursor);
+        PrecursorChromInfo bestChromInfo = getBestPrecursorChromInfo(precursor, batch);
         LibPrecursor libPrecursor = new LibPrecursor(precursor, _isotopeLabelMap, bestChromInfo, run, _sampleFileIdMap);
 
         // Add the precursor isotope modifications
         addPrecursorIsotopeModifications(precursorIsotopeMods, libPrecursor);
 
         // Add precursor retention times
-        addPrecursorRetentionTimes(libPrecursor, precursor);
+        addPrecursorRetentionTimes(libPrecursor, precursor, batch);
 
         // Add transitions.
-        Collection<Transition> transitions = TransitionManager.getTransitionsForPrecursor(precursor.getId(), _user, _container);
-        addTransitions(libPrecursor, transitions, bestChromInfo, (t, tci) -> new LibTransition(t, tci, precursor, TransitionManager.getOptimizations(t.getId()), TargetedMSManager.getTransitionFullScanSettings(run.getId())));
+        addTransitions(libPrecursor, batch.getTransitions(precursor.getId()), bestChromInfo, batch,
+                (t, tci) -> new LibTransition(t, tci, precursor, batch.getOptimizations(t.getId()), run.fetchFullScanSettings()));
         _precursorCount++;
         return libPrecursor;
     }
 
-    private LibPrecursor makeLibPrecursor(MoleculePrecursor precursor, TargetedMSRun run)
+    private LibPrecursor makeLibPrecursor(MoleculePrecursor precursor, TargetedMSRun run, LibraryDataBatch batch)
     {
-        PrecursorChromInfo bestChromInfo = getBestPrecursorChromInfo(precursor);
+        PrecursorChromInfo bestChromInfo = getBestPrecursorChromInfo(precursor, batch);
         LibPrecursor libPrecursor = new LibPrecursor(precursor, _isotopeLabelMap, bestChromInfo, run, _sampleFileIdMap);
 
         // Add precursor retention times
-        addPrecursorRetentionTimes(libPrecursor, precursor);
+        addPrecursorRetentionTimes(libPrecursor, precursor, batch);
 
-        Collection<MoleculeTransition> transitions = MoleculeTransitionManager.getTransitionsForPrecursor(precursor.getId(), _user, _container);
         // Add transitions.
-        addTransitions(libPrecursor, transitions, bestChromInfo, (t, tci) -> new LibTransition(t, tci, precursor, TransitionManager.getOptimizations(t.getId()), run.fetchFullScanSettings()));
+        addTransitions(libPrecursor, batch.getMoleculeTransitions(precursor.getId()), bestChromInfo, batch,
+                (t, tci) -> new LibTransition(t, tci, precursor, batch.getOptimizations(t.getId()), run.fetchFullScanSettings()));
         _precursorCount++;
         return libPrecursor;
     }
 
-    private void addPrecursorRetentionTimes(LibPrecursor libPrecursor, GeneralPrecursor<?> precursor)
+    private void addPrecursorRetentionTimes(LibPrecursor libPrecursor, GeneralPrecursor<?> precursor, LibraryDataBatch batch)
     {
         // Get the precursor chrom infos
-        List<PrecursorChromInfo> precursorChromInfos = PrecursorManager.getSortedPrecursorChromInfosForPrecursor(precursor.getId());
+        List<PrecursorChromInfo> precursorChromInfos = batch.getChromInfos(precursor.getId());
 
         for(PrecursorChromInfo chromInfo: precursorChromInfos)
         {
@@ -677,14 +976,15 @@ private void addPrecursorIsotopeModifications(List<Peptide.IsotopeModification>
         }
     }
 
-    private <T extends GeneralTransition> void addTransitions(LibPrecursor precToSave, Collection<T> transitions, PrecursorChromInfo precursorChromInfo, BiFunction<T, TransitionChromInfo, LibTransition> factory)
+    private <T extends GeneralTransition> void addTransitions(LibPrecursor precToSave, Collection<T> transitions, PrecursorChromInfo precursorChromInfo,
+                                                              LibraryDataBatch batch, BiFunction<T, TransitionChromInfo, LibTransition> factory)
     {
         for(T transition: transitions)
         {
             TransitionChromInfo tci = null;
             if(precursorChromInfo != null)
             {
-                tci = TransitionManager.getTransitionChromInfoForTransition(transition.getId(), precursorChromInfo.getId());
+                tci = batch.getTransitionChromInfo(transition.getId(), precursorChromInfo.getId());
             }
             LibTransition transitionToSave = factory.apply(transition, tci);
             precToSave.addTransition(transitionToSave);
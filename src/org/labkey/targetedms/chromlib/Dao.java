@@ -38,4 +38,9 @@
     List<T> queryForForeignKey(String foreignKeyColumn, int foreignKeyValue, Connection connection) throws SQLException;
 
     List<T> queryAll(Connection connection) throws SQLException;
+
+    /** Releases any statements that were prepared and kept for reuse across calls */
+    default void closeStatements() throws SQLException
+    {
+    }
 }
@@ -15,6 +15,7 @@ protected List<LibPredictor> parseQueryResult(ResultSet rs) throws SQLException
         while (rs.next())
         {
             LibPredictor libPredictor = new LibPredictor();
+            libPredictor.setId(rs.getInt(Constants.PredictorColumn.Id.name()));
             libPredictor.setName(rs.getString(Constants.PredictorColumn.Name.name()));
             libPredictor.setStepSize(rs.getDouble(Constants.PredictorColumn.StepSize.name()));
             libPredictor.setStepCount(rs.getInt(Constants.PredictorColumn.StepCount.name()));
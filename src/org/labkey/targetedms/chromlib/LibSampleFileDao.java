@@ -123,8 +123,10 @@ protected List<LibSampleFile> parseQueryResult(ResultSet rs) throws SQLException
             sampleFile.setInstrumentIonizationType(rs.getString(SampleFileColumn.InstrumentIonizationType.baseColumn().name()));
             sampleFile.setInstrumentAnalyzer(rs.getString(SampleFileColumn.InstrumentAnalyzer.baseColumn().name()));
             sampleFile.setInstrumentDetector(rs.getString(SampleFileColumn.InstrumentDetector.baseColumn().name()));
-            sampleFile.setCePredictorId(rs.getInt(SampleFileColumn.CePredictorId.baseColumn().name()));
-            sampleFile.setDpPredictorId(rs.getInt(SampleFileColumn.DpPredictorId.baseColumn().name()));
+            int cePredictorId = rs.getInt(SampleFileColumn.CePredictorId.baseColumn().name());
+            sampleFile.setCePredictorId(rs.wasNull() ? null : cePredictorId);
+            int dpPredictorId = rs.getInt(SampleFileColumn.DpPredictorId.baseColumn().name());
+            sampleFile.setDpPredictorId(rs.wasNull() ? null : dpPredictorId);
             sampleFiles.add(sampleFile);
         }
         return sampleFiles;
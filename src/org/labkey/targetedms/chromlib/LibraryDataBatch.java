@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2022 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.chromlib;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SimpleFilter;
+import org.labkey.api.data.Sort;
+import org.labkey.api.data.SqlSelector;
+import org.labkey.api.data.TableSelector;
+import org.labkey.api.query.FieldKey;
+import org.labkey.api.security.User;
+import org.labkey.targetedms.TargetedMSManager;
+import org.labkey.targetedms.TargetedMSModule;
+import org.labkey.targetedms.TargetedMSRun;
+import org.labkey.targetedms.TargetedMSSchema;
+import org.labkey.targetedms.parser.ChromatogramReader;
+import org.labkey.targetedms.parser.GeneralPrecursor;
+import org.labkey.targetedms.parser.Molecule;
+import org.labkey.targetedms.parser.MoleculeTransition;
+import org.labkey.targetedms.parser.Peptide;
+import org.labkey.targetedms.parser.PrecursorChromInfo;
+import org.labkey.targetedms.parser.Transition;
+import org.labkey.targetedms.parser.TransitionChromInfo;
+import org.labkey.targetedms.parser.TransitionOptimization;
+import org.labkey.targetedms.query.DocTransitionsTableInfo;
+import org.labkey.targetedms.query.MoleculeTransitionsTableInfo;
+import org.labkey.targetedms.query.PrecursorManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Everything that ContainerChromatogramLibraryWriter needs to write a batch of precursors from a run: their molecules
+ * and modifications, their chrom infos, the best chrom info for each precursor along with its chromatogram and
+ * transition chrom infos, and their transitions and optimizations. Each is fetched with a single set-based query for
+ * the whole batch, instead of a few queries for every peptide, precursor, and transition.
+ */
+class LibraryDataBatch
+{
+    private static final String CHROMATOGRAM_COLUMN = "Chromatogram";
+
+    private final Map<Long, Peptide> _peptides = new HashMap<>();
+    private final Map<Long, Molecule> _molecules = new HashMap<>();
+    private final Map<Long, List<Peptide.StructuralModification>> _structuralMods;
+    private final Map<Long, List<Peptide.IsotopeModification>> _isotopeMods;
+    // PrecursorId -> chrom infos, in PrecursorChromInfo's sort order
+    private final Map<Long, List<PrecursorChromInfo>> _chromInfos;
+    // PrecursorId -> best chrom info
+    private final Map<Long, PrecursorChromInfo> _bestChromInfos = new HashMap<>();
+    // PrecursorChromInfoId -> TransitionId -> TransitionChromInfo
+    private final Map<Long, Map<Long, TransitionChromInfo>> _transitionChromInfos = new HashMap<>();
+    private final Map<Long, List<Transition>> _transitions;
+    private final Map<Long, List<MoleculeTransition>> _moleculeTransitions;
+    private final Map<Long, List<TransitionOptimization>> _optimizations;
+
+    /**
+     * @param precursors proteomic or small molecule precursors from the run, but not a mix of the two
+     * @param bestSampleFileIds if not empty, only chrom infos from these sample files can be a precursor's best
+     */
+    LibraryDataBatch(Container container, User user, TargetedMSRun run, Collection<? extends GeneralPrecursor<?>> precursors,
+                     boolean molecules, @NotNull Set<Long> bestSampleFileIds)
+    {
+        Set<Long> precursorIds = precursors.stream().map(GeneralPrecursor::getId).collect(Collectors.toSet());
+        Set<Long> moleculeIds = precursors.stream().map(GeneralPrecursor::getGeneralMoleculeId).collect(Collectors.toSet());
+
+        if (molecules)
+        {
+            SQLFragment sql = new SQLFragment("SELECT mol.*, gm.* FROM ");
+            sql.append(TargetedMSManager.getTableInfoMolecule(), "mol");
+            sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoGeneralMolecule(), "gm").append(" ON mol.Id = gm.Id");
+            sql.append(" WHERE gm.Id ").append(inClause(moleculeIds));
+            new SqlSelector(TargetedMSManager.getSchema(), sql).forEach(Molecule.class, m -> _molecules.put(m.getId(), m));
+            _structuralMods = Collections.emptyMap();
+            _isotopeMods = Collections.emptyMap();
+        }
+        else
+        {
+            SQLFragment sql = new SQLFragment("SELECT pep.*, gm.* FROM ");
+            sql.append(TargetedMSManager.getTableInfoPeptide(), "pep");
+            sql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoGeneralMolecule(), "gm").append(" ON pep.Id = gm.Id");
+            sql.append(" WHERE gm.Id ").append(inClause(moleculeIds));
+            new SqlSelector(TargetedMSManager.getSchema(), sql).forEach(Peptide.class, p -> _peptides.put(p.getId(), p));
+
+            _structuralMods = group(new TableSelector(TargetedMSManager.getTableInfoPeptideStructuralModification(),
+                    inFilter("PeptideId", moleculeIds), null).getArrayList(Peptide.StructuralModification.class), Peptide.StructuralModification::getPeptideId);
+            _isotopeMods = group(new TableSelector(TargetedMSManager.getTableInfoPeptideIsotopeModification(),
+                    inFilter("PeptideId", moleculeIds), null).getArrayList(Peptide.IsotopeModification.class), Peptide.IsotopeModification::getPeptideId);
+        }
+
+        // Leave out the chromatograms themselves. Only the best chrom info's chromatogram is written to the library.
+        Set<String> chromInfoColumns = new HashSet<>(TargetedMSManager.getTableInfoPrecursorChromInfo().getColumnNameSet());
+        chromInfoColumns.remove(CHROMATOGRAM_COLUMN);
+        _chromInfos = group(new TableSelector(TargetedMSManager.getTableInfoPrecursorChromInfo(), chromInfoColumns,
+                inFilter("PrecursorId", precursorIds), null).getArrayList(PrecursorChromInfo.class), PrecursorChromInfo::getPrecursorId);
+        for (Map.Entry<Long, List<PrecursorChromInfo>> entry : _chromInfos.entrySet())
+        {
+            // Do the sort in Java to avoid DB-specific null sorting behaviors
+            Collections.sort(entry.getValue());
+            List<PrecursorChromInfo> candidates = entry.getValue().stream()
+                    .filter(pci -> bestSampleFileIds.isEmpty() || bestSampleFileIds.contains(pci.getSampleFileId()))
+                    .collect(Collectors.toList());
+            PrecursorChromInfo best = PrecursorManager.getBestPrecursorChromInfo(candidates);
+            if (best != null)
+            {
+                _bestChromInfos.put(entry.getKey(), best);
+            }
+        }
+        loadBestChromInfoDetails(run);
+
+        TargetedMSSchema schema = new TargetedMSSchema(user, container);
+        if (molecules)
+        {
+            _transitions = Collections.emptyMap();
+            _moleculeTransitions = group(new TableSelector(new MoleculeTransitionsTableInfo(schema, null, true), MoleculeTransition.getColumns(),
+                    inFilter("GeneralPrecursorId", precursorIds), new Sort("TransitionId")).getArrayList(MoleculeTransition.class), MoleculeTransition::getGeneralPrecursorId);
+        }
+        else
+        {
+            _transitions = group(new TableSelector(new DocTransitionsTableInfo(schema, null), Transition.getColumns(),
+                    inFilter("PrecursorId", precursorIds), new Sort("Id")).getArrayList(Transition.class), Transition::getGeneralPrecursorId);
+            _moleculeTransitions = Collections.emptyMap();
+        }
+
+        SQLFragment optimizationSql = new SQLFragment("SELECT o.* FROM ");
+        optimizationSql.append(TargetedMSManager.getTableInfoTransitionOptimization(), "o");
+        optimizationSql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoGeneralTransition(), "gt").append(" ON o.TransitionId = gt.Id");
+        optimizationSql.append(" WHERE gt.GeneralPrecursorId ").append(inClause(precursorIds));
+        optimizationSql.append(" ORDER BY o.Id");
+        _optimizations = group(new SqlSelector(TargetedMSManager.getSchema(), optimizationSql).getArrayList(TransitionOptimization.class), TransitionOptimization::getTransitionId);
+    }
+
+    /** Fetch the chromatograms and transition chrom infos, but only for each precursor's best chrom info */
+    private void loadBestChromInfoDetails(TargetedMSRun run)
+    {
+        if (_bestChromInfos.isEmpty())
+        {
+            return;
+        }
+        Map<Long, PrecursorChromInfo> bestById = _bestChromInfos.values().stream().collect(Collectors.toMap(PrecursorChromInfo::getId, Function.identity()));
+
+        SQLFragment sql = new SQLFragment("SELECT Id, " + CHROMATOGRAM_COLUMN + " FROM ");
+        sql.append(TargetedMSManager.getTableInfoPrecursorChromInfo(), "pci");
+        sql.append(" WHERE " + CHROMATOGRAM_COLUMN + " IS NOT NULL AND Id ").append(inClause(bestById.keySet()));
+        new SqlSelector(TargetedMSManager.getSchema(), sql).forEach(rs -> bestById.get(rs.getLong(1)).setChromatogram(rs.getBytes(2)));
+
+        // The rest come from the SKYD. Read them in file order with a few large reads.
+        boolean loadFromSkyd = Boolean.parseBoolean(TargetedMSModule.PREFER_SKYD_FILE_CHROMATOGRAMS_PROPERTY.getEffectiveValue(run.getContainer()));
+        ChromatogramReader.prefetch(run, bestById.values(), loadFromSkyd);
+
+        new TableSelector(TargetedMSManager.getTableInfoTransitionChromInfo(), inFilter("PrecursorChromInfoId", bestById.keySet()), null)
+                .forEach(TransitionChromInfo.class, tci -> _transitionChromInfos.computeIfAbsent(tci.getPrecursorChromInfoId(), id -> new HashMap<>()).put(tci.getTransitionId(), tci));
+    }
+
+    Peptide getPeptide(long peptideId)
+    {
+        return _peptides.get(peptideId);
+    }
+
+    Molecule getMolecule(long moleculeId)
+    {
+        return _molecules.get(moleculeId);
+    }
+
+    List<Peptide.StructuralModification> getStructuralModifications(long peptideId)
+    {
+        return _structuralMods.getOrDefault(peptideId, Collections.emptyList());
+    }
+
+    List<Peptide.IsotopeModification> getIsotopeModifications(long peptideId)
+    {
+        return _isotopeMods.getOrDefault(peptideId, Collections.emptyList());
+    }
+
+    /** @return the precursor's chrom infos, in PrecursorChromInfo's sort order */
+    List<PrecursorChromInfo> getChromInfos(long precursorId)
+    {
+        return _chromInfos.getOrDefault(precursorId, Collections.emptyList());
+    }
+
+    @Nullable
+    PrecursorChromInfo getBestChromInfo(long precursorId)
+    {
+        return _bestChromInfos.get(precursorId);
+    }
+
+    @Nullable
+    TransitionChromInfo getTransitionChromInfo(long transitionId, long precursorChromInfoId)
+    {
+        return _transitionChromInfos.getOrDefault(precursorChromInfoId, Collections.emptyMap()).get(transitionId);
+    }
+
+    List<Transition> getTransitions(long precursorId)
+    {
+        return _transitions.getOrDefault(precursorId, Collections.emptyList());
+    }
+
+    List<MoleculeTransition> getMoleculeTransitions(long precursorId)
+    {
+        return _moleculeTransitions.getOrDefault(precursorId, Collections.emptyList());
+    }
+
+    List<TransitionOptimization> getOptimizations(long transitionId)
+    {
+        return _optimizations.getOrDefault(transitionId, Collections.emptyList());
+    }
+
+    private static SimpleFilter inFilter(String column, Collection<Long> ids)
+    {
+        return new SimpleFilter(new SimpleFilter.InClause(FieldKey.fromParts(column), ids));
+    }
+
+    private static SQLFragment inClause(Collection<Long> ids)
+    {
+        SQLFragment result = new SQLFragment();
+        TargetedMSManager.getSqlDialect().appendInClauseSql(result, ids);
+        return result;
+    }
+
+    /** Group the rows by their parent's id, preserving their order */
+    private static <T> Map<Long, List<T>> group(List<T> rows, Function<T, Long> parentId)
+    {
+        Map<Long, List<T>> result = new HashMap<>();
+        for (T row : rows)
+        {
+            result.computeIfAbsent(parentId.apply(row), id -> new ArrayList<>()).add(row);
+        }
+        return result;
+    }
+}
@@ -54,6 +54,18 @@ public RawMetricDataSet(SampleFileQCMetadata metadata, PrecursorInfo precursor)
         _precursor = precursor;
     }
 
+    /** Copies the metric value but not the moving range and CUSUM values, which depend on the surrounding rows */
+    public RawMetricDataSet(RawMetricDataSet source)
+    {
+        this(source._sampleFile, source._precursor);
+        seriesLabel = source.seriesLabel;
+        metricValue = source.metricValue;
+        metricId = source.metricId;
+        metricSeriesIndex = source.metricSeriesIndex;
+        precursorChromInfoId = source.precursorChromInfoId;
+        _guideSetKey = source._guideSetKey;
+    }
+
     public SampleFileQCMetadata getSampleFile()
     {
         return _sampleFile;
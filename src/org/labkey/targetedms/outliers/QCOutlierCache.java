@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2022 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.outliers;
+
+import org.json.JSONObject;
+import org.labkey.api.cache.BlockingCache;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.DbScope;
+import org.labkey.api.targetedms.model.SampleFileInfo;
+import org.labkey.targetedms.TargetedMSManager;
+import org.labkey.targetedms.TargetedMSSchema;
+import org.labkey.targetedms.model.GuideSet;
+import org.labkey.targetedms.model.GuideSetKey;
+import org.labkey.targetedms.model.GuideSetStats;
+import org.labkey.targetedms.model.QCMetricConfiguration;
+import org.labkey.targetedms.model.RawMetricDataSet;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Materialized results of the full-history outlier calculations for a QC folder: the raw metric values with their
+ * moving range and CUSUM values filled in, the guide set statistics, and the per-sample-file outlier counts. The QC
+ * dashboard, the outlier summary, and each of the plots would otherwise query every metric value in the folder and
+ * recompute all of the statistics on every request.
+ *
+ * The results only change when a run is imported or deleted, or when the guide sets, exclusions, or enabled metrics
+ * change, each of which calls {@link #invalidate(Container)}. The next request recalculates the folder's results once
+ * and concurrent requests wait for that calculation instead of repeating it. Callers must treat the cached rows and
+ * stats as read-only.
+ */
+public class QCOutlierCache
+{
+    private static final int CACHE_SIZE = 100;
+
+    private static final QCOutlierCache INSTANCE = new QCOutlierCache();
+
+    private final BlockingCache<Key, MetricData> _metricDataCache = CacheManager.getBlockingCache(CACHE_SIZE, CacheManager.HOUR, "TargetedMS QC metric values and guide set stats", null);
+    private final BlockingCache<Key, OutlierSummary> _summaryCache = CacheManager.getBlockingCache(CACHE_SIZE, CacheManager.HOUR, "TargetedMS QC outlier summaries", null);
+
+    /**
+     * Bumped by each invalidation so that a calculation that started before a change can't repopulate the cache with
+     * stale results after it. Container ID to generation.
+     */
+    private final Map<String, AtomicLong> _generations = new ConcurrentHashMap<>();
+
+    public static QCOutlierCache get()
+    {
+        return INSTANCE;
+    }
+
+    private QCOutlierCache()
+    {
+    }
+
+    /**
+     * Full folder history, with no annotation filtering, for the specified metrics.
+     */
+    public MetricData getMetricData(TargetedMSSchema schema, List<QCMetricConfiguration> configurations, List<GuideSet> guideSets, boolean showExcluded)
+    {
+        Key key = new Key(schema.getContainer(), getGeneration(schema.getContainer()), configurations, showExcluded);
+        return _metricDataCache.get(key, null, (k, argument) -> {
+            List<RawMetricDataSet> rows = OutlierGenerator.get().getRawMetricDataSets(schema, configurations, null, null, Collections.emptyList(), showExcluded);
+            Map<GuideSetKey, GuideSetStats> stats = OutlierGenerator.get().getAllProcessedMetricGuideSets(rows, guideSets.stream().collect(Collectors.toMap(GuideSet::getRowId, Function.identity())));
+            return new MetricData(Collections.unmodifiableList(rows), Collections.unmodifiableMap(stats));
+        });
+    }
+
+    /**
+     * Outlier counts for every sample file and every guide set in the folder, including excluded samples.
+     */
+    public OutlierSummary getOutlierSummary(TargetedMSSchema schema, List<QCMetricConfiguration> configurations, List<GuideSet> guideSets)
+    {
+        Key key = new Key(schema.getContainer(), getGeneration(schema.getContainer()), configurations, true);
+        return _summaryCache.get(key, null, (k, argument) -> {
+            MetricData data = getMetricData(schema, configurations, guideSets, true);
+            Map<Integer, QCMetricConfiguration> metricMap = configurations.stream().collect(Collectors.toMap(QCMetricConfiguration::getId, Function.identity()));
+
+            List<SampleFileInfo> sampleFiles = OutlierGenerator.get().getSampleFiles(data.getRows(), data.getStats(), metricMap, schema, null);
+            List<JSONObject> guideSetsJSON = guideSets.stream().map(x -> x.toJSON(data.getRows(), metricMap, data.getStats())).collect(Collectors.toList());
+            return new OutlierSummary(Collections.unmodifiableList(sampleFiles), Collections.unmodifiableList(guideSetsJSON));
+        });
+    }
+
+    /** Discard the container's results once the current transaction, if any, commits or rolls back */
+    public void invalidate(Container container)
+    {
+        TargetedMSManager.getSchema().getScope().addCommitTask(() -> {
+            _generations.computeIfAbsent(container.getId(), x -> new AtomicLong()).incrementAndGet();
+            _metricDataCache.removeUsingFilter(key -> key._containerId.equals(container.getId()));
+            _summaryCache.removeUsingFilter(key -> key._containerId.equals(container.getId()));
+        }, DbScope.CommitTaskOption.IMMEDIATE, DbScope.CommitTaskOption.POSTCOMMIT, DbScope.CommitTaskOption.POSTROLLBACK);
+    }
+
+    private long getGeneration(Container container)
+    {
+        return _generations.computeIfAbsent(container.getId(), x -> new AtomicLong()).get();
+    }
+
+    public static class MetricData
+    {
+        private final List<RawMetricDataSet> _rows;
+        private final Map<GuideSetKey, GuideSetStats> _stats;
+
+        private MetricData(List<RawMetricDataSet> rows, Map<GuideSetKey, GuideSetStats> stats)
+        {
+            _rows = rows;
+            _stats = stats;
+        }
+
+        public List<RawMetricDataSet> getRows()
+        {
+            return _rows;
+        }
+
+        public Map<GuideSetKey, GuideSetStats> getStats()
+        {
+            return _stats;
+        }
+    }
+
+    public static class OutlierSummary
+    {
+        private final List<SampleFileInfo> _sampleFiles;
+        private final List<JSONObject> _guideSets;
+
+        private OutlierSummary(List<SampleFileInfo> sampleFiles, List<JSONObject> guideSets)
+        {
+            _sampleFiles = sampleFiles;
+            _guideSets = guideSets;
+        }
+
+        /** @param limit maximum number of sample files to return, most recently acquired first, or null for all of them */
+        public List<SampleFileInfo> getSampleFiles(Integer limit)
+        {
+            if (limit != null && _sampleFiles.size() > limit.intValue())
+            {
+                return _sampleFiles.subList(0, limit.intValue());
+            }
+            return _sampleFiles;
+        }
+
+        public List<JSONObject> getGuideSets()
+        {
+            return _guideSets;
+        }
+    }
+
+    private static class Key
+    {
+        private final String _containerId;
+        private final long _generation;
+        private final List<Integer> _metricIds;
+        private final boolean _showExcluded;
+
+        private Key(Container container, long generation, List<QCMetricConfiguration> configurations, boolean showExcluded)
+        {
+            _containerId = container.getId();
+            _generation = generation;
+            _metricIds = configurations.stream().map(QCMetricConfiguration::getId).sorted().collect(Collectors.toList());
+            _showExcluded = showExcluded;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return _generation == key._generation && _showExcluded == key._showExcluded && _containerId.equals(key._containerId) && _metricIds.equals(key._metricIds);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(_containerId, _generation, _metricIds, _showExcluded);
+        }
+    }
+}
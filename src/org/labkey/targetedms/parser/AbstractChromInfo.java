@@ -18,23 +18,17 @@
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
-import org.labkey.api.cache.BlockingCache;
-import org.labkey.api.cache.CacheManager;
 import org.labkey.api.data.Container;
 import org.labkey.api.exp.api.ExpData;
 import org.labkey.api.exp.api.ExperimentService;
-import org.labkey.api.util.Tuple3;
 import org.labkey.api.util.UnexpectedException;
 import org.labkey.targetedms.PanoramaBadDataException;
 import org.labkey.targetedms.TargetedMSModule;
 import org.labkey.targetedms.TargetedMSRun;
+import org.labkey.targetedms.parser.skyd.SkydChromatogramCache;
 
 import java.io.IOException;
-import java.nio.channels.SeekableByteChannel;
-import java.nio.file.Files;
-import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.zip.DataFormatException;
 
@@ -57,46 +51,6 @@ public abstract class AbstractChromInfo extends ChromInfo<PrecursorChromInfoAnno
 
     private static final Logger LOG = LogManager.getLogger(AbstractChromInfo.class);
 
-    private static final BlockingCache<Tuple3<Path, Long, Integer>, byte[]> ON_DEMAND_CHROM_CACHE = new BlockingCache<>(CacheManager.getCache(100, CacheManager.HOUR, "SKYD chromatogram cache"), (key, argument) -> {
-        Path path = key.first;
-        long offset = key.second;
-        int length = key.third;
-
-        long startTime = System.currentTimeMillis();
-        LOG.debug("Loading chromatogram from " + path + ", offset " + offset + ", length " + length);
-        try (SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.READ, StandardOpenOption.SPARSE))
-        {
-            channel.position(offset);
-            java.nio.ByteBuffer byteBuffer = java.nio.ByteBuffer.allocate(length);
-            channel.read(byteBuffer);
-            byteBuffer.position(0);
-            byte[] results = byteBuffer.array();
-            LOG.debug("Finished loading from " + path + ", offset " + offset + ", length " + length + " in " + (System.currentTimeMillis() - startTime) + "ms");
-            return results;
-        }
-        catch (NoSuchFileException e)
-        {
-            // Avoid a separate call to Files.exists() as it adds ~1 second overhead
-            LOG.debug("Could not find SKYD file to get chromatogram at path " + path);
-            return null;
-        }
-        catch (RuntimeException e)
-        {
-            if (e.getMessage() != null && e.getMessage().contains("The specified key does not exist"))
-            {
-                // Avoid a separate call to Files.exists() as it adds ~1 second overhead
-                LOG.debug("Could not find SKYD file to get chromatogram at path " + path + ": " + e.getMessage());
-                return null;
-            }
-            throw e;
-        }
-        catch (IOException e)
-        {
-            LOG.warn("Unable to fetch chromatogram from " + path, e);
-            return null;
-        }
-    });
-
     public AbstractChromInfo()
     {
     }
@@ -183,6 +137,13 @@ public Chromatogram createChromatogram(TargetedMSRun run)
 
     @Nullable
     public Chromatogram createChromatogram(TargetedMSRun run, boolean loadFromSkyd)
+    {
+        return DecodedChromatogramCache.get().get(run.getId(), this, loadFromSkyd, () -> decodeChromatogram(run, loadFromSkyd));
+    }
+
+    /** Bypasses the DecodedChromatogramCache, for callers that need to check the current state of the underlying bytes */
+    @Nullable
+    public Chromatogram decodeChromatogram(TargetedMSRun run, boolean loadFromSkyd)
     {
         try
         {
@@ -238,7 +199,7 @@ private CompressedBytesAndStatus getCompressedBytesAndStatus(TargetedMSRun run,
                     else
                     {
                         LOG.debug("Attempting to fetch chromatogram bytes (possibly cached) from " + skydPath + " for " + this);
-                        byte[] diskBytes = ON_DEMAND_CHROM_CACHE.get(new Tuple3<>(skydPath, _chromatogramOffset, _chromatogramLength));
+                        byte[] diskBytes = SkydChromatogramCache.get().get(skydPath, _chromatogramOffset, _chromatogramLength);
                         if (diskBytes == null)
                         {
                             status = Chromatogram.SourceStatus.skydMissing;
@@ -98,6 +98,22 @@ public float[] getIntensities(int index)
         return timeIntensities.getIntensities();
     }
 
+    /**
+     * Builds the merged times and interpolated intensities for all of the transitions up front. Afterwards
+     * getTimes() and getIntensities() only read, so the instance can be shared between threads once it's been
+     * safely published.
+     */
+    public void mergeTimeIntensities()
+    {
+        if (getTransitionsCount() == 0) {
+            return;
+        }
+        getTimes();
+        for (int i = 0; i < getTransitionsCount(); i++) {
+            getIntensities(i);
+        }
+    }
+
     public List<TimeIntensities> getTransitionTimeIntensities()
     {
         return Collections.unmodifiableList(_transitionTimeIntensities);
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2022 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.parser;
+
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SqlSelector;
+import org.labkey.api.exp.api.ExpData;
+import org.labkey.api.exp.api.ExperimentService;
+import org.labkey.api.util.Pair;
+import org.labkey.targetedms.TargetedMSManager;
+import org.labkey.targetedms.TargetedMSModule;
+import org.labkey.targetedms.TargetedMSRun;
+import org.labkey.targetedms.parser.skyd.SkydChromatogramCache;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads chromatograms for many chrom infos from the same run at once. Rather than a seek and read per chromatogram,
+ * the ones that come from the run's SKYD are fetched in file order with a few coalesced reads and placed in the
+ * {@link SkydChromatogramCache}. The chart requests that a chromatogram grid issues for each of the cells on the
+ * page it rendered then find their bytes already in memory.
+ */
+public class ChromatogramReader
+{
+    private ChromatogramReader()
+    {
+    }
+
+    /**
+     * @return the decoded chromatograms, in the same order as the chrom infos, skipping any that aren't available
+     */
+    public static <T extends AbstractChromInfo> Map<T, Chromatogram> readChromatograms(TargetedMSRun run, Collection<T> chromInfos, boolean loadFromSkyd)
+    {
+        prefetch(run, chromInfos, loadFromSkyd);
+
+        Map<T, Chromatogram> result = new LinkedHashMap<>();
+        for (T chromInfo : chromInfos)
+        {
+            Chromatogram chromatogram = chromInfo.createChromatogram(run, loadFromSkyd);
+            if (chromatogram != null)
+            {
+                result.put(chromInfo, chromatogram);
+            }
+        }
+        return result;
+    }
+
+    /** Warm the cache for the chrom infos' chromatograms that will be read from the SKYD instead of the database */
+    public static void prefetch(TargetedMSRun run, Collection<? extends AbstractChromInfo> chromInfos, boolean loadFromSkyd)
+    {
+        List<Pair<Long, Integer>> ranges = new ArrayList<>();
+        for (AbstractChromInfo chromInfo : chromInfos)
+        {
+            if ((loadFromSkyd || chromInfo.getChromatogram() == null) && chromInfo.getChromatogramOffset() != null && chromInfo.getChromatogramLength() != null)
+            {
+                ranges.add(Pair.of(chromInfo.getChromatogramOffset(), chromInfo.getChromatogramLength()));
+            }
+        }
+        prefetch(run, ranges);
+    }
+
+    /** Warm the cache for the precursor chrom infos' chromatograms, such as the ones on the page of a chromatogram grid */
+    public static void prefetchForPrecursorChromInfos(Collection<Long> precursorChromInfoIds)
+    {
+        if (precursorChromInfoIds.isEmpty())
+        {
+            return;
+        }
+        SQLFragment where = new SQLFragment("pci.Id ");
+        TargetedMSManager.getSqlDialect().appendInClauseSql(where, precursorChromInfoIds);
+        prefetch(where);
+    }
+
+    /** Warm the cache for the chromatograms of all of the precursors of the molecule chrom infos */
+    public static void prefetchForGeneralMoleculeChromInfos(Collection<Long> generalMoleculeChromInfoIds)
+    {
+        if (generalMoleculeChromInfoIds.isEmpty())
+        {
+            return;
+        }
+        SQLFragment where = new SQLFragment("pci.GeneralMoleculeChromInfoId ");
+        TargetedMSManager.getSqlDialect().appendInClauseSql(where, generalMoleculeChromInfoIds);
+        prefetch(where);
+    }
+
+    private static void prefetch(SQLFragment where)
+    {
+        // The chrom infos on a page almost always come from a single run, but each run has its own SKYD
+        SQLFragment runSql = new SQLFragment("SELECT DISTINCT rep.RunId FROM ");
+        runSql.append(TargetedMSManager.getTableInfoPrecursorChromInfo(), "pci");
+        runSql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoSampleFile(), "sf").append(" ON pci.SampleFileId = sf.Id");
+        runSql.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoReplicate(), "rep").append(" ON sf.ReplicateId = rep.Id");
+        runSql.append(" WHERE ").append(where);
+        for (Long runId : new SqlSelector(TargetedMSManager.getSchema(), runSql).getArrayList(Long.class))
+        {
+            TargetedMSRun run = TargetedMSManager.getRun(runId);
+            if (run != null)
+            {
+                SQLFragment runWhere = new SQLFragment(where);
+                runWhere.append(" AND pci.SampleFileId IN (SELECT sf.Id FROM ");
+                runWhere.append(TargetedMSManager.getTableInfoSampleFile(), "sf");
+                runWhere.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoReplicate(), "rep").append(" ON sf.ReplicateId = rep.Id");
+                runWhere.append(" WHERE rep.RunId = ?)").add(runId);
+                prefetch(run, getSkydRanges(run, runWhere));
+            }
+        }
+    }
+
+    /** Offsets and lengths of the chromatograms that will be read from the SKYD instead of the database */
+    private static List<Pair<Long, Integer>> getSkydRanges(TargetedMSRun run, SQLFragment where)
+    {
+        SQLFragment sql = new SQLFragment("SELECT pci.ChromatogramOffset, pci.ChromatogramLength FROM ");
+        sql.append(TargetedMSManager.getTableInfoPrecursorChromInfo(), "pci");
+        sql.append(" WHERE pci.ChromatogramOffset IS NOT NULL AND pci.ChromatogramLength IS NOT NULL AND ");
+        sql.append(where);
+        if (!Boolean.parseBoolean(TargetedMSModule.PREFER_SKYD_FILE_CHROMATOGRAMS_PROPERTY.getEffectiveValue(run.getContainer())))
+        {
+            sql.append(" AND pci.Chromatogram IS NULL");
+        }
+
+        List<Pair<Long, Integer>> result = new ArrayList<>();
+        new SqlSelector(TargetedMSManager.getSchema(), sql).forEach(rs -> result.add(Pair.of(rs.getLong(1), rs.getInt(2))));
+        return result;
+    }
+
+    private static void prefetch(TargetedMSRun run, List<Pair<Long, Integer>> ranges)
+    {
+        if (ranges.size() > 1)
+        {
+            Path skydPath = getSkydPath(run);
+            if (skydPath != null)
+            {
+                SkydChromatogramCache.get().prefetch(skydPath, ranges);
+            }
+        }
+    }
+
+    @Nullable
+    public static Path getSkydPath(TargetedMSRun run)
+    {
+        if (run.getSkydDataId() == null)
+        {
+            return null;
+        }
+        ExpData skydData = ExperimentService.get().getExpData(run.getSkydDataId());
+        return skydData == null ? null : skydData.getFilePath();
+    }
+}
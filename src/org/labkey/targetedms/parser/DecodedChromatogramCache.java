@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2022 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.parser;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.cache.CacheListener;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.data.ContainerManager;
+import org.labkey.targetedms.TargetedMSModule;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Chromatograms that have already been inflated and parsed, keyed by the chrom info they belong to. The same
+ * PrecursorChromInfo is typically rendered several times in quick succession, from the peptide and precursor pages,
+ * the chromatogram grid, and again when synchronizing the axes, and each would otherwise decompress and decode the
+ * same bytes. The merged times and intensities are built before a Chromatogram is cached, so that it's never
+ * written once shared. Callers must treat the cached Chromatograms and their arrays as read-only.
+ */
+public class DecodedChromatogramCache
+{
+    private static final Logger LOG = LogManager.getLogger(DecodedChromatogramCache.class);
+
+    /** Rough per-array and per-object overhead, so that tiny chromatograms still have some weight */
+    private static final int OBJECT_OVERHEAD = 32;
+
+    private static final DecodedChromatogramCache INSTANCE = new DecodedChromatogramCache();
+
+    private final WeightedLruCache<Key, Chromatogram> _cache = new WeightedLruCache<>(DecodedChromatogramCache::getCapacityBytes, CacheManager.HOUR);
+
+    public static DecodedChromatogramCache get()
+    {
+        return INSTANCE;
+    }
+
+    private DecodedChromatogramCache()
+    {
+        CacheManager.addListener(new CacheListener()
+        {
+            @Override
+            public void clearCaches()
+            {
+                clear();
+            }
+        });
+    }
+
+    /**
+     * @param loadFromSkyd part of the key, since it affects the source status and possibly the data
+     * @param loader decodes the chromatogram on a miss. Null results aren't cached.
+     */
+    @Nullable
+    public Chromatogram get(long runId, AbstractChromInfo chromInfo, boolean loadFromSkyd, Supplier<Chromatogram> loader)
+    {
+        // Chrom infos that haven't been saved yet don't have a stable identity
+        if (chromInfo.getId() <= 0)
+        {
+            return loader.get();
+        }
+        Key key = new Key(runId, chromInfo.getClass(), chromInfo.getId(), loadFromSkyd);
+        WeightedLruCache.Entry<Chromatogram> entry = _cache.get(key);
+        if (entry != null)
+        {
+            return entry.getValue();
+        }
+        Chromatogram result = loader.get();
+        if (result != null)
+        {
+            // Cached instances are shared between request threads, so don't leave any lazily built state behind
+            result.mergeTimeIntensities();
+            _cache.put(key, result, weigh(result));
+        }
+        return result;
+    }
+
+    public void clear()
+    {
+        _cache.clear();
+    }
+
+    /** Drop the chromatograms for runs that are being deleted */
+    public void invalidateRuns(Collection<Long> runIds)
+    {
+        Set<Long> ids = Set.copyOf(runIds);
+        _cache.removeIf(key -> ids.contains(key._runId));
+    }
+
+    public long getBytesResident()
+    {
+        return _cache.getWeight();
+    }
+
+    public int getEntryCount()
+    {
+        return _cache.size();
+    }
+
+    public double getHitRatio()
+    {
+        return _cache.getHitRatio();
+    }
+
+    public long getEvictionCount()
+    {
+        return _cache.getEvictionCount();
+    }
+
+    /** Must be called after {@link Chromatogram#mergeTimeIntensities()}, so the merged arrays are counted too */
+    private static long weigh(Chromatogram chromatogram)
+    {
+        // Transitions often share a single times array, so only count each array once
+        Set<float[]> arrays = Collections.newSetFromMap(new IdentityHashMap<>());
+        long result = OBJECT_OVERHEAD;
+        for (TimeIntensities timeIntensities : chromatogram.getTransitionTimeIntensities())
+        {
+            result += weigh(arrays, timeIntensities.getTimes());
+            result += weigh(arrays, timeIntensities.getIntensities());
+        }
+        if (chromatogram.getTransitionsCount() > 0)
+        {
+            result += weigh(arrays, chromatogram.getTimes());
+            for (int i = 0; i < chromatogram.getTransitionsCount(); i++)
+            {
+                result += weigh(arrays, chromatogram.getIntensities(i));
+            }
+        }
+        return result;
+    }
+
+    private static long weigh(Set<float[]> counted, float[] array)
+    {
+        return array != null && counted.add(array) ? OBJECT_OVERHEAD + (long) array.length * Float.BYTES : 0;
+    }
+
+    public static long getCapacityBytes()
+    {
+        String value = TargetedMSModule.DECODED_CHROMATOGRAM_CACHE_SIZE_PROPERTY.getEffectiveValue(ContainerManager.getRoot());
+        try
+        {
+            return Long.parseLong(value.trim()) * 1024 * 1024;
+        }
+        catch (NumberFormatException e)
+        {
+            LOG.warn("Unable to parse DECODED_CHROMATOGRAM_CACHE_SIZE_PROPERTY value: " + value + ", defaulting to " + TargetedMSModule.DEFAULT_DECODED_CHROMATOGRAM_CACHE_SIZE_MB);
+            return TargetedMSModule.DEFAULT_DECODED_CHROMATOGRAM_CACHE_SIZE_MB * 1024L * 1024L;
+        }
+    }
+
+    private static class Key
+    {
+        private final long _runId;
+        private final Class<?> _type;
+        private final long _chromInfoId;
+        private final boolean _loadFromSkyd;
+
+        private Key(long runId, Class<?> type, long chromInfoId, boolean loadFromSkyd)
+        {
+            _runId = runId;
+            _type = type;
+            _chromInfoId = chromInfoId;
+            _loadFromSkyd = loadFromSkyd;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return _runId == key._runId && _chromInfoId == key._chromInfoId && _loadFromSkyd == key._loadFromSkyd && _type.equals(key._type);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(_runId, _type, _chromInfoId, _loadFromSkyd);
+        }
+    }
+}
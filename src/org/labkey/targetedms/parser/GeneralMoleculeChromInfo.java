@@ -23,6 +23,7 @@
 public class GeneralMoleculeChromInfo extends ChromInfo
 {
     private long _generalMoleculeId;
+    private long _runId;
 
     private double _peakCountRatio;
     private Double _retentionTime;
@@ -40,6 +41,17 @@ public void setGeneralMoleculeId(long gMId)
         _generalMoleculeId = gMId;
     }
 
+    /** Denormalized from the molecule's run so that queries can filter by run or container without joining up the document tree */
+    public long getRunId()
+    {
+        return _runId;
+    }
+
+    public void setRunId(long runId)
+    {
+        _runId = runId;
+    }
+
     public double getPeakCountRatio()
     {
         return _peakCountRatio;
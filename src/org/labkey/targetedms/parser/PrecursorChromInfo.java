@@ -31,6 +31,8 @@
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * User: vsharma
@@ -67,6 +69,8 @@ public class PrecursorChromInfo extends AbstractChromInfo implements Comparable<
     private Double _zscore;
 
     private byte[] _chromatogram;
+    /** Chromatogram bytes that are still being read and validated on a background thread during import */
+    private Future<byte[]> _pendingChromatogram;
     private int _numTransitions;
 
     private Double _ccs;
@@ -382,6 +386,45 @@ public void setChromatogram(byte[] chromatogram)
         _chromatogram = chromatogram;
     }
 
+    public void setPendingChromatogram(Future<byte[]> pendingChromatogram)
+    {
+        _pendingChromatogram = pendingChromatogram;
+    }
+
+    /**
+     * Waits for the chromatogram that's being read in the background, if any. If it couldn't be extracted, forget
+     * about its location in the SKYD too, the same as when it's read inline.
+     */
+    public void awaitPendingChromatogram()
+    {
+        if (_pendingChromatogram != null)
+        {
+            try
+            {
+                _chromatogram = _pendingChromatogram.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw UnexpectedException.wrap(e);
+            }
+            catch (ExecutionException e)
+            {
+                throw UnexpectedException.wrap(e.getCause());
+            }
+            finally
+            {
+                _pendingChromatogram = null;
+            }
+            if (_chromatogram == null)
+            {
+                setChromatogramFormat(null);
+                setChromatogramOffset(null);
+                setChromatogramLength(null);
+            }
+        }
+    }
+
     @Override
     public int getNumTransitions()
     {
@@ -25,24 +25,26 @@
 import org.labkey.targetedms.parser.skyd.CacheHeaderStruct;
 import org.labkey.targetedms.parser.skyd.CachedFileHeaderStruct;
 import org.labkey.targetedms.parser.skyd.ChromGroupHeaderInfo;
-import org.labkey.targetedms.parser.skyd.ChromPeak;
 import org.labkey.targetedms.parser.skyd.ChromTransition;
+import org.labkey.targetedms.parser.skyd.MappedStructRegion;
 import org.labkey.targetedms.parser.skyd.StructSerializer;
+import org.labkey.targetedms.parser.skyd.TransitionMzIndex;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
 
 /**
  * Parses the .skyd binary file format, for chromatogram data.
@@ -56,14 +58,20 @@
 {
     private final File _file;
     private final Logger _log;
+    /** Read the struct arrays through memory-mapped views of the file instead of through a stream */
+    private final boolean _memoryMapped;
     private FileChannel _channel;
     private RandomAccessFile _randomAccessFile;
     private CacheFormat _cacheFormat;
     private CacheHeaderStruct _cacheHeaderStruct;
 
     private ChromGroupHeaderInfo[] _chromatograms;
-    private float[] _allPeaksRt;
     private byte[] _seqBytes;
+    /** Mapped view of all the ChromTransitions in the file, when in memory-mapped mode */
+    private MappedStructRegion _transitionRegion;
+
+    /** Size of the buffer used when streaming struct arrays out of the file */
+    private static final int STREAM_BUFFER_SIZE = 1 << 16;
 
 
     /** Newest supported version */
@@ -73,10 +81,11 @@
 
     private CachedFile[] _cacheFiles;
 
-    public SkylineBinaryParser(File file, Logger log)
+    public SkylineBinaryParser(File file, Logger log, boolean memoryMapped)
     {
         _file = file;
         _log = log;
+        _memoryMapped = memoryMapped;
     }
 
     public ChromGroupHeaderInfo[] getChromatograms()
@@ -86,6 +95,7 @@ public ChromGroupHeaderInfo[] getChromatograms()
 
     public void close()
     {
+        _transitionRegion = null;
         if (_channel != null)
         {
             try { _channel.close(); } catch (IOException ignored) {}
@@ -118,10 +128,16 @@ public void parse() throws IOException
         }
 
         parseFiles();
-        parsePeaks();
+        // Peaks aren't loaded. Nothing in the import uses them, and there can be hundreds of millions in a DIA cache
         _log.debug("Starting to load chromatogram headers");
+        long start = System.currentTimeMillis();
         parseChromatograms();
-        _log.debug("Done loading chromatogram headers");
+        if (_memoryMapped)
+        {
+            _transitionRegion = new MappedStructRegion(_channel, _cacheHeaderStruct.getLocationTransitions(),
+                    _cacheHeaderStruct.getNumTransitions(), _cacheFormat.chromTransitionSerializer().getItemSizeOnDisk());
+        }
+        _log.debug("Done loading " + _chromatograms.length + " chromatogram headers in " + (System.currentTimeMillis() - start) + "ms" + (_memoryMapped ? " (memory-mapped)" : ""));
     }
 
     public static class CachedFile
@@ -173,7 +189,7 @@ private void parseFiles() throws IOException
         CacheHeaderStruct cacheHeaderStruct = _cacheHeaderStruct;
         StructSerializer<CachedFileHeaderStruct> cachedFileHeaderSerializer = cacheFormat.cachedFileSerializer();
         _channel.position(cacheHeaderStruct.getLocationFiles());
-        InputStream stream = Channels.newInputStream(_channel);
+        InputStream stream = new BufferedInputStream(Channels.newInputStream(_channel), STREAM_BUFFER_SIZE);
         _cacheFiles = new CachedFile[_cacheHeaderStruct.getNumFiles()];
         for (int i = 0; i < cacheHeaderStruct.getNumFiles(); i++)
         {
@@ -198,25 +214,44 @@ private String readStringOfByteLength(InputStream inputStream, int length) throw
         return new String(buffer, _cacheFormat.getCharset());
     }
 
-    private void parsePeaks() throws IOException
+    @NotNull
+    private ChromTransition[] parseTransitions(long position, int count) throws IOException
     {
-        _channel.position(_cacheHeaderStruct.getLocationPeaks());
-        ChromPeak[] chromPeaks = _cacheFormat.chromPeakSerializer()
-                .readArray(Channels.newInputStream(_channel), _cacheHeaderStruct.getNumPeaks());
-        _allPeaksRt = new float[chromPeaks.length];
+        _channel.position(position);
+        StructSerializer<ChromTransition> serializer = _cacheFormat.chromTransitionSerializer();
+        // Size the buffer to the whole block so we make a single read from the file
+        return serializer.readArray(new BufferedInputStream(Channels.newInputStream(_channel), Math.max(1, count * serializer.getItemSizeOnDisk())), count);
+    }
 
-        for (int i = 0; i < chromPeaks.length; i++)
+    @NotNull
+    private ChromTransition[] parseTransitions(ChromGroupHeaderInfo header) throws IOException
+    {
+        if (_transitionRegion != null)
         {
-            _allPeaksRt[i] = chromPeaks[i].getRetentionTime();
+            StructSerializer<ChromTransition> serializer = _cacheFormat.chromTransitionSerializer();
+            ChromTransition[] result = new ChromTransition[header.getNumTransitions()];
+            _transitionRegion.read(serializer, header.getStartTransitionIndex(), result, result.length);
+            return result;
         }
+        long chromTransitionPosition = _cacheHeaderStruct.getLocationTransitions() + ((long) _cacheHeaderStruct.getChromTransitionSize() * header.getStartTransitionIndex());
+        return parseTransitions(chromTransitionPosition, header.getNumTransitions());
     }
 
-    @NotNull
-    private ChromTransition[] parseTransitions(long position, int count) throws IOException
+    /**
+     * Reads a full array of structs from the file, either through a memory-mapped view (decoding each struct
+     * directly from the mapped buffer) or through a buffered stream
+     */
+    @SuppressWarnings("unchecked")
+    private <TItem> TItem[] readStructs(StructSerializer<TItem> serializer, long position, int count) throws IOException
     {
+        if (_memoryMapped)
+        {
+            TItem[] result = (TItem[]) Array.newInstance(serializer.getItemClass(), count);
+            new MappedStructRegion(_channel, position, count, serializer.getItemSizeOnDisk()).read(serializer, 0, result, count);
+            return result;
+        }
         _channel.position(position);
-        return _cacheFormat.chromTransitionSerializer()
-                .readArray(Channels.newInputStream(_channel), count);
+        return serializer.readArray(new BufferedInputStream(Channels.newInputStream(_channel), STREAM_BUFFER_SIZE), count);
     }
 
     private void parseChromatograms() throws IOException
@@ -228,10 +263,8 @@ private void parseChromatograms() throws IOException
             IOUtils.readFully(Channels.newInputStream(_channel), _seqBytes);
         }
 
-        _channel.position(_cacheHeaderStruct.getLocationHeaders());
-
-        _chromatograms =_cacheFormat.chromGroupHeaderInfoSerializer().readArray(
-                Channels.newInputStream(_channel), _cacheHeaderStruct.getNumChromatograms());
+        _chromatograms = readStructs(_cacheFormat.chromGroupHeaderInfoSerializer(),
+                _cacheHeaderStruct.getLocationHeaders(), _cacheHeaderStruct.getNumChromatograms());
     }
 
     public SeekableByteChannel getChannel()
@@ -244,7 +277,12 @@ final int getCacheFileSize()
         return _cacheFiles != null ? _cacheFiles.length : 0;
     }
 
-    public int matchTransitions(ChromGroupHeaderInfo header, List<? extends GeneralTransition> transitions, Double explicitRt, double tolerance, boolean multiMatch)
+    /**
+     * @param transitionMzCache decoded product m/z values for the chromatogram groups that have already been examined
+     *                          for the current precursor, which will be populated if this header hasn't been seen yet
+     */
+    public int matchTransitions(ChromGroupHeaderInfo header, List<? extends GeneralTransition> transitions, Double explicitRt, double tolerance, boolean multiMatch,
+                                Map<ChromGroupHeaderInfo, TransitionMzIndex> transitionMzCache)
     {
         int match = 0;
 
@@ -255,41 +293,21 @@ public int matchTransitions(ChromGroupHeaderInfo header, List<? extends GeneralT
                 return match;
         }
 
-        var start = header.getStartTransitionIndex();
-        var numChromTransitions = header.getNumTransitions();
-        var end = start + numChromTransitions;
-        var chromTransitionPosition = _cacheHeaderStruct.getLocationTransitions() + ((long) _cacheHeaderStruct.getChromTransitionSize() * start);
-        ChromTransition[] chromTransitions;
-
-        try
-        {
-            _channel.position(_cacheHeaderStruct.getLocationTransitions() + ((long) _cacheHeaderStruct.getChromTransitionSize() * start));
-             chromTransitions = parseTransitions(chromTransitionPosition, numChromTransitions);
-        }
-        catch (IOException e)
-        {
-            throw new RuntimeException(e);
-        }
+        TransitionMzIndex chromTransitions = transitionMzCache.computeIfAbsent(header, this::getTransitionMzIndex);
 
         for (GeneralTransition transition : transitions)
         {
-            for (int i = 0; i < numChromTransitions; i++)
+            // Transitions from the .skyd file all share the header's polarity, so we only need to compare magnitudes
+            int matchCount = chromTransitions.countMatches(Math.abs(transition.getMz()), tolerance);
+            if (matchCount > 0)
             {
-                // Do we need to look through all of the transitions from the .skyd file?
-                if (header.toSignedMz(transition.getMz()).compareTolerant(chromTransitions[i].getProduct(header), tolerance) == 0)
+                if (explicitRt == null)
                 {
-                    if (explicitRt == null)
-                    {
-                        match++;
-                        if (!multiMatch)
-                        {
-                            break;  // only one match per transition
-                        }
-                    }
-                    else
-                    {
-                        match = multiMatch ? match + 1 : 1; // Examine all RT values even if we're not multimatch
-                    }
+                    match += multiMatch ? matchCount : 1;  // only one match per transition unless multiMatch
+                }
+                else
+                {
+                    match = multiMatch ? match + matchCount : 1; // Examine all RT values even if we're not multimatch
                 }
             }
         }
@@ -297,14 +315,25 @@ public int matchTransitions(ChromGroupHeaderInfo header, List<? extends GeneralT
         return match;
     }
 
+    /** @return the sorted product m/z values of the group's transitions, for matching against document transitions */
+    public TransitionMzIndex getTransitionMzIndex(ChromGroupHeaderInfo header)
+    {
+        return new TransitionMzIndex(header, getTransitions(header));
+    }
+
+    /** Safe to call from multiple threads at once, as it doesn't depend on or change the channel's position */
     public byte[] readChromatogramBytes(ChromGroupHeaderInfo header) throws DataFormatException, IOException
     {
         // Get the compressed bytes
-        ByteBuffer buffer = ByteBuffer.allocate(header.getCompressedSize());
-        getChannel().position(header.getLocationPoints()).read(buffer);
-        buffer.position(0);
         byte[] result = new byte[header.getCompressedSize()];
-        buffer.get(result);
+        ByteBuffer buffer = ByteBuffer.wrap(result);
+        while (buffer.hasRemaining())
+        {
+            if (_channel.read(buffer, header.getLocationPoints() + buffer.position()) < 0)
+            {
+                throw new EOFException("Unexpected end of file reading chromatogram from " + _file);
+            }
+        }
         // Make sure it uncompresses successfully so that we don't import bad content into the database
         uncompress(result, header.getUncompressedSize());
         return result;
@@ -322,27 +351,14 @@ public static byte[] uncompressStoredBytes(byte[] bytes, Integer uncompressedSiz
 
     public static byte[] uncompress(byte[] bytes, int uncompressedSize) throws DataFormatException
     {
-        if (uncompressedSize == bytes.length) {
-            return bytes;
-        }
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        Inflater inflater = new Inflater();
-        inflater.setInput(bytes);
-        byte[] buffer = new byte[65536];
-        int bytesRead;
-        while (0 != (bytesRead = inflater.inflate(buffer)))
-        {
-            byteArrayOutputStream.write(buffer, 0, bytesRead);
-        }
-        return byteArrayOutputStream.toByteArray();
+        return ZlibDecompressor.uncompress(bytes, uncompressedSize);
     }
 
     public ChromTransition[] getTransitions(ChromGroupHeaderInfo chromGroupHeaderInfo)
     {
-        var chromTransitionPosition = _cacheHeaderStruct.getLocationTransitions() + ((long) _cacheHeaderStruct.getChromTransitionSize() * chromGroupHeaderInfo.getStartTransitionIndex());
         try
         {
-            return parseTransitions(chromTransitionPosition, chromGroupHeaderInfo.getNumTransitions());
+            return parseTransitions(chromGroupHeaderInfo);
         }
         catch (IOException e)
         {
@@ -17,6 +17,8 @@
 package org.labkey.targetedms.parser;
 
 import com.google.common.collect.Iterables;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.Parser;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.Logger;
@@ -42,10 +44,13 @@
 import org.labkey.targetedms.parser.list.ListData;
 import org.labkey.targetedms.parser.proto.SkylineDocument;
 import org.labkey.targetedms.parser.skyd.ChromGroupHeaderInfo;
+import org.labkey.targetedms.parser.skyd.TransitionMzIndex;
 
 import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilterInputStream;
@@ -63,6 +68,10 @@
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.regex.Pattern;
@@ -153,6 +162,9 @@ public class SkylineDocumentParser implements AutoCloseable
     private static final String GROUP_COMPARISON = "group_comparison";
     private static final String CHARGE = "charge" ;
     private static final String TRANSITION_DATA = "transition_data";
+
+    private static final int INPUT_BUFFER_SIZE = 1024 * 1024;
+    private static final int PROTOBUF_BUFFER_SIZE = 64 * 1024;
     private static final String RESULTS_DATA = "results_data";
     private static final String LINKED_FRAGMENT_ION = "linked_fragment_ion";
 
@@ -193,6 +205,9 @@ public class SkylineDocumentParser implements AutoCloseable
     /** Null if we haven't found a SKYD to parse */
     @Nullable
     private SkylineBinaryParser _binaryParser;
+    /** Reads and validates chromatograms from the SKYD in the background. Null if they're read on the parsing thread */
+    @Nullable
+    private ExecutorService _chromatogramReadExecutor;
 
     private TransitionSettings _transitionSettings;
     private PeptideSettings _peptideSettings;
@@ -232,7 +247,7 @@ public SkylineDocumentParser(File file, Logger log, Container container, IProgre
         _fileSize = file.length();
         _progressStatus = progressStatus;
         _container = container;
-        _inputStream = new ProgressInputStream(new FileInputStream(_file));
+        _inputStream = new ProgressInputStream(new BufferedInputStream(new FileInputStream(_file), INPUT_BUFFER_SIZE));
         XMLInputFactory inputFactory = XMLInputFactory.newInstance();
         _reader = inputFactory.createXMLStreamReader(_inputStream);
         _log = log;
@@ -284,12 +299,50 @@ public void close()
         {
             _log.error(e);
         }
+        if (_chromatogramReadExecutor != null)
+        {
+            // Any reads still in flight are no longer wanted
+            _chromatogramReadExecutor.shutdownNow();
+        }
         if (_binaryParser != null)
         {
             _binaryParser.close();
         }
     }
 
+    /**
+     * Chromatogram reads are independent of each other and the decompression to validate them is CPU-bound, so spread
+     * them across a small pool. The queue is bounded, and once it's full the parsing thread does the read itself,
+     * which keeps the parser from getting too far ahead of the database inserts.
+     */
+    @Nullable
+    private ExecutorService createChromatogramReadExecutor(Container container)
+    {
+        int threads;
+        try
+        {
+            threads = Integer.parseInt(TargetedMSModule.CHROMATOGRAM_READ_THREADS_PROPERTY.getEffectiveValue(container));
+        }
+        catch (NumberFormatException e)
+        {
+            threads = TargetedMSModule.DEFAULT_CHROMATOGRAM_READ_THREADS;
+            _log.warn("Unable to parse CHROMATOGRAM_READ_THREADS_PROPERTY value: " + TargetedMSModule.CHROMATOGRAM_READ_THREADS_PROPERTY.getEffectiveValue(container) + ", defaulting to " + threads);
+        }
+        if (threads <= 1)
+        {
+            return null;
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 64),
+                r -> {
+                    Thread t = new Thread(r, "SKYD chromatogram reader " + threadCount.incrementAndGet() + " for " + _file.getName());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
     /** @return the data object for the .skyd file, if available */
     @Nullable
     public ExpData readSettings(@NotNull Container container, @NotNull User user) throws XMLStreamException, IOException
@@ -427,8 +480,10 @@ private ExpData parseChromatograms(@NotNull Container container, @NotNull User u
         File skydFile = new File(_file.getPath() + "d");
         if (NetworkDrive.exists(skydFile))
         {
-            _binaryParser = new SkylineBinaryParser(skydFile, _log);
+            _binaryParser = new SkylineBinaryParser(skydFile, _log,
+                    Boolean.parseBoolean(TargetedMSModule.MEMORY_MAP_SKYD_FILES_PROPERTY.getEffectiveValue(container)));
             _binaryParser.parse();
+            _chromatogramReadExecutor = createChromatogramReadExecutor(container);
             ExpData result = ExperimentService.get().getExpDataByURL(skydFile, container);
             if (result == null)
             {
@@ -1786,8 +1841,10 @@ else if (XmlUtil.isStartElement(reader, evtType, NOTE))
                 moleculePrecursor.setNote(readNote(reader));
         }
 
-        List<ChromGroupHeaderInfo> chromatograms = tryLoadChromatogram(moleculeTransitionList, molecule, moleculePrecursor, _matchTolerance);
-        populateChromInfoChromatograms(moleculePrecursor, chromatograms);
+        // Decode each candidate chromatogram group's transitions only once for this precursor
+        Map<ChromGroupHeaderInfo, TransitionMzIndex> transitionMzCache = new HashMap<>();
+        List<ChromGroupHeaderInfo> chromatograms = tryLoadChromatogram(moleculeTransitionList, molecule, moleculePrecursor, _matchTolerance, transitionMzCache);
+        populateChromInfoChromatograms(moleculePrecursor, chromatograms, transitionMzCache);
 
         _precursorCount++;
 
@@ -2001,8 +2058,10 @@ else if (XmlUtil.isStartElement(reader, evtType, NOTE))
             addMissingBooleanAnnotation(annotations, missingAnotName, new PrecursorAnnotation());
         }
 
-        List<ChromGroupHeaderInfo> chromatograms = tryLoadChromatogram(transitionList, peptide, precursor, _matchTolerance);
-        populateChromInfoChromatograms(precursor, chromatograms);
+        // Decode each candidate chromatogram group's transitions only once for this precursor
+        Map<ChromGroupHeaderInfo, TransitionMzIndex> transitionMzCache = new HashMap<>();
+        List<ChromGroupHeaderInfo> chromatograms = tryLoadChromatogram(transitionList, peptide, precursor, _matchTolerance, transitionMzCache);
+        populateChromInfoChromatograms(precursor, chromatograms, transitionMzCache);
 
         _precursorCount++;
 
@@ -2068,9 +2127,7 @@ private MoleculeTransition transitionProtoToMoleculeTransition(SkylineDocument.S
     private <T extends GeneralTransition> List<T> readTransitionData(XMLStreamReader reader, Function<SkylineDocument.SkylineDocumentProto.Transition, T> createTransitionFunc) {
         try {
             List<T> list = new ArrayList<>();
-            String elementText = reader.getElementText();
-            byte[] bytes = Base64.getDecoder().decode(elementText);
-            SkylineDocument.SkylineDocumentProto.TransitionData transitionData = SkylineDocument.SkylineDocumentProto.TransitionData.parseFrom(bytes);
+            SkylineDocument.SkylineDocumentProto.TransitionData transitionData = parseBase64Element(reader, SkylineDocument.SkylineDocumentProto.TransitionData.parser());
             for (SkylineDocument.SkylineDocumentProto.Transition transitionProto : transitionData.getTransitionsList()) {
                 T transition = createTransitionFunc.apply(transitionProto);
                 transition.setAnnotations(new ArrayList<>());
@@ -2150,7 +2207,8 @@ public static String ensureDecimalInModMass(String modifiedSequence)
         return oldModMassPattern.matcher(modifiedSequence).replaceAll("$1.0]");
     }
 
-    private void populateChromInfoChromatograms(GeneralPrecursor<?> precursor, List<ChromGroupHeaderInfo> chromatograms) throws IOException
+    private void populateChromInfoChromatograms(GeneralPrecursor<?> precursor, List<ChromGroupHeaderInfo> chromatograms,
+                                                Map<ChromGroupHeaderInfo, TransitionMzIndex> transitionMzCache) throws IOException
     {
         Map<String, ChromGroupHeaderInfo> filePathChromatogramMap = new HashMap<>();
         for(ChromGroupHeaderInfo chromatogram : chromatograms)
@@ -2173,7 +2231,15 @@ private void populateChromInfoChromatograms(GeneralPrecursor<?> precursor, List<
                 {
                     if (!Boolean.parseBoolean(TargetedMSModule.SKIP_CHROMATOGRAM_IMPORT_PROPERTY.getEffectiveValue(_container)))
                     {
-                        chromInfo.setChromatogram(_binaryParser.readChromatogramBytes(chromatogram));
+                        if (_chromatogramReadExecutor != null)
+                        {
+                            // The importer waits for the result right before it inserts the PrecursorChromInfo
+                            chromInfo.setPendingChromatogram(_chromatogramReadExecutor.submit(() -> readChromatogramBytes(precursor, chromInfo, chromatogram)));
+                        }
+                        else
+                        {
+                            chromInfo.setChromatogram(_binaryParser.readChromatogramBytes(chromatogram));
+                        }
                     }
                     chromInfo.setChromatogramFormat(chromatogram.getChromatogramBinaryFormat().ordinal());
                     chromInfo.setChromatogramOffset(chromatogram.getLocationPoints());
@@ -2199,12 +2265,8 @@ private void populateChromInfoChromatograms(GeneralPrecursor<?> precursor, List<
                 ChromGroupHeaderInfo c = getChromGroupHeaderInfoForFile(filePathChromatogramMap, iter, filePath);
                 if (c != null)
                 {
-                    int matchIndex = -1;
                     // Figure out which index into the list of transitions we're inserting.
-                    double deltaNearestMz = Double.MAX_VALUE;
-                    SignedMz[] transitions = Arrays.stream(_binaryParser.getTransitions(c))
-                            .map(t->t.getProduct(c))
-                            .toArray(SignedMz[]::new);
+                    TransitionMzIndex transitions = transitionMzCache.computeIfAbsent(c, _binaryParser::getTransitionMzIndex);
                     double transitionMz = transition.getMz();
                     if (transChromInfo.isOptimizationPeak())
                     {
@@ -2212,18 +2274,8 @@ private void populateChromInfoChromatograms(GeneralPrecursor<?> precursor, List<
                         // The product m/z value is incremented slightly for each value as first described by Sherwood et al., 2009
                         transitionMz += OPTIMIZE_SHIFT_SIZE * transChromInfo.getOptimizationStep();
                     }
-                    for (int i = 0; i < transitions.length; i++)
-                    {
-                        double deltaMz = Math.abs(transitionMz - transitions[i].getMz());
-
-                        if (deltaMz < _transitionSettings.getInstrumentSettings().getMzMatchTolerance() &&
-                            deltaMz < deltaNearestMz)
-                        {
-                            // If there are multiple matches within the given mz match tolerance return the closest match.
-                            matchIndex = i;
-                            deltaNearestMz = deltaMz;
-                        }
-                    }
+                    // If there are multiple matches within the given mz match tolerance use the closest match.
+                    int matchIndex = transitions.findNearest(transitionMz, _transitionSettings.getInstrumentSettings().getMzMatchTolerance());
                     if (matchIndex == -1)
                     {
                         _log.warn("Unable to find a matching chromatogram for file path " + filePath + ". SKYD file may be out of sync with primary Skyline document. Transition " + transition.toString() + ", " + precursor + ", " +precursor.getCharge());
@@ -2239,6 +2291,21 @@ private void populateChromInfoChromatograms(GeneralPrecursor<?> precursor, List<
         }
     }
 
+    /** @return the validated chromatogram bytes, or null if they couldn't be decompressed */
+    @Nullable
+    private byte[] readChromatogramBytes(GeneralPrecursor<?> precursor, PrecursorChromInfo chromInfo, ChromGroupHeaderInfo chromatogram) throws IOException
+    {
+        try
+        {
+            return _binaryParser.readChromatogramBytes(chromatogram);
+        }
+        catch (DataFormatException ignored)
+        {
+            _log.warn("Failed to extract chromatogram for " + precursor + " in replicate " + chromInfo.getReplicateName());
+            return null;
+        }
+    }
+
     @Nullable
     private ChromGroupHeaderInfo getChromGroupHeaderInfoForFile(Map<String, ChromGroupHeaderInfo> filePathChromatogramMap, Iterator<?> i, String filePath)
     {
@@ -2841,10 +2908,8 @@ else if (XmlUtil.isStartElement(reader, evtType, NOTE))
     private List<TransitionChromInfo> readTransitionResultsData(XMLStreamReader reader)
     {
         try {
-            String strContent = reader.getElementText();
-            byte[] data = Base64.getDecoder().decode(strContent);
             SkylineDocument.SkylineDocumentProto.TransitionResults transitionResults
-                    = SkylineDocument.SkylineDocumentProto.TransitionResults.parseFrom(data);
+                    = parseBase64Element(reader, SkylineDocument.SkylineDocumentProto.TransitionResults.parser());
             return makeTransitionChromInfos(transitionResults);
         }
         catch (Exception e) {
@@ -3073,7 +3138,8 @@ private List<ChromGroupHeaderInfo> tryLoadChromatogram(
             List<? extends GeneralTransition> transitions,
             GeneralMolecule molecule,
             GeneralPrecursor<?> precursor,
-            double tolerance)
+            double tolerance,
+            Map<ChromGroupHeaderInfo, TransitionMzIndex> transitionMzCache)
     {
         // Add precursor matches to a list, if they match at least 1 transition
         // in this group, and are potentially the maximal transition match.
@@ -3131,7 +3197,7 @@ private List<ChromGroupHeaderInfo> tryLoadChromatogram(
                 // TODO - do we need this on the Java side?
                 boolean multiMatch = false;//chromatogram.OptimizationFunction != null;
 
-                int tranMatch = _binaryParser.matchTransitions(chromInfo, transitions, explicitRT, tolerance, multiMatch);
+                int tranMatch = _binaryParser.matchTransitions(chromInfo, transitions, explicitRT, tolerance, multiMatch, transitionMzCache);
 
                 int fileIndex = chromInfo.getFileIndex();
                 int maxTranMatch = maxTranMatches[fileIndex];
@@ -3229,6 +3295,121 @@ private void updateProgress()
         }
     }
 
+    /**
+     * Parses a protobuf message from the Base64 text of the current element. The text is decoded as the StAX reader
+     * hands it over, instead of first building the whole element as a String and then decoding it into a byte[], which
+     * adds up for the large transition blocks of small molecule and DIA documents. Like getElementText(), leaves the
+     * reader on the element's END_ELEMENT.
+     */
+    private static <T> T parseBase64Element(XMLStreamReader reader, Parser<T> parser) throws IOException
+    {
+        ElementTextInputStream text = new ElementTextInputStream(reader);
+        CodedInputStream input = CodedInputStream.newInstance(Base64.getDecoder().wrap(text), PROTOBUF_BUFFER_SIZE);
+        input.setSizeLimit(Integer.MAX_VALUE);
+        T result = parser.parseFrom(input);
+        text.skipRemaining();
+        return result;
+    }
+
+    /** The text content of the current element, as ASCII bytes read straight out of the StAX reader's buffers */
+    private static class ElementTextInputStream extends InputStream
+    {
+        private final XMLStreamReader _reader;
+        private char[] _chars;
+        private int _offset;
+        private int _end;
+        private boolean _atEnd;
+
+        private ElementTextInputStream(XMLStreamReader reader)
+        {
+            _reader = reader;
+        }
+
+        /** @return false once the reader has reached the end of the element */
+        private boolean fill() throws IOException
+        {
+            while (_offset == _end)
+            {
+                if (_atEnd)
+                {
+                    return false;
+                }
+                try
+                {
+                    switch (_reader.next())
+                    {
+                        case XMLStreamConstants.CHARACTERS:
+                        case XMLStreamConstants.CDATA:
+                        case XMLStreamConstants.SPACE:
+                            // Only valid until the next call to next(), so it's consumed before reading any further
+                            _chars = _reader.getTextCharacters();
+                            _offset = _reader.getTextStart();
+                            _end = _offset + _reader.getTextLength();
+                            break;
+                        case XMLStreamConstants.ENTITY_REFERENCE:
+                            // getTextCharacters() isn't supported for entity references, only getText()
+                            _chars = _reader.getText().toCharArray();
+                            _offset = 0;
+                            _end = _chars.length;
+                            break;
+                        case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                        case XMLStreamConstants.COMMENT:
+                            break;
+                        case XMLStreamConstants.END_ELEMENT:
+                            _atEnd = true;
+                            break;
+                        default:
+                            throw new XMLStreamException("Unexpected event type " + _reader.getEventType() + " in text-only element", _reader.getLocation());
+                    }
+                }
+                catch (XMLStreamException e)
+                {
+                    throw new IOException(e);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            return fill() ? toByte(_chars[_offset++]) & 0xFF : -1;
+        }
+
+        @Override
+        public int read(@NotNull byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            if (!fill())
+            {
+                return -1;
+            }
+            int count = Math.min(len, _end - _offset);
+            for (int i = 0; i < count; i++)
+            {
+                b[off + i] = toByte(_chars[_offset++]);
+            }
+            return count;
+        }
+
+        /** Keeps non-ASCII characters from being truncated into valid Base64 characters, so the decoder rejects them */
+        private static byte toByte(char c)
+        {
+            return c < 0x80 ? (byte) c : (byte) '?';
+        }
+
+        private void skipRemaining() throws IOException
+        {
+            while (fill())
+            {
+                _offset = _end;
+            }
+        }
+    }
+
     private static class ProgressInputStream extends FilterInputStream
     {
         private long _bytesRead = 0;
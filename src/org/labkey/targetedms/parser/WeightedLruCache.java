@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2022 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.parser;
+
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * In-memory LRU cache bounded by the total weight (typically the approximate number of bytes) of its values instead
+ * of the number of entries, for chromatogram data whose size varies by orders of magnitude. Entries also expire
+ * after a fixed lifetime. The capacity is re-read on each insert so that admins can change it without a restart.
+ */
+public class WeightedLruCache<K, V>
+{
+    private final LongSupplier _capacity;
+    private final long _lifetime;
+
+    /** Least recently used first. Guarded by this */
+    private final LinkedHashMap<K, Entry<V>> _entries = new LinkedHashMap<>(16, 0.75f, true);
+    /** Guarded by this */
+    private long _weight;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+
+    /**
+     * @param capacity maximum total weight of the entries
+     * @param lifetime milliseconds before an entry expires
+     */
+    public WeightedLruCache(LongSupplier capacity, long lifetime)
+    {
+        _capacity = capacity;
+        _lifetime = lifetime;
+    }
+
+    /** @return the cached entry, or null if it's absent or expired. Counts as a hit or a miss. */
+    @Nullable
+    public synchronized Entry<V> get(K key)
+    {
+        Entry<V> entry = _entries.get(key);
+        if (entry != null && entry.isExpired(_lifetime))
+        {
+            remove(key);
+            entry = null;
+        }
+        (entry == null ? _misses : _hits).incrementAndGet();
+        return entry;
+    }
+
+    /** Doesn't count as a hit or a miss */
+    public synchronized boolean containsKey(K key)
+    {
+        return peek(key) != null;
+    }
+
+    /** @return the cached entry, or null if it's absent or expired. Doesn't count as a hit or a miss. */
+    @Nullable
+    public synchronized Entry<V> peek(K key)
+    {
+        Entry<V> entry = _entries.get(key);
+        return entry == null || entry.isExpired(_lifetime) ? null : entry;
+    }
+
+    /** Values heavier than the whole capacity aren't cached at all */
+    public synchronized void put(K key, V value, long weight)
+    {
+        long capacity = _capacity.getAsLong();
+        if (weight > capacity)
+        {
+            return;
+        }
+        Entry<V> previous = _entries.put(key, new Entry<>(value, weight));
+        if (previous != null)
+        {
+            _weight -= previous._weight;
+        }
+        _weight += weight;
+
+        Iterator<Entry<V>> iter = _entries.values().iterator();
+        while (_weight > capacity && iter.hasNext())
+        {
+            _weight -= iter.next()._weight;
+            iter.remove();
+            _evictions.incrementAndGet();
+        }
+    }
+
+    public synchronized void remove(K key)
+    {
+        Entry<V> entry = _entries.remove(key);
+        if (entry != null)
+        {
+            _weight -= entry._weight;
+        }
+    }
+
+    public synchronized void removeIf(Predicate<K> predicate)
+    {
+        for (Iterator<Map.Entry<K, Entry<V>>> iter = _entries.entrySet().iterator(); iter.hasNext(); )
+        {
+            Map.Entry<K, Entry<V>> entry = iter.next();
+            if (predicate.test(entry.getKey()))
+            {
+                _weight -= entry.getValue()._weight;
+                iter.remove();
+            }
+        }
+    }
+
+    public synchronized void clear()
+    {
+        _entries.clear();
+        _weight = 0;
+    }
+
+    public long getCapacity()
+    {
+        return _capacity.getAsLong();
+    }
+
+    public synchronized long getWeight()
+    {
+        return _weight;
+    }
+
+    public synchronized int size()
+    {
+        return _entries.size();
+    }
+
+    public long getHitCount()
+    {
+        return _hits.get();
+    }
+
+    public long getMissCount()
+    {
+        return _misses.get();
+    }
+
+    public double getHitRatio()
+    {
+        long hits = _hits.get();
+        long total = hits + _misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public long getEvictionCount()
+    {
+        return _evictions.get();
+    }
+
+    /** Wrapper so that a cached null value can be distinguished from a miss */
+    public static class Entry<V>
+    {
+        private final V _value;
+        private final long _weight;
+        private final long _created = System.currentTimeMillis();
+
+        private Entry(V value, long weight)
+        {
+            _value = value;
+            _weight = weight;
+        }
+
+        public V getValue()
+        {
+            return _value;
+        }
+
+        private boolean isExpired(long lifetime)
+        {
+            return System.currentTimeMillis() - _created > lifetime;
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testEvictsLeastRecentlyUsedByWeight()
+        {
+            WeightedLruCache<String, String> cache = new WeightedLruCache<>(() -> 100, Long.MAX_VALUE);
+            cache.put("a", "A", 40);
+            cache.put("b", "B", 40);
+            assertNotNull(cache.get("a"));
+            cache.put("c", "C", 40);
+
+            // "b" was the least recently used
+            assertNull(cache.get("b"));
+            assertEquals("A", cache.get("a").getValue());
+            assertEquals("C", cache.get("c").getValue());
+            assertEquals(80, cache.getWeight());
+            assertEquals(1, cache.getEvictionCount());
+
+            cache.put("huge", "H", 101);
+            assertNull(cache.get("huge"));
+            assertEquals(2, cache.size());
+
+            cache.put("a", null, 10);
+            assertNotNull(cache.get("a"));
+            assertNull(cache.get("a").getValue());
+            assertEquals(50, cache.getWeight());
+
+            cache.removeIf(k -> k.equals("c"));
+            assertEquals(10, cache.getWeight());
+            assertEquals(1, cache.size());
+        }
+
+        @Test
+        public void testPeekDoesNotCount()
+        {
+            WeightedLruCache<String, String> cache = new WeightedLruCache<>(() -> 100, Long.MAX_VALUE);
+            cache.put("a", "A", 10);
+            assertEquals("A", cache.peek("a").getValue());
+            assertNull(cache.peek("b"));
+            assertEquals(0, cache.getHitCount());
+            assertEquals(0, cache.getMissCount());
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2022 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.parser;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates the zlib-compressed blobs stored in SKYD files, the chromatogram table, and BLIB/ELIB spectrum libraries.
+ * Inflaters hold native zlib memory that's only released by end(), so they're pooled and reused instead of
+ * allocated per call. The caller always knows the uncompressed size, so the output is allocated exactly once.
+ */
+public class ZlibDecompressor
+{
+    private static final int POOL_SIZE = Math.max(4, Runtime.getRuntime().availableProcessors());
+    private static final BlockingQueue<Inflater> POOL = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private ZlibDecompressor()
+    {
+    }
+
+    /**
+     * @param uncompressedSize the expected size of the result. If it matches the input length, the input was stored
+     *                         uncompressed and is returned as-is.
+     */
+    public static byte[] uncompress(byte[] compressed, int uncompressedSize) throws DataFormatException
+    {
+        if (uncompressedSize == compressed.length)
+        {
+            return compressed;
+        }
+        return inflate(compressed, uncompressedSize);
+    }
+
+    /**
+     * Always inflates, even when the sizes match, for formats where an equal length doesn't mean the data was stored
+     * uncompressed.
+     * @param uncompressedSize the expected size of the result, used to size the output
+     */
+    public static byte[] inflate(byte[] compressed, int uncompressedSize) throws DataFormatException
+    {
+        Inflater inflater = borrow();
+        boolean reusable = false;
+        try
+        {
+            inflater.setInput(compressed);
+            byte[] result = new byte[uncompressedSize];
+            int length = 0;
+            while (length < result.length)
+            {
+                int bytesRead = inflater.inflate(result, length, result.length - length);
+                if (bytesRead == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    break;
+                }
+                length += bytesRead;
+            }
+
+            if (length == result.length && !inflater.finished() && !inflater.needsInput())
+            {
+                // Usually this just reads the end of the stream. If not, the stored size was too small, as can happen
+                // with the estimate used for older database rows
+                result = inflateRemaining(inflater, result);
+            }
+            else if (length < result.length)
+            {
+                result = Arrays.copyOf(result, length);
+            }
+            reusable = true;
+            return result;
+        }
+        finally
+        {
+            release(inflater, reusable);
+        }
+    }
+
+    private static byte[] inflateRemaining(Inflater inflater, byte[] start) throws DataFormatException
+    {
+        byte[] buffer = new byte[8192];
+        int bytesRead = inflater.inflate(buffer);
+        if (bytesRead == 0)
+        {
+            return start;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(start.length * 2);
+        out.write(start, 0, start.length);
+        do
+        {
+            out.write(buffer, 0, bytesRead);
+        }
+        while (0 != (bytesRead = inflater.inflate(buffer)));
+        return out.toByteArray();
+    }
+
+    private static Inflater borrow()
+    {
+        Inflater inflater = POOL.poll();
+        return inflater != null ? inflater : new Inflater();
+    }
+
+    private static void release(Inflater inflater, boolean reusable)
+    {
+        if (reusable)
+        {
+            inflater.reset();
+            if (POOL.offer(inflater))
+            {
+                return;
+            }
+        }
+        // Don't wait for finalization to free the native memory
+        inflater.end();
+    }
+
+    public static class TestCase extends Assert
+    {
+        private static byte[] compress(byte[] bytes)
+        {
+            Deflater deflater = new Deflater();
+            try
+            {
+                deflater.setInput(bytes);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1024];
+                while (!deflater.finished())
+                {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+                return out.toByteArray();
+            }
+            finally
+            {
+                deflater.end();
+            }
+        }
+
+        @Test
+        public void testRoundTrip() throws DataFormatException
+        {
+            Random random = new Random(7);
+            for (int size : new int[] { 1, 100, 65536, 200_000 })
+            {
+                byte[] original = new byte[size];
+                for (int i = 0; i < size; i++)
+                {
+                    original[i] = (byte) random.nextInt(16);
+                }
+                byte[] compressed = compress(original);
+                // Run more times than the pool holds to exercise reuse
+                for (int i = 0; i < POOL_SIZE * 2; i++)
+                {
+                    assertArrayEquals(original, uncompress(compressed, size));
+                }
+            }
+        }
+
+        @Test
+        public void testWrongExpectedSize() throws DataFormatException
+        {
+            byte[] original = new byte[10_000];
+            Arrays.fill(original, 0, 5_000, (byte) 3);
+            byte[] compressed = compress(original);
+            assertArrayEquals(original, uncompress(compressed, 4_000));
+            assertArrayEquals(original, uncompress(compressed, 12_000));
+        }
+
+        @Test
+        public void testUncompressedInput() throws DataFormatException
+        {
+            byte[] stored = { 1, 2, 3 };
+            assertSame(stored, uncompress(stored, 3));
+        }
+
+        @Test
+        public void testInflateSameSize() throws DataFormatException
+        {
+            // Eleven zero bytes happen to compress to eleven bytes
+            byte[] original = new byte[11];
+            byte[] compressed = compress(original);
+            assertEquals(original.length, compressed.length);
+            assertArrayEquals(original, inflate(compressed, original.length));
+            assertSame(compressed, uncompress(compressed, original.length));
+        }
+
+        @Test(expected = DataFormatException.class)
+        public void testCorruptInput() throws DataFormatException
+        {
+            uncompress(new byte[] { 1, 2, 3, 4, 5 }, 100);
+        }
+    }
+}
@@ -30,15 +30,17 @@
 import org.labkey.targetedms.TargetedMSModule;
 import org.labkey.targetedms.parser.XmlUtil;
 import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
 
 import javax.xml.XMLConstants;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
-import javax.xml.validation.Validator;
+import javax.xml.validation.ValidatorHandler;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -56,7 +58,9 @@
 
 /***
  * Reads the audit log file, validates it and converts into a sequence
- * of AuditLogEntry instances that can be persisted into the database
+ * of AuditLogEntry instances that can be persisted into the database.
+ * The file is validated against the schema as it is read, so a validation error can surface
+ * from any of the parse methods, and the end of the file is only validated by {@link #finish()}.
  */
 public class SkylineAuditLogParser implements AutoCloseable
 {
@@ -87,6 +91,9 @@ public class SkylineAuditLogParser implements AutoCloseable
 
     private static final String SCHEMA_FILE = "schemas/Skyl.xsd";
 
+    // Compiled once, Schema instances are thread-safe
+    private static volatile Schema _schema;
+
     private final File _file;
     private final Logger _logger;
     private XMLStreamReader _stream;
@@ -103,7 +110,6 @@ public SkylineAuditLogParser(File logFile, Logger logger)  throws AuditLogExcept
 
         try
         {
-            validateXml();
             parseLogHeader();
         }
         catch(Exception e){
@@ -111,22 +117,21 @@ public SkylineAuditLogParser(File logFile, Logger logger)  throws AuditLogExcept
         }
     }
 
-
-    private void validateXml() throws IOException, SAXException, AuditLogParsingException
+    private static Schema getSchema() throws IOException, SAXException, AuditLogParsingException
     {
-        try (InputStream schemaStream = new BufferedInputStream(openSchemaInputStream());
-             InputStream auditLogStream = new BufferedInputStream(new FileInputStream(_file)))
+        if (_schema == null)
+        {
+            try (InputStream schemaStream = new BufferedInputStream(openSchemaInputStream()))
             {
-                //prepare validator
                 SchemaFactory schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-                Schema schema = schemaFactory.newSchema(new StreamSource(schemaStream));
-                Validator validator = schema.newValidator();
-                validator.validate(new StreamSource(auditLogStream));
+                _schema = schemaFactory.newSchema(new StreamSource(schemaStream));
             }
+        }
+        return _schema;
     }
 
     @NotNull
-    private InputStream openSchemaInputStream() throws AuditLogParsingException, FileNotFoundException, UnsupportedEncodingException
+    private static InputStream openSchemaInputStream() throws AuditLogParsingException, FileNotFoundException, UnsupportedEncodingException
     {
         if (ModuleLoader.getInstance() != null)
         {   //if we are running web test
@@ -147,13 +152,14 @@ private InputStream openSchemaInputStream() throws AuditLogParsingException, Fil
      * This method parses the beginning of the log: the hashes and audit_log tag and stops at
      * the first log entry, ready to proceed with read/save loop
      */
-    private void parseLogHeader() throws IOException, XMLStreamException
+    private void parseLogHeader() throws IOException, XMLStreamException, SAXException, AuditLogParsingException
     {
+        ValidatorHandler validator = getSchema().newValidatorHandler();
         _fileStream = new FileInputStream(_file);
         XMLInputFactory inputFactory = XMLInputFactory.newInstance();
-        _stream = inputFactory.createXMLStreamReader(_fileStream);
+        _stream = new ValidatingStreamReader(inputFactory.createXMLStreamReader(new BufferedInputStream(_fileStream)), validator);
 
-        //Skipping most XML structure validation since the file passed the schema validation
+        //Skipping most XML structure validation since the schema validator checks the elements as they are read
         int evtType = _stream.nextTag();     //log root element read
 
         if (evtType != XMLStreamReader.START_ELEMENT || !_stream.getLocalName().equals(AUDIT_LOG_ROOT))
@@ -250,6 +256,17 @@ public boolean hasNextEntry()
         return !XmlUtil.isEndElement(_stream, XMLStreamReader.END_ELEMENT, AUDIT_LOG);
     }
 
+    /***
+     * Reads the rest of the file after the last entry so that it is validated as well
+     */
+    public void finish() throws XMLStreamException
+    {
+        while (_stream.hasNext())
+        {
+            _stream.next();
+        }
+    }
+
     private AuditLogMessage parseAuditLogMessage() throws XMLStreamException, AuditLogParsingException{
         List<String> names = new LinkedList<>();
         AuditLogMessage result = new AuditLogMessage();
@@ -304,6 +321,129 @@ public String getEnRootHash()
     }
 
 
+    /***
+     * Passes each event that the parser reads on to a schema validator, so that the file is validated
+     * in the same pass that parses it instead of being read twice.
+     * nextTag() and getElementText() are implemented with next() so that every event goes through it.
+     */
+    private static class ValidatingStreamReader extends StreamReaderDelegate
+    {
+        private final ValidatorHandler _validator;
+
+        private ValidatingStreamReader(XMLStreamReader reader, ValidatorHandler validator) throws XMLStreamException
+        {
+            super(reader);
+            _validator = validator;
+            try
+            {
+                _validator.startDocument();
+            }
+            catch (SAXException e)
+            {
+                throw new XMLStreamException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public int next() throws XMLStreamException
+        {
+            int eventType = super.next();
+            try
+            {
+                switch (eventType)
+                {
+                    case START_ELEMENT:
+                        for (int i = 0; i < getNamespaceCount(); i++)
+                        {
+                            _validator.startPrefixMapping(nullToEmpty(getNamespacePrefix(i)), nullToEmpty(getNamespaceURI(i)));
+                        }
+                        AttributesImpl attributes = new AttributesImpl();
+                        for (int i = 0; i < getAttributeCount(); i++)
+                        {
+                            attributes.addAttribute(nullToEmpty(getAttributeNamespace(i)), getAttributeLocalName(i),
+                                    getQName(getAttributePrefix(i), getAttributeLocalName(i)), "CDATA", getAttributeValue(i));
+                        }
+                        _validator.startElement(nullToEmpty(getNamespaceURI()), getLocalName(), getQName(getPrefix(), getLocalName()), attributes);
+                        break;
+                    case END_ELEMENT:
+                        _validator.endElement(nullToEmpty(getNamespaceURI()), getLocalName(), getQName(getPrefix(), getLocalName()));
+                        for (int i = 0; i < getNamespaceCount(); i++)
+                        {
+                            _validator.endPrefixMapping(nullToEmpty(getNamespacePrefix(i)));
+                        }
+                        break;
+                    case CHARACTERS:
+                    case CDATA:
+                    case SPACE:
+                        _validator.characters(getTextCharacters(), getTextStart(), getTextLength());
+                        break;
+                    case END_DOCUMENT:
+                        _validator.endDocument();
+                        break;
+                }
+            }
+            catch (SAXException e)
+            {
+                throw new XMLStreamException("Audit log file failed schema validation: " + e.getMessage(), getLocation(), e);
+            }
+            return eventType;
+        }
+
+        @Override
+        public int nextTag() throws XMLStreamException
+        {
+            int eventType = next();
+            while ((eventType == CHARACTERS && isWhiteSpace()) || (eventType == CDATA && isWhiteSpace())
+                    || eventType == SPACE || eventType == PROCESSING_INSTRUCTION || eventType == COMMENT)
+            {
+                eventType = next();
+            }
+            if (eventType != START_ELEMENT && eventType != END_ELEMENT)
+            {
+                throw new XMLStreamException("Expected start or end tag", getLocation());
+            }
+            return eventType;
+        }
+
+        @Override
+        public String getElementText() throws XMLStreamException
+        {
+            if (getEventType() != START_ELEMENT)
+            {
+                throw new XMLStreamException("Parser must be on START_ELEMENT to read next text", getLocation());
+            }
+            StringBuilder text = new StringBuilder();
+            int eventType = next();
+            while (eventType != END_ELEMENT)
+            {
+                if (eventType == CHARACTERS || eventType == CDATA || eventType == SPACE || eventType == ENTITY_REFERENCE)
+                {
+                    text.append(getText());
+                }
+                else if (eventType == START_ELEMENT)
+                {
+                    throw new XMLStreamException("Element text content may not contain START_ELEMENT", getLocation());
+                }
+                else if (eventType == END_DOCUMENT)
+                {
+                    throw new XMLStreamException("Unexpected end of document when reading element text content", getLocation());
+                }
+                eventType = next();
+            }
+            return text.toString();
+        }
+
+        private static String nullToEmpty(String s)
+        {
+            return s == null ? "" : s;
+        }
+
+        private static String getQName(String prefix, String localName)
+        {
+            return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+        }
+    }
+
     //--------------------------------------------
     public static class TestCase extends Assert{
 
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2022 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.parser.skyd;
+
+import org.apache.poi.util.LittleEndianInput;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads the fields of a single struct straight out of a (typically memory-mapped) ByteBuffer, without copying
+ * the struct's bytes into a byte[] first. Reads past the struct's on-disk size return zeros, which matches the
+ * end-padding that {@link StructSerializer#resizeByteArray(byte[], int)} applies to structs written by older
+ * versions of Skyline.
+ */
+public class ByteBufferLittleEndianInput implements LittleEndianInput
+{
+    private final ByteBuffer _buffer;
+    private int _position;
+    private int _end;
+
+    public ByteBufferLittleEndianInput(ByteBuffer buffer)
+    {
+        // duplicate() doesn't preserve the byte order so set it after
+        _buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** Point at the struct that starts at the given absolute position in the buffer and has the given on-disk length */
+    public void reset(int position, int length)
+    {
+        _position = position;
+        _end = position + length;
+    }
+
+    @Override
+    public int available()
+    {
+        return Math.max(0, _end - _position);
+    }
+
+    @Override
+    public byte readByte()
+    {
+        byte result = _position < _end ? _buffer.get(_position) : 0;
+        _position++;
+        return result;
+    }
+
+    @Override
+    public int readUByte()
+    {
+        return readByte() & 0xFF;
+    }
+
+    @Override
+    public short readShort()
+    {
+        if (_position + Short.BYTES <= _end)
+        {
+            short result = _buffer.getShort(_position);
+            _position += Short.BYTES;
+            return result;
+        }
+        return (short) readPadded(Short.BYTES);
+    }
+
+    @Override
+    public int readUShort()
+    {
+        return readShort() & 0xFFFF;
+    }
+
+    @Override
+    public int readInt()
+    {
+        if (_position + Integer.BYTES <= _end)
+        {
+            int result = _buffer.getInt(_position);
+            _position += Integer.BYTES;
+            return result;
+        }
+        return (int) readPadded(Integer.BYTES);
+    }
+
+    @Override
+    public long readLong()
+    {
+        if (_position + Long.BYTES <= _end)
+        {
+            long result = _buffer.getLong(_position);
+            _position += Long.BYTES;
+            return result;
+        }
+        return readPadded(Long.BYTES);
+    }
+
+    @Override
+    public double readDouble()
+    {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    @Override
+    public void readFully(byte[] buf)
+    {
+        readFully(buf, 0, buf.length);
+    }
+
+    @Override
+    public void readFully(byte[] buf, int off, int len)
+    {
+        for (int i = 0; i < len; i++)
+        {
+            buf[off + i] = readByte();
+        }
+    }
+
+    @Override
+    public void readPlain(byte[] buf, int off, int len)
+    {
+        readFully(buf, off, len);
+    }
+
+    /** Assemble a value that straddles the end of the struct, treating the missing bytes as zero */
+    private long readPadded(int size)
+    {
+        long result = 0;
+        for (int i = 0; i < size; i++)
+        {
+            result |= ((long) readUByte()) << (8 * i);
+        }
+        return result;
+    }
+}
@@ -14,7 +14,7 @@
  */
 package org.labkey.targetedms.parser.skyd;
 
-import org.apache.poi.util.LittleEndianByteArrayInputStream;
+import org.apache.poi.util.LittleEndianInput;
 
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
@@ -87,9 +87,9 @@ public StructSerializer<CachedFileHeaderStruct> cachedFileSerializer()
                 _cachedFileSize)
         {
             @Override
-            public CachedFileHeaderStruct fromByteArray(byte[] bytes)
+            public CachedFileHeaderStruct fromInput(LittleEndianInput input)
             {
-                return new CachedFileHeaderStruct(new LittleEndianByteArrayInputStream(bytes));
+                return new CachedFileHeaderStruct(input);
             }
         };
     }
@@ -98,9 +98,9 @@ public StructSerializer<ChromGroupHeaderInfo> chromGroupHeaderInfoSerializer() {
         return new StructSerializer<ChromGroupHeaderInfo>(ChromGroupHeaderInfo.class, ChromGroupHeaderInfo.getStructSize(CacheFormatVersion.CURRENT), _chromGroupHeaderSize)
         {
             @Override
-            public ChromGroupHeaderInfo fromByteArray(byte[] bytes)
+            public ChromGroupHeaderInfo fromInput(LittleEndianInput input)
             {
-                return new ChromGroupHeaderInfo(_formatVersion, new LittleEndianByteArrayInputStream(bytes));
+                return new ChromGroupHeaderInfo(_formatVersion, input);
             }
         };
     }
@@ -108,9 +108,9 @@ public StructSerializer<ChromTransition> chromTransitionSerializer() {
         return new StructSerializer<ChromTransition>(ChromTransition.class, ChromTransition.getStructSize(CacheFormatVersion.CURRENT), _chromTransitionSize)
             {
                 @Override
-                public ChromTransition fromByteArray(byte[] bytes)
+                public ChromTransition fromInput(LittleEndianInput input)
                 {
-                    return new ChromTransition(_formatVersion, new LittleEndianByteArrayInputStream(bytes));
+                    return new ChromTransition(_formatVersion, input);
                 }
             };
     }
@@ -119,9 +119,9 @@ public StructSerializer<ChromPeak> chromPeakSerializer() {
         return new StructSerializer<ChromPeak>(ChromPeak.class, ChromPeak.getStructSize(CacheFormatVersion.CURRENT), _chromPeakSize)
         {
             @Override
-            public ChromPeak fromByteArray(byte[] bytes)
+            public ChromPeak fromInput(LittleEndianInput input)
             {
-                return new ChromPeak(new LittleEndianByteArrayInputStream(bytes));
+                return new ChromPeak(input);
             }
         };
     }
@@ -14,7 +14,6 @@
  */
 package org.labkey.targetedms.parser.skyd;
 
-import org.apache.poi.util.LittleEndianByteArrayInputStream;
 import org.apache.poi.util.LittleEndianInput;
 
 import java.io.IOException;
@@ -156,9 +155,9 @@ public static StructSerializer<CacheHeaderStruct> getStructSerializer(CacheForma
                 CacheHeaderStruct.class, getStructSize(CacheFormatVersion.CURRENT), getStructSize(cacheFormatVersion))
         {
             @Override
-            public CacheHeaderStruct fromByteArray(byte[] bytes)
+            public CacheHeaderStruct fromInput(LittleEndianInput input)
             {
-                return new CacheHeaderStruct(new LittleEndianByteArrayInputStream(bytes));
+                return new CacheHeaderStruct(input);
             }
 
             @Override
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2022 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.parser.skyd;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A memory-mapped, read-only view of a contiguous array of fixed-size structs in a .skyd file, such as the
+ * chromatogram group headers, transitions, or peaks. A single mapping can't exceed 2GB, so large regions are
+ * mapped in chunks, each holding a whole number of structs.
+ */
+public class MappedStructRegion
+{
+    /** Upper bound on the size of each mapped chunk */
+    private static final int MAX_CHUNK_SIZE = Integer.MAX_VALUE;
+
+    private final int _itemSize;
+    private final int _itemsPerChunk;
+    private final MappedByteBuffer[] _chunks;
+    private final long _count;
+
+    public MappedStructRegion(FileChannel channel, long position, long count, int itemSize) throws IOException
+    {
+        _itemSize = itemSize;
+        _itemsPerChunk = MAX_CHUNK_SIZE / itemSize;
+        _count = count;
+        int chunkCount = (int) ((count + _itemsPerChunk - 1) / _itemsPerChunk);
+        _chunks = new MappedByteBuffer[chunkCount];
+        for (int i = 0; i < chunkCount; i++)
+        {
+            long firstItem = (long) i * _itemsPerChunk;
+            long itemsInChunk = Math.min(_itemsPerChunk, count - firstItem);
+            _chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position + firstItem * itemSize, itemsInChunk * itemSize);
+        }
+    }
+
+    public long getCount()
+    {
+        return _count;
+    }
+
+    /** Decode count structs, starting with the one at firstIndex within the region, into the start of the array */
+    public <TItem> void read(StructSerializer<TItem> serializer, long firstIndex, TItem[] array, int count)
+    {
+        if (firstIndex < 0 || firstIndex + count > _count)
+        {
+            throw new IndexOutOfBoundsException("Requested structs " + firstIndex + " to " + (firstIndex + count) + " but region only has " + _count);
+        }
+        int i = 0;
+        while (i < count)
+        {
+            long index = firstIndex + i;
+            int chunkIndex = (int) (index / _itemsPerChunk);
+            int indexInChunk = (int) (index % _itemsPerChunk);
+            // Read as many as we can from this chunk before moving to the next one
+            int countInChunk = Math.min(count - i, _itemsPerChunk - indexInChunk);
+            serializer.readArray(_chunks[chunkIndex], indexInChunk * _itemSize, array, i, countInChunk);
+            i += countInChunk;
+        }
+    }
+}
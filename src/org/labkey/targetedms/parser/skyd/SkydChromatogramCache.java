@@ -0,0 +1,534 @@
+/*
+ * Copyright (c) 2022 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.parser.skyd;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.cache.CacheListener;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.data.ContainerManager;
+import org.labkey.api.util.ContextListener;
+import org.labkey.api.util.Pair;
+import org.labkey.api.util.ShutdownListener;
+import org.labkey.api.util.Tuple3;
+import org.labkey.targetedms.TargetedMSModule;
+import org.labkey.targetedms.parser.WeightedLruCache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Compressed chromatogram bytes read on-demand from SKYD files, for runs whose chromatograms aren't stored in the
+ * database or when the SKYD copy is preferred. Chromatograms vary from a few hundred bytes to several megabytes, so
+ * the cache is bounded by the total number of bytes it holds rather than by entry count. Concurrent requests for the
+ * same chromatogram share a single read, and each SKYD keeps a few open channels around so that a page that renders
+ * many chromatograms from the same file doesn't open it over and over, which is particularly slow for cloud storage.
+ */
+public class SkydChromatogramCache
+{
+    private static final Logger LOG = LogManager.getLogger(SkydChromatogramCache.class);
+
+    /** Same lifetime as the entry-count-limited cache this replaced */
+    private static final long ENTRY_LIFETIME = CacheManager.HOUR;
+    /** Nominal size of the entry for a SKYD that couldn't be found, so that they still count against the capacity */
+    private static final int MISSING_ENTRY_SIZE = 64;
+
+    private static final int MAX_IDLE_CHANNELS_PER_FILE = 4;
+    private static final long CHANNEL_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(1);
+
+    /** Read through gaps of up to this many bytes between chromatograms rather than issuing a separate request */
+    private static final int MAX_COALESCE_GAP = 64 * 1024;
+    private static final int MAX_COALESCED_READ = 16 * 1024 * 1024;
+
+    // Declared after the constants that the constructor depends on
+    private static final SkydChromatogramCache INSTANCE = new SkydChromatogramCache();
+
+    /** Null values are SKYDs that couldn't be found, so that we don't keep looking for them */
+    private final WeightedLruCache<Tuple3<Path, Long, Integer>, byte[]> _entries = new WeightedLruCache<>(this::getCapacityBytes, ENTRY_LIFETIME);
+
+    private final Map<Tuple3<Path, Long, Integer>, CompletableFuture<byte[]>> _loading = new ConcurrentHashMap<>();
+    /** Idle channels by SKYD path, most recently released first. Guarded by itself */
+    private final Map<Path, Deque<IdleChannel>> _idleChannels = new HashMap<>();
+
+    private final AtomicLong _loads = new AtomicLong();
+    private final AtomicLong _loadNanos = new AtomicLong();
+    private final AtomicLong _channelsOpened = new AtomicLong();
+
+    /** Closes idle channels even when nothing else is reading, so we don't keep files open indefinitely */
+    private final ScheduledExecutorService _sweeper = Executors.newSingleThreadScheduledExecutor(r ->
+    {
+        Thread thread = new Thread(r, "SKYD channel sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static SkydChromatogramCache get()
+    {
+        return INSTANCE;
+    }
+
+    private SkydChromatogramCache()
+    {
+        CacheManager.addListener(new CacheListener()
+        {
+            @Override
+            public void clearCaches()
+            {
+                clear();
+            }
+        });
+        _sweeper.scheduleWithFixedDelay(this::closeExpiredChannels, CHANNEL_IDLE_TIMEOUT, CHANNEL_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+        // Stop the sweeper thread so it doesn't outlive the webapp and pin the module's classloader
+        ContextListener.addShutdownListener(new ShutdownListener()
+        {
+            @Override
+            public String getName()
+            {
+                return "SKYD chromatogram cache";
+            }
+
+            @Override
+            public void shutdownPre()
+            {
+            }
+
+            @Override
+            public void shutdownStarted()
+            {
+                _sweeper.shutdownNow();
+                clear();
+            }
+        });
+    }
+
+    /**
+     * @return the compressed chromatogram bytes, or null if the SKYD couldn't be found or read
+     */
+    @Nullable
+    public byte[] get(Path path, long offset, int length)
+    {
+        Tuple3<Path, Long, Integer> key = new Tuple3<>(path, offset, length);
+        WeightedLruCache.Entry<byte[]> entry = _entries.get(key);
+        if (entry != null)
+        {
+            return entry.getValue();
+        }
+
+        // Exactly one thread loads each key, and everyone else asking for it meanwhile waits for its result
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        CompletableFuture<byte[]> loading = _loading.computeIfAbsent(key, k -> future);
+        if (loading != future)
+        {
+            try
+            {
+                return loading.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            catch (ExecutionException e)
+            {
+                if (e.getCause() instanceof RuntimeException)
+                {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        try
+        {
+            // The previous loader may have finished between our cache check and claiming the key
+            entry = _entries.peek(key);
+            byte[] result;
+            if (entry != null)
+            {
+                result = entry.getValue();
+            }
+            else
+            {
+                result = load(path, offset, length);
+                _entries.put(key, result, result == null ? MISSING_ENTRY_SIZE : result.length);
+            }
+            future.complete(result);
+            return result;
+        }
+        catch (RuntimeException e)
+        {
+            future.completeExceptionally(e);
+            throw e;
+        }
+        finally
+        {
+            _loading.remove(key, future);
+        }
+    }
+
+    @Nullable
+    private byte[] load(Path path, long offset, int length)
+    {
+        long startTime = System.nanoTime();
+        LOG.debug("Loading chromatogram from " + path + ", offset " + offset + ", length " + length);
+        try
+        {
+            byte[] result = readRange(path, offset, length);
+            LOG.debug("Finished loading from " + path + ", offset " + offset + ", length " + length + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + "ms");
+            return result;
+        }
+        catch (NoSuchFileException e)
+        {
+            // Avoid a separate call to Files.exists() as it adds ~1 second overhead
+            LOG.debug("Could not find SKYD file to get chromatogram at path " + path);
+            return null;
+        }
+        catch (RuntimeException e)
+        {
+            if (e.getMessage() != null && e.getMessage().contains("The specified key does not exist"))
+            {
+                // Avoid a separate call to Files.exists() as it adds ~1 second overhead
+                LOG.debug("Could not find SKYD file to get chromatogram at path " + path + ": " + e.getMessage());
+                return null;
+            }
+            throw e;
+        }
+        catch (IOException e)
+        {
+            LOG.warn("Unable to fetch chromatogram from " + path, e);
+            return null;
+        }
+        finally
+        {
+            _loads.incrementAndGet();
+            _loadNanos.addAndGet(System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Reads the chromatograms for many chrom infos from the same SKYD into the cache. The ranges are sorted and
+     * nearby ones are coalesced so that they're fetched with a few large sequential reads instead of a seek and read
+     * per chromatogram, which matters most for cloud storage where each request has significant latency. Failures are
+     * only logged, leaving the individual requests to report them.
+     * @param ranges offsets and lengths of the compressed chromatograms
+     */
+    public void prefetch(Path path, Collection<Pair<Long, Integer>> ranges)
+    {
+        List<Pair<Long, Integer>> toRead = ranges.stream()
+                .filter(range -> !_entries.containsKey(new Tuple3<>(path, range.first, range.second)))
+                .distinct()
+                .sorted(Comparator.comparing(range -> range.first))
+                .collect(Collectors.toList());
+
+        int start = 0;
+        while (start < toRead.size())
+        {
+            long spanStart = toRead.get(start).first;
+            long spanEnd = spanStart + toRead.get(start).second;
+            int end = start + 1;
+            while (end < toRead.size())
+            {
+                Pair<Long, Integer> next = toRead.get(end);
+                long nextEnd = Math.max(spanEnd, next.first + next.second);
+                if (next.first - spanEnd > MAX_COALESCE_GAP || nextEnd - spanStart > MAX_COALESCED_READ)
+                {
+                    break;
+                }
+                spanEnd = nextEnd;
+                end++;
+            }
+
+            long startTime = System.nanoTime();
+            byte[] span;
+            try
+            {
+                span = readRange(path, spanStart, Math.toIntExact(spanEnd - spanStart));
+            }
+            catch (IOException | RuntimeException e)
+            {
+                LOG.debug("Unable to prefetch chromatograms from " + path, e);
+                return;
+            }
+            finally
+            {
+                _loads.incrementAndGet();
+                _loadNanos.addAndGet(System.nanoTime() - startTime);
+            }
+            LOG.debug("Prefetched " + (end - start) + " chromatograms from " + path + " in a single " + span.length + " byte read");
+
+            for (Pair<Long, Integer> range : toRead.subList(start, end))
+            {
+                int from = (int) (range.first - spanStart);
+                byte[] bytes = Arrays.copyOfRange(span, from, from + range.second);
+                _entries.put(new Tuple3<>(path, range.first, range.second), bytes, bytes.length);
+            }
+            start = end;
+        }
+    }
+
+    /** Reads the bytes through one of the SKYD's pooled channels. A short read at the end of the file is zero-padded. */
+    private byte[] readRange(Path path, long offset, int length) throws IOException
+    {
+        SeekableByteChannel channel = borrowChannel(path);
+        boolean reusable = false;
+        try
+        {
+            channel.position(offset);
+            ByteBuffer byteBuffer = ByteBuffer.allocate(length);
+            // Cloud-backed channels may return less than was asked for
+            while (byteBuffer.hasRemaining())
+            {
+                if (channel.read(byteBuffer) < 0)
+                {
+                    break;
+                }
+            }
+            reusable = true;
+            return byteBuffer.array();
+        }
+        finally
+        {
+            releaseChannel(path, channel, reusable);
+        }
+    }
+
+    /** Drop all of the cached chromatograms and close any idle channels */
+    public void clear()
+    {
+        _entries.clear();
+        List<IdleChannel> toClose = new ArrayList<>();
+        synchronized (_idleChannels)
+        {
+            _idleChannels.values().forEach(toClose::addAll);
+            _idleChannels.clear();
+        }
+        toClose.forEach(IdleChannel::close);
+    }
+
+    /** Drop the cached chromatograms for a SKYD and close its idle channels, such as when its run has been deleted */
+    public void invalidate(Path path)
+    {
+        _entries.removeIf(key -> path.equals(key.first));
+        Deque<IdleChannel> toClose;
+        synchronized (_idleChannels)
+        {
+            toClose = _idleChannels.remove(path);
+        }
+        if (toClose != null)
+        {
+            toClose.forEach(IdleChannel::close);
+        }
+    }
+
+    private void closeExpiredChannels()
+    {
+        List<IdleChannel> toClose = new ArrayList<>();
+        synchronized (_idleChannels)
+        {
+            removeExpiredChannels(toClose);
+        }
+        toClose.forEach(IdleChannel::close);
+    }
+
+    /** Must be called while holding the lock on _idleChannels. Close the channels after releasing it. */
+    private void removeExpiredChannels(List<IdleChannel> toClose)
+    {
+        // Don't hold on to files that aren't being used anymore
+        for (Iterator<Deque<IdleChannel>> iter = _idleChannels.values().iterator(); iter.hasNext(); )
+        {
+            Deque<IdleChannel> idle = iter.next();
+            while (!idle.isEmpty() && idle.peekLast().isExpired())
+            {
+                toClose.add(idle.pollLast());
+            }
+            if (idle.isEmpty())
+            {
+                iter.remove();
+            }
+        }
+    }
+
+    private SeekableByteChannel borrowChannel(Path path) throws IOException
+    {
+        List<IdleChannel> toClose = new ArrayList<>();
+        SeekableByteChannel result = null;
+        synchronized (_idleChannels)
+        {
+            removeExpiredChannels(toClose);
+            Deque<IdleChannel> idle = _idleChannels.get(path);
+            IdleChannel channel = idle == null ? null : idle.pollFirst();
+            if (idle != null && idle.isEmpty())
+            {
+                _idleChannels.remove(path);
+            }
+            if (channel != null)
+            {
+                result = channel.getChannel();
+            }
+        }
+        toClose.forEach(IdleChannel::close);
+        if (result != null)
+        {
+            return result;
+        }
+        _channelsOpened.incrementAndGet();
+        return Files.newByteChannel(path, StandardOpenOption.READ, StandardOpenOption.SPARSE);
+    }
+
+    private void releaseChannel(Path path, SeekableByteChannel channel, boolean reusable)
+    {
+        List<IdleChannel> toClose = new ArrayList<>();
+        IdleChannel released = new IdleChannel(channel);
+        synchronized (_idleChannels)
+        {
+            if (reusable)
+            {
+                Deque<IdleChannel> idle = _idleChannels.computeIfAbsent(path, p -> new ArrayDeque<>());
+                if (idle.size() < MAX_IDLE_CHANNELS_PER_FILE)
+                {
+                    idle.addFirst(released);
+                    released = null;
+                }
+            }
+            if (released != null)
+            {
+                toClose.add(released);
+            }
+            removeExpiredChannels(toClose);
+        }
+        toClose.forEach(IdleChannel::close);
+    }
+
+    public long getCapacityBytes()
+    {
+        String value = TargetedMSModule.SKYD_CHROMATOGRAM_CACHE_SIZE_PROPERTY.getEffectiveValue(ContainerManager.getRoot());
+        try
+        {
+            return Long.parseLong(value.trim()) * 1024 * 1024;
+        }
+        catch (NumberFormatException e)
+        {
+            LOG.warn("Unable to parse SKYD_CHROMATOGRAM_CACHE_SIZE_PROPERTY value: " + value + ", defaulting to " + TargetedMSModule.DEFAULT_SKYD_CHROMATOGRAM_CACHE_SIZE_MB);
+            return TargetedMSModule.DEFAULT_SKYD_CHROMATOGRAM_CACHE_SIZE_MB * 1024L * 1024L;
+        }
+    }
+
+    public long getBytesResident()
+    {
+        return _entries.getWeight();
+    }
+
+    public int getEntryCount()
+    {
+        return _entries.size();
+    }
+
+    public int getIdleChannelCount()
+    {
+        synchronized (_idleChannels)
+        {
+            return _idleChannels.values().stream().mapToInt(Deque::size).sum();
+        }
+    }
+
+    public long getHitCount()
+    {
+        return _entries.getHitCount();
+    }
+
+    public long getMissCount()
+    {
+        return _entries.getMissCount();
+    }
+
+    public double getHitRatio()
+    {
+        return _entries.getHitRatio();
+    }
+
+    public long getEvictionCount()
+    {
+        return _entries.getEvictionCount();
+    }
+
+    public long getChannelsOpenedCount()
+    {
+        return _channelsOpened.get();
+    }
+
+    public double getAverageLoadMillis()
+    {
+        long loads = _loads.get();
+        return loads == 0 ? 0 : _loadNanos.get() / 1_000_000.0 / loads;
+    }
+
+    private static class IdleChannel
+    {
+        private final SeekableByteChannel _channel;
+        private final long _released = System.currentTimeMillis();
+
+        private IdleChannel(SeekableByteChannel channel)
+        {
+            _channel = channel;
+        }
+
+        public SeekableByteChannel getChannel()
+        {
+            return _channel;
+        }
+
+        public boolean isExpired()
+        {
+            return System.currentTimeMillis() - _released > CHANNEL_IDLE_TIMEOUT;
+        }
+
+        public void close()
+        {
+            try
+            {
+                _channel.close();
+            }
+            catch (IOException e)
+            {
+                LOG.debug("Failed to close SKYD channel", e);
+            }
+        }
+    }
+}
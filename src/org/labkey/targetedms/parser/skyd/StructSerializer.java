@@ -15,9 +15,14 @@
  */
 package org.labkey.targetedms.parser.skyd;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.poi.util.LittleEndianByteArrayInputStream;
+import org.apache.poi.util.LittleEndianInput;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
 
 /**
  * Created by nicksh on 2/27/2017.
@@ -37,13 +42,34 @@ public StructSerializer(Class<TItem> itemClass, int itemSizeInMemory, int itemSi
     public void readArray(InputStream stream, TItem[] array) throws IOException {
         byte[] buffer = new byte[getItemSizeOnDisk()];
         for (int i = 0; i < array.length; i++) {
-            if (stream.read(buffer) != buffer.length) {
-                throw new IOException();
-            }
+            // The stream may be buffered, in which case a single read() isn't guaranteed to fill the array
+            IOUtils.readFully(stream, buffer);
             array[i] = fromByteArray(resizeByteArray(buffer, getItemSizeInMemory()));
         }
     }
 
+    /**
+     * Decodes count items, starting at the given absolute position in the buffer, into the array beginning at offset.
+     * Items are read directly from the buffer instead of being copied into a byte[] one at a time.
+     */
+    public void readArray(ByteBuffer buffer, int position, TItem[] array, int offset, int count) {
+        int itemSizeOnDisk = getItemSizeOnDisk();
+        if (isPadFromStart()) {
+            // Rare, only used for the file-level header, so it's fine to go through the byte[] path
+            byte[] bytes = new byte[itemSizeOnDisk];
+            for (int i = 0; i < count; i++) {
+                buffer.duplicate().position(position + i * itemSizeOnDisk).get(bytes);
+                array[offset + i] = fromByteArray(resizeByteArray(bytes, getItemSizeInMemory()));
+            }
+            return;
+        }
+        ByteBufferLittleEndianInput input = new ByteBufferLittleEndianInput(buffer);
+        for (int i = 0; i < count; i++) {
+            input.reset(position + i * itemSizeOnDisk, Math.min(itemSizeOnDisk, getItemSizeInMemory()));
+            array[offset + i] = fromInput(input);
+        }
+    }
+
     @SuppressWarnings("unchecked")
     public TItem[] readArray(InputStream inputStream, int count) throws IOException {
         TItem[] array = (TItem[]) Array.newInstance(itemClass, count);
@@ -66,7 +92,16 @@ public byte[] resizeByteArray(byte[] byteArray, int newSize) {
         return newByteArray;
     }
 
-    public abstract TItem fromByteArray(byte[] bytes);
+    public TItem fromByteArray(byte[] bytes) {
+        return fromInput(new LittleEndianByteArrayInputStream(bytes));
+    }
+
+    public abstract TItem fromInput(LittleEndianInput input);
+
+    public Class<TItem> getItemClass()
+    {
+        return itemClass;
+    }
 
     public int getItemSizeInMemory()
     {
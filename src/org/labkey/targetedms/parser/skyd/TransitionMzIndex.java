@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2022 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.parser.skyd;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * The product m/z values of the transitions in a single chromatogram group, decoded once and sorted so that
+ * matching a document transition to its chromatogram is a binary search instead of a re-read of the ChromTransition
+ * block and a linear scan. All of the transitions in a group share the group's polarity, so only the magnitudes
+ * are stored.
+ */
+public class TransitionMzIndex
+{
+    private final double[] _sortedMz;
+    /** Position of each sorted value within the group's original list of transitions */
+    private final int[] _originalIndex;
+
+    public TransitionMzIndex(ChromGroupHeaderInfo header, ChromTransition[] transitions)
+    {
+        this(Arrays.stream(transitions).mapToDouble(t -> t.getProduct(header).getMz()).toArray());
+    }
+
+    /* package */ TransitionMzIndex(double[] productMzs)
+    {
+        _originalIndex = IntStream.range(0, productMzs.length)
+                .boxed()
+                .sorted(Comparator.comparingDouble(i -> productMzs[i]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+        _sortedMz = new double[productMzs.length];
+        for (int i = 0; i < _originalIndex.length; i++)
+        {
+            _sortedMz[i] = productMzs[_originalIndex[i]];
+        }
+    }
+
+    public int size()
+    {
+        return _sortedMz.length;
+    }
+
+    /** @return the number of transitions whose product m/z is within the tolerance (inclusive) of the target */
+    public int countMatches(double mz, double tolerance)
+    {
+        int count = 0;
+        for (int i = firstCandidate(mz, tolerance); i < _sortedMz.length && _sortedMz[i] - mz <= tolerance; i++)
+        {
+            if (Math.abs(mz - _sortedMz[i]) <= tolerance)
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the original index of the transition whose product m/z is nearest to the target and strictly within the
+     * tolerance, or -1 if there is none. Ties go to the transition that comes first in the group.
+     */
+    public int findNearest(double mz, double tolerance)
+    {
+        int result = -1;
+        double deltaNearestMz = Double.MAX_VALUE;
+        for (int i = firstCandidate(mz, tolerance); i < _sortedMz.length && _sortedMz[i] - mz < tolerance; i++)
+        {
+            double deltaMz = Math.abs(mz - _sortedMz[i]);
+            if (deltaMz < tolerance && (deltaMz < deltaNearestMz || (deltaMz == deltaNearestMz && _originalIndex[i] < result)))
+            {
+                result = _originalIndex[i];
+                deltaNearestMz = deltaMz;
+            }
+        }
+        return result;
+    }
+
+    /** @return the first sorted position that could be within the tolerance of the target */
+    private int firstCandidate(double mz, double tolerance)
+    {
+        int i = lowerBound(mz - tolerance);
+        // Step back over values that rounding in the subtraction may have excluded
+        while (i > 0 && Math.abs(mz - _sortedMz[i - 1]) <= tolerance)
+        {
+            i--;
+        }
+        return i;
+    }
+
+    /** @return the first sorted position whose value is >= the target */
+    private int lowerBound(double mz)
+    {
+        int low = 0;
+        int high = _sortedMz.length;
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (_sortedMz[mid] < mz)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testMatchesLinearScan()
+        {
+            Random random = new Random(42);
+            for (int iteration = 0; iteration < 200; iteration++)
+            {
+                // Include some duplicates and near-duplicates, like optimization steps
+                double[] mzs = new double[random.nextInt(40)];
+                for (int i = 0; i < mzs.length; i++)
+                {
+                    mzs[i] = i > 0 && random.nextInt(5) == 0 ? mzs[i - 1] + random.nextInt(3) * 0.01 : 100 + random.nextInt(100000) / 100.0;
+                }
+                TransitionMzIndex index = new TransitionMzIndex(mzs);
+
+                for (int j = 0; j < 50; j++)
+                {
+                    double target = j < mzs.length ? mzs[j] + (random.nextInt(5) - 2) * 0.005 : 100 + random.nextInt(100000) / 100.0;
+                    double tolerance = 0.005 * (1 + random.nextInt(4));
+
+                    int expectedNearest = -1;
+                    double deltaNearestMz = Double.MAX_VALUE;
+                    int expectedCount = 0;
+                    for (int i = 0; i < mzs.length; i++)
+                    {
+                        double deltaMz = Math.abs(target - mzs[i]);
+                        if (deltaMz < tolerance && deltaMz < deltaNearestMz)
+                        {
+                            expectedNearest = i;
+                            deltaNearestMz = deltaMz;
+                        }
+                        if (deltaMz <= tolerance)
+                        {
+                            expectedCount++;
+                        }
+                    }
+                    assertEquals(expectedNearest, index.findNearest(target, tolerance));
+                    assertEquals(expectedCount, index.countMatches(target, tolerance));
+                }
+            }
+        }
+
+        @Test
+        public void testEmpty()
+        {
+            TransitionMzIndex index = new TransitionMzIndex(new double[0]);
+            assertEquals(-1, index.findNearest(500, 0.1));
+            assertEquals(0, index.countMatches(500, 0.1));
+        }
+    }
+}
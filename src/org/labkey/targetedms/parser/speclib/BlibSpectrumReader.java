@@ -15,12 +15,14 @@
 
 package org.labkey.targetedms.parser.speclib;
 
+import com.google.common.collect.Lists;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.labkey.api.data.Container;
 import org.labkey.api.util.FileUtil;
 import org.labkey.api.util.logging.LogHelper;
+import org.labkey.targetedms.parser.ZlibDecompressor;
 import org.labkey.targetedms.parser.speclib.LibSpectrum.RedundantSpectrum;
 import org.labkey.targetedms.view.spectrum.LibrarySpectrumMatchGetter;
 
@@ -34,10 +36,15 @@
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
 
 /**
  * User: vsharma
@@ -87,6 +94,77 @@ && redundantBlibExists(blibPath))
         }
     }
 
+    @Override
+    protected @NotNull Map<LibSpectrum.SpectrumKey, LibSpectrum> readSpectra(Connection conn, Collection<LibSpectrum.SpectrumKey> spectrumKeys, Path blibPath) throws DataFormatException, SQLException
+    {
+        try
+        {
+            boolean validRtTable = hasValidRtTable(conn);
+            Map<LibSpectrum.SpectrumKey, BlibSpectrum> spectra = new HashMap<>();
+            Set<LibSpectrum.SpectrumKey> seenKeys = new HashSet<>();
+            List<String> modifiedPeptides = spectrumKeys.stream().map(LibSpectrum.SpectrumKey::getModifiedPeptide).distinct().collect(Collectors.toList());
+            for (List<String> batch : Lists.partition(modifiedPeptides, BATCH_SIZE))
+            {
+                try (PreparedStatement stmt = conn.prepareStatement(getRefSpectraSql(validRtTable) + getInClause(batch.size())))
+                {
+                    setInClauseParameters(stmt, 1, batch);
+                    try (ResultSet rs = stmt.executeQuery())
+                    {
+                        while (rs.next())
+                        {
+                            String modifiedPeptide = rs.getString("peptideModSeq");
+                            LibSpectrum.SpectrumKey key = new LibSpectrum.SpectrumKey(modifiedPeptide, rs.getInt("precursorCharge"));
+                            // Only look at the first row for each key, as readBlibSpectrum() does. If it has no
+                            // spectrum peaks there's no match for the key, even if a later row has peaks.
+                            if (spectrumKeys.contains(key) && seenKeys.add(key))
+                            {
+                                BlibSpectrum spectrum = readBlibSpectrum(rs, modifiedPeptide, validRtTable);
+                                if (spectrum.getNumPeaks() > 0)
+                                {
+                                    spectra.put(key, spectrum);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+
+            Map<Integer, BlibSpectrum> spectraById = new HashMap<>();
+            spectra.values().forEach(spectrum -> spectraById.put(spectrum.getBlibId(), spectrum));
+            readSpectrumPeaks(conn, spectraById);
+
+            if (redundantBlibExists(blibPath))
+            {
+                Map<Integer, BlibSpectrum> spectraWithRt = new HashMap<>();
+                spectraById.forEach((id, spectrum) -> {
+                    // retentionTime will be null if RetentionTimes table does not exist.
+                    if (spectrum.getRetentionTime() != null)
+                    {
+                        spectraWithRt.put(id, spectrum);
+                    }
+                });
+                addRedundantSpectrumInfo(conn, spectraWithRt);
+            }
+
+            return Collections.unmodifiableMap(spectra);
+        }
+        catch(SQLException e)
+        {
+            // Malformed blib file?
+            if (malformedBlibFileError(FileUtil.getFileName(blibPath), e))
+            {
+                return Collections.emptyMap();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    protected String toLibraryModifiedSequence(String modifiedSequence)
+    {
+        return makePeptideBlibFormat(modifiedSequence);
+    }
+
     @Override
     protected @Nullable Path getRedundantLibPath(Container container, Path libPath)
     {
@@ -203,6 +281,27 @@ protected List<LibrarySpectrumMatchGetter.PeptideIdRtInfo> readRetentionTimes(Co
     private BlibSpectrum readBlibSpectrum(Connection conn, String modifiedPeptide, int charge) throws SQLException
     {
         boolean validRtTable = hasValidRtTable(conn);
+        String sql = getRefSpectraSql(validRtTable) + " = ? AND " + (validRtTable ? "rf." : "") + "precursorCharge = ?";
+
+        try (PreparedStatement stmt = conn.prepareStatement(sql))
+        {
+            stmt.setString(1, modifiedPeptide);
+            stmt.setInt(2, charge);
+            try (ResultSet rs = stmt.executeQuery())
+            {
+                BlibSpectrum spectrum = null;
+                if (rs.next())
+                {
+                    spectrum = readBlibSpectrum(rs, modifiedPeptide, validRtTable);
+                }
+                return spectrum;
+            }
+        }
+    }
+
+    /** @return the query for spectra, up to the column to filter on the modified sequence */
+    private static String getRefSpectraSql(boolean validRtTable)
+    {
         StringBuilder sql;
         if(validRtTable)
         {
@@ -211,46 +310,37 @@ private BlibSpectrum readBlibSpectrum(Connection conn, String modifiedPeptide, i
             sql.append(", rt.SpectrumSourceId FROM RefSpectra AS rf ");
             sql.append("LEFT JOIN RetentionTimes AS rt ON (rt.RefSpectraId = rf.id AND rt.bestSpectrum = 1) ");
             sql.append("LEFT JOIN SpectrumSourceFiles AS ssf ON rt.SpectrumSourceId = ssf.id ");
-            sql.append(" WHERE rf.peptideModSeq = ?");
-            sql.append(" AND rf.precursorCharge = ?");
+            sql.append(" WHERE rf.peptideModSeq");
         }
         else
         {
-            sql = new StringBuilder("SELECT * from RefSpectra WHERE peptideModSeq = ? AND precursorCharge = ?");
+            sql = new StringBuilder("SELECT * from RefSpectra WHERE peptideModSeq");
         }
+        return sql.toString();
+    }
 
-        try (PreparedStatement stmt = conn.prepareStatement(sql.toString()))
+    private static BlibSpectrum readBlibSpectrum(ResultSet rs, String modifiedPeptide, boolean validRtTable) throws SQLException
+    {
+        // Columns in RefSpectra table: id|peptideSeq|peptideModSeq|precursorCharge|precursorMZ|prevAA|nextAA|copies|numPeaks
+        // Columns queried from RetentionTimes table (when present): retentionTime, SpectrumSourceId
+        // Columns queried from SpectrumSourceFiles table (when present): fileName
+        BlibSpectrum spectrum = new BlibSpectrum();
+        spectrum.setBlibId(rs.getInt("id"));
+        spectrum.setPeptideSeq(rs.getString("peptideSeq"));
+        spectrum.setPeptideModSeq(modifiedPeptide);
+        spectrum.setPrecursorCharge(rs.getInt("precursorCharge"));
+        spectrum.setPrecursorMz(rs.getDouble("precursorMZ"));
+        spectrum.setPrevAa(rs.getString("prevAA"));
+        spectrum.setNextAa(rs.getString("nextAA"));
+        spectrum.setCopies(rs.getInt("copies"));
+        spectrum.setNumPeaks(rs.getInt("numPeaks"));
+        if (validRtTable)
         {
-            stmt.setString(1, modifiedPeptide);
-            stmt.setInt(2, charge);
-            try (ResultSet rs = stmt.executeQuery())
-            {
-                // Columns in RefSpectra table: id|peptideSeq|peptideModSeq|precursorCharge|precursorMZ|prevAA|nextAA|copies|numPeaks
-                // Columns queried from RetentionTimes table (when present): retentionTime, SpectrumSourceId
-                // Columns queried from SpectrumSourceFiles table (when present): fileName
-                BlibSpectrum spectrum = null;
-                if (rs.next())
-                {
-                    spectrum = new BlibSpectrum();
-                    spectrum.setBlibId(rs.getInt("id"));
-                    spectrum.setPeptideSeq(rs.getString("peptideSeq"));
-                    spectrum.setPeptideModSeq(modifiedPeptide);
-                    spectrum.setPrecursorCharge(rs.getInt("precursorCharge"));
-                    spectrum.setPrecursorMz(rs.getDouble("precursorMZ"));
-                    spectrum.setPrevAa(rs.getString("prevAA"));
-                    spectrum.setNextAa(rs.getString("nextAA"));
-                    spectrum.setCopies(rs.getInt("copies"));
-                    spectrum.setNumPeaks(rs.getInt("numPeaks"));
-                    if (validRtTable)
-                    {
-                        spectrum.setRetentionTime(rs.getDouble("RT"));
-                        spectrum.setFileId(rs.getInt("SpectrumSourceId"));
-                        spectrum.setSourceFile(rs.getString("fileName"));
-                    }
-                }
-                return spectrum;
-            }
+            spectrum.setRetentionTime(rs.getDouble("RT"));
+            spectrum.setFileId(rs.getInt("SpectrumSourceId"));
+            spectrum.setSourceFile(rs.getString("fileName"));
         }
+        return spectrum;
     }
 
     @Override
@@ -259,6 +349,12 @@ String getMatchingModSeqLookupSql()
         return "SELECT peptideModSeq FROM RefSpectra WHERE peptideSeq = ?";
     }
 
+    @Override
+    String getMatchingModSeqBatchLookupSql()
+    {
+        return "SELECT peptideSeq, peptideModSeq FROM RefSpectra WHERE peptideSeq";
+    }
+
     private static boolean hasTable(Connection conn, String tableName) throws SQLException
     {
         String tableCheckStmt = "SELECT name FROM sqlite_master WHERE type='table' AND name='" + tableName + "'";
@@ -274,6 +370,11 @@ private static boolean hasTable(Connection conn, String tableName) throws SQLExc
     }
 
     private static boolean hasValidRtTable(Connection conn) throws SQLException
+    {
+        return LibraryConnectionPool.get().getCapability(conn, "validRtTable", BlibSpectrumReader::checkValidRtTable);
+    }
+
+    private static boolean checkValidRtTable(Connection conn) throws SQLException
     {
         if(!hasTable(conn, "RetentionTimes"))
         {
@@ -324,18 +425,35 @@ private static String makePeptideBlibFormat(String modifiedPeptide)
 
     private static void readSpectrumPeaks(Connection conn, BlibSpectrum spectrum) throws SQLException, DataFormatException
     {
-        try (Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT * FROM RefSpectraPeaks WHERE RefSpectraId="+spectrum.getBlibId()))
+        readSpectrumPeaks(conn, Collections.singletonMap(spectrum.getBlibId(), spectrum));
+    }
+
+    /** @param spectra blib ID -> spectrum */
+    private static void readSpectrumPeaks(Connection conn, Map<Integer, BlibSpectrum> spectra) throws SQLException, DataFormatException
+    {
+        for (List<Integer> batch : Lists.partition(new ArrayList<>(spectra.keySet()), BATCH_SIZE))
         {
-            if(rs.next())
+            try (PreparedStatement stmt = conn.prepareStatement("SELECT * FROM RefSpectraPeaks WHERE RefSpectraId" + getInClause(batch.size())))
             {
-                byte[] mzsCompressed = rs.getBytes(2);
-                byte[] intensCompressed = rs.getBytes(3);
-
-                double[] peakMzs = uncompressPeakMz(mzsCompressed, spectrum.getNumPeaks());
-                float[] peakIntensities = uncompressPeakIntensities(intensCompressed, spectrum.getNumPeaks());
-
-                spectrum.setMzAndIntensity(peakMzs, peakIntensities);
+                setInClauseParameters(stmt, 1, batch);
+                try (ResultSet rs = stmt.executeQuery())
+                {
+                    while(rs.next())
+                    {
+                        BlibSpectrum spectrum = spectra.get(rs.getInt(1));
+                        if (spectrum == null)
+                        {
+                            continue;
+                        }
+                        byte[] mzsCompressed = rs.getBytes(2);
+                        byte[] intensCompressed = rs.getBytes(3);
+
+                        double[] peakMzs = uncompressPeakMz(mzsCompressed, spectrum.getNumPeaks());
+                        float[] peakIntensities = uncompressPeakIntensities(intensCompressed, spectrum.getNumPeaks());
+
+                        spectrum.setMzAndIntensity(peakMzs, peakIntensities);
+                    }
+                }
             }
         }
     }
@@ -379,84 +497,94 @@ private static float[] uncompressPeakIntensities(byte[] compressed, int peakCoun
 
     private static byte[] getBytes(byte[] compressed, int uncompressedLength) throws DataFormatException
     {
-        byte[] uncompressed;
-        if(uncompressedLength == compressed.length)
-        {
-            uncompressed = compressed;
-        }
-        else
-        {
-            uncompressed = new byte[uncompressedLength];
-
-            Inflater inflater = new Inflater();
-            inflater.setInput(compressed, 0, compressed.length);
-            inflater.inflate(uncompressed);
-            inflater.end();
-        }
-        return uncompressed;
+        return ZlibDecompressor.uncompress(compressed, uncompressedLength);
     }
 
     private static void addRedundantSpectrumInfo(Connection conn, BlibSpectrum spectrum) throws SQLException
     {
+        addRedundantSpectrumInfo(conn, Collections.singletonMap(spectrum.getBlibId(), spectrum));
+    }
+
+    /** @param spectra blib ID -> spectrum */
+    private static void addRedundantSpectrumInfo(Connection conn, Map<Integer, BlibSpectrum> spectra) throws SQLException
+    {
+        Map<Integer, List<RedundantSpectrum>> redundantSpectraById = new HashMap<>();
+        spectra.keySet().forEach(id -> redundantSpectraById.put(id, new ArrayList<>()));
+
         StringBuilder sql = new StringBuilder("SELECT rt.*, sf.fileName ");
         sql.append("FROM RetentionTimes AS rt INNER JOIN SpectrumSourceFiles AS sf ON rt.spectrumSourceID = sf.id ");
-        sql.append("WHERE RefSpectraID=").append(spectrum.getBlibId());
+        sql.append("WHERE RefSpectraID");
 
-        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql.toString()))
+        for (List<Integer> batch : Lists.partition(new ArrayList<>(spectra.keySet()), BATCH_SIZE))
         {
-            List<RedundantSpectrum> redundantSpectra = new ArrayList<>();
-
-            while (rs.next())
+            try (PreparedStatement stmt = conn.prepareStatement(sql + getInClause(batch.size())))
             {
-                RedundantSpectrum rSpec = new RedundantSpectrum();
-                rSpec.setRedundantRefSpectrumId(rs.getInt("RedundantRefSpectraID"));
-                rSpec.setRetentionTime(rs.getDouble("retentionTime"));
-                rSpec.setSourceFile(rs.getString("fileName"));
-                rSpec.setBestSpectrum(rs.getBoolean("bestSpectrum"));
-
-                if (rSpec.isBestSpectrum())
-                {
-                    // If this is the reference spectrum keep it in front of the list.
-                    redundantSpectra.add(0, rSpec);
-                }
-                else
+                setInClauseParameters(stmt, 1, batch);
+                try (ResultSet rs = stmt.executeQuery())
                 {
-                    redundantSpectra.add(rSpec);
+                    while (rs.next())
+                    {
+                        List<RedundantSpectrum> redundantSpectra = redundantSpectraById.get(rs.getInt("RefSpectraID"));
+                        if (redundantSpectra == null)
+                        {
+                            continue;
+                        }
+
+                        RedundantSpectrum rSpec = new RedundantSpectrum();
+                        rSpec.setRedundantRefSpectrumId(rs.getInt("RedundantRefSpectraID"));
+                        rSpec.setRetentionTime(rs.getDouble("retentionTime"));
+                        rSpec.setSourceFile(rs.getString("fileName"));
+                        rSpec.setBestSpectrum(rs.getBoolean("bestSpectrum"));
+
+                        if (rSpec.isBestSpectrum())
+                        {
+                            // If this is the reference spectrum keep it in front of the list.
+                            redundantSpectra.add(0, rSpec);
+                        }
+                        else
+                        {
+                            redundantSpectra.add(rSpec);
+                        }
+                    }
                 }
             }
-
-            spectrum.setRedundantSpectrumList(redundantSpectra);
         }
+
+        redundantSpectraById.forEach((id, redundantSpectra) -> spectra.get(id).setRedundantSpectrumList(redundantSpectra));
     }
 
     private static BlibSpectrum readRedundantSpectrum(Connection conn, int redundantRefSpectrumid) throws SQLException
     {
         StringBuilder sql = new StringBuilder("SELECT rf.*, ssf.fileName FROM RefSpectra AS rf ");
         sql.append("LEFT JOIN SpectrumSourceFiles AS ssf ON rf.FileID = ssf.id ");
-        sql.append(" WHERE rf.id=").append(redundantRefSpectrumid);
+        sql.append(" WHERE rf.id = ?");
 
-        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql.toString()))
+        try (PreparedStatement stmt = conn.prepareStatement(sql.toString()))
         {
-            BlibSpectrum spectrum = null;
-
-            if (rs.next())
+            stmt.setInt(1, redundantRefSpectrumid);
+            try (ResultSet rs = stmt.executeQuery())
             {
-                spectrum = new BlibSpectrum();
-                spectrum.setBlibId(rs.getInt("id"));
-                spectrum.setPeptideSeq(rs.getString("peptideSeq"));
-                spectrum.setPeptideModSeq("peptideModSeq");
-                spectrum.setPrecursorCharge(rs.getInt("precursorCharge"));
-                spectrum.setPrecursorMz(rs.getDouble("precursorMZ"));
-                spectrum.setPrevAa(rs.getString("prevAA"));
-                spectrum.setNextAa(rs.getString("nextAA"));
-                spectrum.setCopies(rs.getInt("copies"));
-                spectrum.setNumPeaks(rs.getInt("numPeaks"));
-                spectrum.setRetentionTime(rs.getDouble("retentionTime"));
-                spectrum.setFileId(rs.getInt("fileID"));
-                spectrum.setSourceFile(rs.getString("fileName"));
-            }
+                BlibSpectrum spectrum = null;
 
-            return spectrum;
+                if (rs.next())
+                {
+                    spectrum = new BlibSpectrum();
+                    spectrum.setBlibId(rs.getInt("id"));
+                    spectrum.setPeptideSeq(rs.getString("peptideSeq"));
+                    spectrum.setPeptideModSeq("peptideModSeq");
+                    spectrum.setPrecursorCharge(rs.getInt("precursorCharge"));
+                    spectrum.setPrecursorMz(rs.getDouble("precursorMZ"));
+                    spectrum.setPrevAa(rs.getString("prevAA"));
+                    spectrum.setNextAa(rs.getString("nextAA"));
+                    spectrum.setCopies(rs.getInt("copies"));
+                    spectrum.setNumPeaks(rs.getInt("numPeaks"));
+                    spectrum.setRetentionTime(rs.getDouble("retentionTime"));
+                    spectrum.setFileId(rs.getInt("fileID"));
+                    spectrum.setSourceFile(rs.getString("fileName"));
+                }
+
+                return spectrum;
+            }
         }
     }
 }
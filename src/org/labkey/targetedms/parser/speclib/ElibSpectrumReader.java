@@ -15,9 +15,11 @@
 
 package org.labkey.targetedms.parser.speclib;
 
+import com.google.common.collect.Lists;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.labkey.api.data.Container;
+import org.labkey.targetedms.parser.ZlibDecompressor;
 import org.labkey.targetedms.parser.speclib.LibSpectrum.RedundantSpectrum;
 import org.labkey.targetedms.parser.speclib.LibSpectrum.SpectrumKey;
 import org.labkey.targetedms.view.spectrum.LibrarySpectrumMatchGetter;
@@ -32,13 +34,15 @@
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
 
 // EncyclopeDIA file format documentation: https://bitbucket.org/searleb/encyclopedia/wiki/EncyclopeDIA%20File%20Formats
 @SuppressWarnings("SqlResolve")
@@ -68,6 +72,56 @@ protected String getMatchingModSeqLookupSql()
         return "SELECT PeptideModSeq FROM entries WHERE PeptideSeq = ?";
     }
 
+    @Override
+    String getMatchingModSeqBatchLookupSql()
+    {
+        return "SELECT PeptideSeq, PeptideModSeq FROM entries WHERE PeptideSeq";
+    }
+
+    @Override
+    protected @NotNull Map<SpectrumKey, LibSpectrum> readSpectra(Connection conn, Collection<SpectrumKey> spectrumKeys, Path libPath) throws DataFormatException, SQLException
+    {
+        Map<SpectrumKey, List<ElibSpectrum>> spectraByKey = new HashMap<>();
+        Map<ElibSpectrum, Long> rowIds = new HashMap<>();
+        List<String> modifiedPeptides = spectrumKeys.stream().map(SpectrumKey::getModifiedPeptide).distinct().collect(Collectors.toList());
+        for (List<String> batch : Lists.partition(modifiedPeptides, BATCH_SIZE))
+        {
+            try (PreparedStatement stmt = conn.prepareStatement("SELECT rowid, PeptideModSeq, PrecursorCharge, PrecursorMz, SourceFile, RTInSeconds, Score FROM entries" +
+                    " WHERE PeptideModSeq" + getInClause(batch.size())))
+            {
+                setInClauseParameters(stmt, 1, batch);
+                try (ResultSet rs = stmt.executeQuery())
+                {
+                    while (rs.next())
+                    {
+                        SpectrumKey key = new SpectrumKey(rs.getString("PeptideModSeq"), rs.getInt("PrecursorCharge"));
+                        if (spectrumKeys.contains(key))
+                        {
+                            ElibSpectrum spectrum = readElibSpectrum(rs, key.getModifiedPeptide());
+                            spectraByKey.computeIfAbsent(key, k -> new ArrayList<>()).add(spectrum);
+                            rowIds.put(spectrum, rs.getLong("rowid"));
+                        }
+                    }
+                }
+            }
+        }
+
+        Map<SpectrumKey, LibSpectrum> result = new HashMap<>();
+        Map<Long, ElibSpectrum> bestSpectra = new HashMap<>();
+        for (Map.Entry<SpectrumKey, List<ElibSpectrum>> entry : spectraByKey.entrySet())
+        {
+            List<ElibSpectrum> spectra = entry.getValue();
+            sortElibSpectra(spectra);
+            ElibSpectrum bestSpectrum = spectra.get(0);
+            bestSpectrum.setRedundantSpectrumList(getRedundantSpectra(spectra));
+            bestSpectra.put(rowIds.get(bestSpectrum), bestSpectrum);
+            result.put(entry.getKey(), bestSpectrum);
+        }
+        readPeaks(conn, bestSpectra);
+
+        return Collections.unmodifiableMap(result);
+    }
+
     private ElibSpectrum readElibSpectrum(Connection conn, SpectrumKey spectrumKey, boolean getRedundant) throws SQLException, DataFormatException
     {
         StringBuilder sql = new StringBuilder("SELECT PeptideModSeq, PrecursorCharge, PrecursorMz, SourceFile, RTInSeconds, Score FROM entries")
@@ -90,15 +144,7 @@ private ElibSpectrum readElibSpectrum(Connection conn, SpectrumKey spectrumKey,
             {
                 while (rs.next())
                 {
-                    ElibSpectrum spectrum = new ElibSpectrum();
-                    spectrum.setPeptideModSeq(spectrumKey.getModifiedPeptide());
-                    spectrum.setPrecursorCharge(rs.getInt("PrecursorCharge"));
-                    spectrum.setPrecursorMz(rs.getDouble("PrecursorMz"));
-                    double rt = rs.getDouble("RTInSeconds");
-                    spectrum.setRetentionTime(rt / 60.0);
-                    spectrum.setSourceFile(rs.getString("SourceFile"));
-                    spectrum.setScore(rs.getDouble("Score"));
-                    spectra.add(spectrum);
+                    spectra.add(readElibSpectrum(rs, spectrumKey.getModifiedPeptide()));
                 }
             }
         }
@@ -111,18 +157,7 @@ private ElibSpectrum readElibSpectrum(Connection conn, SpectrumKey spectrumKey,
 
             if(getRedundant)
             {
-                AtomicInteger id = new AtomicInteger(1);
-                List<RedundantSpectrum> redundantSpectra = spectra.stream()
-                        .map(s -> {
-                            RedundantSpectrum rSpec = new RedundantSpectrum();
-                            rSpec.setBestSpectrum(id.get() == 1);
-                            rSpec.setRetentionTime(s.getRetentionTime());
-                            rSpec.setSourceFile(s.getSourceFile());
-                            rSpec.setRedundantRefSpectrumId(id.getAndIncrement());
-                            return rSpec;
-                        })
-                        .collect(Collectors.toList());
-                bestSpectrum.setRedundantSpectrumList(redundantSpectra);
+                bestSpectrum.setRedundantSpectrumList(getRedundantSpectra(spectra));
             }
 
             return bestSpectrum;
@@ -130,6 +165,35 @@ private ElibSpectrum readElibSpectrum(Connection conn, SpectrumKey spectrumKey,
         return null;
     }
 
+    private static ElibSpectrum readElibSpectrum(ResultSet rs, String modifiedPeptide) throws SQLException
+    {
+        ElibSpectrum spectrum = new ElibSpectrum();
+        spectrum.setPeptideModSeq(modifiedPeptide);
+        spectrum.setPrecursorCharge(rs.getInt("PrecursorCharge"));
+        spectrum.setPrecursorMz(rs.getDouble("PrecursorMz"));
+        double rt = rs.getDouble("RTInSeconds");
+        spectrum.setRetentionTime(rt / 60.0);
+        spectrum.setSourceFile(rs.getString("SourceFile"));
+        spectrum.setScore(rs.getDouble("Score"));
+        return spectrum;
+    }
+
+    /** @param spectra sorted best first */
+    private static List<RedundantSpectrum> getRedundantSpectra(List<ElibSpectrum> spectra)
+    {
+        AtomicInteger id = new AtomicInteger(1);
+        return spectra.stream()
+                .map(s -> {
+                    RedundantSpectrum rSpec = new RedundantSpectrum();
+                    rSpec.setBestSpectrum(id.get() == 1);
+                    rSpec.setRetentionTime(s.getRetentionTime());
+                    rSpec.setSourceFile(s.getSourceFile());
+                    rSpec.setRedundantRefSpectrumId(id.getAndIncrement());
+                    return rSpec;
+                })
+                .collect(Collectors.toList());
+    }
+
     private void readPeaks(Connection conn, ElibSpectrum spectrum) throws SQLException, DataFormatException
     {
         try (PreparedStatement stmt = conn.prepareStatement("SELECT MassEncodedLength, MassArray, IntensityEncodedLength, IntensityArray FROM entries " +
@@ -154,6 +218,37 @@ private void readPeaks(Connection conn, ElibSpectrum spectrum) throws SQLExcepti
         }
     }
 
+    /** @param spectra entries rowid -> spectrum */
+    private void readPeaks(Connection conn, Map<Long, ElibSpectrum> spectra) throws SQLException, DataFormatException
+    {
+        for (List<Long> batch : Lists.partition(new ArrayList<>(spectra.keySet()), BATCH_SIZE))
+        {
+            try (PreparedStatement stmt = conn.prepareStatement("SELECT rowid, MassEncodedLength, MassArray, IntensityEncodedLength, IntensityArray FROM entries " +
+                    "WHERE rowid" + getInClause(batch.size())))
+            {
+                setInClauseParameters(stmt, 1, batch);
+                try (ResultSet rs = stmt.executeQuery())
+                {
+                    while (rs.next())
+                    {
+                        ElibSpectrum spectrum = spectra.get(rs.getLong("rowid"));
+                        if (spectrum == null)
+                        {
+                            continue;
+                        }
+                        byte[] mzArray = rs.getBytes("MassArray");
+                        byte[] intensityArray = rs.getBytes("IntensityArray");
+
+                        double[] peakMzs = extractMassArray(mzArray, rs.getInt("MassEncodedLength"));
+                        float[] peakIntensities = extractIntensityArray(intensityArray, rs.getInt("IntensityEncodedLength"));
+
+                        spectrum.setMzAndIntensity(peakMzs, peakIntensities);
+                    }
+                }
+            }
+        }
+    }
+
     private static double[] extractMassArray(byte[] compressedData, int uncompressedLength) throws DataFormatException
     {
         // Based on the code provided on the EncyclopeDIA documentation page: https://bitbucket.org/searleb/encyclopedia/wiki/EncyclopeDIA%20File%20Formats
@@ -180,16 +275,23 @@ private static float[] extractIntensityArray(byte[] compressedData, int uncompre
 
     private static byte[] uncompress(byte[] compressedData, int uncompressedLength) throws DataFormatException
     {
-        byte[] uncompressed = new byte[uncompressedLength];
-
-        Inflater inflater = new Inflater();
-        inflater.setInput(compressedData);
-        inflater.inflate(uncompressed);
-        inflater.end();
-        return uncompressed;
+        // ELIB blobs are always compressed, even when the compressed length matches the uncompressed length, so don't
+        // treat a matching length as stored bytes unless the data doesn't inflate
+        try
+        {
+            return ZlibDecompressor.inflate(compressedData, uncompressedLength);
+        }
+        catch (DataFormatException e)
+        {
+            if (compressedData.length == uncompressedLength)
+            {
+                return compressedData;
+            }
+            throw e;
+        }
     }
 
-    private void sortElibSpectra(List<ElibSpectrum> spectra)
+    private static void sortElibSpectra(List<ElibSpectrum> spectra)
     {
         spectra.sort(Comparator.comparing(ElibSpectrum::getPeptideModSeq)
                 .thenComparing(ElibSpectrum::getPrecursorCharge)
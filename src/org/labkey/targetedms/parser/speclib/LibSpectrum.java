@@ -22,6 +22,7 @@
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 
 /**
  * User: vsharma
@@ -231,7 +232,7 @@ public void setBestSpectrum(boolean bestSpectrum)
         }
     }
 
-    static class SpectrumKey
+    public static class SpectrumKey
     {
         private final int _redundantRefSpectrumId;
         private final String _sourceFile;
@@ -280,5 +281,21 @@ public boolean hasSourceFile()
         {
             return !StringUtils.isBlank(_sourceFile);
         }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            SpectrumKey that = (SpectrumKey) o;
+            return _redundantRefSpectrumId == that._redundantRefSpectrumId && _charge == that._charge
+                    && Objects.equals(_sourceFile, that._sourceFile) && Objects.equals(_modifiedPeptide, that._modifiedPeptide);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(_redundantRefSpectrumId, _sourceFile, _charge, _modifiedPeptide);
+        }
     }
 }
@@ -15,6 +15,8 @@
 
 package org.labkey.targetedms.parser.speclib;
 
+import com.google.common.collect.Lists;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
@@ -27,22 +29,31 @@
 import org.labkey.api.pipeline.LocalDirectory;
 import org.labkey.api.util.FileUtil;
 import org.labkey.api.util.Pair;
+import org.labkey.targetedms.TargetedMSModule;
 import org.labkey.targetedms.parser.Peptide;
 import org.labkey.targetedms.view.spectrum.LibrarySpectrumMatchGetter;
-import org.sqlite.SQLiteConfig;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 import java.util.zip.DataFormatException;
 
 import static org.labkey.targetedms.parser.speclib.LibSpectrum.*;
@@ -99,6 +110,44 @@ private LibSpectrum getLibSpectrum(Container container, Path libPath, SpectrumKe
         }
     }
 
+    /**
+     * Looks up the best spectrum for each of the keys with a few queries against the library file, instead of
+     * separate queries for every key.
+     * @return the spectra for the keys that have a match in the library, keyed by the requested key
+     */
+    @NotNull
+    public Map<SpectrumKey, LibSpectrum> getLibSpectra(Container container, Path libPath, Collection<SpectrumKey> keys) throws SQLException, DataFormatException
+    {
+        if (keys.isEmpty())
+            return Collections.emptyMap();
+
+        String localLibPath = getNonEmptyLocalLibPath(container, libPath);
+        if (null == localLibPath)
+            return Collections.emptyMap();
+
+        try (Connection conn = getLibConnection(localLibPath))
+        {
+            Map<String, String> matchingModSeqs = findMatchingModifiedSequences(conn, keys.stream().map(SpectrumKey::getModifiedPeptide).collect(Collectors.toSet()));
+            Map<SpectrumKey, SpectrumKey> matchingKeys = new LinkedHashMap<>();
+            for (SpectrumKey key : keys)
+            {
+                matchingKeys.put(key, new SpectrumKey(matchingModSeqs.get(key.getModifiedPeptide()), key.getCharge()));
+            }
+
+            Map<SpectrumKey, LibSpectrum> spectra = readSpectra(conn, new HashSet<>(matchingKeys.values()), libPath);
+
+            Map<SpectrumKey, LibSpectrum> result = new LinkedHashMap<>();
+            matchingKeys.forEach((key, matchingKey) -> {
+                LibSpectrum spectrum = spectra.get(matchingKey);
+                if (spectrum != null)
+                {
+                    result.put(key, spectrum);
+                }
+            });
+            return result;
+        }
+    }
+
     @NotNull
     public List<LibrarySpectrumMatchGetter.PeptideIdRtInfo> getRetentionTimes(Container container, Path libPath, String modifiedPeptide)
     {
@@ -120,6 +169,13 @@ public List<LibrarySpectrumMatchGetter.PeptideIdRtInfo> getRetentionTimes(Contai
     @Nullable
     protected abstract LibSpectrum readSpectrum(Connection conn, SpectrumKey spectrumKey, Path libPath) throws DataFormatException, SQLException;
 
+    /**
+     * Batch version of readSpectrum() for keys that don't refer to redundant spectra.
+     * @return the spectra for the keys that have a match in the library
+     */
+    @NotNull
+    protected abstract Map<SpectrumKey, LibSpectrum> readSpectra(Connection conn, Collection<SpectrumKey> spectrumKeys, Path libPath) throws DataFormatException, SQLException;
+
     @Nullable
     protected abstract Path getRedundantLibPath(Container container, Path libPath);
 
@@ -129,6 +185,16 @@ public List<LibrarySpectrumMatchGetter.PeptideIdRtInfo> getRetentionTimes(Contai
     // The SQL should take a single parameter, the unmodified peptide sequence
     abstract String getMatchingModSeqLookupSql();
 
+    // The SQL should select the unmodified and modified peptide sequences, and end with the column to filter on the
+    // unmodified sequence so that an IN clause can be appended
+    abstract String getMatchingModSeqBatchLookupSql();
+
+    /** @return the modified sequence in the format that the library uses */
+    protected String toLibraryModifiedSequence(String modifiedSequence)
+    {
+        return modifiedSequence;
+    }
+
     /**
      * Issue 33190: Spectrum viewer unable to show data for peptides with modifications
      * Modifications in the Precursor's modified sequence may not have the same number of precision digits as the modified sequence in the library.
@@ -144,8 +210,16 @@ protected SpectrumKey getMatchingModSeqSpecKey(Connection conn, SpectrumKey key)
     protected abstract List<LibrarySpectrumMatchGetter.PeptideIdRtInfo> readRetentionTimes(Connection conn, String modifiedPeptide, String libPath) throws SQLException;
 
 
+    // Maximum number of values in an IN clause, which stays below SQLite's default limit of 999 parameters
+    static final int BATCH_SIZE = 512;
+
     private static final int LIBCACHE_LIMIT = 1000;
     private static final long LIBCACHE_LIFETIME = CacheManager.DAY;
+    /** Stat the remote copy of a library at most this often to see if it has changed */
+    private static final long MODIFIED_CHECK_INTERVAL = CacheManager.MINUTE;
+
+    /** The remote library's last modified time when it was copied, and when we last checked it, by cache key */
+    private static final Map<String, RemoteCopy> _remoteCopies = new ConcurrentHashMap<>();
 
     private static String getLibCacheKey(@NotNull Container container, String pathStr)
     {
@@ -161,9 +235,21 @@ private static String getLibCacheKey(@NotNull Container container, String pathSt
             Path remotePath = pair.second;
             if (null != container && null != remotePath)
             {
+                // Read the time before copying, so that a change made during the copy is picked up later
+                Long remoteModified = getLastModified(remotePath);
                 File file = LocalDirectory.copyToContainerDirectory(container, remotePath, LOG);
                 if (null != file)
+                {
+                    if (null != remoteModified)
+                    {
+                        _remoteCopies.put(key, new RemoteCopy(remoteModified));
+                    }
+                    if (Boolean.parseBoolean(TargetedMSModule.INDEX_SPECTRUM_LIBRARIES_PROPERTY.getEffectiveValue(container)))
+                    {
+                        LibraryIndexer.addIndexes(file);
+                    }
                     return file.getAbsolutePath();
+                }
             }
         }
         return null;
@@ -192,8 +278,12 @@ private void deleteTempFile(String key)
                     try
                     {
                         String filePathStr = get(key);
+                        _remoteCopies.remove(key);
                         if (null != filePathStr)
+                        {
+                            LibraryConnectionPool.get().close(filePathStr);
                             Files.deleteIfExists(new File(filePathStr).toPath());
+                        }
                     }
                     catch (IOException e)
                     {
@@ -209,7 +299,15 @@ static String getNonEmptyLocalLibPath(Container container, Path libPath)
         // If lib is in cloud, copy it locally to read
         if (FileUtil.hasCloudScheme(libPath))
         {
-            String localFilePathStr = _libCache.get(getLibCacheKey(container, FileUtil.getAbsolutePath(libPath)), new Pair<>(container, libPath));
+            String cacheKey = getLibCacheKey(container, FileUtil.getAbsolutePath(libPath));
+            String localFilePathStr = _libCache.get(cacheKey, new Pair<>(container, libPath));
+            if (null != localFilePathStr && isModifiedSinceCopy(cacheKey, libPath))
+            {
+                // Copy the library again, and rebuild its indexes
+                LOG.debug("Spectrum library " + libPath + " has changed since it was copied to " + localFilePathStr);
+                _libCache.remove(cacheKey);
+                localFilePathStr = _libCache.get(cacheKey, new Pair<>(container, libPath));
+            }
             if (null != localFilePathStr)
             {
                 libPathString = localFilePathStr;
@@ -238,16 +336,139 @@ static String getNonEmptyLocalLibPath(Container container, Path libPath)
         return libPathString;
     }
 
+    /**
+     * Checking the remote file's modified time is a round trip to cloud storage, so only do it once per interval for
+     * each copy, and compare against the time the remote file had when we copied it.
+     */
+    private static boolean isModifiedSinceCopy(String cacheKey, Path libPath)
+    {
+        RemoteCopy copy = _remoteCopies.get(cacheKey);
+        if (null == copy || !copy.isCheckDue())
+        {
+            return false;
+        }
+        Long remoteModified = getLastModified(libPath);
+        return null != remoteModified && remoteModified != copy._remoteModified;
+    }
+
+    @Nullable
+    private static Long getLastModified(Path path)
+    {
+        try
+        {
+            return Files.getLastModifiedTime(path).toMillis();
+        }
+        catch (IOException e)
+        {
+            LOG.debug("Unable to get the last modified time of " + path, e);
+            return null;
+        }
+    }
+
+    private static class RemoteCopy
+    {
+        private final long _remoteModified;
+        private final AtomicLong _lastChecked = new AtomicLong(System.currentTimeMillis());
+
+        private RemoteCopy(long remoteModified)
+        {
+            _remoteModified = remoteModified;
+        }
+
+        /** @return true for just one of the callers once the interval has passed since the last check */
+        private boolean isCheckDue()
+        {
+            long lastChecked = _lastChecked.get();
+            long now = System.currentTimeMillis();
+            return now - lastChecked >= MODIFIED_CHECK_INTERVAL && _lastChecked.compareAndSet(lastChecked, now);
+        }
+    }
+
     public static void clearLibCache(Container container)
     {
         _libCache.clear();     // TODO: we could clear only keys from this container
+        LibraryConnectionPool.get().closeAll();
     }
 
+    /** A pooled, read-only connection. Closing it returns it to the library's pool. */
     static Connection getLibConnection(String libFilePath) throws SQLException
     {
-        SQLiteConfig config = new SQLiteConfig();
-        config.setReadOnly(true);
-        return DriverManager.getConnection("jdbc:sqlite:/" + libFilePath, config.toProperties());
+        return LibraryConnectionPool.get().getConnection(libFilePath);
+    }
+
+    /**
+     * Batch version of findMatchingModifiedSequence() that looks up the unmodified sequences with IN clauses.
+     * @return requested modified sequence -> the matching modified sequence from the library
+     */
+    Map<String, String> findMatchingModifiedSequences(Connection conn, Collection<String> modifiedSequences) throws SQLException
+    {
+        Map<String, String> result = new HashMap<>();
+        Map<String, List<String>> byUnmodifiedSequence = new HashMap<>();
+        for (String modifiedSequence : modifiedSequences)
+        {
+            String libModifiedSequence = toLibraryModifiedSequence(modifiedSequence);
+            result.put(modifiedSequence, libModifiedSequence);
+
+            List<Pair<Integer, String>> mods = new ArrayList<>();
+            String unmodifiedSequence = Peptide.stripModifications(libModifiedSequence, mods);
+            if (mods.size() > 0)
+            {
+                byUnmodifiedSequence.computeIfAbsent(unmodifiedSequence, s -> new ArrayList<>()).add(modifiedSequence);
+            }
+        }
+
+        Set<String> matched = new HashSet<>();
+        for (List<String> batch : Lists.partition(new ArrayList<>(byUnmodifiedSequence.keySet()), BATCH_SIZE))
+        {
+            try (PreparedStatement stmt = conn.prepareStatement(getMatchingModSeqBatchLookupSql() + getInClause(batch.size())))
+            {
+                setInClauseParameters(stmt, 1, batch);
+                try (ResultSet rs = stmt.executeQuery())
+                {
+                    while (rs.next())
+                    {
+                        String modSeqCompare = rs.getString(2);
+                        for (String modifiedSequence : byUnmodifiedSequence.getOrDefault(rs.getString(1), Collections.emptyList()))
+                        {
+                            // Like the single lookup, the first matching row wins
+                            if (!matched.contains(modifiedSequence) && Peptide.modifiedSequencesMatch(result.get(modifiedSequence), modSeqCompare))
+                            {
+                                result.put(modifiedSequence, modSeqCompare);
+                                matched.add(modifiedSequence);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return " IN (?, ?, ...)" with the number of parameters rounded up to a power of two, so that the pooled
+     * connections only have to prepare and cache a few variants of each statement
+     */
+    static String getInClause(int count)
+    {
+        return " IN (" + StringUtils.repeat("?", ", ", getInClauseSize(count)) + ")";
+    }
+
+    private static int getInClauseSize(int count)
+    {
+        return count <= 1 ? 1 : Math.min(Integer.highestOneBit(count - 1) << 1, BATCH_SIZE);
+    }
+
+    /** Sets the values for a clause from getInClause(), padding it with NULLs, which never match */
+    static void setInClauseParameters(PreparedStatement stmt, int startIndex, List<?> values) throws SQLException
+    {
+        int parameters = getInClauseSize(values.size());
+        for (int i = 0; i < parameters; i++)
+        {
+            if (i < values.size())
+                stmt.setObject(startIndex + i, values.get(i));
+            else
+                stmt.setNull(startIndex + i, Types.NULL);
+        }
     }
 
     static String findMatchingModifiedSequence(Connection conn, String modifiedSequence, String sql) throws SQLException
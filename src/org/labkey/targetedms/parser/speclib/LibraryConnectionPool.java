@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2022 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.parser.speclib;
+
+import org.apache.commons.dbcp.ConnectionFactory;
+import org.apache.commons.dbcp.PoolableConnectionFactory;
+import org.apache.commons.dbcp.PoolingDataSource;
+import org.apache.commons.pool.impl.GenericKeyedObjectPoolFactory;
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.sqlite.SQLiteConfig;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pools of read-only connections to the spectrum library files (.blib, .elib) that the spectrum viewer and the
+ * retention time charts read from. A page that shows library spectra for many precursors would otherwise open a new
+ * SQLite connection, and prepare the same few queries again, for every precursor in every library. Each pooled
+ * connection keeps the statements prepared with it for reuse, and the results of the checks that the readers make
+ * against a library's schema are cached with its pool.
+ *
+ * A library's pool is closed when the file changes on disk, when the local copy of a remote library is removed from
+ * LibSpectrumReader's cache, or when it's the least recently used pool and room is needed for another library.
+ */
+public class LibraryConnectionPool
+{
+    private static final Logger LOG = LogManager.getLogger(LibraryConnectionPool.class);
+
+    private static final int MAX_LIBRARIES = 50;
+    private static final int MAX_ACTIVE_CONNECTIONS = 8;
+    private static final int MAX_IDLE_CONNECTIONS = 2;
+    private static final long MAX_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    // Idle connections hold the file open, so close them once a library hasn't been read for a while
+    private static final long IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final String URL_PREFIX = "jdbc:sqlite:/";
+
+    private static final LibraryConnectionPool INSTANCE = new LibraryConnectionPool();
+
+    // Local library file path -> pool, in access order so that the least recently used pool is the first one closed
+    private final Map<String, LibraryPool> _pools = new LinkedHashMap<>(16, 0.75f, true);
+
+    public static LibraryConnectionPool get()
+    {
+        return INSTANCE;
+    }
+
+    private LibraryConnectionPool()
+    {
+    }
+
+    /** The connection goes back to the library's pool when it's closed */
+    public Connection getConnection(String libFilePath) throws SQLException
+    {
+        return getPool(libFilePath).getConnection();
+    }
+
+    private LibraryPool getPool(String libFilePath)
+    {
+        List<LibraryPool> toClose = new ArrayList<>();
+        LibraryPool pool;
+        synchronized (_pools)
+        {
+            pool = _pools.get(libFilePath);
+            if (pool != null && pool.isStale())
+            {
+                LOG.debug("Spectrum library " + libFilePath + " has changed since its connections were opened");
+                toClose.add(_pools.remove(libFilePath));
+                pool = null;
+            }
+            if (pool == null)
+            {
+                pool = new LibraryPool(libFilePath);
+                _pools.put(libFilePath, pool);
+
+                Iterator<LibraryPool> iterator = _pools.values().iterator();
+                while (_pools.size() > MAX_LIBRARIES)
+                {
+                    toClose.add(iterator.next());
+                    iterator.remove();
+                }
+            }
+        }
+        toClose.forEach(LibraryPool::close);
+        return pool;
+    }
+
+    /**
+     * @return the result of a check against the schema of the library that the connection reads from. The check
+     * runs once per library, using the connection, and the result is reused until the library's pool is closed.
+     */
+    public boolean getCapability(Connection conn, String name, SchemaCheck check) throws SQLException
+    {
+        LibraryPool pool = getPoolForConnection(conn);
+        if (pool == null)
+        {
+            return check.test(conn);
+        }
+        Boolean result = pool._capabilities.get(name);
+        if (result == null)
+        {
+            result = check.test(conn);
+            pool._capabilities.put(name, result);
+        }
+        return result;
+    }
+
+    @Nullable
+    private LibraryPool getPoolForConnection(Connection conn) throws SQLException
+    {
+        String url = conn.getMetaData().getURL();
+        if (url == null || !url.startsWith(URL_PREFIX))
+        {
+            return null;
+        }
+        synchronized (_pools)
+        {
+            return _pools.get(url.substring(URL_PREFIX.length()));
+        }
+    }
+
+    /** Closes the library's connections, such as before the file is deleted */
+    public void close(String libFilePath)
+    {
+        LibraryPool pool;
+        synchronized (_pools)
+        {
+            pool = _pools.remove(libFilePath);
+        }
+        if (pool != null)
+        {
+            pool.close();
+        }
+    }
+
+    public void closeAll()
+    {
+        List<LibraryPool> pools;
+        synchronized (_pools)
+        {
+            pools = new ArrayList<>(_pools.values());
+            _pools.clear();
+        }
+        pools.forEach(LibraryPool::close);
+    }
+
+    /** @return a snapshot of the usage of each library's pool, most recently used last */
+    public List<PoolStats> getStats()
+    {
+        List<PoolStats> stats = new ArrayList<>();
+        synchronized (_pools)
+        {
+            _pools.values().forEach(pool -> stats.add(pool.getStats()));
+        }
+        return Collections.unmodifiableList(stats);
+    }
+
+    public interface SchemaCheck
+    {
+        boolean test(Connection conn) throws SQLException;
+    }
+
+    private static class LibraryPool
+    {
+        private final String _libFilePath;
+        private final long _lastModified;
+        private final long _length;
+        private final GenericObjectPool _connectionPool;
+        private final DataSource _dataSource;
+        private final Map<String, Boolean> _capabilities = new ConcurrentHashMap<>();
+        private final AtomicLong _connectionsOpened = new AtomicLong();
+        private final AtomicLong _connectionsBorrowed = new AtomicLong();
+
+        private LibraryPool(String libFilePath)
+        {
+            _libFilePath = libFilePath;
+            File file = new File(libFilePath);
+            _lastModified = file.lastModified();
+            _length = file.length();
+
+            _connectionPool = new GenericObjectPool();
+            _connectionPool.setMaxActive(MAX_ACTIVE_CONNECTIONS);
+            _connectionPool.setMaxIdle(MAX_IDLE_CONNECTIONS);
+            _connectionPool.setMaxWait(MAX_WAIT_MILLIS);
+            _connectionPool.setMinEvictableIdleTimeMillis(IDLE_TIMEOUT_MILLIS);
+            _connectionPool.setTimeBetweenEvictionRunsMillis(IDLE_TIMEOUT_MILLIS / 5);
+
+            SQLiteConfig config = new SQLiteConfig();
+            config.setReadOnly(true);
+            Properties properties = config.toProperties();
+            ConnectionFactory connectionFactory = () -> {
+                Connection conn = DriverManager.getConnection(URL_PREFIX + libFilePath, properties);
+                _connectionsOpened.incrementAndGet();
+                return conn;
+            };
+
+            // Each connection keeps the statements that are prepared with it, keyed by their SQL, for reuse
+            new PoolableConnectionFactory(connectionFactory,
+                    _connectionPool,
+                    new GenericKeyedObjectPoolFactory(null),
+                    null,  // validationQuery
+                    true,  // defaultReadOnly
+                    true); // defaultAutoCommit
+
+            _dataSource = new PoolingDataSource(_connectionPool);
+        }
+
+        private Connection getConnection() throws SQLException
+        {
+            _connectionsBorrowed.incrementAndGet();
+            return _dataSource.getConnection();
+        }
+
+        private boolean isStale()
+        {
+            File file = new File(_libFilePath);
+            return !file.exists() || file.lastModified() != _lastModified || file.length() != _length;
+        }
+
+        private PoolStats getStats()
+        {
+            return new PoolStats(_libFilePath, _connectionPool.getNumActive(), _connectionPool.getNumIdle(),
+                    _connectionsOpened.get(), _connectionsBorrowed.get(), _capabilities.size());
+        }
+
+        private void close()
+        {
+            LOG.debug("Closing connections to spectrum library: " + getStats());
+            _connectionPool.clear();
+            try {_connectionPool.close();} catch(Exception ignored) {}
+        }
+    }
+
+    public static class PoolStats
+    {
+        private final String _libFilePath;
+        private final int _activeConnections;
+        private final int _idleConnections;
+        private final long _connectionsOpened;
+        private final long _connectionsBorrowed;
+        private final int _cachedCapabilities;
+
+        private PoolStats(String libFilePath, int activeConnections, int idleConnections, long connectionsOpened, long connectionsBorrowed, int cachedCapabilities)
+        {
+            _libFilePath = libFilePath;
+            _activeConnections = activeConnections;
+            _idleConnections = idleConnections;
+            _connectionsOpened = connectionsOpened;
+            _connectionsBorrowed = connectionsBorrowed;
+            _cachedCapabilities = cachedCapabilities;
+        }
+
+        public String getLibFilePath()
+        {
+            return _libFilePath;
+        }
+
+        public int getActiveConnections()
+        {
+            return _activeConnections;
+        }
+
+        public int getIdleConnections()
+        {
+            return _idleConnections;
+        }
+
+        public long getConnectionsOpened()
+        {
+            return _connectionsOpened;
+        }
+
+        public long getConnectionsBorrowed()
+        {
+            return _connectionsBorrowed;
+        }
+
+        public int getCachedCapabilities()
+        {
+            return _cachedCapabilities;
+        }
+
+        @Override
+        public String toString()
+        {
+            return _libFilePath + ": " + _activeConnections + " active, " + _idleConnections + " idle, "
+                    + _connectionsOpened + " opened, " + _connectionsBorrowed + " borrowed, " + _cachedCapabilities + " cached capabilities";
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2022 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.parser.speclib;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Adds indexes for the spectrum lookups to the local copy of a spectrum library. Libraries that are built outside of
+ * Skyline often have no index on the peptide sequence, modified sequence and charge columns that BlibSpectrumReader and
+ * ElibSpectrumReader filter on, so every lookup scans the whole table. The copy is private to this server, so it can be
+ * modified, and it's replaced, with freshly built indexes, whenever the library file changes.
+ */
+@SuppressWarnings("SqlResolve")
+class LibraryIndexer
+{
+    private static final Logger LOG = LogManager.getLogger(LibraryIndexer.class);
+
+    private static final List<IndexDef> INDEXES = List.of(
+            // .blib and .redundant.blib
+            new IndexDef("RefSpectra", "idxLabKeyPeptide", "peptideSeq"),
+            new IndexDef("RefSpectra", "idxLabKeyPeptideMod", "peptideModSeq", "precursorCharge"),
+            new IndexDef("RefSpectraPeaks", "idxLabKeyRefIdPeaks", "RefSpectraID"),
+            new IndexDef("RetentionTimes", "idxLabKeyRetentionTimesRefId", "RefSpectraID"),
+            // .elib
+            new IndexDef("entries", "idxLabKeyEntriesPeptide", "PeptideSeq"),
+            new IndexDef("entries", "idxLabKeyEntriesPeptideMod", "PeptideModSeq", "PrecursorCharge")
+    );
+
+    private LibraryIndexer()
+    {
+    }
+
+    /**
+     * Creates any of the lookup indexes that the library is missing. Failures are logged and leave the library as it
+     * was, since the lookups work without the indexes, only more slowly.
+     */
+    static void addIndexes(File libFile)
+    {
+        long start = System.currentTimeMillis();
+        List<String> created = new ArrayList<>();
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:/" + libFile.getAbsolutePath());
+             Statement stmt = conn.createStatement())
+        {
+            for (IndexDef index : INDEXES)
+            {
+                Set<String> columns = getColumns(conn, index._table);
+                if (columns.isEmpty() || !columns.containsAll(index.getLowerCaseColumns()) || hasIndex(conn, index))
+                {
+                    continue;
+                }
+                stmt.execute("CREATE INDEX IF NOT EXISTS " + index._name + " ON " + index._table + " (" + String.join(", ", index._columns) + ")");
+                created.add(index._name);
+            }
+            if (!created.isEmpty())
+            {
+                // Let the query planner know how selective the new indexes are
+                stmt.execute("ANALYZE");
+            }
+        }
+        catch (SQLException e)
+        {
+            LOG.warn("Unable to index spectrum library " + libFile.getAbsolutePath() + ", lookups will not use indexes", e);
+            return;
+        }
+
+        if (!created.isEmpty())
+        {
+            LOG.info("Created indexes " + created + " in spectrum library " + libFile.getAbsolutePath() + " in " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    /** @return the lower case names of the table's columns, or an empty set if the library doesn't have the table */
+    private static Set<String> getColumns(Connection conn, String table) throws SQLException
+    {
+        Set<String> columns = new HashSet<>();
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")"))
+        {
+            while (rs.next())
+            {
+                columns.add(rs.getString("name").toLowerCase(Locale.ROOT));
+            }
+        }
+        return columns;
+    }
+
+    /** @return true if an existing index starts with the same columns, so that SQLite can already use it for the lookups */
+    private static boolean hasIndex(Connection conn, IndexDef index) throws SQLException
+    {
+        List<String> indexNames = new ArrayList<>();
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA index_list(" + index._table + ")"))
+        {
+            while (rs.next())
+            {
+                indexNames.add(rs.getString("name"));
+            }
+        }
+
+        List<String> wanted = index.getLowerCaseColumns();
+        for (String indexName : indexNames)
+        {
+            List<String> indexColumns = new ArrayList<>();
+            try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA index_info(\"" + indexName.replace("\"", "\"\"") + "\")"))
+            {
+                while (rs.next())
+                {
+                    String name = rs.getString("name");
+                    indexColumns.add(name == null ? null : name.toLowerCase(Locale.ROOT));
+                }
+            }
+            if (indexColumns.size() >= wanted.size() && indexColumns.subList(0, wanted.size()).equals(wanted))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class IndexDef
+    {
+        private final String _table;
+        private final String _name;
+        private final List<String> _columns;
+
+        private IndexDef(String table, String name, String... columns)
+        {
+            _table = table;
+            _name = name;
+            _columns = List.of(columns);
+        }
+
+        private List<String> getLowerCaseColumns()
+        {
+            List<String> result = new ArrayList<>();
+            _columns.forEach(column -> result.add(column.toLowerCase(Locale.ROOT)));
+            return result;
+        }
+    }
+}
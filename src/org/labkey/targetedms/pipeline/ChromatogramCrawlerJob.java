@@ -296,7 +296,7 @@ public void exec(int id, long sampleFileId)
             if (_rowsForCurrentRun++ < 5)
             {
                 PrecursorChromInfo pci = PrecursorManager.getPrecursorChromInfo(_container, id);
-                Chromatogram chromatogram = pci.createChromatogram(_run, true);
+                Chromatogram chromatogram = pci.decodeChromatogram(_run, true);
                 if (chromatogram == null)
                 {
                     _currentSummary._noChromatogramCount++;
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2022 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.pipeline;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.pipeline.LocalDirectory;
+import org.labkey.api.pipeline.PipeRoot;
+import org.labkey.api.pipeline.PipelineJob;
+import org.labkey.api.util.FileUtil;
+import org.labkey.api.util.URLHelper;
+import org.labkey.api.view.ViewBackgroundInfo;
+import org.labkey.targetedms.chromlib.ChromatogramLibraryUtils;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.labkey.api.targetedms.TargetedMSService.MODULE_NAME;
+
+/**
+ * Writes a revision of a folder's chromatogram library file after the change in representative data that created the
+ * revision has been committed, so that imports, deletes, and conflict resolution don't wait on the SQLite file.
+ */
+public class ChromatogramLibraryJob extends PipelineJob
+{
+    private int _revision;
+    /** Keys of the precursors whose representative state changed, or null to rebuild the whole library */
+    private Set<String> _changedPrecursorKeys;
+
+    @SuppressWarnings("unused")  // for serialization
+    protected ChromatogramLibraryJob()
+    {
+    }
+
+    public ChromatogramLibraryJob(ViewBackgroundInfo info, @NotNull PipeRoot root, int revision, @Nullable Set<String> changedPrecursorKeys)
+    {
+        super(TargetedMSPipelineProvider.name, info, root);
+        _revision = revision;
+        _changedPrecursorKeys = changedPrecursorKeys == null ? null : new HashSet<>(changedPrecursorKeys);
+        setLogFile(new File(root.getRootPath(), FileUtil.makeFileNameWithTimestamp("ChromatogramLibrary_rev" + revision, "log")));
+    }
+
+    @Override
+    public void run()
+    {
+        setStatus(TaskStatus.running);
+        LocalDirectory localDirectory = LocalDirectory.create(getPipeRoot(), MODULE_NAME);
+        try
+        {
+            ChromatogramLibraryUtils.writeLibrary(getContainer(), getUser(), localDirectory, _revision, _changedPrecursorKeys, getLogger());
+            setStatus(TaskStatus.complete);
+        }
+        catch (RuntimeException e)
+        {
+            getLogger().error("Failed to write revision " + _revision + " of the chromatogram library", e);
+            setStatus(TaskStatus.error);
+        }
+        finally
+        {
+            localDirectory.cleanUpLocalDirectory();
+        }
+    }
+
+    @Override
+    public URLHelper getStatusHref()
+    {
+        return null;
+    }
+
+    @Override
+    public String getDescription()
+    {
+        return "Writing chromatogram library revision " + _revision;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2022 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.pipeline;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.data.Container;
+import org.labkey.api.pipeline.PipeRoot;
+import org.labkey.api.pipeline.PipelineJob;
+import org.labkey.api.pipeline.PipelineService;
+import org.labkey.api.pipeline.PipelineValidationException;
+import org.labkey.api.security.User;
+import org.labkey.api.util.FileUtil;
+import org.labkey.api.util.SystemMaintenance;
+import org.labkey.api.util.URLHelper;
+import org.labkey.api.view.ViewBackgroundInfo;
+import org.labkey.targetedms.TargetedMSManager;
+
+import java.io.File;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Deletes the data for runs that have been marked as deleted. Deleting a run only marks it, so that the user doesn't
+ * have to wait, and this job then removes its rows in small batches (see TargetedMSManager.purgeDeletedRun()) instead
+ * of holding locks on the big chrom info tables for the whole delete. Each job only purges the runs in its own
+ * container. Runs anywhere on the server that are still marked as deleted, such as after a restart, are purged by
+ * {@link PurgeMaintenanceTask}.
+ */
+public class RunPurgeJob extends PipelineJob
+{
+    private static final Logger LOG = LogManager.getLogger(RunPurgeJob.class);
+
+    // Only one purge runs at a time, and there's no need to queue another for a container until its queued one starts
+    private static final Object PURGE_LOCK = new Object();
+    private static final Set<String> QUEUED_CONTAINERS = ConcurrentHashMap.newKeySet();
+
+    @SuppressWarnings("unused")  // for serialization
+    protected RunPurgeJob()
+    {
+    }
+
+    public RunPurgeJob(ViewBackgroundInfo info, @NotNull PipeRoot root)
+    {
+        super(TargetedMSPipelineProvider.name, info, root);
+        setLogFile(new File(root.getRootPath(), FileUtil.makeFileNameWithTimestamp("RunPurgeJob", "log")));
+    }
+
+    /**
+     * Queues a job to purge the container's deleted runs, unless one is already waiting to start. If the container has
+     * no pipeline root the runs are purged right away instead, as they were before this job existed.
+     */
+    public static void queue(Container container, User user)
+    {
+        if (!QUEUED_CONTAINERS.add(container.getId()))
+        {
+            return;
+        }
+        PipeRoot root = PipelineService.get().findPipelineRoot(container);
+        if (root == null || !root.isValid())
+        {
+            QUEUED_CONTAINERS.remove(container.getId());
+            LOG.warn("No valid pipeline root for " + container.getPath() + ", purging its deleted runs synchronously");
+            purgeDeletedRuns(LOG, null, container);
+            return;
+        }
+        try
+        {
+            PipelineService.get().queueJob(new RunPurgeJob(new ViewBackgroundInfo(container, user, null), root));
+        }
+        catch (PipelineValidationException e)
+        {
+            QUEUED_CONTAINERS.remove(container.getId());
+            LOG.error("Unable to queue job to purge deleted runs, they will be purged by the next system maintenance", e);
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        QUEUED_CONTAINERS.remove(getContainer().getId());
+        setStatus(TaskStatus.running);
+        try
+        {
+            purgeDeletedRuns(getLogger(), this, getContainer());
+            setStatus(TaskStatus.complete);
+        }
+        catch (RuntimeException e)
+        {
+            getLogger().error("Failed to purge deleted runs, they will be purged by the next system maintenance", e);
+            setStatus(TaskStatus.error);
+        }
+    }
+
+    /** @param container only purge the runs in this container, or null for all of the deleted runs on the server */
+    private static void purgeDeletedRuns(Logger log, @Nullable RunPurgeJob job, @Nullable Container container)
+    {
+        synchronized (PURGE_LOCK)
+        {
+            List<Long> runIds = TargetedMSManager.getDeletedRunIds(container);
+            log.info("Purging " + runIds.size() + " deleted run(s) " + (container == null ? "across all folders" : "in " + container.getPath()));
+            for (int i = 0; i < runIds.size(); i++)
+            {
+                if (job != null)
+                {
+                    job.setStatus(TaskStatus.running, "Purging deleted run " + (i + 1) + " of " + runIds.size());
+                }
+                TargetedMSManager.purgeDeletedRun(runIds.get(i), log);
+            }
+        }
+    }
+
+    @Override
+    public URLHelper getStatusHref()
+    {
+        return null;
+    }
+
+    @Override
+    public String getDescription()
+    {
+        return "Purging deleted Skyline documents";
+    }
+
+    /** Purges any runs whose purge didn't finish, such as when the server was shut down while the job was running */
+    public static class PurgeMaintenanceTask implements SystemMaintenance.MaintenanceTask
+    {
+        @Override
+        public String getDescription()
+        {
+            return "Purge deleted Skyline documents";
+        }
+
+        @Override
+        public String getName()
+        {
+            return "PurgeDeletedSkylineDocuments";
+        }
+
+        @Override
+        public void run(Logger log)
+        {
+            // Server-wide, since the folders' own jobs may never have run
+            purgeDeletedRuns(log, null, null);
+        }
+    }
+}
@@ -63,6 +63,11 @@ public class AnnotatedTargetedMSTable extends TargetedMSTable
 {
     private static final String ANNOT_NAME_VALUE_SEPARATOR = ": ";
     private static final String ANNOT_DELIMITER = "\n";
+    /** Column added to the FROM with the annotations concatenated at import time, see {@link AnnotationSummaryManager} */
+    protected static final String ANNOTATION_SUMMARY_COLUMN = "AnnotationSummary";
+
+    private String _summaryTarget;
+    private String _summaryPkColumnName;
 
     public AnnotatedTargetedMSTable(TableInfo table,
                                     TargetedMSSchema schema,
@@ -115,13 +120,17 @@ public AnnotatedTargetedMSTable(TableInfo table,
     private void addAnnotationsColumns(TableInfo annotationTableInfo, String annotationFKName, String columnName, String pkColumnName, String annotationTarget)
     {
         SQLFragment annotationsSQL = new SQLFragment("(SELECT ");
-        annotationsSQL.append(TargetedMSManager.getSqlDialect().getGroupConcat(
-                new SQLFragment(TargetedMSManager.getSqlDialect().concatenate("a.Name", "\'"+ ANNOT_NAME_VALUE_SEPARATOR +"\' ", "a.Value")),
-                false,
-                true,
-                "'" + ANNOT_DELIMITER + "'"));
+        annotationsSQL.append(getConcatenatedAnnotationsSQL());
         getAnnotationJoinSQL(annotationTableInfo, annotationFKName, annotationsSQL);
         annotationsSQL.append(".").append(pkColumnName).append(")");
+        // Use the value concatenated at import time when there is one
+        if (AnnotationSummaryManager.isSummarized(annotationTarget))
+        {
+            _summaryTarget = annotationTarget;
+            _summaryPkColumnName = pkColumnName;
+            SQLFragment summarySQL = new SQLFragment(ExprColumn.STR_TABLE_ALIAS).append(".").append(ANNOTATION_SUMMARY_COLUMN);
+            annotationsSQL = AnnotationSummaryManager.getAnnotationsSQL(summarySQL, annotationsSQL);
+        }
         ExprColumn annotationsColumn = new ExprColumn(this, "Annotations", annotationsSQL, JdbcType.VARCHAR);
         annotationsColumn.setLabel(columnName);
         annotationsColumn.setTextAlign("left");
@@ -181,6 +190,42 @@ private void addAnnotationsColumns(TableInfo annotationTableInfo, String annotat
         annotationsColumn.setDisplayColumnFactory(AnnotationsDisplayColumn::new);
     }
 
+    /** @return whether the FROM includes the {@link #ANNOTATION_SUMMARY_COLUMN} */
+    protected boolean hasAnnotationSummary()
+    {
+        return _summaryTarget != null;
+    }
+
+    @Override
+    @NotNull
+    public SQLFragment getFromSQL(String alias)
+    {
+        if (!hasAnnotationSummary())
+        {
+            return super.getFromSQL(alias);
+        }
+
+        // Join the summaries once for the whole query instead of looking them up row by row
+        SQLFragment sql = new SQLFragment("(SELECT Y.*, s.Annotations AS ");
+        sql.append(ANNOTATION_SUMMARY_COLUMN);
+        sql.append(" FROM ");
+        sql.append(super.getFromSQL("Y"));
+        sql.append(AnnotationSummaryManager.getJoinSQL(_summaryTarget, "s", "Y." + _summaryPkColumnName));
+        sql.append(") ");
+        sql.append(alias);
+        return sql;
+    }
+
+    /** Aggregate that concatenates the name/value pairs of the annotations aliased as "a" */
+    static SQLFragment getConcatenatedAnnotationsSQL()
+    {
+        return TargetedMSManager.getSqlDialect().getGroupConcat(
+                new SQLFragment(TargetedMSManager.getSqlDialect().concatenate("a.Name", "\'"+ ANNOT_NAME_VALUE_SEPARATOR +"\' ", "a.Value")),
+                false,
+                true,
+                "'" + ANNOT_DELIMITER + "'");
+    }
+
     private void getAnnotationJoinSQL(TableInfo annotationTableInfo, String annotationFKName, SQLFragment annotationSQL)
     {
         annotationSQL.append(" FROM ");
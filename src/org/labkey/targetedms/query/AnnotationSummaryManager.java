@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2022 LabKey Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.labkey.targetedms.query;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.labkey.api.data.Container;
+import org.labkey.api.data.ContainerManager;
+import org.labkey.api.data.SQLFragment;
+import org.labkey.api.data.SimpleFilter;
+import org.labkey.api.data.SqlExecutor;
+import org.labkey.api.data.Table;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.data.TableSelector;
+import org.labkey.api.query.FieldKey;
+import org.labkey.api.security.User;
+import org.labkey.api.util.GUID;
+import org.labkey.api.util.JunitUtil;
+import org.labkey.api.util.TestContext;
+import org.labkey.targetedms.TargetedMSManager;
+import org.labkey.targetedms.TargetedMSRun;
+import org.labkey.targetedms.TargetedMSSchema;
+import org.labkey.targetedms.parser.PeptideGroup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Maintains targetedms.AnnotationSummary, which holds the value of the "Annotations" column of an
+ * {@link AnnotatedTargetedMSTable}, all of an entity's annotation name/value pairs, as concatenated at import time.
+ * Computing it on the fly takes a correlated GROUP_CONCAT over the annotation table for every row in the grid, which
+ * adds up for big precursor and transition grids, while the stored values come from a single join in the table's FROM.
+ *
+ * Runs imported before the table existed have no summary rows, and neither do replicates, whose annotations can be
+ * edited after import, so for them the column still computes the value.
+ */
+public class AnnotationSummaryManager
+{
+    private enum Target
+    {
+        protein(TargetedMSManager::getTableInfoPeptideGroupAnnotation, "PeptideGroupId")
+        {
+            @Override
+            SQLFragment getParentIdsSQL(long runId)
+            {
+                return new SQLFragment("SELECT Id FROM " + TargetedMSManager.getTableInfoPeptideGroup() + " WHERE RunId = ?", runId);
+            }
+        },
+        peptide(TargetedMSManager::getTableInfoGeneralMoleculeAnnotation, "GeneralMoleculeId")
+        {
+            @Override
+            SQLFragment getParentIdsSQL(long runId)
+            {
+                return new SQLFragment("SELECT gm.Id FROM " + TargetedMSManager.getTableInfoGeneralMolecule() + " gm " +
+                        " INNER JOIN " + TargetedMSManager.getTableInfoPeptideGroup() + " pg ON gm.PeptideGroupId = pg.Id WHERE pg.RunId = ?", runId);
+            }
+        },
+        precursor(TargetedMSManager::getTableInfoPrecursorAnnotation, "PrecursorId")
+        {
+            @Override
+            SQLFragment getParentIdsSQL(long runId)
+            {
+                return new SQLFragment("SELECT gp.Id FROM " + TargetedMSManager.getTableInfoGeneralPrecursor() + " gp " +
+                        " INNER JOIN " + TargetedMSManager.getTableInfoGeneralMolecule() + " gm ON gp.GeneralMoleculeId = gm.Id " +
+                        " INNER JOIN " + TargetedMSManager.getTableInfoPeptideGroup() + " pg ON gm.PeptideGroupId = pg.Id WHERE pg.RunId = ?", runId);
+            }
+        },
+        transition(TargetedMSManager::getTableInfoTransitionAnnotation, "TransitionId")
+        {
+            @Override
+            SQLFragment getParentIdsSQL(long runId)
+            {
+                return new SQLFragment("SELECT gt.Id FROM " + TargetedMSManager.getTableInfoGeneralTransition() + " gt " +
+                        " INNER JOIN " + TargetedMSManager.getTableInfoGeneralPrecursor() + " gp ON gt.GeneralPrecursorId = gp.Id " +
+                        " INNER JOIN " + TargetedMSManager.getTableInfoGeneralMolecule() + " gm ON gp.GeneralMoleculeId = gm.Id " +
+                        " INNER JOIN " + TargetedMSManager.getTableInfoPeptideGroup() + " pg ON gm.PeptideGroupId = pg.Id WHERE pg.RunId = ?", runId);
+            }
+        },
+        precursor_result(TargetedMSManager::getTableInfoPrecursorChromInfoAnnotation, "PrecursorChromInfoId")
+        {
+            @Override
+            SQLFragment getParentIdsSQL(long runId)
+            {
+                return new SQLFragment("SELECT pci.Id FROM " + TargetedMSManager.getTableInfoPrecursorChromInfo() + " pci " +
+                        " INNER JOIN " + TargetedMSManager.getTableInfoSampleFile() + " sf ON pci.SampleFileId = sf.Id " +
+                        " INNER JOIN " + TargetedMSManager.getTableInfoReplicate() + " rep ON sf.ReplicateId = rep.Id WHERE rep.RunId = ?", runId);
+            }
+        },
+        transition_result(TargetedMSManager::getTableInfoTransitionChromInfoAnnotation, "TransitionChromInfoId")
+        {
+            @Override
+            SQLFragment getParentIdsSQL(long runId)
+            {
+                return new SQLFragment("SELECT Id FROM " + TargetedMSManager.getTableInfoTransitionChromInfo() + " WHERE RunId = ?", runId);
+            }
+        };
+
+        private final Supplier<TableInfo> _annotationTable;
+        private final String _fkColumn;
+
+        Target(Supplier<TableInfo> annotationTable, String fkColumn)
+        {
+            _annotationTable = annotationTable;
+            _fkColumn = fkColumn;
+        }
+
+        abstract SQLFragment getParentIdsSQL(long runId);
+
+        static Target fromString(String annotationTarget)
+        {
+            for (Target target : values())
+            {
+                if (target.name().equalsIgnoreCase(annotationTarget))
+                {
+                    return target;
+                }
+            }
+            return null;
+        }
+    }
+
+    private AnnotationSummaryManager()
+    {
+    }
+
+    /**
+     * Stores the concatenated annotations of everything in the run that has annotations. Must be called after all of
+     * the run's annotations have been inserted.
+     * @return the number of summary rows that were inserted
+     */
+    public static int populate(long runId)
+    {
+        int count = 0;
+        for (Target target : Target.values())
+        {
+            SQLFragment sql = new SQLFragment("INSERT INTO ");
+            sql.append(TargetedMSManager.getTableInfoAnnotationSummary());
+            sql.append(" (Target, ParentId, RunId, Annotations) SELECT ?, a.").add(target.name());
+            sql.append(target._fkColumn).append(", ?, ").add(runId);
+            sql.append(AnnotatedTargetedMSTable.getConcatenatedAnnotationsSQL());
+            sql.append(" FROM ").append(target._annotationTable.get(), "a");
+            sql.append(" WHERE a.").append(target._fkColumn).append(" IN (").append(target.getParentIdsSQL(runId)).append(")");
+            sql.append(" GROUP BY a.").append(target._fkColumn);
+            count += new SqlExecutor(TargetedMSManager.getSchema()).execute(sql);
+        }
+        return count;
+    }
+
+    /** Deletes the summaries of the sample file's chrom infos, which must be done before the chrom infos are deleted */
+    public static void deleteForSampleFile(long sampleFileId)
+    {
+        deleteForSampleFile(Target.precursor_result, TargetedMSManager.getTableInfoPrecursorChromInfo(), sampleFileId);
+        deleteForSampleFile(Target.transition_result, TargetedMSManager.getTableInfoTransitionChromInfo(), sampleFileId);
+    }
+
+    private static void deleteForSampleFile(Target target, TableInfo chromInfoTable, long sampleFileId)
+    {
+        SQLFragment sql = new SQLFragment("DELETE FROM " + TargetedMSManager.getTableInfoAnnotationSummary() + " WHERE Target = ? AND ParentId IN " +
+                "(SELECT Id FROM " + chromInfoTable + " WHERE SampleFileId = ?)", target.name(), sampleFileId);
+        new SqlExecutor(TargetedMSManager.getSchema()).execute(sql);
+    }
+
+    /** @return whether the annotations of the target are summarized at import time */
+    static boolean isSummarized(String annotationTarget)
+    {
+        return Target.fromString(annotationTarget) != null;
+    }
+
+    /**
+     * @param parentIdSQL the primary key of the annotated entity
+     * @return a LEFT OUTER JOIN to the target's summaries, aliased as summaryAlias
+     */
+    static SQLFragment getJoinSQL(String annotationTarget, String summaryAlias, String parentIdSQL)
+    {
+        Target target = Target.fromString(annotationTarget);
+        if (target == null)
+        {
+            throw new IllegalArgumentException("Annotations aren't summarized for target " + annotationTarget);
+        }
+        SQLFragment sql = new SQLFragment(" LEFT OUTER JOIN ");
+        sql.append(TargetedMSManager.getTableInfoAnnotationSummary(), summaryAlias);
+        sql.append(" ON ").append(summaryAlias).append(".Target = ?").add(target.name());
+        sql.append(" AND ").append(summaryAlias).append(".ParentId = ").append(parentIdSQL);
+        return sql;
+    }
+
+    /**
+     * @param summarySQL the summary value selected through {@link #getJoinSQL}
+     * @param fallbackSQL computes the concatenated annotations, for rows from runs that haven't been summarized
+     * @return an expression for the concatenated annotations
+     */
+    static SQLFragment getAnnotationsSQL(SQLFragment summarySQL, SQLFragment fallbackSQL)
+    {
+        SQLFragment sql = new SQLFragment("COALESCE(");
+        sql.append(summarySQL);
+        sql.append(", ");
+        sql.append(fallbackSQL);
+        sql.append(")");
+        return sql;
+    }
+
+    public static class TestCase extends Assert
+    {
+        private static final String FOLDER_NAME = "TargetedMSAnnotationSummaryFolder";
+        private static final int PROTEIN_COUNT = 2000;
+        private static final String[] ANNOTATION_NAMES = {"Cohort", "Tissue", "Batch"};
+        private static final Logger _logger = LogManager.getLogger(AnnotationSummaryManager.TestCase.class);
+
+        private User _user;
+        private Container _container;
+        private TargetedMSRun _run;
+        private long _firstPeptideGroupId;
+
+        @Before
+        public void initTest()
+        {
+            _user = TestContext.get().getUser();
+            _container = ContainerManager.ensureContainer(JunitUtil.getTestContainer(), FOLDER_NAME);
+
+            _run = new TargetedMSRun();
+            _run.setContainer(_container);
+            _run.setDocumentGUID(new GUID());
+            Table.insert(_user, TargetedMSManager.getTableInfoRuns(), _run);
+
+            for (int i = 0; i < PROTEIN_COUNT; i++)
+            {
+                PeptideGroup group = new PeptideGroup();
+                group.setRunId(_run.getId());
+                group.setLabel("Protein" + i);
+                group = Table.insert(_user, TargetedMSManager.getTableInfoPeptideGroup(), group);
+                if (i == 0)
+                {
+                    _firstPeptideGroupId = group.getId();
+                }
+                for (String name : ANNOTATION_NAMES)
+                {
+                    new SqlExecutor(TargetedMSManager.getSchema()).execute("INSERT INTO " + TargetedMSManager.getTableInfoPeptideGroupAnnotation() +
+                            " (PeptideGroupId, Name, Value) VALUES (?, ?, ?)", group.getId(), name, name + " " + (i % 7));
+                }
+            }
+        }
+
+        @After
+        public void cleanup()
+        {
+            if (_run != null)
+            {
+                new SqlExecutor(TargetedMSManager.getSchema()).execute("UPDATE " + TargetedMSManager.getTableInfoRuns() + " SET Deleted = ? WHERE Id = ?", true, _run.getId());
+                TargetedMSManager.purgeDeletedRun(_run.getId(), _logger);
+            }
+        }
+
+        @Test
+        public void testSummaryMatchesComputedAnnotations()
+        {
+            // No summaries yet, so this is the value computed by the GROUP_CONCAT
+            long start = System.currentTimeMillis();
+            Map<Long, String> computed = selectAnnotations();
+            long computedTime = System.currentTimeMillis() - start;
+
+            assertEquals(PROTEIN_COUNT, populate(_run.getId()));
+
+            start = System.currentTimeMillis();
+            Map<Long, String> summarized = selectAnnotations();
+            long summarizedTime = System.currentTimeMillis() - start;
+
+            _logger.info("Selected the annotations of " + PROTEIN_COUNT + " proteins in " + computedTime + " ms computed, " + summarizedTime + " ms summarized");
+            // Reading the stored values shouldn't be slower. The margin is generous so a busy test server doesn't make it flaky.
+            assertTrue("Summarized annotations took " + summarizedTime + " ms, computed took " + computedTime + " ms",
+                    summarizedTime <= computedTime * 2 + 1000);
+            assertEquals(PROTEIN_COUNT, summarized.size());
+            assertEquals(computed, summarized);
+            assertEquals("Batch: Batch 0\nCohort: Cohort 0\nTissue: Tissue 0", summarized.get(_firstPeptideGroupId));
+        }
+
+        private Map<Long, String> selectAnnotations()
+        {
+            TableInfo table = new TargetedMSSchema(_user, _container).getTable(TargetedMSSchema.TABLE_PEPTIDE_GROUP, null);
+            Map<Long, String> result = new HashMap<>();
+            new TableSelector(table, table.getColumns("Id", "Annotations"), new SimpleFilter(FieldKey.fromParts("RunId"), _run.getId()), null)
+                    .forEach(rs -> result.put(rs.getLong("Id"), rs.getString("Annotations")));
+            return result;
+        }
+    }
+}
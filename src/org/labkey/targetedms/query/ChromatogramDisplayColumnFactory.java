@@ -206,6 +206,10 @@ public void renderGridCellContents(RenderContext ctx, Writer out) throws IOExcep
                         "<div style=\"text-align: center\" id=\"" + PageFlowUtil.filter(domLabelId) + "\"></div>";
 
                 dataRegion.addSVG(chromAction.getLocalURIString(), domId, domLabelId);
+                if (id instanceof Number)
+                {
+                    dataRegion.addChromInfo(_type, ((Number) id).longValue());
+                }
                 out.write(html);
             }
 
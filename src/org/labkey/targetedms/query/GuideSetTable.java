@@ -38,6 +38,7 @@
 import org.labkey.targetedms.TargetedMSManager;
 import org.labkey.targetedms.TargetedMSSchema;
 import org.labkey.targetedms.model.GuideSet;
+import org.labkey.targetedms.outliers.QCOutlierCache;
 
 /**
  * Created by cnathe on 4/9/2015.
@@ -115,6 +116,7 @@ protected GuideSet insert(User user, Container container, GuideSet bean) throws
         {
             bean.beforeInsert(user, container.getId());
             validateGuideSetDates(bean, container);
+            QCOutlierCache.get().invalidate(container);
             return Table.insert(user, TargetedMSManager.getTableInfoGuideSet(), bean);
         }
 
@@ -127,12 +129,14 @@ protected GuideSet update(User user, Container container, GuideSet bean, Integer
             }
             bean.beforeUpdate(user);
             validateGuideSetDates(bean, container);
+            QCOutlierCache.get().invalidate(container);
             return Table.update(user, TargetedMSManager.getTableInfoGuideSet(), bean, oldKey);
         }
 
         @Override
         public void delete(User user, Container container, int key)
         {
+            QCOutlierCache.get().invalidate(container);
             Table.delete(TargetedMSManager.getTableInfoGuideSet(), key);
         }
 
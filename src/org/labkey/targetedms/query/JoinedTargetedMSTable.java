@@ -99,6 +99,11 @@ public SQLFragment getFromSQL(String alias)
             result.append(columnInfo.getName());
             separator = ", ";
         }
+        if (hasAnnotationSummary())
+        {
+            result.append(", G.");
+            result.append(ANNOTATION_SUMMARY_COLUMN);
+        }
         for (ColumnInfo columnInfo : _specializedTable.getColumns())
         {
             // Avoid duplicate column names
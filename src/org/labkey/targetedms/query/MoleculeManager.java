@@ -58,4 +58,18 @@ public static Collection<Molecule> getMoleculesForGroup(long peptideGroupId)
 
         return new SqlSelector(TargetedMSManager.getSchema(), sql).getArrayList(Molecule.class);
     }
+
+    /** @return all of the run's small molecules, sorted by peptide group */
+    public static Collection<Molecule> getMoleculesForRun(long runId)
+    {
+        SQLFragment sql = new SQLFragment("SELECT gm.id, gm.peptidegroupid, gm.rtcalculatorscore, gm.predictedretentiontime, ");
+        sql.append("gm.avgmeasuredretentiontime, gm.note, gm.explicitretentiontime, ");
+        sql.append("gm.normalizationmethod, gm.standardtype, gm.concentrationmultiplier, gm.internalstandardconcentration, ");
+        sql.append("m.id, m.ionformula, m.customionname, m.massaverage, m.massmonoisotopic ");
+        sql.append("FROM targetedms.generalmolecule gm, targetedms.molecule m, targetedms.peptidegroup pg WHERE ");
+        sql.append("m.id = gm.id AND gm.peptidegroupid = pg.id AND pg.runid=? ORDER BY gm.peptidegroupid, gm.Id");
+        sql.add(runId);
+
+        return new SqlSelector(TargetedMSManager.getSchema(), sql).getArrayList(Molecule.class);
+    }
 }
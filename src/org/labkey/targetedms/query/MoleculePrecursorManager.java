@@ -81,6 +81,22 @@ public static List<MoleculePrecursor> getPrecursorsForMolecule(long moleculeId,
         return precursors;
     }
 
+    /** @return the precursors of all of the run's small molecules, sorted by molecule and then as in getPrecursorsForMolecule() */
+    public static List<MoleculePrecursor> getPrecursorsForRun(long runId, TargetedMSSchema targetedMSSchema)
+    {
+        SimpleFilter filter = new SimpleFilter(new SimpleFilter.SQLClause(new SQLFragment("GeneralMoleculeId IN " +
+                "(SELECT gm.Id FROM targetedms.GeneralMolecule gm INNER JOIN targetedms.PeptideGroup pg ON gm.PeptideGroupId = pg.Id WHERE pg.RunId = ?)", runId),
+                FieldKey.fromParts("GeneralMoleculeId")));
+
+        Sort sort = new Sort("MoleculeId, Charge, CustomIonName");
+
+        Set<String> colNames = new HashSet<>();
+        colNames.addAll(TargetedMSManager.getTableInfoMoleculePrecursor().getColumnNameSet());
+        colNames.addAll(TargetedMSManager.getTableInfoGeneralPrecursor().getColumnNameSet());
+
+        return new TableSelector(new MoleculePrecursorTableInfo(targetedMSSchema, null, true), colNames, filter,  sort).getArrayList(MoleculePrecursor.class);
+    }
+
     public static List<PrecursorChromInfoLitePlus> getChromInfosLitePlusForPeptideGroup(long peptideGroupId, User user, Container container)
     {
         return getChromInfosLitePlusForPeptideGroup(peptideGroupId, 0, user, container);
@@ -17,6 +17,7 @@
 
 import org.jetbrains.annotations.NotNull;
 import org.labkey.api.data.Container;
+import org.labkey.api.data.SQLFragment;
 import org.labkey.api.data.SimpleFilter;
 import org.labkey.api.data.Sort;
 import org.labkey.api.data.TableInfo;
@@ -48,4 +49,17 @@ public static List<MoleculeTransition> getTransitionsForPrecursor(long precursor
                 new SimpleFilter(FieldKey.fromParts("GeneralPrecursorId"), precursorId), new Sort("TransitionId"))
             .getArrayList(MoleculeTransition.class);
     }
+
+    /** @return the transitions of all of the run's small molecule precursors, sorted by precursor */
+    @NotNull
+    public static List<MoleculeTransition> getTransitionsForRun(long runId, User user, Container container)
+    {
+        SimpleFilter filter = new SimpleFilter(new SimpleFilter.SQLClause(new SQLFragment("GeneralPrecursorId IN " +
+                "(SELECT gp.Id FROM targetedms.GeneralPrecursor gp INNER JOIN targetedms.GeneralMolecule gm ON gp.GeneralMoleculeId = gm.Id " +
+                "INNER JOIN targetedms.PeptideGroup pg ON gm.PeptideGroupId = pg.Id WHERE pg.RunId = ?)", runId),
+                FieldKey.fromParts("GeneralPrecursorId")));
+        return new TableSelector(new MoleculeTransitionsTableInfo(new TargetedMSSchema(user, container), null, true),
+                MoleculeTransition.getColumns(), filter, new Sort("GeneralPrecursorId, TransitionId"))
+            .getArrayList(MoleculeTransition.class);
+    }
 }
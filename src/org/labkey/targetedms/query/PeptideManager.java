@@ -93,6 +93,21 @@ public static Collection<Peptide> getPeptidesForGroup(long peptideGroupId)
         return new SqlSelector(TargetedMSManager.getSchema(), sql).getArrayList(Peptide.class);
     }
 
+    /** @return all of the run's peptides, sorted by peptide group */
+    public static Collection<Peptide> getPeptidesForRun(long runId)
+    {
+        SQLFragment sql = new SQLFragment("SELECT gm.id, gm.id, gm.peptidegroupid, gm.rtcalculatorscore, gm.predictedretentiontime, ");
+        sql.append("gm.avgmeasuredretentiontime, gm.note, gm.explicitretentiontime, ");
+        sql.append("gm.normalizationmethod, gm.standardtype, gm.concentrationmultiplier, gm.internalstandardconcentration, ");
+        sql.append("p.id, p.sequence, p.startindex, p.endindex, p.previousaa, p.nextaa, ");
+        sql.append("p.calcneutralmass, p.nummissedcleavages, p.rank, p.decoy, p.peptidemodifiedsequence, ");
+        sql.append("gm.standardtype FROM targetedms.generalmolecule gm, targetedms.peptide p, targetedms.peptidegroup pg WHERE ");
+        sql.append("p.id = gm.id AND gm.peptidegroupid = pg.id AND pg.runid=? ORDER BY gm.peptidegroupid, gm.Id");
+        sql.add(runId);
+
+        return new SqlSelector(TargetedMSManager.getSchema(), sql).getArrayList(Peptide.class);
+    }
+
     public static Double getMinRetentionTime(long peptideId)
     {
         SQLFragment sql = new SQLFragment("SELECT MIN(preci.MinStartTime) FROM ");
@@ -33,6 +33,14 @@ public PrecursorChromInfoTable(TargetedMSSchema schema, ContainerFilter cf)
     {
         super(TargetedMSManager.getTableInfoPrecursorChromInfo(), schema, cf, null, new SQLFragment("Container"),
                 TargetedMSManager.getTableInfoPrecursorChromInfoAnnotation(), "PrecursorChromInfoId", "Precursor Result Annotations", "precursor_result", false);
+        // The container comes from the chrom info itself, so there's no join to the run to leave out deleted ones
+        SQLFragment undeletedSQL = new SQLFragment("SampleFileId IN (SELECT sf.Id FROM ");
+        undeletedSQL.append(TargetedMSManager.getTableInfoSampleFile(), "sf");
+        undeletedSQL.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoReplicate(), "rep").append(" ON sf.ReplicateId = rep.Id");
+        undeletedSQL.append(" INNER JOIN ").append(TargetedMSManager.getTableInfoRuns(), "runs").append(" ON rep.RunId = runs.Id");
+        undeletedSQL.append(" WHERE runs.Deleted = ?)").add(Boolean.FALSE);
+        addCondition(undeletedSQL, FieldKey.fromParts("SampleFileId"));
+
         var precursorId = getMutableColumn("PrecursorId");
         precursorId.setFk(new TargetedMSForeignKey(getUserSchema(), TargetedMSSchema.TABLE_PRECURSOR, cf));
 
@@ -124,6 +124,36 @@ public static List<Precursor> getPrecursorsForPeptide(long peptideId, TargetedMS
         return new TableSelector(new PrecursorTableInfo(targetedMSSchema, null, true), colNames, filter,  sort).getArrayList(Precursor.class);
     }
 
+    /** @return the precursors of all of the peptides, sorted by peptide and then as in getPrecursorsForPeptide() */
+    public static List<Precursor> getPrecursorsForPeptides(Collection<Long> peptideIds, TargetedMSSchema targetedMSSchema)
+    {
+        SimpleFilter filter = new SimpleFilter(new SimpleFilter.InClause(FieldKey.fromParts("PeptideId"), peptideIds));
+
+        Sort sort = new Sort("PeptideId, Charge, IsotopeLabelId");
+
+        Set<String> colNames = new HashSet<>();
+        colNames.addAll(TargetedMSManager.getTableInfoPrecursor().getColumnNameSet());
+        colNames.addAll(TargetedMSManager.getTableInfoGeneralPrecursor().getColumnNameSet());
+
+        return new TableSelector(new PrecursorTableInfo(targetedMSSchema, null, true), colNames, filter,  sort).getArrayList(Precursor.class);
+    }
+
+    /** @return the precursors of all of the run's peptides, sorted as in getPrecursorsForPeptides() */
+    public static List<Precursor> getPrecursorsForRun(long runId, TargetedMSSchema targetedMSSchema)
+    {
+        SimpleFilter filter = new SimpleFilter(new SimpleFilter.SQLClause(new SQLFragment("GeneralMoleculeId IN " +
+                "(SELECT gm.Id FROM targetedms.GeneralMolecule gm INNER JOIN targetedms.PeptideGroup pg ON gm.PeptideGroupId = pg.Id WHERE pg.RunId = ?)", runId),
+                FieldKey.fromParts("GeneralMoleculeId")));
+
+        Sort sort = new Sort("PeptideId, Charge, IsotopeLabelId");
+
+        Set<String> colNames = new HashSet<>();
+        colNames.addAll(TargetedMSManager.getTableInfoPrecursor().getColumnNameSet());
+        colNames.addAll(TargetedMSManager.getTableInfoGeneralPrecursor().getColumnNameSet());
+
+        return new TableSelector(new PrecursorTableInfo(targetedMSSchema, null, true), colNames, filter,  sort).getArrayList(Precursor.class);
+    }
+
     @NotNull
     public static List<PrecursorChromInfo> getSortedPrecursorChromInfosForPrecursor(long precursorId)
     {
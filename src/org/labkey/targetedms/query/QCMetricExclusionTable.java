@@ -16,16 +16,24 @@
 package org.labkey.targetedms.query;
 
 import org.jetbrains.annotations.NotNull;
+import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerFilter;
 import org.labkey.api.query.DefaultQueryUpdateService;
 import org.labkey.api.query.FieldKey;
+import org.labkey.api.query.InvalidKeyException;
 import org.labkey.api.query.QueryForeignKey;
 import org.labkey.api.query.QueryUpdateService;
+import org.labkey.api.query.ValidationException;
+import org.labkey.api.security.User;
 import org.labkey.api.security.UserPrincipal;
 import org.labkey.api.security.permissions.Permission;
 import org.labkey.api.targetedms.TargetedMSService;
 import org.labkey.targetedms.TargetedMSManager;
 import org.labkey.targetedms.TargetedMSSchema;
+import org.labkey.targetedms.outliers.QCOutlierCache;
+
+import java.sql.SQLException;
+import java.util.Map;
 
 public class QCMetricExclusionTable extends TargetedMSTable
 {
@@ -58,6 +66,28 @@ public boolean hasPermission(@NotNull UserPrincipal user, @NotNull Class<? exten
     @Override
     public QueryUpdateService getUpdateService()
     {
-        return new DefaultQueryUpdateService(this, getRealTable());
+        return new DefaultQueryUpdateService(this, getRealTable())
+        {
+            @Override
+            protected Map<String, Object> _insert(User user, Container c, Map<String, Object> row) throws SQLException, ValidationException
+            {
+                QCOutlierCache.get().invalidate(c);
+                return super._insert(user, c, row);
+            }
+
+            @Override
+            protected Map<String, Object> _update(User user, Container c, Map<String, Object> row, Map<String, Object> oldRow, Object[] keys) throws SQLException, ValidationException
+            {
+                QCOutlierCache.get().invalidate(c);
+                return super._update(user, c, row, oldRow, keys);
+            }
+
+            @Override
+            protected void _delete(Container c, Map<String, Object> row) throws InvalidKeyException
+            {
+                QCOutlierCache.get().invalidate(c);
+                super._delete(c, row);
+            }
+        };
     }
 }
@@ -72,6 +72,7 @@ public static List<Integer> getReplicateExclusions(String name, Container contai
         sqlFragment.append(" ON r.Id = rp.runId");
         sqlFragment.append(" WHERE rp.Name=?").add(name);
         sqlFragment.append(" AND r.Container=?").add(container);
+        sqlFragment.append(" AND r.Deleted=?").add(false);
 
         return new SqlSelector(TargetedMSManager.getSchema(), sqlFragment).getArrayList(Integer.class);
     }
@@ -23,7 +23,6 @@
 import org.labkey.api.data.SqlSelector;
 import org.labkey.api.data.Table;
 import org.labkey.api.data.TableInfo;
-import org.labkey.api.pipeline.LocalDirectory;
 import org.labkey.api.security.User;
 import org.labkey.api.targetedms.RunRepresentativeDataState;
 import org.labkey.api.targetedms.RepresentativeDataState;
@@ -37,6 +36,7 @@
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.function.BiFunction;
 
 /**
@@ -48,11 +48,17 @@
 {
     private RepresentativeStateManager() {}
 
-    public static void setRepresentativeState(User user, Container container, LocalDirectory localDirectory,
-                                              TargetedMSRun run, RunRepresentativeDataState state)
+    public static void setRepresentativeState(User user, Container container, TargetedMSRun run, RunRepresentativeDataState state)
     {
         try (DbScope.Transaction transaction = TargetedMSManager.getSchema().getScope().ensureTransaction())
         {
+            // Protein libraries are always rewritten from scratch. Otherwise, only the precursors in this run change state.
+            Set<String> changedPrecursorKeys = null;
+            if(state != RunRepresentativeDataState.Representative_Protein && run.getRepresentativeDataState() != RunRepresentativeDataState.Representative_Protein)
+            {
+                changedPrecursorKeys = ChromatogramLibraryUtils.getPrecursorKeysForRun(run.getId());
+            }
+
             int conflictCount = 0;
             if(state == RunRepresentativeDataState.Representative_Protein)
             {
@@ -100,7 +106,7 @@ else if(currentState == RunRepresentativeDataState.Representative_Peptide)
             TargetedMSManager.markRunsNotRepresentative(container, RunRepresentativeDataState.Representative_Protein);
 
             // Increment the chromatogram library revision number for this container.
-            ChromatogramLibraryUtils.incrementLibraryRevision(container, user, localDirectory);
+            ChromatogramLibraryUtils.incrementLibraryRevision(container, user, changedPrecursorKeys);
 
             // Add event to audit log.
             TargetedMsRepresentativeStateAuditProvider.addAuditEntry(container, user,
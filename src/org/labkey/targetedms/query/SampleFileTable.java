@@ -64,6 +64,7 @@
 import org.labkey.targetedms.TargetedMSRun;
 import org.labkey.targetedms.TargetedMSSchema;
 import org.labkey.targetedms.datasource.MsDataSourceUtil;
+import org.labkey.targetedms.outliers.QCOutlierCache;
 import org.labkey.targetedms.parser.SampleFile;
 
 import java.io.IOException;
@@ -273,6 +274,7 @@ protected Map<String, Object> deleteRow(User user, Container container, Map<Stri
                 {
                     int convertedId = Integer.parseInt(id.toString());
                     TargetedMSManager.purgeDeletedSampleFiles(convertedId);
+                    QCOutlierCache.get().invalidate(container);
                 }
                 return super.deleteRow(user, container, oldRowMap);
             }
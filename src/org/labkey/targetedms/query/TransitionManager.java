@@ -263,6 +263,18 @@ public static List<Transition> getTransitionsForPrecursor(long precursorId, User
                                  new SimpleFilter(FieldKey.fromParts("PrecursorId"), precursorId), new Sort("Id")).getArrayList(Transition.class);
     }
 
+    /** @return the transitions of all of the run's peptide precursors, sorted by precursor */
+    @NotNull
+    public static List<Transition> getTransitionsForRun(long runId, User user, Container container)
+    {
+        SimpleFilter filter = new SimpleFilter(new SimpleFilter.SQLClause(new SQLFragment("GeneralPrecursorId IN " +
+                "(SELECT gp.Id FROM targetedms.GeneralPrecursor gp INNER JOIN targetedms.GeneralMolecule gm ON gp.GeneralMoleculeId = gm.Id " +
+                "INNER JOIN targetedms.PeptideGroup pg ON gm.PeptideGroupId = pg.Id WHERE pg.RunId = ?)", runId),
+                FieldKey.fromParts("GeneralPrecursorId")));
+        return new TableSelector(new DocTransitionsTableInfo(new TargetedMSSchema(user, container), null), Transition.getColumns(),
+                                 filter, new Sort("PrecursorId, Id")).getArrayList(Transition.class);
+    }
+
     @NotNull
     public static Collection<TransitionChromInfo> getTransitionChromInfoListForTransition(long transitionId)
     {
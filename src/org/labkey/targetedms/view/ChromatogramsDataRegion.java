@@ -31,6 +31,8 @@
 import org.labkey.api.util.URLHelper;
 import org.labkey.api.view.NavTree;
 import org.labkey.api.view.ViewContext;
+import org.labkey.targetedms.parser.ChromatogramReader;
+import org.labkey.targetedms.query.ChromatogramDisplayColumnFactory;
 import org.labkey.targetedms.query.ChromatogramGridQuerySettings;
 
 import java.io.IOException;
@@ -40,8 +42,10 @@
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 /**
  * User: vsharma
@@ -61,6 +65,10 @@ public class ChromatogramsDataRegion extends DataRegion
 
     private String _legendElementId;
 
+    // Chrom infos whose charts are on the page being rendered, so their chromatograms can be read before the charts are requested
+    private final Set<Long> _precursorChromInfoIds = new HashSet<>();
+    private final Set<Long> _generalMoleculeChromInfoIds = new HashSet<>();
+
     public ChromatogramsDataRegion(ViewContext context, FilteredTable<?> tableInfo, String name)
     {
         this(context, tableInfo, name, "Id");
@@ -91,6 +99,10 @@ protected void renderTable(RenderContext ctx, Writer out) throws SQLException, I
     {
         super.renderTable(ctx, out);
 
+        // Each chart is a separate request, so read the chromatograms for just this page of them up front
+        ChromatogramReader.prefetchForPrecursorChromInfos(_precursorChromInfoIds);
+        ChromatogramReader.prefetchForGeneralMoleculeChromInfos(_generalMoleculeChromInfoIds);
+
         out.write("\n<script type=\"text/javascript\">\n");
         out.write("LABKEY.DataRegions[" + PageFlowUtil.jsString(getName()) + "].refreshPlots = function() {\n");
         out.write("  const svgInfos = " + _svgs.toString() + ";\n");
@@ -229,6 +241,17 @@ public void addRefreshListener(String dataRegionName)
         _listeningDataRegionNames.add(dataRegionName);
     }
 
+    /** Remember a chrom info whose chart is on the page, so its chromatograms are prefetched */
+    public void addChromInfo(ChromatogramDisplayColumnFactory.Type type, long id)
+    {
+        switch (type)
+        {
+            case PrecursorSampleLookup, PrecursorPeer -> _precursorChromInfoIds.add(id);
+            case GeneralMoleculeSampleLookup, GeneralMoleculePeer -> _generalMoleculeChromInfoIds.add(id);
+            default -> {}
+        }
+    }
+
     public void addSVG(String url, String mainId, String labelId)
     {
         JSONObject svgInfo = new JSONObject();
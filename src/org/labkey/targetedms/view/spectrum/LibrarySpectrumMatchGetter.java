@@ -16,6 +16,8 @@
 package org.labkey.targetedms.view.spectrum;
 
 import org.apache.commons.io.FilenameUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.labkey.api.cache.BlockingCache;
@@ -23,6 +25,7 @@
 import org.labkey.api.data.Container;
 import org.labkey.api.security.User;
 import org.labkey.api.util.FileUtil;
+import org.labkey.api.util.Pair;
 import org.labkey.targetedms.TargetedMSManager;
 import org.labkey.targetedms.TargetedMSRun;
 import org.labkey.targetedms.TargetedMSSchema;
@@ -58,6 +61,8 @@
  */
 public class LibrarySpectrumMatchGetter
 {
+    private static final Logger LOG = LogManager.getLogger(LibrarySpectrumMatchGetter.class);
+
     private static final int CACHE_SIZE = 10;
 
     private static BlockingCache<PrecursorKey, List<PeptideIdRtInfo>> _peptideIdRtsCache =
@@ -94,49 +99,59 @@
 
     public static List<LibrarySpectrumMatch> getMatches(Peptide peptide, User user, Container container, Container pipeRootContainer, List<SpeclibReaderException> errors)
     {
-        // Get the precursor of this peptide, sorted by label type and charge.
-        List<Precursor> precursors = PrecursorManager.getPrecursorsForPeptide(peptide.getId(), new TargetedMSSchema(user, container));
-
-        TargetedMSRun run = TargetedMSManager.getRunForGeneralMolecule(peptide.getId());
+        return getMatches(Collections.singletonList(peptide), user, container, pipeRootContainer, errors);
+    }
 
-        // Get the spectrum libraries for this run
-        LinkedHashMap<PeptideSettings.SpectrumLibrary, Path> libraryFilePathsMap = LibraryManager.getLibraryFilePaths(run.getId());
+    /**
+     * Library spectra for all of the precursors of peptides from the same run, such as the peptides of a protein.
+     * Each library is searched once for all of the precursors instead of once per precursor.
+     */
+    public static List<LibrarySpectrumMatch> getMatches(List<Peptide> peptides, User user, Container container, Container pipeRootContainer, List<SpeclibReaderException> errors)
+    {
+        if (peptides.isEmpty())
+        {
+            return Collections.emptyList();
+        }
 
-        List<LibrarySpectrumMatch> matchedSpectra = new ArrayList<>();
+        TargetedMSRun run = TargetedMSManager.getRunForGeneralMolecule(peptides.get(0).getId());
+        TargetedMSSchema schema = new TargetedMSSchema(user, container);
 
         // Precursors are sorted by charge and label type (light label first).
         // If there are precursors with different charge or isotope label we want to display the reference MS/MS spectra for all of them.
-        for(Precursor precursor: precursors)
+        List<Pair<Peptide, Precursor>> precursors = new ArrayList<>();
+        for (Peptide peptide : peptides)
         {
-            LibrarySpectrumMatch pepSpec = getMatch(run, peptide, precursor, pipeRootContainer, libraryFilePathsMap, errors);
-
-            if(pepSpec != null)
+            for (Precursor precursor : PrecursorManager.getPrecursorsForPeptide(peptide.getId(), schema))
             {
-                matchedSpectra.add(pepSpec);
+                precursors.add(Pair.of(peptide, precursor));
             }
         }
-        return matchedSpectra;
+        return getMatches(run, precursors, pipeRootContainer, errors);
     }
-    
+
     public static List<LibrarySpectrumMatch> getMatches(Precursor precursor, Container container, List<SpeclibReaderException> errors)
     {
         TargetedMSRun run = TargetedMSManager.getRunForGeneralMolecule(precursor.getGeneralMoleculeId());
-
-        // Get the spectrum libraries for this run
-        LinkedHashMap<PeptideSettings.SpectrumLibrary, Path> libraryFilePathsMap = LibraryManager.getLibraryFilePaths(run.getId());
-
         Peptide peptide = PeptideManager.getPeptide(run.getContainer(), precursor.getGeneralMoleculeId());
-        LibrarySpectrumMatch match = getMatch(run, peptide, precursor, container, libraryFilePathsMap, errors);
-
-        return match != null ? Collections.singletonList(match) : Collections.emptyList();
+        return getMatches(run, Collections.singletonList(Pair.of(peptide, precursor)), container, errors);
     }
 
-    private static LibrarySpectrumMatch getMatch(TargetedMSRun run, Peptide peptide, Precursor precursor, Container container,
-                                                 LinkedHashMap<PeptideSettings.SpectrumLibrary, Path> libraryFilePathsMap,
-                                                 List<SpeclibReaderException> errors)
+    /** @return a match for each precursor with a spectrum in any of the run's libraries, in the order of the precursors */
+    private static List<LibrarySpectrumMatch> getMatches(TargetedMSRun run, List<Pair<Peptide, Precursor>> precursors, Container container,
+                                                         List<SpeclibReaderException> errors)
     {
-        LibrarySpectrumMatch pepSpec = null;
+        long start = System.currentTimeMillis();
+
+        // Get the spectrum libraries for this run
+        LinkedHashMap<PeptideSettings.SpectrumLibrary, Path> libraryFilePathsMap = LibraryManager.getLibraryFilePaths(run.getId());
+
+        List<LibSpectrum.SpectrumKey> keys = new ArrayList<>();
+        for (Pair<Peptide, Precursor> pair : precursors)
+        {
+            keys.add(new LibSpectrum.SpectrumKey(pair.second.getModifiedSequence(), pair.second.getCharge()));
+        }
 
+        LibrarySpectrumMatch[] matches = new LibrarySpectrumMatch[precursors.size()];
         for(PeptideSettings.SpectrumLibrary library: libraryFilePathsMap.keySet())
         {
             Path libFilePath = libraryFilePathsMap.get(library);
@@ -145,31 +160,50 @@ private static LibrarySpectrumMatch getMatch(TargetedMSRun run, Peptide peptide,
                 continue;
             }
 
-            LibSpectrum spectrum = null;
             LibSpectrumReader reader = getReaderForLibrary(FileUtil.getFileName(libFilePath));
-            if(reader != null)
+            if(reader == null)
             {
-                try
-                {
-                    spectrum = reader.getLibSpectrum(container, libFilePath, precursor.getModifiedSequence(), precursor.getCharge());
-                }
-                catch (SQLException | DataFormatException e)
-                {
-                    errors.add(new SpeclibReaderException(e, library, libFilePath));
-                    continue;
-                }
+                continue;
             }
 
-            if(spectrum != null)
+            Map<LibSpectrum.SpectrumKey, LibSpectrum> spectra;
+            try
             {
-                if(pepSpec == null)
+                spectra = reader.getLibSpectra(container, libFilePath, keys);
+            }
+            catch (SQLException | DataFormatException e)
+            {
+                errors.add(new SpeclibReaderException(e, library, libFilePath));
+                continue;
+            }
+
+            for (int i = 0; i < matches.length; i++)
+            {
+                LibSpectrum spectrum = spectra.get(keys.get(i));
+                if(spectrum != null)
                 {
-                    pepSpec = makeLibrarySpectrumMatch(spectrum, run, peptide, precursor, library);
+                    if(matches[i] == null)
+                    {
+                        Pair<Peptide, Precursor> pair = precursors.get(i);
+                        matches[i] = makeLibrarySpectrumMatch(spectrum, run, pair.first, pair.second, library);
+                    }
+                    matches[i].addLibrary(library); // Add this library to list of libraries that have a match for the precursor.
                 }
-                pepSpec.addLibrary(library); // Add this library to list of libraries that have a match for the precursor.
             }
         }
-        return pepSpec;
+
+        List<LibrarySpectrumMatch> matchedSpectra = new ArrayList<>();
+        for (LibrarySpectrumMatch match : matches)
+        {
+            if (match != null)
+            {
+                matchedSpectra.add(match);
+            }
+        }
+
+        LOG.debug("Looked up library spectra for " + precursors.size() + " precursors in " + libraryFilePathsMap.size()
+                + " libraries in " + (System.currentTimeMillis() - start) + " ms, " + matchedSpectra.size() + " matched");
+        return matchedSpectra;
     }
 
     @Nullable